@@ -43,7 +43,7 @@ public class GBDaoGenerator {
 
 
     public static void main(String[] args) throws Exception {
-        Schema schema = new Schema(23, MAIN_PACKAGE + ".entities");
+        Schema schema = new Schema(25, MAIN_PACKAGE + ".entities");
 
         Entity userAttributes = addUserAttributes(schema);
         Entity user = addUserInfo(schema, userAttributes);
@@ -82,6 +82,8 @@ public class GBDaoGenerator {
 
         addBipActivitySummary(schema, user, device);
 
+        addHourlyActivityRollup(schema, device);
+
         new DaoGenerator().generateAll(schema, "app/src/main/java");
     }
 
@@ -225,11 +227,17 @@ public class GBDaoGenerator {
     private static Entity addPebbleHealthActivityKindOverlay(Schema schema, Entity user, Entity device) {
         Entity activityOverlay = addEntity(schema, "PebbleHealthActivityOverlay");
 
-        activityOverlay.addIntProperty(TIMESTAMP_FROM).notNull().primaryKey();
-        activityOverlay.addIntProperty(TIMESTAMP_TO).notNull().primaryKey();
+        Property timestampFrom = activityOverlay.addIntProperty(TIMESTAMP_FROM).notNull().primaryKey().getProperty();
+        Property timestampTo = activityOverlay.addIntProperty(TIMESTAMP_TO).notNull().primaryKey().getProperty();
         activityOverlay.addIntProperty(SAMPLE_RAW_KIND).notNull().primaryKey();
         Property deviceId = activityOverlay.addLongProperty("deviceId").primaryKey().notNull().getProperty();
         activityOverlay.addToOne(device, deviceId);
+        // overlays are queried by device and time range
+        Index indexTimeRange = new Index();
+        indexTimeRange.addProperty(deviceId);
+        indexTimeRange.addProperty(timestampFrom);
+        indexTimeRange.addProperty(timestampTo);
+        activityOverlay.addIndex(indexTimeRange);
 
         Property userId = activityOverlay.addLongProperty("userId").notNull().getProperty();
         activityOverlay.addToOne(user, userId);
@@ -270,11 +278,18 @@ public class GBDaoGenerator {
     private static Entity addHPlusHealthActivityKindOverlay(Schema schema, Entity user, Entity device) {
         Entity activityOverlay = addEntity(schema, "HPlusHealthActivityOverlay");
 
-        activityOverlay.addIntProperty(TIMESTAMP_FROM).notNull().primaryKey();
-        activityOverlay.addIntProperty(TIMESTAMP_TO).notNull().primaryKey();
+        Property timestampFrom = activityOverlay.addIntProperty(TIMESTAMP_FROM).notNull().primaryKey().getProperty();
+        Property timestampTo = activityOverlay.addIntProperty(TIMESTAMP_TO).notNull().primaryKey().getProperty();
         activityOverlay.addIntProperty(SAMPLE_RAW_KIND).notNull().primaryKey();
         Property deviceId = activityOverlay.addLongProperty("deviceId").primaryKey().notNull().getProperty();
         activityOverlay.addToOne(device, deviceId);
+        // HPlusHealthSampleProvider.getAllActivitySamples() queries the overlays by device and
+        // time range in the same way as the Pebble Health overlays, so they get the same index
+        Index indexTimeRange = new Index();
+        indexTimeRange.addProperty(deviceId);
+        indexTimeRange.addProperty(timestampFrom);
+        indexTimeRange.addProperty(timestampTo);
+        activityOverlay.addIndex(indexTimeRange);
 
         Property userId = activityOverlay.addLongProperty("userId").notNull().getProperty();
         activityOverlay.addToOne(user, userId);
@@ -457,6 +472,42 @@ public class GBDaoGenerator {
         summary.addToOne(user, userId);
     }
 
+    private static Entity addHourlyActivityRollup(Schema schema, Entity device) {
+        Entity rollup = addEntity(schema, "HourlyActivityRollup");
+        rollup.setJavaDoc(
+                "Pre-aggregated activity of a single device during one hour, maintained by\n" +
+                        "{@link nodomain.freeyourgadget.gadgetbridge.database.ActivityRollups}.\n" +
+                        "The first and last sample of the hour are kept so that consecutive hours\n" +
+                        "can be merged exactly like the raw samples would be analyzed.");
+        rollup.addIntProperty("timestamp").notNull().primaryKey().javaDocGetterAndSetter("The start of the hour, in seconds since 1970-01-01 00:00:00 UTC.");
+        Property deviceId = rollup.addLongProperty("deviceId").primaryKey().notNull().getProperty();
+        rollup.addToOne(device, deviceId);
+        rollup.addIntProperty("sampleCount").notNull();
+
+        rollup.addIntProperty("activitySeconds").notNull();
+        rollup.addIntProperty("lightSleepSeconds").notNull();
+        rollup.addIntProperty("deepSleepSeconds").notNull();
+        rollup.addIntProperty("notWornSeconds").notNull();
+        rollup.addIntProperty("activitySteps").notNull();
+        rollup.addIntProperty("lightSleepSteps").notNull();
+        rollup.addIntProperty("deepSleepSteps").notNull();
+        rollup.addIntProperty("notWornSteps").notNull();
+
+        rollup.addIntProperty("heartRateMin").notNull();
+        rollup.addIntProperty("heartRateMax").notNull();
+        rollup.addIntProperty("heartRateSum").notNull();
+        rollup.addIntProperty("heartRateCount").notNull();
+
+        rollup.addIntProperty("firstTimestamp").notNull();
+        rollup.addIntProperty("firstKind").notNull();
+        rollup.addIntProperty("firstRawKind").notNull();
+        rollup.addIntProperty("lastTimestamp").notNull();
+        rollup.addIntProperty("lastKind").notNull();
+        rollup.addIntProperty("lastRawKind").notNull();
+
+        return rollup;
+    }
+
     private static Property findProperty(Entity entity, String propertyName) {
         for (Property prop : entity.getProperties()) {
             if (propertyName.equals(prop.getPropertyName())) {
@@ -56,21 +56,25 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.DBLockStatistics;
 import nodomain.freeyourgadget.gadgetbridge.database.DBOpenHelper;
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceManager;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.externalevents.BluetoothStateChangeReceiver;
+import nodomain.freeyourgadget.gadgetbridge.externalevents.NotificationFilterRegistry;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDeviceService;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceService;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
 import nodomain.freeyourgadget.gadgetbridge.service.NotificationCollectorMonitorService;
+import nodomain.freeyourgadget.gadgetbridge.service.capture.TrafficRecorder;
 import nodomain.freeyourgadget.gadgetbridge.util.AndroidUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
@@ -101,7 +105,15 @@ public class GBApplication extends Application {
     public static final String DATABASE_NAME = "Gadgetbridge";
 
     private static GBApplication context;
-    private static final Lock dbLock = new ReentrantLock();
+    /**
+     * Shared by readers and writers, held exclusively only to close, import or delete the database
+     */
+    private static final ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock();
+    /**
+     * Serializes the writers; readers never wait for it
+     */
+    private static final ReentrantLock dbWriterLock = new ReentrantLock();
+    private static final DBLockStatistics dbLockStatistics = new DBLockStatistics();
     private static DeviceService deviceService;
     private static SharedPreferences sharedPrefs;
     private static final String PREFS_VERSION = "shared_preferences_version";
@@ -111,6 +123,7 @@ public class GBApplication extends Application {
     private static Prefs prefs;
     private static GBPrefs gbPrefs;
     private static LockHandler lockHandler;
+    private static ReadOnlyLockHandler readOnlyLockHandler;
     /**
      * Note: is null on Lollipop and Kitkat
      */
@@ -183,6 +196,7 @@ public class GBApplication extends Application {
         // don't do anything here before we set up logging, otherwise
         // slf4j may be implicitly initialized before we properly configured it.
         setupLogging(isFileLoggingEnabled());
+        setupTrafficRecorder(isTrafficRecordingEnabled());
 
         if (getPrefsFileVersion() != CURRENT_PREFS_VERSION) {
             migratePrefs(getPrefsFileVersion());
@@ -251,6 +265,26 @@ public class GBApplication extends Application {
         return logging.getLogPath();
     }
 
+    /**
+     * Starts or stops recording the raw device traffic into capture files next to the log files.
+     */
+    public static void setupTrafficRecorder(boolean enabled) {
+        TrafficRecorder recorder = TrafficRecorder.getInstance();
+        if (!enabled) {
+            recorder.stop();
+            return;
+        }
+        try {
+            recorder.start(getTrafficCaptureDir());
+        } catch (IOException ex) {
+            GB.log("Unable to record the device traffic", GB.ERROR, ex);
+        }
+    }
+
+    public static File getTrafficCaptureDir() throws IOException {
+        return new File(FileUtils.getExternalFilesDir(), "captures");
+    }
+
     private void setupExceptionHandler() {
         LoggingExceptionHandler handler = new LoggingExceptionHandler(Thread.getDefaultUncaughtExceptionHandler());
         Thread.setDefaultUncaughtExceptionHandler(handler);
@@ -260,6 +294,18 @@ public class GBApplication extends Application {
         return prefs.getBoolean("log_to_file", false);
     }
 
+    public static boolean isTrafficRecordingEnabled() {
+        return prefs.getBoolean("record_traffic", false);
+    }
+
+    /**
+     * Whether bulk transfers like firmware and file uploads may pipeline their writes,
+     * see TransactionBuilder#pipelineWrites(int)
+     */
+    public static boolean isWritePipeliningEnabled() {
+        return prefs.getBoolean("pipeline_ble_writes", false);
+    }
+
     public static boolean minimizeNotification() {
         return prefs.getBoolean("minimize_priority", false);
     }
@@ -271,13 +317,23 @@ public class GBApplication extends Application {
             helper = new DaoMaster.DevOpenHelper(this, null, null);
         } else {
             helper = new DBOpenHelper(this, DATABASE_NAME, null);
+            // allows readers to use their own connections while a write transaction is running
+            helper.setWriteAheadLoggingEnabled(true);
         }
         SQLiteDatabase db = helper.getWritableDatabase();
         DaoMaster daoMaster = new DaoMaster(db);
+        DaoMaster readOnlyDaoMaster = daoMaster;
+        if (!env.isTest()) {
+            // readers get their own pool of connections, so they never queue behind a writer
+            SQLiteDatabase readOnlyDb = SQLiteDatabase.openDatabase(db.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+            readOnlyDaoMaster = new DaoMaster(readOnlyDb);
+        }
         if (lockHandler == null) {
             lockHandler = new LockHandler();
+            readOnlyLockHandler = new ReadOnlyLockHandler(lockHandler);
         }
-        lockHandler.init(daoMaster, helper);
+        lockHandler.init(daoMaster, helper, readOnlyDaoMaster);
     }
 
     public static Context getContext() {
@@ -300,6 +356,9 @@ public class GBApplication extends Application {
      * If acquiring was successful, callers must call #releaseDB when they
      * are done (from the same thread that acquired the lock!
      * <p>
+     * Writers only wait for each other, readers using #acquireReadOnlyDB
+     * proceed while a writer is storing data.
+     * <p>
      * Callers must not hold a reference to the returned instance because it
      * will be invalidated at some point.
      *
@@ -308,10 +367,60 @@ public class GBApplication extends Application {
      * @see #releaseDB()
      */
     public static DBHandler acquireDB() throws GBException {
+        long start = System.nanoTime();
+        acquireLock(dbLock.readLock(), true);
         try {
-            if (dbLock.tryLock(30, TimeUnit.SECONDS)) {
-                return lockHandler;
+            acquireLock(dbWriterLock, true);
+        } catch (GBException ex) {
+            dbLock.readLock().unlock();
+            throw ex;
+        }
+        dbLockStatistics.acquired(true, System.nanoTime() - start);
+        return lockHandler;
+    }
+
+    /**
+     * Returns the DBHandler instance with exclusive access, to close, import or delete
+     * the database. Waits for all readers and writers to finish, so this must not be
+     * called while holding any other DBHandler.
+     * Callers must call #releaseDB when they are done.
+     *
+     * @return the DBHandler
+     * @throws GBException
+     * @see #releaseDB()
+     */
+    public static DBHandler acquireExclusiveDB() throws GBException {
+        long start = System.nanoTime();
+        acquireLock(dbLock.writeLock(), true);
+        dbLockStatistics.acquired(true, System.nanoTime() - start);
+        return lockHandler;
+    }
+
+    /**
+     * Returns a DBHandler for read-only access or throws GBException when that
+     * was not successful. Readers use their own read-only connections, so any number
+     * of them may access the database at the same time, and they never wait for writers.
+     * <p>
+     * Callers must close the returned handler (from the same thread) when they are done.
+     * Data must not be written through a read-only handler, use #acquireDB for that.
+     *
+     * @return the DBHandler
+     * @throws GBException
+     * @see #releaseReadOnlyDB()
+     */
+    public static DBHandler acquireReadOnlyDB() throws GBException {
+        long start = System.nanoTime();
+        acquireLock(dbLock.readLock(), false);
+        dbLockStatistics.acquired(false, System.nanoTime() - start);
+        return readOnlyLockHandler;
+    }
+
+    private static void acquireLock(Lock lock, boolean write) throws GBException {
+        try {
+            if (lock.tryLock(30, TimeUnit.SECONDS)) {
+                return;
             }
+            dbLockStatistics.timedOut(write);
         } catch (InterruptedException ex) {
             Log.i(TAG, "Interrupted while waiting for DB lock");
         }
@@ -319,13 +428,39 @@ public class GBApplication extends Application {
     }
 
     /**
-     * Releases the database lock.
+     * Releases the database lock acquired with #acquireDB or #acquireExclusiveDB.
      *
      * @throws IllegalMonitorStateException if the current thread is not owning the lock
      * @see #acquireDB()
+     * @see #acquireExclusiveDB()
      */
     public static void releaseDB() {
-        dbLock.unlock();
+        dbLockStatistics.released(true);
+        if (dbWriterLock.isHeldByCurrentThread()) {
+            dbWriterLock.unlock();
+            dbLock.readLock().unlock();
+        } else {
+            dbLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Releases the shared database read lock.
+     *
+     * @throws IllegalMonitorStateException if the current thread is not owning the lock
+     * @see #acquireReadOnlyDB()
+     */
+    public static void releaseReadOnlyDB() {
+        dbLockStatistics.released(false);
+        dbLock.readLock().unlock();
+    }
+
+    /**
+     * Returns the wait and hold times of database accesses, to find out where there
+     * is contention.
+     */
+    public static DBLockStatistics getDBLockStatistics() {
+        return dbLockStatistics;
     }
 
     public static boolean isRunningLollipopOrLater() {
@@ -569,10 +704,16 @@ public class GBApplication extends Application {
     public static synchronized boolean deleteActivityDatabase(Context context) {
         // TODO: flush, close, reopen db
         if (lockHandler != null) {
-            lockHandler.closeDb();
+            try (DBHandler dbHandler = acquireExclusiveDB()) {
+                dbHandler.closeDb();
+            } catch (GBException e) {
+                Log.w(TAG, "Unable to close the database before deleting it", e);
+                return false;
+            }
         }
         boolean result = deleteOldActivityDatabase(context);
         result &= getContext().deleteDatabase(DATABASE_NAME);
+        NotificationFilterRegistry.invalidate();
         return result;
     }
 
@@ -19,6 +19,7 @@ package nodomain.freeyourgadget.gadgetbridge;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import de.greenrobot.dao.identityscope.IdentityScopeType;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
@@ -31,11 +32,21 @@ public class LockHandler implements DBHandler {
     private DaoMaster daoMaster = null;
     private DaoSession session = null;
     private SQLiteOpenHelper helper = null;
+    private DaoMaster readOnlyDaoMaster = null;
+    private DaoSession readOnlySession = null;
 
     public LockHandler() {
     }
 
     public void init(DaoMaster daoMaster, DaoMaster.OpenHelper helper) {
+        init(daoMaster, helper, daoMaster);
+    }
+
+    /**
+     * @param readOnlyDaoMaster the connections used by readers, or daoMaster if readers
+     *                          shall share the connection of the writers
+     */
+    public void init(DaoMaster daoMaster, DaoMaster.OpenHelper helper, DaoMaster readOnlyDaoMaster) {
         if (isValid()) {
             throw new IllegalStateException("DB must be closed before initializing it again");
         }
@@ -45,13 +56,23 @@ public class LockHandler implements DBHandler {
         if (helper == null) {
             throw new IllegalArgumentException("helper must not be null");
         }
+        if (readOnlyDaoMaster == null) {
+            throw new IllegalArgumentException("readOnlyDaoMaster must not be null");
+        }
         this.daoMaster = daoMaster;
         this.helper = helper;
+        this.readOnlyDaoMaster = readOnlyDaoMaster;
 
         session = daoMaster.newSession();
         if (session == null) {
             throw new RuntimeException("Unable to create database session");
         }
+        if (readOnlyDaoMaster == daoMaster) {
+            readOnlySession = session;
+        } else {
+            // no identity scope, otherwise readers would keep seeing entities the writers changed
+            readOnlySession = readOnlyDaoMaster.newSession(IdentityScopeType.None);
+        }
     }
 
     @Override
@@ -91,9 +112,14 @@ public class LockHandler implements DBHandler {
         }
         session.clear();
         session.getDatabase().close();
+        if (readOnlySession != session) {
+            readOnlySession.getDatabase().close();
+        }
         session = null;
+        readOnlySession = null;
         helper = null;
         daoMaster = null;
+        readOnlyDaoMaster = null;
     }
 
     @Override
@@ -113,4 +139,19 @@ public class LockHandler implements DBHandler {
         ensureValid();
         return daoMaster.getDatabase();
     }
+
+    DaoMaster getReadOnlyDaoMaster() {
+        ensureValid();
+        return readOnlyDaoMaster;
+    }
+
+    DaoSession getReadOnlyDaoSession() {
+        ensureValid();
+        return readOnlySession;
+    }
+
+    SQLiteDatabase getReadOnlyDatabase() {
+        ensureValid();
+        return readOnlyDaoMaster.getDatabase();
+    }
 }
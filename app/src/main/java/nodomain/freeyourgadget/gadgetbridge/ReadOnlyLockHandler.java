@@ -0,0 +1,72 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+
+/**
+ * The DBHandler handed out by {@link GBApplication#acquireReadOnlyDB()}. It uses the
+ * read-only connections of the {@link LockHandler}, releases the shared read lock on #close()
+ * and does not allow closing or reopening the database.
+ */
+public class ReadOnlyLockHandler implements DBHandler {
+    private final LockHandler delegate;
+
+    public ReadOnlyLockHandler(LockHandler delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void close() {
+        GBApplication.releaseReadOnlyDB();
+    }
+
+    @Override
+    public void openDb() {
+        throw new UnsupportedOperationException("Opening the database requires write access");
+    }
+
+    @Override
+    public void closeDb() {
+        throw new UnsupportedOperationException("Closing the database requires write access");
+    }
+
+    @Override
+    public SQLiteOpenHelper getHelper() {
+        return delegate.getHelper();
+    }
+
+    @Override
+    public SQLiteDatabase getDatabase() {
+        return delegate.getReadOnlyDatabase();
+    }
+
+    @Override
+    public DaoMaster getDaoMaster() {
+        return delegate.getReadOnlyDaoMaster();
+    }
+
+    @Override
+    public DaoSession getDaoSession() {
+        return delegate.getReadOnlyDaoSession();
+    }
+}
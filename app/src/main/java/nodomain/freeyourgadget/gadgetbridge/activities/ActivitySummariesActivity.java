@@ -24,6 +24,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.SparseBooleanArray;
 import android.view.ActionMode;
@@ -43,7 +44,6 @@ import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
@@ -52,9 +52,13 @@ import java.util.Objects;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.adapter.ActivitySummariesAdapter;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.export.ActivityTrackFile;
+import nodomain.freeyourgadget.gadgetbridge.export.GPXExporter;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
-import nodomain.freeyourgadget.gadgetbridge.model.ActivitySummary;
 import nodomain.freeyourgadget.gadgetbridge.model.RecordedDataTypes;
 import nodomain.freeyourgadget.gadgetbridge.util.AndroidUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
@@ -128,11 +132,10 @@ public class ActivitySummariesActivity extends AbstractListActivity<BaseActivity
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 Object item = parent.getItemAtPosition(position);
                 if (item != null) {
-                    ActivitySummary summary = (ActivitySummary) item;
+                    BaseActivitySummary summary = (BaseActivitySummary) item;
 
-                    String gpxTrack = summary.getGpxTrack();
-                    if (gpxTrack != null) {
-                        showTrack(gpxTrack);
+                    if (summary.getGpxTrack() != null) {
+                        new RenderGpxTask(false).execute(summary);
                     } else {
                         GB.toast("This activity does not contain GPX tracks.", Toast.LENGTH_LONG, GB.INFO);
                     }
@@ -177,24 +180,16 @@ public class ActivitySummariesActivity extends AbstractListActivity<BaseActivity
                         processed =  true;
                         break;
                     case R.id.activity_action_export:
-                        List<String> paths = new ArrayList<>();
-
-
+                        List<BaseActivitySummary> toExport = new ArrayList<>();
                         for(int i = 0; i<  checked.size(); i++) {
                             if (checked.valueAt(i)) {
-
                                 BaseActivitySummary item = getItemAdapter().getItem(checked.keyAt(i));
-                                if (item != null) {
-                                    ActivitySummary summary = item;
-
-                                    String gpxTrack = summary.getGpxTrack();
-                                    if (gpxTrack != null) {
-                                        paths.add(gpxTrack);
-                                    }
+                                if (item != null && item.getGpxTrack() != null) {
+                                    toExport.add(item);
                                 }
                             }
                         }
-                        shareMultiple(paths);
+                        new RenderGpxTask(true).execute(toExport.toArray(new BaseActivitySummary[0]));
                         processed = true;
                         break;
                     case R.id.activity_action_select_all:
@@ -263,17 +258,40 @@ public class ActivitySummariesActivity extends AbstractListActivity<BaseActivity
         refresh();
     }
 
-    private void showTrack(String gpxTrack) {
+    private void showTrack(String path) {
         try {
-            AndroidUtils.viewFile(gpxTrack, Intent.ACTION_VIEW, this);
-        } catch (IOException e) {
+            AndroidUtils.viewFile(path, Intent.ACTION_VIEW, this);
+        } catch (Exception e) {
             GB.toast(this, "Unable to display GPX track: " + e.getMessage(), Toast.LENGTH_LONG, GB.ERROR, e);
         }
     }
 
+    /**
+     * Returns the path of a GPX file of the given activity's track. Tracks are stored as
+     * {@link ActivityTrackFile} and only rendered to GPX when they are viewed or shared,
+     * which may take a while, so this must not be called on the UI thread.
+     */
+    private static String getGpxTrack(BaseActivitySummary summary) throws Exception {
+        String path = summary.getGpxTrack();
+        if (!ActivityTrackFile.isTrackFile(path)) {
+            // written by older versions
+            return path;
+        }
+        User user;
+        Device device;
+        try (DBHandler handler = GBApplication.acquireReadOnlyDB()) {
+            user = summary.getUser();
+            device = summary.getDevice();
+        }
+        GPXExporter exporter = new GPXExporter();
+        exporter.setCreator(GBApplication.app().getNameAndVersion());
+        ActivityTrackFile trackFile = ActivityTrackFile.open(new File(path));
+        return trackFile.render(exporter, ".gpx", user, device).getAbsolutePath();
+    }
+
     private void fetchTrackData() {
         if (mGBDevice.isInitialized() && !mGBDevice.isBusy()) {
-            GBApplication.deviceService().onFetchRecordedData(RecordedDataTypes.TYPE_GPS_TRACKS);
+            GBApplication.deviceService().forDevice(mGBDevice).onFetchRecordedData(RecordedDataTypes.TYPE_GPS_TRACKS);
         } else {
             swipeLayout.setRefreshing(false);
             if (!mGBDevice.isInitialized()) {
@@ -300,4 +318,47 @@ public class ActivitySummariesActivity extends AbstractListActivity<BaseActivity
         }
 
     }
+
+    /**
+     * Renders the GPX files of the given activities in the background, then shows the
+     * first one or shares all of them.
+     */
+    private class RenderGpxTask extends AsyncTask<BaseActivitySummary, Void, List<String>> {
+        private final boolean share;
+        private Exception error;
+
+        RenderGpxTask(boolean share) {
+            this.share = share;
+        }
+
+        @Override
+        protected List<String> doInBackground(BaseActivitySummary... summaries) {
+            List<String> paths = new ArrayList<>();
+            for (BaseActivitySummary summary : summaries) {
+                try {
+                    paths.add(getGpxTrack(summary));
+                } catch (Exception e) {
+                    error = e;
+                }
+            }
+            return paths;
+        }
+
+        @Override
+        protected void onPostExecute(List<String> paths) {
+            if (isFinishing()) {
+                return;
+            }
+            if (error != null) {
+                GB.toast(ActivitySummariesActivity.this, "Unable to export GPX track: " + error.getMessage(), Toast.LENGTH_LONG, GB.ERROR, error);
+            }
+            if (share) {
+                if (!paths.isEmpty() || error == null) {
+                    shareMultiple(paths);
+                }
+            } else if (!paths.isEmpty()) {
+                showTrack(paths.get(0));
+            }
+        }
+    }
 }
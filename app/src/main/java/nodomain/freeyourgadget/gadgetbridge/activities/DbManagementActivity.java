@@ -237,7 +237,7 @@ public class DbManagementActivity extends AbstractGBActivity {
     }
 
     private void exportDB() {
-        try (DBHandler dbHandler = GBApplication.acquireDB()) {
+        try (DBHandler dbHandler = GBApplication.acquireExclusiveDB()) {
             exportShared();
             DBHelper helper = new DBHelper(this);
             File dir = FileUtils.getExternalFilesDir();
@@ -256,7 +256,7 @@ public class DbManagementActivity extends AbstractGBActivity {
                 .setPositiveButton(R.string.dbmanagementactivity_overwrite, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        try (DBHandler dbHandler = GBApplication.acquireDB()) {
+                        try (DBHandler dbHandler = GBApplication.acquireExclusiveDB()) {
                             DBHelper helper = new DBHelper(DbManagementActivity.this);
                             File dir = FileUtils.getExternalFilesDir();
                             SQLiteOpenHelper sqLiteOpenHelper = dbHandler.getHelper();
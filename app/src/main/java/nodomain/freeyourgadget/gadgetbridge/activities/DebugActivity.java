@@ -39,6 +39,7 @@ import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import androidx.annotation.Nullable;
 import androidx.core.app.NavUtils;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.RemoteInput;
@@ -55,6 +56,7 @@ import java.util.Objects;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
+import nodomain.freeyourgadget.gadgetbridge.database.DBLockStatistics;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.model.CallSpec;
@@ -64,6 +66,8 @@ import nodomain.freeyourgadget.gadgetbridge.model.MusicStateSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationType;
 import nodomain.freeyourgadget.gadgetbridge.model.RecordedDataTypes;
+import nodomain.freeyourgadget.gadgetbridge.service.DeviceTaskScheduler;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEMetrics;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceProtocol;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 
@@ -187,7 +191,10 @@ public class DebugActivity extends AbstractGBActivity {
         rebootButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                GBApplication.deviceService().onReset(GBDeviceProtocol.RESET_FLAGS_REBOOT);
+                DeviceService deviceService = getSelectedDeviceService();
+                if (deviceService != null) {
+                    deviceService.onReset(GBDeviceProtocol.RESET_FLAGS_REBOOT);
+                }
             }
         });
 
@@ -202,7 +209,10 @@ public class DebugActivity extends AbstractGBActivity {
                         .setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
-                                GBApplication.deviceService().onReset(GBDeviceProtocol.RESET_FLAGS_FACTORY_RESET);
+                                DeviceService deviceService = getSelectedDeviceService();
+                                if (deviceService != null) {
+                                    deviceService.onReset(GBDeviceProtocol.RESET_FLAGS_FACTORY_RESET);
+                                }
                             }
                         })
                         .setNegativeButton(R.string.Cancel, new DialogInterface.OnClickListener() {
@@ -219,7 +229,10 @@ public class DebugActivity extends AbstractGBActivity {
             @Override
             public void onClick(View v) {
                 GB.toast("Measuring heart rate, please wait...", Toast.LENGTH_LONG, GB.INFO);
-                GBApplication.deviceService().onHeartRateTest();
+                DeviceService deviceService = getSelectedDeviceService();
+                if (deviceService != null) {
+                    deviceService.onHeartRateTest();
+                }
             }
         });
 
@@ -314,7 +327,10 @@ public class DebugActivity extends AbstractGBActivity {
         fetchDebugLogsButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                GBApplication.deviceService().onFetchRecordedData(RecordedDataTypes.TYPE_DEBUGLOGS);
+                DeviceService deviceService = getSelectedDeviceService();
+                if (deviceService != null) {
+                    deviceService.onFetchRecordedData(RecordedDataTypes.TYPE_DEBUGLOGS);
+                }
             }
         });
 
@@ -326,6 +342,30 @@ public class DebugActivity extends AbstractGBActivity {
             }
         });
 
+        Button showBleMetricsButton = findViewById(R.id.showBleMetricsButton);
+        showBleMetricsButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showBleMetrics();
+            }
+        });
+
+        Button showScheduledTasksButton = findViewById(R.id.showScheduledTasksButton);
+        showScheduledTasksButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showScheduledTasks();
+            }
+        });
+
+        Button showDBLockStatisticsButton = findViewById(R.id.showDBLockStatisticsButton);
+        showDBLockStatisticsButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showDBLockStatistics();
+            }
+        });
+
         Button shareLogButton = findViewById(R.id.shareLog);
         shareLogButton.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -355,8 +395,82 @@ public class DebugActivity extends AbstractGBActivity {
                 .show();
     }
 
+    private void showBleMetrics() {
+        String metrics = BtLEMetrics.getInstance().dump();
+        new AlertDialog.Builder(this)
+                .setCancelable(true)
+                .setTitle("BLE metrics")
+                .setMessage(metrics.isEmpty() ? "No BLE communication recorded yet." : metrics)
+                .setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        // do nothing
+                    }
+                })
+                .setNeutralButton("Reset", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        BtLEMetrics.getInstance().reset();
+                    }
+                })
+                .show();
+    }
+
+    private void showScheduledTasks() {
+        new AlertDialog.Builder(this)
+                .setCancelable(true)
+                .setTitle("Scheduled device tasks")
+                .setMessage(DeviceTaskScheduler.getInstance().dump())
+                .setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        // do nothing
+                    }
+                })
+                .show();
+    }
+
+    private void showDBLockStatistics() {
+        final DBLockStatistics statistics = GBApplication.getDBLockStatistics();
+        LOG.info("DB lock statistics: " + statistics);
+        new AlertDialog.Builder(this)
+                .setCancelable(true)
+                .setTitle("DB lock statistics")
+                .setMessage(statistics.getReadCounter() + "\n\n" + statistics.getWriteCounter())
+                .setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        // do nothing
+                    }
+                })
+                .setNeutralButton("Reset", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        statistics.reset();
+                    }
+                })
+                .show();
+    }
+
     private void testNewFunctionality() {
-        GBApplication.deviceService().onTestNewFunction();
+        DeviceService deviceService = getSelectedDeviceService();
+        if (deviceService != null) {
+            deviceService.onTestNewFunction();
+        }
+    }
+
+    /**
+     * Returns the service for the selected device, so that e.g. a factory reset does not
+     * reach every connected device. Null, after telling the user, if there is no device.
+     */
+    @Nullable
+    private DeviceService getSelectedDeviceService() {
+        GBDevice device = ((GBApplication) getApplicationContext()).getDeviceManager().getSelectedDevice();
+        if (device == null) {
+            GB.toast(this, getString(R.string.device_not_connected), Toast.LENGTH_SHORT, GB.WARN);
+            return null;
+        }
+        return GBApplication.deviceService().forDevice(device);
     }
 
     private void shareLog() {
@@ -42,6 +42,7 @@ import nodomain.freeyourgadget.gadgetbridge.entities.NotificationFilter;
 import nodomain.freeyourgadget.gadgetbridge.entities.NotificationFilterDao;
 import nodomain.freeyourgadget.gadgetbridge.entities.NotificationFilterEntry;
 import nodomain.freeyourgadget.gadgetbridge.entities.NotificationFilterEntryDao;
+import nodomain.freeyourgadget.gadgetbridge.externalevents.NotificationFilterRegistry;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 
 public class NotificationFilterActivity extends AbstractGBActivity {
@@ -205,6 +206,7 @@ public class NotificationFilterActivity extends AbstractGBActivity {
                 }
             }
 
+            NotificationFilterRegistry.invalidate();
             Toast.makeText(NotificationFilterActivity.this, R.string.toast_notification_filter_saved_successfully, Toast.LENGTH_SHORT).show();
             NotificationFilterActivity.this.finish();
 
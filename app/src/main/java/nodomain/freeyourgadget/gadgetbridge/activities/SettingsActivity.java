@@ -58,6 +58,7 @@ import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandPreferencesActi
 import nodomain.freeyourgadget.gadgetbridge.devices.qhybrid.ConfigActivity;
 import nodomain.freeyourgadget.gadgetbridge.devices.zetime.ZeTimePreferenceActivity;
 import nodomain.freeyourgadget.gadgetbridge.activities.charts.ChartsPreferencesActivity;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.CannedMessagesSpec;
 import nodomain.freeyourgadget.gadgetbridge.util.AndroidUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
@@ -199,6 +200,16 @@ public class SettingsActivity extends AbstractSettingsActivity {
 
         });
 
+        pref = findPreference("record_traffic");
+        pref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newVal) {
+                GBApplication.setupTrafficRecorder(Boolean.TRUE.equals(newVal));
+                return true;
+            }
+
+        });
+
         pref = findPreference("language");
         pref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
             @Override
@@ -226,7 +237,9 @@ public class SettingsActivity extends AbstractSettingsActivity {
                 invokeLater(new Runnable() {
                     @Override
                     public void run() {
-                        GBApplication.deviceService().onSendConfiguration(PREF_MEASUREMENT_SYSTEM);
+                        for (GBDevice device : GBApplication.app().getDeviceManager().getInitializedDevices()) {
+                            GBApplication.deviceService().forDevice(device).onSendConfiguration(PREF_MEASUREMENT_SYSTEM);
+                        }
                     }
                 });
                 preference.setSummary(newVal.toString());
@@ -299,7 +312,9 @@ public class SettingsActivity extends AbstractSettingsActivity {
                 CannedMessagesSpec cannedMessagesSpec = new CannedMessagesSpec();
                 cannedMessagesSpec.type = CannedMessagesSpec.TYPE_MISSEDCALLS;
                 cannedMessagesSpec.cannedMessages = messages.toArray(new String[messages.size()]);
-                GBApplication.deviceService().onSetCannedMessages(cannedMessagesSpec);
+                for (GBDevice device : GBApplication.app().getDeviceManager().getInitializedDevices()) {
+                    GBApplication.deviceService().forDevice(device).onSetCannedMessages(cannedMessagesSpec);
+                }
                 return true;
             }
         });
@@ -24,17 +24,21 @@ import org.slf4j.LoggerFactory;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 
 
 public class VibrationActivity extends AbstractGBActivity {
     private static final Logger LOG = LoggerFactory.getLogger(VibrationActivity.class);
     private SeekBar seekBar;
+    private GBDevice device;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_vibration);
 
+        device = getIntent().getParcelableExtra(GBDevice.EXTRA_DEVICE);
+
         seekBar = (SeekBar) findViewById(R.id.vibration_seekbar);
         seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
@@ -42,7 +46,7 @@ public class VibrationActivity extends AbstractGBActivity {
                 if (progress > 0) { // 1-16
                     progress = progress * 16 - 1; // max 255
                 }
-                GBApplication.deviceService().onSetConstantVibration(progress);
+                GBApplication.deviceService().forDevice(device).onSetConstantVibration(progress);
             }
 
             @Override
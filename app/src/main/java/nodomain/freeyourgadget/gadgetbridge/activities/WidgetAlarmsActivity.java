@@ -117,15 +117,16 @@ public class WidgetAlarmsActivity extends Activity implements View.OnClickListen
         // overwrite the first alarm and activate it, without
 
         Context appContext = this.getApplicationContext();
+        GBDevice selectedDevice = null;
         if (appContext instanceof GBApplication) {
             GBApplication gbApp = (GBApplication) appContext;
-            GBDevice selectedDevice = gbApp.getDeviceManager().getSelectedDevice();
-            if (selectedDevice == null || !selectedDevice.isInitialized()) {
-                GB.toast(this,
-                        this.getString(R.string.appwidget_not_connected),
-                        Toast.LENGTH_LONG, GB.WARN);
-                return;
-            }
+            selectedDevice = gbApp.getDeviceManager().getSelectedDevice();
+        }
+        if (selectedDevice == null || !selectedDevice.isInitialized()) {
+            GB.toast(this,
+                    this.getString(R.string.appwidget_not_connected),
+                    Toast.LENGTH_LONG, GB.WARN);
+            return;
         }
 
         int hours = calendar.get(Calendar.HOUR_OF_DAY);
@@ -138,7 +139,7 @@ public class WidgetAlarmsActivity extends Activity implements View.OnClickListen
         Alarm alarm = AlarmUtils.createSingleShot(0, true, false, calendar);
         ArrayList<Alarm> alarms = new ArrayList<>(1);
         alarms.add(alarm);
-        GBApplication.deviceService().onSetAlarms(alarms);
+        GBApplication.deviceService().forDevice(selectedDevice).onSetAlarms(alarms);
 
 
     }
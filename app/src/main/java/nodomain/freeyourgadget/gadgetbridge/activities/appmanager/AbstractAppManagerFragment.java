@@ -57,6 +57,7 @@ import nodomain.freeyourgadget.gadgetbridge.impl.GBDeviceApp;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceService;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.pebble.PebbleProtocol;
 import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.PebbleAppKeys;
 import nodomain.freeyourgadget.gadgetbridge.util.PebbleUtils;
 
 
@@ -249,7 +250,7 @@ public abstract class AbstractAppManagerFragment extends Fragment {
         LocalBroadcastManager.getInstance(getContext()).registerReceiver(mReceiver, filter);
 
         if (PebbleUtils.getFwMajor(mGBDevice.getFirmwareVersion()) < 3) {
-            GBApplication.deviceService().onAppInfoReq();
+            GBApplication.deviceService().forDevice(mGBDevice).onAppInfoReq();
             if (isCacheManager()) {
                 refreshList();
             }
@@ -296,7 +297,11 @@ public abstract class AbstractAppManagerFragment extends Fragment {
             ArrayList<UUID> concatUuids = AppManagerActivity.getUuidsFromFile(concatFilename);
             uuids.addAll(concatUuids);
         }
-        GBApplication.deviceService().onAppReorder(uuids.toArray(new UUID[uuids.size()]));
+        GBApplication.deviceService().forDevice(mGBDevice).onAppReorder(uuids.toArray(new UUID[uuids.size()]));
+    }
+
+    public void startApp(UUID uuid) {
+        GBApplication.deviceService().forDevice(mGBDevice).onAppStart(uuid, true);
     }
 
     public boolean openPopupMenu(View view, GBDeviceApp deviceApp) {
@@ -381,6 +386,7 @@ public abstract class AbstractAppManagerFragment extends Fragment {
                         LOG.info("deleted file: " + fileToDelete.toString());
                     }
                 }
+                PebbleAppKeys.invalidate(selectedApp.getUUID());
                 AppManagerActivity.deleteFromAppOrderFile("pbwcacheorder.txt", selectedApp.getUUID()); // FIXME: only if successful
                 // fall through
             case R.id.appmanager_app_delete:
@@ -390,7 +396,7 @@ public abstract class AbstractAppManagerFragment extends Fragment {
                     Intent refreshIntent = new Intent(AbstractAppManagerFragment.ACTION_REFRESH_APPLIST);
                     LocalBroadcastManager.getInstance(getContext()).sendBroadcast(refreshIntent);
                 }
-                GBApplication.deviceService().onAppDelete(selectedApp.getUUID());
+                GBApplication.deviceService().forDevice(mGBDevice).onAppDelete(selectedApp.getUUID());
                 return true;
             case R.id.appmanager_app_reinstall:
                 File cachePath;
@@ -400,27 +406,27 @@ public abstract class AbstractAppManagerFragment extends Fragment {
                     LOG.warn("could not get external dir while trying to access pbw cache.");
                     return true;
                 }
-                GBApplication.deviceService().onInstallApp(Uri.fromFile(cachePath));
+                GBApplication.deviceService().forDevice(mGBDevice).onInstallApp(Uri.fromFile(cachePath));
                 return true;
             case R.id.appmanager_health_activate:
-                GBApplication.deviceService().onInstallApp(Uri.parse("fake://health"));
+                GBApplication.deviceService().forDevice(mGBDevice).onInstallApp(Uri.parse("fake://health"));
                 return true;
             case R.id.appmanager_hrm_activate:
-                GBApplication.deviceService().onInstallApp(Uri.parse("fake://hrm"));
+                GBApplication.deviceService().forDevice(mGBDevice).onInstallApp(Uri.parse("fake://hrm"));
                 return true;
             case R.id.appmanager_weather_activate:
-                GBApplication.deviceService().onInstallApp(Uri.parse("fake://weather"));
+                GBApplication.deviceService().forDevice(mGBDevice).onInstallApp(Uri.parse("fake://weather"));
                 return true;
             case R.id.appmanager_health_deactivate:
             case R.id.appmanager_hrm_deactivate:
             case R.id.appmanager_weather_deactivate:
-                GBApplication.deviceService().onAppDelete(selectedApp.getUUID());
+                GBApplication.deviceService().forDevice(mGBDevice).onAppDelete(selectedApp.getUUID());
                 return true;
             case R.id.appmanager_weather_install_provider:
                 startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse("https://f-droid.org/app/ru.gelin.android.weather.notification")));
                 return true;
             case R.id.appmanager_app_configure:
-                GBApplication.deviceService().onAppStart(selectedApp.getUUID(), true);
+                GBApplication.deviceService().forDevice(mGBDevice).onAppStart(selectedApp.getUUID(), true);
 
                 Intent startIntent = new Intent(getContext().getApplicationContext(), ExternalPebbleJSActivity.class);
                 startIntent.putExtra(DeviceService.EXTRA_APP_UUID, selectedApp.getUUID());
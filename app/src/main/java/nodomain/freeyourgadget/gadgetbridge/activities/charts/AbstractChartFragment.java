@@ -67,6 +67,7 @@ import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySampleSeries;
 import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.DeviceHelper;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
@@ -421,6 +422,10 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
     protected abstract void renderCharts();
 
     protected DefaultChartsData<LineData> refresh(GBDevice gbDevice, List<? extends ActivitySample> samples) {
+        return refresh(gbDevice, ActivitySampleSeries.fromSamples(samples));
+    }
+
+    protected DefaultChartsData<LineData> refresh(GBDevice gbDevice, ActivitySampleSeries samples) {
 //        Calendar cal = GregorianCalendar.getInstance();
 //        cal.clear();
         TimestampTranslation tsTranslation = new TimestampTranslation();
@@ -449,9 +454,8 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
             HeartRateUtils heartRateUtilsInstance = HeartRateUtils.getInstance();
 
             for (int i = 0; i < numEntries; i++) {
-                ActivitySample sample = samples.get(i);
-                int type = sample.getKind();
-                int ts = tsTranslation.shorten(sample.getTimestamp());
+                int type = samples.getKind(i);
+                int ts = tsTranslation.shorten(samples.getTimestamp(i));
 
 //                System.out.println(ts);
 //                ts = i;
@@ -466,7 +470,7 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
 //                    dateStringTo = dateFormat.format(date);
 //                }
 
-                float movement = sample.getIntensity();
+                float movement = samples.getIntensity(i);
 
                 float value = movement;
                 switch (type) {
@@ -516,13 +520,14 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
                         }
                         activityEntries.add(createLineEntry(value, ts));
                 }
-                if (hr && sample.getKind() != ActivityKind.TYPE_NOT_WORN && heartRateUtilsInstance.isValidHeartRateValue(sample.getHeartRate())) {
+                int heartRate = samples.getHeartRate(i);
+                if (hr && type != ActivityKind.TYPE_NOT_WORN && heartRateUtilsInstance.isValidHeartRateValue(heartRate)) {
                     if (lastHrSampleIndex > -1 && ts - lastHrSampleIndex > 1800*HeartRateUtils.MAX_HR_MEASUREMENTS_GAP_MINUTES) {
                         heartrateEntries.add(createLineEntry(0, lastHrSampleIndex + 1));
                         heartrateEntries.add(createLineEntry(0, ts - 1));
                     }
 
-                    heartrateEntries.add(createLineEntry(sample.getHeartRate(), ts));
+                    heartrateEntries.add(createLineEntry(heartRate, ts));
                     lastHrSampleIndex = ts;
                 }
 
@@ -649,6 +654,11 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
             super(task, context);
         }
 
+        @Override
+        protected boolean isReadOnly() {
+            return true;
+        }
+
         @Override
         protected void doInBackground(DBHandler db) {
             ChartsHost chartsHost = getChartsHost();
@@ -718,25 +728,56 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
     }
 
     protected List<? extends ActivitySample> getSamplesofSleep(DBHandler db, GBDevice device) {
+        int tsStart = toSleepHourLimit(getTSStart());
+        int tsEnd = toSleepHourLimit(getTSEnd());
+
+        List<ActivitySample> samples = (List<ActivitySample>) getSamples(db, device, tsStart, tsEnd);
+        ensureStartAndEndSamples(samples, tsStart, tsEnd);
+        return samples;
+    }
+
+    private int toSleepHourLimit(int timestamp) {
         int SLEEP_HOUR_LIMIT = 12;
 
-        int tsStart = getTSStart();
         Calendar day = GregorianCalendar.getInstance();
-        day.setTimeInMillis(tsStart * 1000L);
+        day.setTimeInMillis(timestamp * 1000L);
         day.set(Calendar.HOUR_OF_DAY, SLEEP_HOUR_LIMIT);
         day.set(Calendar.MINUTE, 0);
         day.set(Calendar.SECOND, 0);
-        tsStart = toTimestamp(day.getTime());
+        return toTimestamp(day.getTime());
+    }
 
-        int tsEnd = getTSEnd();
-        day.setTimeInMillis(tsEnd* 1000L);
-        day.set(Calendar.HOUR_OF_DAY, SLEEP_HOUR_LIMIT);
-        day.set(Calendar.MINUTE, 0);
-        day.set(Calendar.SECOND, 0);
-        tsEnd = toTimestamp(day.getTime());
+    /**
+     * Like #getSamples(DBHandler, GBDevice), but returns all kinds of samples as an
+     * {@link ActivitySampleSeries}, which is read without creating an entity per sample.
+     */
+    protected ActivitySampleSeries getSampleSeries(DBHandler db, GBDevice device) {
+        return getSampleSeries(db, device, getTSStart(), getTSEnd());
+    }
 
-        List<ActivitySample> samples = (List<ActivitySample>) getSamples(db, device, tsStart, tsEnd);
-        ensureStartAndEndSamples(samples, tsStart, tsEnd);
+    /**
+     * Like #getSamplesofSleep(DBHandler, GBDevice), but returns all kinds of samples as an
+     * {@link ActivitySampleSeries}.
+     */
+    protected ActivitySampleSeries getSampleSeriesOfSleep(DBHandler db, GBDevice device) {
+        return getSampleSeries(db, device, toSleepHourLimit(getTSStart()), toSleepHourLimit(getTSEnd()));
+    }
+
+    private ActivitySampleSeries getSampleSeries(DBHandler db, GBDevice device, int tsStart, int tsEnd) {
+        SampleProvider<? extends AbstractActivitySample> provider = getProvider(db, device);
+        ActivitySampleSeries samples = ActivitySampleSeries.query(provider, tsStart, tsEnd);
+        if (samples.isEmpty()) {
+            return samples;
+        }
+        // the same values as a TrailingActivitySample has
+        int kind = provider.normalizeType(ActivitySample.NOT_MEASURED);
+        float intensity = provider.normalizeIntensity(ActivitySample.NOT_MEASURED);
+        if (samples.getTimestamp(samples.size() - 1) < tsEnd) {
+            samples.add(tsEnd, kind, ActivitySample.NOT_MEASURED, intensity, ActivitySample.NOT_MEASURED, ActivitySample.NOT_MEASURED);
+        }
+        if (samples.getTimestamp(0) > tsStart) {
+            samples.addFirst(tsStart, kind, ActivitySample.NOT_MEASURED, intensity, ActivitySample.NOT_MEASURED, ActivitySample.NOT_MEASURED);
+        }
         return samples;
     }
 
@@ -49,6 +49,7 @@ import java.util.Locale;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
+import nodomain.freeyourgadget.gadgetbridge.database.ActivityRollups;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
@@ -279,7 +280,7 @@ public abstract class AbstractWeekChartFragment extends AbstractChartFragment {
         yAxisRight.setTextColor(CHART_TEXT_COLOR);
     }
 
-    private List<? extends ActivitySample> getSamplesOfDay(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
+    private ActivityAmounts calculateActivityAmountsOfDay(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
         int startTs;
         int endTs;
 
@@ -292,7 +293,7 @@ public abstract class AbstractWeekChartFragment extends AbstractChartFragment {
         startTs = (int) (day.getTimeInMillis() / 1000);
         endTs = startTs + 24 * 60 * 60 - 1;
 
-        return getSamples(db, device, startTs, endTs);
+        return ActivityRollups.getActivityAmounts(getProvider(db, device), startTs, endTs);
     }
 
     @Override
@@ -341,8 +342,7 @@ public abstract class AbstractWeekChartFragment extends AbstractChartFragment {
         }
 
         if (amounts == null) {
-            ActivityAnalysis analysis = new ActivityAnalysis();
-            amounts = analysis.calculateActivityAmounts(getSamplesOfDay(db, day, mOffsetHours, device));
+            amounts = calculateActivityAmountsOfDay(db, day, mOffsetHours, device);
             if (activityAmountCache != null) {
                 activityAmountCache.add(key, amounts);
             }
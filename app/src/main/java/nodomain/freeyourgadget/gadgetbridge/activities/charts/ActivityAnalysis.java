@@ -20,33 +20,40 @@ package nodomain.freeyourgadget.gadgetbridge.activities.charts;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmount;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySampleSeries;
 
 public class ActivityAnalysis {
     public static final Logger LOG = LoggerFactory.getLogger(ActivityAnalysis.class);
 
-    // store raw steps and duration
-    protected HashMap<Integer, Long> stats = new HashMap<Integer, Long>();
+    // seconds of activity, indexed by the raw steps per sample
+    private long[] speedSeconds = new long[128];
     // max speed determined from samples
     private int maxSpeed = 0;
 
     public ActivityAmounts calculateActivityAmounts(List<? extends ActivitySample> samples) {
+        return calculateActivityAmounts(ActivitySampleSeries.fromSamples(samples));
+    }
+
+    public ActivityAmounts calculateActivityAmounts(ActivitySampleSeries samples) {
         ActivityAmount deepSleep = new ActivityAmount(ActivityKind.TYPE_DEEP_SLEEP);
         ActivityAmount lightSleep = new ActivityAmount(ActivityKind.TYPE_LIGHT_SLEEP);
         ActivityAmount notWorn = new ActivityAmount(ActivityKind.TYPE_NOT_WORN);
         ActivityAmount activity = new ActivityAmount(ActivityKind.TYPE_ACTIVITY);
 
         ActivityAmount previousAmount = null;
-        ActivitySample previousSample = null;
-        for (ActivitySample sample : samples) {
+        int size = samples.size();
+        for (int i = 0; i < size; i++) {
+            int kind = samples.getKind(i);
+            int timestamp = samples.getTimestamp(i);
             ActivityAmount amount;
-            switch (sample.getKind()) {
+            switch (kind) {
                 case ActivityKind.TYPE_DEEP_SLEEP:
                     amount = deepSleep;
                     break;
@@ -62,14 +69,14 @@ public class ActivityAnalysis {
                     break;
             }
 
-            int steps = sample.getSteps();
+            int steps = samples.getSteps(i);
             if (steps > 0) {
                 amount.addSteps(steps);
             }
 
-            if (previousSample != null) {
-                long timeDifference = sample.getTimestamp() - previousSample.getTimestamp();
-                if (previousSample.getRawKind() == sample.getRawKind()) {
+            if (i > 0) {
+                long timeDifference = timestamp - samples.getTimestamp(i - 1);
+                if (samples.getRawKind(i - 1) == samples.getRawKind(i)) {
                     amount.addSeconds(timeDifference);
                 } else {
                     long sharedTimeDifference = (long) (timeDifference / 2.0f);
@@ -78,27 +85,21 @@ public class ActivityAnalysis {
                 }
 
                 // add time
-                if (steps > 0 && sample.getKind() == ActivityKind.TYPE_ACTIVITY) {
+                if (steps > 0 && kind == ActivityKind.TYPE_ACTIVITY) {
                     if (steps > maxSpeed) {
                         maxSpeed = steps;
                     }
-
-                    if (!stats.containsKey(steps)) {
-//                        LOG.debug("Adding: " + steps);
-                        stats.put(steps, timeDifference);
-                    } else {
-                        long time = stats.get(steps);
-//                        LOG.debug("Updating: " + steps + " " + timeDifference + time);
-                        stats.put(steps, timeDifference + time);
+                    if (steps >= speedSeconds.length) {
+                        speedSeconds = Arrays.copyOf(speedSeconds, Math.max(steps + 1, speedSeconds.length * 2));
                     }
+                    speedSeconds[steps] += timeDifference;
                 }
             }
 
-            amount.setStartDate(sample.getTimestamp());
-            amount.setEndDate(sample.getTimestamp());
+            amount.setStartDate(timestamp);
+            amount.setEndDate(timestamp);
 
             previousAmount = amount;
-            previousSample = sample;
         }
 
         ActivityAmounts result = new ActivityAmounts();
@@ -116,10 +117,28 @@ public class ActivityAnalysis {
         return result;
     }
 
+    /**
+     * Returns the highest number of steps of a single activity sample of the last analysis.
+     */
+    public int getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    /**
+     * Returns how many seconds of activity had the given number of steps per sample.
+     */
+    public long getSecondsAtSpeed(int steps) {
+        return steps >= 0 && steps < speedSeconds.length ? speedSeconds[steps] : 0;
+    }
+
     int calculateTotalSteps(List<? extends ActivitySample> samples) {
+        return calculateTotalSteps(ActivitySampleSeries.fromSamples(samples));
+    }
+
+    int calculateTotalSteps(ActivitySampleSeries samples) {
         int totalSteps = 0;
-        for (ActivitySample sample : samples) {
-            int steps = sample.getSteps();
+        for (int i = 0; i < samples.size(); i++) {
+            int steps = samples.getSteps(i);
             if (steps > 0) {
                 totalSteps += steps;
             }
@@ -44,6 +44,7 @@ import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySampleSeries;
 
 
 public class ActivitySleepChartFragment extends AbstractChartFragment {
@@ -128,7 +129,7 @@ public class ActivitySleepChartFragment extends AbstractChartFragment {
 
     @Override
     protected ChartsData refreshInBackground(ChartsHost chartsHost, DBHandler db, GBDevice device) {
-        List<? extends ActivitySample> samples = getSamples(db, device);
+        ActivitySampleSeries samples = getSampleSeries(db, device);
         return refresh(device, samples);
     }
 
@@ -84,6 +84,10 @@ public class LiveActivityFragment extends AbstractChartFragment {
 
     private final Steps mSteps = new Steps();
     private ScheduledExecutorService pulseScheduler;
+    /**
+     * The device the realtime tracking was enabled on, so that it is disabled on the same one
+     */
+    private GBDevice realtimeDevice;
     private int maxStepsResetCounter;
     private LineDataSet mHeartRateSet;
     private int mHeartRate;
@@ -347,7 +351,9 @@ public class LiveActivityFragment extends AbstractChartFragment {
         renderCharts();
 
         // have to enable it again and again to keep it measuring
-        GBApplication.deviceService().onEnableRealtimeHeartRateMeasurement(true);
+        if (realtimeDevice != null) {
+            GBApplication.deviceService().forDevice(realtimeDevice).onEnableRealtimeHeartRateMeasurement(true);
+        }
     }
 
     private int getPulseIntervalMillis() {
@@ -366,8 +372,15 @@ public class LiveActivityFragment extends AbstractChartFragment {
             return;
         }
 
-        GBApplication.deviceService().onEnableRealtimeSteps(enable);
-        GBApplication.deviceService().onEnableRealtimeHeartRateMeasurement(enable);
+        if (enable) {
+            ChartsHost chartsHost = getChartsHost();
+            realtimeDevice = chartsHost != null ? chartsHost.getDevice() : null;
+        }
+        if (realtimeDevice != null) {
+            DeviceService deviceService = GBApplication.deviceService().forDevice(realtimeDevice);
+            deviceService.onEnableRealtimeSteps(enable);
+            deviceService.onEnableRealtimeHeartRateMeasurement(enable);
+        }
         if (enable) {
             if (getActivity() != null) {
                 getActivity().getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -44,7 +44,6 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -56,6 +55,7 @@ import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySampleSeries;
 import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
 
@@ -75,11 +75,11 @@ public class SleepChartFragment extends AbstractChartFragment {
     @Override
     protected ChartsData refreshInBackground(ChartsHost chartsHost, DBHandler db, GBDevice device) {
         Prefs prefs = GBApplication.getPrefs();
-        List<? extends ActivitySample> samples;
+        ActivitySampleSeries samples;
         if (prefs.getBoolean("chart_sleep_range_24h", false)) {
-            samples = getSamples(db, device);
+            samples = getSampleSeries(db, device);
         }else{
-            samples = getSamplesofSleep(db, device);
+            samples = getSampleSeriesOfSleep(db, device);
         }
 
         MySleepChartsData mySleepChartsData = refreshSleepAmounts(device, samples);
@@ -89,12 +89,7 @@ public class SleepChartFragment extends AbstractChartFragment {
                 long tstart = mySleepChartsData.sleepSessions.get(0).getSleepStart().getTime() / 1000;
                 long tend = mySleepChartsData.sleepSessions.get(mySleepChartsData.sleepSessions.size() - 1).getSleepEnd().getTime() / 1000;
 
-                for (Iterator<ActivitySample> iterator = (Iterator<ActivitySample>) samples.iterator(); iterator.hasNext(); ) {
-                    ActivitySample sample = iterator.next();
-                    if (sample.getTimestamp() < tstart || sample.getTimestamp() > tend) {
-                        iterator.remove();
-                    }
-                }
+                samples.retainRange((int) tstart, (int) tend);
             }
         }
         DefaultChartsData chartsData = refresh(device, samples);
@@ -102,7 +97,7 @@ public class SleepChartFragment extends AbstractChartFragment {
         return new MyChartsData(mySleepChartsData, chartsData);
     }
 
-    private MySleepChartsData refreshSleepAmounts(GBDevice mGBDevice, List<? extends ActivitySample> samples) {
+    private MySleepChartsData refreshSleepAmounts(GBDevice mGBDevice, ActivitySampleSeries samples) {
         SleepAnalysis sleepAnalysis = new SleepAnalysis();
         List<SleepSession> sleepSessions = sleepAnalysis.calculateSleepSessions(samples);
 
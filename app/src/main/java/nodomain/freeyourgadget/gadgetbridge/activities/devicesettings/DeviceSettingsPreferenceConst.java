@@ -22,4 +22,5 @@ public class DeviceSettingsPreferenceConst {
     public static final String PREF_WEARLOCATION = "wearlocation";
     public static final String PREF_SCREEN_ORIENTATION = "screen_orientation";
     public static final String PREF_RESERVER_ALARMS_CALENDAR = "reserve_alarms_calendar";
+    public static final String PREF_GATT_NOTIFICATION_CAPACITY = "gatt_notification_capacity";
 }
\ No newline at end of file
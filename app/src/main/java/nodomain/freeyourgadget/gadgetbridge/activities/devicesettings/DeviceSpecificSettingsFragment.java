@@ -35,6 +35,7 @@ import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiConst;
 import nodomain.freeyourgadget.gadgetbridge.devices.makibeshr3.MakibesHR3Constants;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandConst;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
 import nodomain.freeyourgadget.gadgetbridge.util.XTimePreference;
 import nodomain.freeyourgadget.gadgetbridge.util.XTimePreferenceFragment;
@@ -72,9 +73,12 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
 
     static final String FRAGMENT_TAG = "DEVICE_SPECIFIC_SETTINGS_FRAGMENT";
 
-    private void setSettingsFileSuffix(String settingsFileSuffix, @NonNull int[] supportedSettings) {
+    private GBDevice device;
+
+    private void setDevice(GBDevice device, @NonNull int[] supportedSettings) {
         Bundle args = new Bundle();
-        args.putString("settingsFileSuffix", settingsFileSuffix);
+        args.putParcelable("device", device);
+        args.putString("settingsFileSuffix", device.getAddress());
         args.putIntArray("supportedSettings", supportedSettings);
         setArguments(args);
     }
@@ -86,9 +90,10 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
         if (arguments == null) {
             return;
         }
+        device = arguments.getParcelable("device");
         String settingsFileSuffix = arguments.getString("settingsFileSuffix", null);
         int[] supportedSettings = arguments.getIntArray("supportedSettings");
-        if (settingsFileSuffix == null || supportedSettings == null) {
+        if (device == null || settingsFileSuffix == null || supportedSettings == null) {
             return;
         }
 
@@ -126,6 +131,13 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
         getListView().post(runnable);
     }
 
+    /**
+     * Sends the setting to the device of these settings only
+     */
+    private void sendConfiguration(String config) {
+        GBApplication.deviceService().forDevice(device).onSendConfiguration(config);
+    }
+
     private void setChangeListener() {
         Prefs prefs = new Prefs(getPreferenceManager().getSharedPreferences());
         String disconnectNotificationState = prefs.getString(PREF_DISCONNECT_NOTIFICATION, PREF_DO_NOT_DISTURB_OFF);
@@ -140,7 +152,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_DISCONNECT_NOTIFICATION_START);
+                            sendConfiguration(PREF_DISCONNECT_NOTIFICATION_START);
                         }
                     });
                     return true;
@@ -157,7 +169,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_DISCONNECT_NOTIFICATION_END);
+                            sendConfiguration(PREF_DISCONNECT_NOTIFICATION_END);
                         }
                     });
                     return true;
@@ -177,7 +189,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_DISCONNECT_NOTIFICATION);
+                            sendConfiguration(PREF_DISCONNECT_NOTIFICATION);
                         }
                     });
                     return true;
@@ -198,7 +210,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_NIGHT_MODE_START);
+                            sendConfiguration(PREF_NIGHT_MODE_START);
                         }
                     });
                     return true;
@@ -215,7 +227,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_NIGHT_MODE_END);
+                            sendConfiguration(PREF_NIGHT_MODE_END);
                         }
                     });
                     return true;
@@ -237,7 +249,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_NIGHT_MODE);
+                            sendConfiguration(PREF_NIGHT_MODE);
                         }
                     });
                     return true;
@@ -258,7 +270,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_DO_NOT_DISTURB_START);
+                            sendConfiguration(PREF_DO_NOT_DISTURB_START);
                         }
                     });
                     return true;
@@ -275,7 +287,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_DO_NOT_DISTURB_END);
+                            sendConfiguration(PREF_DO_NOT_DISTURB_END);
                         }
                     });
                     return true;
@@ -296,7 +308,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_DO_NOT_DISTURB);
+                            sendConfiguration(PREF_DO_NOT_DISTURB);
                         }
                     });
                     return true;
@@ -326,7 +338,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_MI2_ROTATE_WRIST_TO_SWITCH_INFO);
+                            sendConfiguration(PREF_MI2_ROTATE_WRIST_TO_SWITCH_INFO);
                         }
                     });
                     return true;
@@ -343,7 +355,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_DISPLAY_ON_LIFT_START);
+                            sendConfiguration(PREF_DISPLAY_ON_LIFT_START);
                         }
                     });
                     return true;
@@ -360,7 +372,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_DISPLAY_ON_LIFT_END);
+                            sendConfiguration(PREF_DISPLAY_ON_LIFT_END);
                         }
                     });
                     return true;
@@ -382,7 +394,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(PREF_ACTIVATE_DISPLAY_ON_LIFT);
+                            sendConfiguration(PREF_ACTIVATE_DISPLAY_ON_LIFT);
                         }
                     });
                     return true;
@@ -398,9 +410,9 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
         setInputTypeFor(DeviceSettingsPreferenceConst.PREF_RESERVER_ALARMS_CALENDAR, InputType.TYPE_CLASS_NUMBER);
     }
 
-    static DeviceSpecificSettingsFragment newInstance(String settingsFileSuffix, @NonNull int[] supportedSettings) {
+    static DeviceSpecificSettingsFragment newInstance(GBDevice device, @NonNull int[] supportedSettings) {
         DeviceSpecificSettingsFragment fragment = new DeviceSpecificSettingsFragment();
-        fragment.setSettingsFileSuffix(settingsFileSuffix, supportedSettings);
+        fragment.setDevice(device, supportedSettings);
 
         return fragment;
     }
@@ -430,7 +442,7 @@ public class DeviceSpecificSettingsFragment extends PreferenceFragmentCompat {
                     invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            GBApplication.deviceService().onSendConfiguration(preferenceKey);
+                            sendConfiguration(preferenceKey);
                         }
                     });
                     return true;
@@ -26,7 +26,6 @@ import android.widget.TextView;
 
 import java.util.Collections;
 import java.util.List;
-import java.util.UUID;
 
 import androidx.recyclerview.widget.RecyclerView;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
@@ -99,8 +98,7 @@ public class GBDeviceAppAdapter extends RecyclerView.Adapter<GBDeviceAppAdapter.
         holder.itemView.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                UUID uuid = deviceApp.getUUID();
-                GBApplication.deviceService().onAppStart(uuid, true);
+                mParentFragment.startApp(deviceApp.getUUID());
             }
         });
 
@@ -0,0 +1,235 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
+import nodomain.freeyourgadget.gadgetbridge.entities.HourlyActivityRollup;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmount;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySampleSeries;
+
+/**
+ * Accumulates samples and hourly rollups, in ascending timestamp order, into activity totals.
+ * The accounting is the same as in
+ * {@link nodomain.freeyourgadget.gadgetbridge.activities.charts.ActivityAnalysis#calculateActivityAmounts},
+ * so merging a sequence of rollups yields the same amounts as analyzing all of their samples.
+ */
+public class ActivityRollupBuilder {
+    private static final int ACTIVITY = 0;
+    private static final int LIGHT_SLEEP = 1;
+    private static final int DEEP_SLEEP = 2;
+    private static final int NOT_WORN = 3;
+
+    private final long[] seconds = new long[4];
+    private final long[] steps = new long[4];
+
+    private int sampleCount;
+    private int firstTimestamp;
+    private int firstKind;
+    private int firstRawKind;
+    private int lastTimestamp;
+    private int lastKind;
+    private int lastRawKind;
+
+    private int heartRateMin;
+    private int heartRateMax;
+    private long heartRateSum;
+    private int heartRateCount;
+
+    /**
+     * Adds a single sample. Samples must be added in ascending timestamp order.
+     * @param kind the normalized activity kind of the sample
+     */
+    public void addSample(int timestamp, int kind, int rawKind, int sampleSteps, int heartRate) {
+        if (sampleSteps > 0) {
+            steps[toIndex(kind)] += sampleSteps;
+        }
+        if (heartRate >= HeartRateUtils.MIN_HEART_RATE_VALUE && heartRate <= HeartRateUtils.MAX_HEART_RATE_VALUE) {
+            addHeartRate(heartRate, heartRate, heartRate, 1);
+        }
+        if (sampleCount == 0) {
+            firstTimestamp = timestamp;
+            firstKind = kind;
+            firstRawKind = rawKind;
+        } else {
+            addTransition(timestamp, kind, rawKind);
+        }
+        lastTimestamp = timestamp;
+        lastKind = kind;
+        lastRawKind = rawKind;
+        sampleCount++;
+    }
+
+    public void addSample(ActivitySample sample) {
+        addSample(sample.getTimestamp(), sample.getKind(), sample.getRawKind(), sample.getSteps(), sample.getHeartRate());
+    }
+
+    public void addSample(ActivitySampleSeries samples, int index) {
+        addSample(samples.getTimestamp(index), samples.getKind(index), samples.getRawKind(index), samples.getSteps(index), samples.getHeartRate(index));
+    }
+
+    /**
+     * Merges the given rollup, which must not overlap with and must start after everything
+     * that was added before.
+     */
+    public void addRollup(HourlyActivityRollup rollup) {
+        if (rollup.getSampleCount() == 0) {
+            return;
+        }
+        if (sampleCount == 0) {
+            firstTimestamp = rollup.getFirstTimestamp();
+            firstKind = rollup.getFirstKind();
+            firstRawKind = rollup.getFirstRawKind();
+        } else {
+            addTransition(rollup.getFirstTimestamp(), rollup.getFirstKind(), rollup.getFirstRawKind());
+        }
+        seconds[ACTIVITY] += rollup.getActivitySeconds();
+        seconds[LIGHT_SLEEP] += rollup.getLightSleepSeconds();
+        seconds[DEEP_SLEEP] += rollup.getDeepSleepSeconds();
+        seconds[NOT_WORN] += rollup.getNotWornSeconds();
+        steps[ACTIVITY] += rollup.getActivitySteps();
+        steps[LIGHT_SLEEP] += rollup.getLightSleepSteps();
+        steps[DEEP_SLEEP] += rollup.getDeepSleepSteps();
+        steps[NOT_WORN] += rollup.getNotWornSteps();
+        if (rollup.getHeartRateCount() > 0) {
+            addHeartRate(rollup.getHeartRateMin(), rollup.getHeartRateMax(), rollup.getHeartRateSum(), rollup.getHeartRateCount());
+        }
+        lastTimestamp = rollup.getLastTimestamp();
+        lastKind = rollup.getLastKind();
+        lastRawKind = rollup.getLastRawKind();
+        sampleCount += rollup.getSampleCount();
+    }
+
+    private void addTransition(int timestamp, int kind, int rawKind) {
+        long timeDifference = timestamp - lastTimestamp;
+        if (lastRawKind == rawKind) {
+            seconds[toIndex(kind)] += timeDifference;
+        } else {
+            long sharedTimeDifference = (long) (timeDifference / 2.0f);
+            seconds[toIndex(lastKind)] += sharedTimeDifference;
+            seconds[toIndex(kind)] += sharedTimeDifference;
+        }
+    }
+
+    private void addHeartRate(int min, int max, long sum, int count) {
+        if (heartRateCount == 0) {
+            heartRateMin = min;
+            heartRateMax = max;
+        } else {
+            heartRateMin = Math.min(heartRateMin, min);
+            heartRateMax = Math.max(heartRateMax, max);
+        }
+        heartRateSum += sum;
+        heartRateCount += count;
+    }
+
+    private static int toIndex(int kind) {
+        switch (kind) {
+            case ActivityKind.TYPE_DEEP_SLEEP:
+                return DEEP_SLEEP;
+            case ActivityKind.TYPE_LIGHT_SLEEP:
+                return LIGHT_SLEEP;
+            case ActivityKind.TYPE_NOT_WORN:
+                return NOT_WORN;
+            case ActivityKind.TYPE_ACTIVITY:
+            default:
+                return ACTIVITY;
+        }
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public long getTotalSteps() {
+        return steps[ACTIVITY] + steps[LIGHT_SLEEP] + steps[DEEP_SLEEP] + steps[NOT_WORN];
+    }
+
+    public int getHeartRateMin() {
+        return heartRateMin;
+    }
+
+    public int getHeartRateMax() {
+        return heartRateMax;
+    }
+
+    /**
+     * @return the average heart rate, or {@link ActivitySample#NOT_MEASURED} if there were no valid measurements
+     */
+    public int getHeartRateAverage() {
+        if (heartRateCount == 0) {
+            return ActivitySample.NOT_MEASURED;
+        }
+        return (int) (heartRateSum / heartRateCount);
+    }
+
+    /**
+     * Returns the accumulated amounts in the same shape as ActivityAnalysis does.
+     */
+    public ActivityAmounts toActivityAmounts() {
+        ActivityAmounts result = new ActivityAmounts();
+        addAmountTo(result, ActivityKind.TYPE_DEEP_SLEEP, DEEP_SLEEP);
+        addAmountTo(result, ActivityKind.TYPE_LIGHT_SLEEP, LIGHT_SLEEP);
+        addAmountTo(result, ActivityKind.TYPE_ACTIVITY, ACTIVITY);
+        result.calculatePercentages();
+        return result;
+    }
+
+    private void addAmountTo(ActivityAmounts result, int activityKind, int index) {
+        if (seconds[index] > 0) {
+            ActivityAmount amount = new ActivityAmount(activityKind);
+            amount.addSeconds(seconds[index]);
+            amount.addSteps(steps[index]);
+            result.addAmount(amount);
+        }
+    }
+
+    /**
+     * Stores the accumulated values in a rollup entity for the given hour and device.
+     */
+    public HourlyActivityRollup toRollup(int hourTimestamp, long deviceId) {
+        HourlyActivityRollup rollup = new HourlyActivityRollup();
+        rollup.setTimestamp(hourTimestamp);
+        rollup.setDeviceId(deviceId);
+        rollup.setSampleCount(sampleCount);
+        rollup.setActivitySeconds((int) seconds[ACTIVITY]);
+        rollup.setLightSleepSeconds((int) seconds[LIGHT_SLEEP]);
+        rollup.setDeepSleepSeconds((int) seconds[DEEP_SLEEP]);
+        rollup.setNotWornSeconds((int) seconds[NOT_WORN]);
+        rollup.setActivitySteps((int) steps[ACTIVITY]);
+        rollup.setLightSleepSteps((int) steps[LIGHT_SLEEP]);
+        rollup.setDeepSleepSteps((int) steps[DEEP_SLEEP]);
+        rollup.setNotWornSteps((int) steps[NOT_WORN]);
+        rollup.setHeartRateMin(heartRateMin);
+        rollup.setHeartRateMax(heartRateMax);
+        rollup.setHeartRateSum((int) heartRateSum);
+        rollup.setHeartRateCount(heartRateCount);
+        rollup.setFirstTimestamp(firstTimestamp);
+        rollup.setFirstKind(firstKind);
+        rollup.setFirstRawKind(firstRawKind);
+        rollup.setLastTimestamp(lastTimestamp);
+        rollup.setLastKind(lastKind);
+        rollup.setLastRawKind(lastRawKind);
+        return rollup;
+    }
+}
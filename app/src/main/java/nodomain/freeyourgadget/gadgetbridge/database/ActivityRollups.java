@@ -0,0 +1,376 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import androidx.annotation.NonNull;
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.activities.charts.ActivityAnalysis;
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.HourlyActivityRollup;
+import nodomain.freeyourgadget.gadgetbridge.entities.HourlyActivityRollupDao;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySampleSeries;
+import nodomain.freeyourgadget.gadgetbridge.util.GBEnvironment;
+
+/**
+ * Maintains and reads the hourly activity rollups of a single sample provider.
+ * <p/>
+ * Rollups are only stored for hours that are already over. They are updated whenever samples
+ * are added through the sample provider and created lazily from the raw samples when an hour
+ * is read for the first time, so existing databases need no migration. Since readers only
+ * have read access to the database, lazily created rollups are stored in the background. Daily values are
+ * merged from the hourly rollups, since the boundaries of a "day" depend on the time zone and
+ * on the chart (e.g. sleep is shown from noon to noon).
+ */
+public class ActivityRollups {
+    private static final Logger LOG = LoggerFactory.getLogger(ActivityRollups.class);
+
+    public static final int HOUR_SECONDS = 60 * 60;
+
+    /**
+     * Stores the rollups created by readers, see #storeLater()
+     */
+    private static final ExecutorService rollupWriter = Executors.newSingleThreadExecutor();
+
+    private final AbstractSampleProvider<? extends AbstractActivitySample> provider;
+
+    public ActivityRollups(AbstractSampleProvider<? extends AbstractActivitySample> provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Calculates the activity amounts of the given time range, using the rollups if the provider
+     * supports them and analyzing the raw samples otherwise.
+     */
+    public static ActivityAmounts getActivityAmounts(SampleProvider<? extends AbstractActivitySample> provider, int tsFrom, int tsTo) {
+        if (provider instanceof AbstractSampleProvider) {
+            AbstractSampleProvider<? extends AbstractActivitySample> sampleProvider = (AbstractSampleProvider<? extends AbstractActivitySample>) provider;
+            if (sampleProvider.supportsActivityRollups()) {
+                return new ActivityRollups(sampleProvider).getTotals(tsFrom, tsTo).toActivityAmounts();
+            }
+        }
+        return new ActivityAnalysis().calculateActivityAmounts(ActivitySampleSeries.query(provider, tsFrom, tsTo));
+    }
+
+    /**
+     * Returns the totals of the given time range (both inclusive). Full hours are read from
+     * the rollups, partial hours at the boundaries and the current hour from the raw samples.
+     */
+    @NonNull
+    public ActivityRollupBuilder getTotals(int tsFrom, int tsTo) {
+        ActivityRollupBuilder builder = new ActivityRollupBuilder();
+        if (tsFrom > tsTo) {
+            return builder;
+        }
+        Device dbDevice = DBHelper.findDevice(provider.getDevice(), provider.getSession());
+        if (dbDevice == null) {
+            // no device, no samples
+            return builder;
+        }
+
+        long firstHour = ceilToHour(tsFrom);
+        long endHour = Math.min(floorToHour(tsTo + 1L), getCurrentHour());
+        if (firstHour >= endHour) {
+            addSamples(builder, tsFrom, tsTo);
+            return builder;
+        }
+
+        if (tsFrom < firstHour) {
+            addSamples(builder, tsFrom, (int) firstHour - 1);
+        }
+        for (HourlyActivityRollup rollup : getRollups(dbDevice.getId(), (int) firstHour, (int) endHour)) {
+            builder.addRollup(rollup);
+        }
+        if (endHour <= tsTo) {
+            addSamples(builder, (int) endHour, tsTo);
+        }
+        return builder;
+    }
+
+    /**
+     * Updates the rollups of all hours touched by the given samples, which must have been
+     * stored already. If the samples are appended after the last sample of an existing rollup,
+     * only they are read and merged into it, otherwise the hour is rebuilt from the database.
+     */
+    public void update(AbstractActivitySample[] samples) {
+        if (samples.length == 0) {
+            return;
+        }
+        long currentHour = getCurrentHour();
+        AbstractActivitySample[] sorted = new AbstractActivitySample[samples.length];
+        int count = 0;
+        for (AbstractActivitySample sample : samples) {
+            if (floorToHour(sample.getTimestamp()) < currentHour) {
+                sorted[count++] = sample;
+            }
+        }
+        if (count == 0) {
+            // the current hour is always calculated from the raw samples
+            return;
+        }
+        sorted = Arrays.copyOf(sorted, count);
+        Arrays.sort(sorted, new Comparator<AbstractActivitySample>() {
+            @Override
+            public int compare(AbstractActivitySample lhs, AbstractActivitySample rhs) {
+                return lhs.getTimestamp() - rhs.getTimestamp();
+            }
+        });
+
+        long deviceId = sorted[0].getDeviceId();
+        int minHour = (int) floorToHour(sorted[0].getTimestamp());
+        int maxHour = (int) floorToHour(sorted[count - 1].getTimestamp());
+
+        Map<Integer, HourlyActivityRollup> existing = new HashMap<>();
+        for (HourlyActivityRollup rollup : queryRollups(deviceId, minHour, maxHour + HOUR_SECONDS)) {
+            existing.put(rollup.getTimestamp(), rollup);
+        }
+
+        List<HourlyActivityRollup> updated = new ArrayList<>();
+        List<Integer> appendedHours = new ArrayList<>();
+        List<Integer> dirtyHours = new ArrayList<>();
+        int index = 0;
+        while (index < count) {
+            int hour = (int) floorToHour(sorted[index].getTimestamp());
+            int end = index;
+            while (end < count && sorted[end].getTimestamp() < hour + HOUR_SECONDS) {
+                end++;
+            }
+            HourlyActivityRollup rollup = existing.get(hour);
+            if (rollup != null && sorted[index].getTimestamp() > rollup.getLastTimestamp()) {
+                appendedHours.add(hour);
+            } else {
+                dirtyHours.add(hour);
+            }
+            index = end;
+        }
+
+        if (!appendedHours.isEmpty()) {
+            // the appended samples are read back through the provider, so that its post
+            // processing applies (e.g. the activity kinds carried forward by MiBand2SampleProvider)
+            int firstAppended = appendedHours.get(0);
+            int lastAppended = appendedHours.get(appendedHours.size() - 1);
+            int tsFrom = Math.max(firstAppended, existing.get(firstAppended).getLastTimestamp() + 1);
+            ActivitySampleSeries samples = provider.getAllActivitySampleSeries(tsFrom, lastAppended + HOUR_SECONDS - 1);
+            int i = 0;
+            for (int hour : appendedHours) {
+                HourlyActivityRollup rollup = existing.get(hour);
+                while (i < samples.size() && (samples.getTimestamp(i) < hour || samples.getTimestamp(i) <= rollup.getLastTimestamp())) {
+                    i++;
+                }
+                ActivityRollupBuilder builder = new ActivityRollupBuilder();
+                builder.addRollup(rollup);
+                while (i < samples.size() && samples.getTimestamp(i) < hour + HOUR_SECONDS) {
+                    builder.addSample(samples, i++);
+                }
+                updated.add(builder.toRollup(hour, deviceId));
+            }
+        }
+
+        if (!dirtyHours.isEmpty()) {
+            int firstDirty = dirtyHours.get(0);
+            int lastDirty = dirtyHours.get(dirtyHours.size() - 1);
+            for (HourlyActivityRollup rollup : buildRollups(deviceId, firstDirty, lastDirty + HOUR_SECONDS)) {
+                if (dirtyHours.contains(rollup.getTimestamp())) {
+                    updated.add(rollup);
+                }
+            }
+        }
+        getRollupDao().insertOrReplaceInTx(updated);
+    }
+
+    /**
+     * Deletes all rollups of the given device, e.g. when the device itself is deleted.
+     */
+    public static void deleteRollups(long deviceId, DaoSession session) {
+        session.getHourlyActivityRollupDao().queryBuilder()
+                .where(HourlyActivityRollupDao.Properties.DeviceId.eq(deviceId))
+                .buildDelete().executeDeleteWithoutDetachingEntities();
+    }
+
+    /**
+     * Deletes the rollups of all hours touched by the given time range (both inclusive), e.g.
+     * after samples were merged into the database without the sample provider. They are
+     * created again from the raw samples when read.
+     */
+    public static void deleteRollups(long deviceId, long tsFrom, long tsTo, SQLiteDatabase db) {
+        db.delete(HourlyActivityRollupDao.TABLENAME,
+                HourlyActivityRollupDao.Properties.DeviceId.columnName + " = ? AND "
+                        + HourlyActivityRollupDao.Properties.Timestamp.columnName + " >= ? AND "
+                        + HourlyActivityRollupDao.Properties.Timestamp.columnName + " <= ?",
+                new String[]{String.valueOf(deviceId), String.valueOf(floorToHour(tsFrom)), String.valueOf(tsTo)});
+    }
+
+    /**
+     * Returns one rollup for each hour in the range, creating missing ones from the raw samples.
+     */
+    private List<HourlyActivityRollup> getRollups(long deviceId, int firstHour, int endHour) {
+        List<HourlyActivityRollup> stored = queryRollups(deviceId, firstHour, endHour);
+        int expected = (endHour - firstHour) / HOUR_SECONDS;
+        if (stored.size() == expected) {
+            return stored;
+        }
+
+        int firstMissing = -1;
+        int lastMissing = -1;
+        int index = 0;
+        for (int hour = firstHour; hour < endHour; hour += HOUR_SECONDS) {
+            if (index < stored.size() && stored.get(index).getTimestamp() == hour) {
+                index++;
+            } else {
+                if (firstMissing < 0) {
+                    firstMissing = hour;
+                }
+                lastMissing = hour;
+            }
+        }
+        LOG.debug("Creating missing activity rollups from " + firstMissing + " to " + lastMissing);
+
+        List<HourlyActivityRollup> built = buildRollups(deviceId, firstMissing, lastMissing + HOUR_SECONDS);
+        List<HourlyActivityRollup> missing = new ArrayList<>();
+        List<HourlyActivityRollup> result = new ArrayList<>(expected);
+        index = 0;
+        for (int hour = firstHour; hour < endHour; hour += HOUR_SECONDS) {
+            if (index < stored.size() && stored.get(index).getTimestamp() == hour) {
+                result.add(stored.get(index++));
+            } else {
+                HourlyActivityRollup rollup = built.get((hour - firstMissing) / HOUR_SECONDS);
+                missing.add(rollup);
+                result.add(rollup);
+            }
+        }
+        storeLater(deviceId, missing);
+        return result;
+    }
+
+    /**
+     * Stores rollups that were created while reading. Readers only hold shared read access to
+     * the database, so the rollups are written later on a background thread with write access.
+     * Hours that got a rollup in the meantime, from samples added since, are left alone.
+     */
+    private void storeLater(final long deviceId, final List<HourlyActivityRollup> rollups) {
+        if (GBEnvironment.env().isLocalTest()) {
+            insertMissing(provider.getSession(), deviceId, rollups);
+            return;
+        }
+        rollupWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try (DBHandler db = GBApplication.acquireDB()) {
+                    insertMissing(db.getDaoSession(), deviceId, rollups);
+                } catch (Exception e) {
+                    LOG.warn("Unable to store activity rollups", e);
+                }
+            }
+        });
+    }
+
+    private static void insertMissing(DaoSession session, long deviceId, List<HourlyActivityRollup> rollups) {
+        if (rollups.isEmpty()) {
+            return;
+        }
+        HourlyActivityRollupDao dao = session.getHourlyActivityRollupDao();
+        Set<Integer> stored = new HashSet<>();
+        for (HourlyActivityRollup rollup : dao.queryBuilder()
+                .where(HourlyActivityRollupDao.Properties.DeviceId.eq(deviceId),
+                        HourlyActivityRollupDao.Properties.Timestamp.ge(rollups.get(0).getTimestamp()),
+                        HourlyActivityRollupDao.Properties.Timestamp.le(rollups.get(rollups.size() - 1).getTimestamp()))
+                .build().list()) {
+            stored.add(rollup.getTimestamp());
+        }
+        dao.detachAll();
+
+        List<HourlyActivityRollup> missing = new ArrayList<>(rollups.size());
+        for (HourlyActivityRollup rollup : rollups) {
+            if (!stored.contains(rollup.getTimestamp())) {
+                missing.add(rollup);
+            }
+        }
+        dao.insertInTx(missing);
+    }
+
+    private List<HourlyActivityRollup> queryRollups(long deviceId, int firstHour, int endHour) {
+        List<HourlyActivityRollup> rollups = getRollupDao().queryBuilder()
+                .where(HourlyActivityRollupDao.Properties.DeviceId.eq(deviceId),
+                        HourlyActivityRollupDao.Properties.Timestamp.ge(firstHour),
+                        HourlyActivityRollupDao.Properties.Timestamp.lt(endHour))
+                .orderAsc(HourlyActivityRollupDao.Properties.Timestamp)
+                .build().list();
+        getRollupDao().detachAll();
+        return rollups;
+    }
+
+    /**
+     * Creates one rollup for every hour from firstHour (inclusive) to endHour (exclusive)
+     * from the raw samples, with a single query.
+     */
+    private List<HourlyActivityRollup> buildRollups(long deviceId, int firstHour, int endHour) {
+        ActivitySampleSeries samples = provider.getAllActivitySampleSeries(firstHour, endHour - 1);
+        List<HourlyActivityRollup> rollups = new ArrayList<>((endHour - firstHour) / HOUR_SECONDS);
+        int index = 0;
+        for (int hour = firstHour; hour < endHour; hour += HOUR_SECONDS) {
+            ActivityRollupBuilder builder = new ActivityRollupBuilder();
+            while (index < samples.size() && samples.getTimestamp(index) < hour + HOUR_SECONDS) {
+                builder.addSample(samples, index++);
+            }
+            rollups.add(builder.toRollup(hour, deviceId));
+        }
+        return rollups;
+    }
+
+    private void addSamples(ActivityRollupBuilder builder, int tsFrom, int tsTo) {
+        ActivitySampleSeries samples = provider.getAllActivitySampleSeries(tsFrom, tsTo);
+        for (int i = 0; i < samples.size(); i++) {
+            builder.addSample(samples, i);
+        }
+    }
+
+    private HourlyActivityRollupDao getRollupDao() {
+        return provider.getSession().getHourlyActivityRollupDao();
+    }
+
+    private static long getCurrentHour() {
+        return floorToHour(System.currentTimeMillis() / 1000);
+    }
+
+    static long floorToHour(long timestamp) {
+        return timestamp - (((timestamp % HOUR_SECONDS) + HOUR_SECONDS) % HOUR_SECONDS);
+    }
+
+    static long ceilToHour(long timestamp) {
+        return floorToHour(timestamp + HOUR_SECONDS - 1);
+    }
+}
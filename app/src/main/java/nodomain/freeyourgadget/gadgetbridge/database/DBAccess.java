@@ -40,9 +40,17 @@ public abstract class DBAccess extends AsyncTask {
 
     protected abstract void doInBackground(DBHandler handler);
 
+    /**
+     * Subclasses that do not modify the database should return true, so that they
+     * only acquire shared read access.
+     */
+    protected boolean isReadOnly() {
+        return false;
+    }
+
     @Override
     protected Object doInBackground(Object[] params) {
-        try (DBHandler db = GBApplication.acquireDB()) {
+        try (DBHandler db = isReadOnly() ? GBApplication.acquireReadOnlyDB() : GBApplication.acquireDB()) {
             doInBackground(db);
         } catch (Exception e) {
             mError = e;
@@ -0,0 +1,694 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import androidx.annotation.Nullable;
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.GBException;
+import nodomain.freeyourgadget.gadgetbridge.entities.ActivityDescTagLinkDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.ActivityDescriptionDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummaryDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.CalendarSyncStateDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.DeviceAttributesDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.DeviceDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.HourlyActivityRollupDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.NotificationFilterDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.NotificationFilterEntryDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.TagDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.UserAttributesDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.UserDao;
+
+/**
+ * Backs up the database while it stays open, by reading it table by table into the
+ * chunked format of {@link DBBackupWriter}, and merges such backups into a database.
+ * <p/>
+ * The read-only database lock is only held for one table, or for one week of samples,
+ * at a time, so syncing and the charts keep working during an export.
+ * <p/>
+ * Sample tables (the ones with TIMESTAMP and DEVICE_ID columns) may be exported
+ * incrementally: for every day a CRC over its samples is remembered in the
+ * {@link State}, and the next export only contains the days whose fingerprint changed.
+ * All other tables are small and always exported completely. The hourly activity rollups
+ * are not exported, they are derived from the samples.
+ * <p/>
+ * Merging keeps the existing data: rows with an _id get a new id, unless a row with the
+ * same natural key (e.g. the identifier of a device) exists already, and the references to
+ * them are translated to the ids in the target database. Rows that refer to a row missing
+ * in the backup are skipped. Samples replace existing samples with the same key, and the
+ * rollups of their hours are deleted to be created again from the merged samples. Rows of
+ * other tables are only inserted if they do not exist yet. Deletions are not part of a backup.
+ */
+public class DBBackup {
+    private static final Logger LOG = LoggerFactory.getLogger(DBBackup.class);
+
+    private static final int ROWS_PER_CHUNK = 4096;
+    private static final int DAYS_PER_CHUNK = 7;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_TIMESTAMP = "TIMESTAMP";
+    private static final String COLUMN_DEVICE_ID = "DEVICE_ID";
+    private static final String COLUMN_USER_ID = "USER_ID";
+
+    /**
+     * The columns that identify a row of the tables with an _id, independent of the _id.
+     * Tables that are not listed are matched by all their columns.
+     */
+    private static final Map<String, String[]> NATURAL_KEYS = new HashMap<>();
+    /**
+     * The columns that refer to the _id of another table. The referenced tables are exported
+     * in this order, before all other tables.
+     */
+    private static final Map<String, String> REFERENCES = new LinkedHashMap<>();
+
+    static {
+        NATURAL_KEYS.put(DeviceDao.TABLENAME, new String[]{
+                DeviceDao.Properties.Identifier.columnName});
+        NATURAL_KEYS.put(UserDao.TABLENAME, new String[]{
+                UserDao.Properties.Name.columnName});
+        NATURAL_KEYS.put(DeviceAttributesDao.TABLENAME, new String[]{
+                DeviceAttributesDao.Properties.DeviceId.columnName,
+                DeviceAttributesDao.Properties.FirmwareVersion1.columnName,
+                DeviceAttributesDao.Properties.ValidFromUTC.columnName});
+        NATURAL_KEYS.put(UserAttributesDao.TABLENAME, new String[]{
+                UserAttributesDao.Properties.UserId.columnName,
+                UserAttributesDao.Properties.ValidFromUTC.columnName});
+        NATURAL_KEYS.put(BaseActivitySummaryDao.TABLENAME, new String[]{
+                BaseActivitySummaryDao.Properties.DeviceId.columnName,
+                BaseActivitySummaryDao.Properties.StartTime.columnName});
+        NATURAL_KEYS.put(TagDao.TABLENAME, new String[]{
+                TagDao.Properties.UserId.columnName,
+                TagDao.Properties.Name.columnName});
+        NATURAL_KEYS.put(ActivityDescriptionDao.TABLENAME, new String[]{
+                ActivityDescriptionDao.Properties.UserId.columnName,
+                ActivityDescriptionDao.Properties.TimestampFrom.columnName,
+                ActivityDescriptionDao.Properties.TimestampTo.columnName});
+        NATURAL_KEYS.put(ActivityDescTagLinkDao.TABLENAME, new String[]{
+                ActivityDescTagLinkDao.Properties.ActivityDescriptionId.columnName,
+                ActivityDescTagLinkDao.Properties.TagId.columnName});
+        NATURAL_KEYS.put(CalendarSyncStateDao.TABLENAME, new String[]{
+                CalendarSyncStateDao.Properties.DeviceId.columnName,
+                CalendarSyncStateDao.Properties.CalendarEntryId.columnName});
+        NATURAL_KEYS.put(NotificationFilterDao.TABLENAME, new String[]{
+                NotificationFilterDao.Properties.AppIdentifier.columnName});
+        NATURAL_KEYS.put(NotificationFilterEntryDao.TABLENAME, new String[]{
+                NotificationFilterEntryDao.Properties.NotificationFilterId.columnName,
+                NotificationFilterEntryDao.Properties.NotificationFilterContent.columnName});
+
+        REFERENCES.put(COLUMN_DEVICE_ID, DeviceDao.TABLENAME);
+        REFERENCES.put(COLUMN_USER_ID, UserDao.TABLENAME);
+        REFERENCES.put(ActivityDescTagLinkDao.Properties.TagId.columnName, TagDao.TABLENAME);
+        REFERENCES.put(ActivityDescTagLinkDao.Properties.ActivityDescriptionId.columnName, ActivityDescriptionDao.TABLENAME);
+        REFERENCES.put(NotificationFilterEntryDao.Properties.NotificationFilterId.columnName, NotificationFilterDao.TABLENAME);
+    }
+
+    /**
+     * Exports the whole database, or if previous is given, only the sample days that
+     * changed since that export.
+     *
+     * @param location where the export is written to, remembered in the returned state
+     * @return the state to pass to the next incremental export to the same location
+     */
+    public static State export(OutputStream out, @Nullable State previous, @Nullable String location) throws IOException, GBException {
+        List<String> tables;
+        int schemaVersion;
+        try (DBHandler dbHandler = GBApplication.acquireReadOnlyDB()) {
+            SQLiteDatabase db = dbHandler.getDatabase();
+            schemaVersion = db.getVersion();
+            tables = getTables(db);
+        }
+
+        State state = new State(location);
+        DBBackupWriter writer = new DBBackupWriter(out);
+        writer.writeHeader(previous == null, schemaVersion);
+        for (String table : tables) {
+            String[] columns;
+            try (DBHandler dbHandler = GBApplication.acquireReadOnlyDB()) {
+                columns = getColumns(dbHandler.getDatabase(), table);
+            }
+            if (isSampleTable(columns)) {
+                Map<Long, Long> fingerprints = new HashMap<>();
+                state.fingerprints.put(table, fingerprints);
+                exportSamples(writer, table, columns, previous != null ? previous.fingerprints.get(table) : null, fingerprints);
+            } else {
+                exportTable(writer, table, columns);
+            }
+        }
+        writer.writeEnd();
+        LOG.info("Exported " + writer.getRowCount() + " rows of " + tables.size() + " tables" + (previous != null ? " incrementally" : ""));
+        return state;
+    }
+
+    private static void exportTable(DBBackupWriter writer, String table, String[] columns) throws IOException, GBException {
+        try (DBHandler dbHandler = GBApplication.acquireReadOnlyDB();
+             Cursor cursor = dbHandler.getDatabase().rawQuery("SELECT " + join(columns) + " FROM " + quote(table), null)) {
+            writer.writeTable(table, columns);
+            while (writer.writeRows(cursor, ROWS_PER_CHUNK) > 0) {
+                // next chunk
+            }
+        }
+    }
+
+    private static void exportSamples(DBBackupWriter writer, String table, String[] columns, @Nullable Map<Long, Long> previousFingerprints, Map<Long, Long> fingerprints) throws IOException, GBException {
+        long firstDay;
+        long lastDay;
+        try (DBHandler dbHandler = GBApplication.acquireReadOnlyDB();
+             Cursor cursor = dbHandler.getDatabase().rawQuery("SELECT MIN(" + COLUMN_TIMESTAMP + "), MAX(" + COLUMN_TIMESTAMP + ") FROM " + quote(table), null)) {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return;
+            }
+            firstDay = cursor.getLong(0) / SECONDS_PER_DAY;
+            lastDay = cursor.getLong(1) / SECONDS_PER_DAY;
+        }
+
+        int timestampColumn = Arrays.asList(columns).indexOf(COLUMN_TIMESTAMP);
+        // ordered by all columns, so that the fingerprint does not depend on the order SQLite happens to return
+        String rowQuery = "SELECT " + join(columns) + " FROM " + quote(table) + " WHERE " + COLUMN_TIMESTAMP + " >= ? AND "
+                + COLUMN_TIMESTAMP + " < ? ORDER BY " + COLUMN_TIMESTAMP + ", " + join(columns);
+
+        boolean tableWritten = false;
+        List<Long> changedDays = new ArrayList<>();
+        Fingerprint fingerprint = new Fingerprint();
+        for (long chunkStart = firstDay; chunkStart <= lastDay; chunkStart += DAYS_PER_CHUNK) {
+            changedDays.clear();
+            // Readers do not see a consistent snapshot across queries, a writer may change
+            // the rows in between. Since the fingerprints are computed before the rows are
+            // exported, such a day is exported again by the next export.
+            try (DBHandler dbHandler = GBApplication.acquireReadOnlyDB()) {
+                SQLiteDatabase db = dbHandler.getDatabase();
+                String[] chunkRange = {String.valueOf(chunkStart * SECONDS_PER_DAY), String.valueOf((chunkStart + DAYS_PER_CHUNK) * SECONDS_PER_DAY)};
+                try (Cursor cursor = db.rawQuery(rowQuery, chunkRange)) {
+                    long day = -1;
+                    while (cursor.moveToNext()) {
+                        long rowDay = cursor.getLong(timestampColumn) / SECONDS_PER_DAY;
+                        if (rowDay != day) {
+                            if (day >= 0) {
+                                addFingerprint(day, fingerprint.getValue(), previousFingerprints, fingerprints, changedDays);
+                            }
+                            day = rowDay;
+                            fingerprint.reset();
+                        }
+                        fingerprint.update(cursor);
+                    }
+                    if (day >= 0) {
+                        addFingerprint(day, fingerprint.getValue(), previousFingerprints, fingerprints, changedDays);
+                    }
+                }
+
+                // export consecutive changed days with one query
+                for (int i = 0; i < changedDays.size(); ) {
+                    long from = changedDays.get(i);
+                    long to = from + 1;
+                    for (i++; i < changedDays.size() && changedDays.get(i) == to; i++) {
+                        to++;
+                    }
+                    if (!tableWritten) {
+                        writer.writeTable(table, columns);
+                        tableWritten = true;
+                    }
+                    String[] range = {String.valueOf(from * SECONDS_PER_DAY), String.valueOf(to * SECONDS_PER_DAY)};
+                    try (Cursor cursor = db.rawQuery(rowQuery, range)) {
+                        while (writer.writeRows(cursor, ROWS_PER_CHUNK) > 0) {
+                            // next chunk
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addFingerprint(long day, long fingerprint, @Nullable Map<Long, Long> previousFingerprints, Map<Long, Long> fingerprints, List<Long> changedDays) {
+        fingerprints.put(day, fingerprint);
+        Long previous = previousFingerprints != null ? previousFingerprints.get(day) : null;
+        if (previous == null || previous != fingerprint) {
+            changedDays.add(day);
+        }
+    }
+
+    /**
+     * A CRC32 over the ordered values of the rows of one day, combined with the number of rows.
+     */
+    static class Fingerprint {
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[9];
+        private long rows;
+
+        void reset() {
+            crc.reset();
+            rows = 0;
+        }
+
+        void update(Cursor cursor) {
+            for (int i = 0; i < cursor.getColumnCount(); i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        crc.update(DBBackupWriter.TYPE_NULL);
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        updateLong(DBBackupWriter.TYPE_INTEGER, cursor.getLong(i));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        updateLong(DBBackupWriter.TYPE_FLOAT, Double.doubleToLongBits(cursor.getDouble(i)));
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        updateBytes(DBBackupWriter.TYPE_BLOB, cursor.getBlob(i));
+                        break;
+                    default:
+                        updateBytes(DBBackupWriter.TYPE_TEXT, cursor.getString(i).getBytes(DBBackupWriter.UTF8));
+                        break;
+                }
+            }
+            rows++;
+        }
+
+        private void updateLong(int type, long value) {
+            buffer[0] = (byte) type;
+            for (int i = 1; i < 9; i++) {
+                buffer[i] = (byte) (value >>> (64 - 8 * i));
+            }
+            crc.update(buffer, 0, 9);
+        }
+
+        private void updateBytes(int type, byte[] value) {
+            // the length keeps adjacent values apart
+            updateLong(type, value.length);
+            crc.update(value);
+        }
+
+        long getValue() {
+            return rows << 32 | crc.getValue();
+        }
+    }
+
+    /**
+     * Merges all sections of the given backup into the database. The caller must hold
+     * the write lock of the database.
+     *
+     * @return the number of rows read from the backup
+     */
+    public static long merge(InputStream in, SQLiteDatabase db) throws IOException {
+        DBBackupReader reader = new DBBackupReader(in);
+        // for every table with an _id: the ids in the backup to the ids in the database
+        Map<String, Map<Long, Long>> idMappings = new HashMap<>();
+        long rows = 0;
+        while (reader.nextSection()) {
+            if (reader.getSchemaVersion() > db.getVersion()) {
+                throw new IOException("The backup was created by a newer version of Gadgetbridge (schema " + reader.getSchemaVersion() + ")");
+            }
+            while (reader.nextTable()) {
+                rows += mergeTable(reader, db, idMappings);
+            }
+        }
+        LOG.info("Merged " + rows + " rows into the database");
+        return rows;
+    }
+
+    private static long mergeTable(DBBackupReader reader, SQLiteDatabase db, Map<String, Map<Long, Long>> idMappings) throws IOException {
+        String table = reader.getTable();
+        String[] columns = reader.getColumns();
+        if (HourlyActivityRollupDao.TABLENAME.equals(table)) {
+            LOG.info("Skipping table " + table + ", the rollups are created from the merged samples");
+            return 0;
+        }
+        List<String> targetColumns = Arrays.asList(getColumns(db, table));
+        if (targetColumns.isEmpty()) {
+            LOG.warn("Skipping table " + table + " that does not exist in the database");
+            return 0;
+        }
+
+        int idIndex = indexOf(columns, COLUMN_ID);
+        int[] sourceIndexes = new int[columns.length];
+        List<String> insertColumns = new ArrayList<>();
+        for (int i = 0; i < columns.length; i++) {
+            if (targetColumns.contains(columns[i]) && i != idIndex) {
+                sourceIndexes[insertColumns.size()] = i;
+                insertColumns.add(columns[i]);
+            }
+        }
+        String[] referencedTables = new String[insertColumns.size()];
+        for (int i = 0; i < referencedTables.length; i++) {
+            referencedTables[i] = REFERENCES.get(insertColumns.get(i));
+        }
+
+        // rows with an _id get a new id, unless a row with the same natural key exists already
+        Map<Long, Long> ownIds = null;
+        SQLiteStatement find = null;
+        int[] keyIndexes = null;
+        if (idIndex >= 0) {
+            ownIds = idMappings.get(table);
+            if (ownIds == null) {
+                ownIds = new HashMap<>();
+                idMappings.put(table, ownIds);
+            }
+            keyIndexes = getKeyIndexes(table, insertColumns);
+            StringBuilder findSql = new StringBuilder("SELECT ").append(COLUMN_ID).append(" FROM ").append(quote(table)).append(" WHERE ");
+            for (int i = 0; i < keyIndexes.length; i++) {
+                findSql.append(i == 0 ? "" : " AND ").append(quote(insertColumns.get(keyIndexes[i]))).append(" IS ?");
+            }
+            find = db.compileStatement(findSql.append(" LIMIT 1").toString());
+        }
+
+        // samples replace existing samples, the rollups of their hours are deleted afterwards
+        boolean sampleTable = isSampleTable(columns);
+        int timestampIndex = insertColumns.indexOf(COLUMN_TIMESTAMP);
+        int deviceIndex = insertColumns.indexOf(COLUMN_DEVICE_ID);
+        Map<Long, long[]> mergedRanges = new HashMap<>();
+
+        String conflict = ownIds != null ? "" : sampleTable ? " OR REPLACE" : " OR IGNORE";
+        StringBuilder sql = new StringBuilder("INSERT").append(conflict).append(" INTO ").append(quote(table))
+                .append(" (").append(join(insertColumns.toArray(new String[0]))).append(") VALUES (");
+        for (int i = 0; i < insertColumns.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+
+        long rows = 0;
+        long skipped = 0;
+        Object[] values = new Object[insertColumns.size()];
+        SQLiteStatement insert = db.compileStatement(sql.toString());
+        db.beginTransaction();
+        try {
+            while (reader.nextRow()) {
+                rows++;
+                if (!readValues(reader, sourceIndexes, referencedTables, idMappings, values)) {
+                    skipped++;
+                    continue;
+                }
+                if (ownIds != null) {
+                    Long existingId = findId(find, keyIndexes, values);
+                    if (existingId != null) {
+                        ownIds.put((Long) reader.getValue(idIndex), existingId);
+                        continue;
+                    }
+                }
+                insert.clearBindings();
+                for (int i = 0; i < values.length; i++) {
+                    bind(insert, i + 1, values[i]);
+                }
+                long rowId = insert.executeInsert();
+                if (ownIds != null) {
+                    ownIds.put((Long) reader.getValue(idIndex), rowId);
+                }
+                if (sampleTable && timestampIndex >= 0 && deviceIndex >= 0) {
+                    addToRange(mergedRanges, (Long) values[deviceIndex], (Long) values[timestampIndex]);
+                }
+            }
+            for (Map.Entry<Long, long[]> range : mergedRanges.entrySet()) {
+                ActivityRollups.deleteRollups(range.getKey(), range.getValue()[0], range.getValue()[1], db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            if (find != null) {
+                find.close();
+            }
+        }
+        if (skipped > 0) {
+            LOG.warn("Skipped " + skipped + " rows of " + table + " that refer to rows missing in the backup");
+        }
+        return rows;
+    }
+
+    /**
+     * Reads the values of the current row into the given array, translating the references
+     * to the ids in the target database.
+     *
+     * @return false if the row refers to a row that was not merged
+     */
+    private static boolean readValues(DBBackupReader reader, int[] sourceIndexes, String[] referencedTables, Map<String, Map<Long, Long>> idMappings, Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            Object value = reader.getValue(sourceIndexes[i]);
+            if (referencedTables[i] != null && value != null) {
+                Map<Long, Long> ids = idMappings.get(referencedTables[i]);
+                value = ids != null ? ids.get(value) : null;
+                if (value == null) {
+                    return false;
+                }
+            }
+            values[i] = value;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the indexes of the natural key of the table in the given columns, or of all
+     * columns if the table has no known natural key.
+     */
+    private static int[] getKeyIndexes(String table, List<String> columns) {
+        List<Integer> indexes = new ArrayList<>();
+        String[] naturalKey = NATURAL_KEYS.get(table);
+        if (naturalKey != null) {
+            for (String column : naturalKey) {
+                if (columns.contains(column)) {
+                    indexes.add(columns.indexOf(column));
+                }
+            }
+        }
+        if (indexes.isEmpty()) {
+            for (int i = 0; i < columns.size(); i++) {
+                indexes.add(i);
+            }
+        }
+        int[] result = new int[indexes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = indexes.get(i);
+        }
+        return result;
+    }
+
+    @Nullable
+    private static Long findId(SQLiteStatement find, int[] keyIndexes, Object[] values) {
+        find.clearBindings();
+        for (int i = 0; i < keyIndexes.length; i++) {
+            bind(find, i + 1, values[keyIndexes[i]]);
+        }
+        try {
+            return find.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+    }
+
+    private static void addToRange(Map<Long, long[]> ranges, Long deviceId, Long timestamp) {
+        if (deviceId == null || timestamp == null) {
+            return;
+        }
+        long[] range = ranges.get(deviceId);
+        if (range == null) {
+            ranges.put(deviceId, new long[]{timestamp, timestamp});
+        } else {
+            range[0] = Math.min(range[0], timestamp);
+            range[1] = Math.max(range[1], timestamp);
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Long) {
+            statement.bindLong(index, (Long) value);
+        } else if (value instanceof Double) {
+            statement.bindDouble(index, (Double) value);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    /**
+     * Returns whether the given file starts like a backup written by this class
+     * (in contrast to a copy of the database file).
+     */
+    public static boolean isBackup(File file) throws IOException {
+        byte[] magic = new byte[DBBackupWriter.MAGIC.length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(magic);
+        } catch (java.io.EOFException e) {
+            return false;
+        }
+        return Arrays.equals(DBBackupWriter.MAGIC, magic);
+    }
+
+    private static List<String> getTables(SQLiteDatabase db) {
+        List<String> tables = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name NOT LIKE 'sqlite_%' AND name <> 'android_metadata' ORDER BY name", null)) {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0));
+            }
+        }
+        // derived from the samples, created again after merging them
+        tables.remove(HourlyActivityRollupDao.TABLENAME);
+        // the referenced tables first, the other tables refer to them
+        List<String> ordered = new ArrayList<>();
+        for (String referenced : REFERENCES.values()) {
+            if (tables.remove(referenced)) {
+                ordered.add(referenced);
+            }
+        }
+        ordered.addAll(tables);
+        return ordered;
+    }
+
+    private static String[] getColumns(SQLiteDatabase db, String table) {
+        List<String> columns = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("PRAGMA table_info(" + quote(table) + ")", null)) {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameIndex));
+            }
+        }
+        return columns.toArray(new String[0]);
+    }
+
+    private static boolean isSampleTable(String[] columns) {
+        return indexOf(columns, COLUMN_TIMESTAMP) >= 0 && indexOf(columns, COLUMN_DEVICE_ID) >= 0 && indexOf(columns, COLUMN_ID) < 0;
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (column.equals(columns[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String quote(String name) {
+        return '"' + name + '"';
+    }
+
+    private static String join(String[] columns) {
+        StringBuilder builder = new StringBuilder();
+        for (String column : columns) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(quote(column));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The fingerprints of the sample days of an export, to find out which days changed
+     * until the next export to the same location.
+     */
+    public static class State {
+        private static final int VERSION = 2;
+
+        private final String location;
+        private final Map<String, Map<Long, Long>> fingerprints = new HashMap<>();
+        private long length = -1;
+
+        State(@Nullable String location) {
+            this.location = location;
+        }
+
+        @Nullable
+        public String getLocation() {
+            return location;
+        }
+
+        /**
+         * @return the size of the export at the location after it was written, or -1 if unknown
+         */
+        public long getLength() {
+            return length;
+        }
+
+        public void setLength(long length) {
+            this.length = length;
+        }
+
+        /**
+         * @return the state stored in the given file, or null if there is none
+         */
+        @Nullable
+        public static State load(File file) throws IOException {
+            if (!file.exists()) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                if (in.readInt() != VERSION) {
+                    return null;
+                }
+                State state = new State(in.readBoolean() ? in.readUTF() : null);
+                state.length = in.readLong();
+                int tables = in.readInt();
+                for (int i = 0; i < tables; i++) {
+                    String table = in.readUTF();
+                    int days = in.readInt();
+                    Map<Long, Long> fingerprints = new HashMap<>(days * 2);
+                    for (int j = 0; j < days; j++) {
+                        fingerprints.put(in.readLong(), in.readLong());
+                    }
+                    state.fingerprints.put(table, fingerprints);
+                }
+                return state;
+            }
+        }
+
+        public void save(File file) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+                out.writeInt(VERSION);
+                out.writeBoolean(location != null);
+                if (location != null) {
+                    out.writeUTF(location);
+                }
+                out.writeLong(length);
+                out.writeInt(fingerprints.size());
+                for (Map.Entry<String, Map<Long, Long>> table : fingerprints.entrySet()) {
+                    out.writeUTF(table.getKey());
+                    out.writeInt(table.getValue().size());
+                    for (Map.Entry<Long, Long> day : table.getValue().entrySet()) {
+                        out.writeLong(day.getKey());
+                        out.writeLong(day.getValue());
+                    }
+                }
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to write " + file);
+            }
+        }
+    }
+}
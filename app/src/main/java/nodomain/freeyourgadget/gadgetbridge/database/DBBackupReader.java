@@ -0,0 +1,219 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static nodomain.freeyourgadget.gadgetbridge.database.DBBackupWriter.FLAG_FULL;
+import static nodomain.freeyourgadget.gadgetbridge.database.DBBackupWriter.MAGIC;
+import static nodomain.freeyourgadget.gadgetbridge.database.DBBackupWriter.TAG_END;
+import static nodomain.freeyourgadget.gadgetbridge.database.DBBackupWriter.TAG_ROWS;
+import static nodomain.freeyourgadget.gadgetbridge.database.DBBackupWriter.TAG_TABLE;
+import static nodomain.freeyourgadget.gadgetbridge.database.DBBackupWriter.TYPE_BLOB;
+import static nodomain.freeyourgadget.gadgetbridge.database.DBBackupWriter.TYPE_FLOAT;
+import static nodomain.freeyourgadget.gadgetbridge.database.DBBackupWriter.TYPE_INTEGER;
+import static nodomain.freeyourgadget.gadgetbridge.database.DBBackupWriter.TYPE_NULL;
+import static nodomain.freeyourgadget.gadgetbridge.database.DBBackupWriter.TYPE_TEXT;
+import static nodomain.freeyourgadget.gadgetbridge.database.DBBackupWriter.UTF8;
+import static nodomain.freeyourgadget.gadgetbridge.database.DBBackupWriter.VERSION;
+
+/**
+ * Reads the sections written by {@link DBBackupWriter}. Usage:
+ * <pre>
+ * while (reader.nextSection()) {
+ *     while (reader.nextTable()) {
+ *         while (reader.nextRow()) { reader.getValue(i) ... }
+ *     }
+ * }
+ * </pre>
+ */
+class DBBackupReader {
+    private final DataInputStream in;
+
+    private int schemaVersion;
+    private boolean full;
+    private int pendingTag = -1;
+
+    private String table;
+    private String[] columns;
+    private long[] previousIntegers;
+    private Object[] values;
+    private long remainingRows;
+
+    DBBackupReader(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+    }
+
+    /**
+     * Reads the header of the next section.
+     *
+     * @return false at the end of the stream
+     */
+    boolean nextSection() throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        int read = in.read(magic);
+        if (read <= 0) {
+            return false;
+        }
+        if (read < magic.length) {
+            in.readFully(magic, read, magic.length - read);
+        }
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Not a Gadgetbridge database backup");
+        }
+        int version = in.readUnsignedByte();
+        if (version > VERSION) {
+            throw new IOException("Unsupported backup version: " + version);
+        }
+        full = (in.readUnsignedByte() & FLAG_FULL) != 0;
+        schemaVersion = (int) readVarLong();
+        in.readLong(); // created
+        pendingTag = -1;
+        table = null;
+        remainingRows = 0;
+        return true;
+    }
+
+    boolean isFull() {
+        return full;
+    }
+
+    int getSchemaVersion() {
+        return schemaVersion;
+    }
+
+    /**
+     * Skips the remaining rows of the current table and reads the next table header
+     * of this section.
+     *
+     * @return false at the end of the section
+     */
+    boolean nextTable() throws IOException {
+        while (nextRow()) {
+            // skip
+        }
+        int tag = readTag();
+        if (tag == TAG_END) {
+            return false;
+        }
+        if (tag != TAG_TABLE) {
+            throw new IOException("Unexpected tag: " + tag);
+        }
+        table = in.readUTF();
+        columns = new String[(int) readVarLong()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = in.readUTF();
+        }
+        previousIntegers = new long[columns.length];
+        values = new Object[columns.length];
+        return true;
+    }
+
+    String getTable() {
+        return table;
+    }
+
+    String[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * Reads the next row of the current table.
+     *
+     * @return false if there are no more rows in the current table
+     */
+    boolean nextRow() throws IOException {
+        if (table == null) {
+            return false;
+        }
+        if (remainingRows == 0) {
+            int tag = readTag();
+            if (tag != TAG_ROWS) {
+                pendingTag = tag;
+                table = null;
+                return false;
+            }
+            remainingRows = readVarLong();
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readValue(i);
+        }
+        remainingRows--;
+        return true;
+    }
+
+    /**
+     * Returns the value of the given column of the current row: null, a Long, a Double,
+     * a String or a byte[].
+     */
+    Object getValue(int column) {
+        return values[column];
+    }
+
+    private Object readValue(int column) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_INTEGER:
+                long delta = readVarLong();
+                long value = previousIntegers[column] + ((delta >>> 1) ^ -(delta & 1));
+                previousIntegers[column] = value;
+                return value;
+            case TYPE_FLOAT:
+                return in.readDouble();
+            case TYPE_TEXT:
+                return new String(readBytes(), UTF8);
+            case TYPE_BLOB:
+                return readBytes();
+            default:
+                throw new IOException("Unknown value type: " + type);
+        }
+    }
+
+    private byte[] readBytes() throws IOException {
+        byte[] bytes = new byte[(int) readVarLong()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private int readTag() throws IOException {
+        if (pendingTag >= 0) {
+            int tag = pendingTag;
+            pendingTag = -1;
+            return tag;
+        }
+        return in.readUnsignedByte();
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new EOFException("Malformed varint");
+    }
+}
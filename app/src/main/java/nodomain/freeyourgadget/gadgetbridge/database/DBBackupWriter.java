@@ -0,0 +1,160 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.database.Cursor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a section of the chunked backup format of {@link DBBackup}:
+ * <pre>
+ * header:  "GBDB", version (byte), flags (byte), schema version (varint), created millis (long)
+ * table:   TAG_TABLE, name (UTF), column count (varint), column names (UTF)
+ * rows:    TAG_ROWS, row count (varint), for each row and column: type (byte), value
+ * end:     TAG_END
+ * </pre>
+ * Integer values are written as zigzag varint of the difference to the previous integer
+ * of the same column, so that the mostly ascending timestamps and the repeating device
+ * and user ids of the sample tables take one or two bytes each.
+ * Several sections may be concatenated, e.g. by appending incremental exports to a full one.
+ */
+class DBBackupWriter {
+    static final byte[] MAGIC = {'G', 'B', 'D', 'B'};
+    static final int VERSION = 1;
+    static final int FLAG_FULL = 1;
+
+    static final int TAG_END = 0;
+    static final int TAG_TABLE = 1;
+    static final int TAG_ROWS = 2;
+
+    static final int TYPE_NULL = 0;
+    static final int TYPE_INTEGER = 1;
+    static final int TYPE_FLOAT = 2;
+    static final int TYPE_TEXT = 3;
+    static final int TYPE_BLOB = 4;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DataOutputStream out;
+    private long[] previousIntegers = new long[0];
+    private long rowCount;
+
+    DBBackupWriter(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+    }
+
+    void writeHeader(boolean full, int schemaVersion) throws IOException {
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(full ? FLAG_FULL : 0);
+        writeVarLong(schemaVersion);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    void writeTable(String name, String[] columns) throws IOException {
+        out.writeByte(TAG_TABLE);
+        out.writeUTF(name);
+        writeVarLong(columns.length);
+        for (String column : columns) {
+            out.writeUTF(column);
+        }
+        previousIntegers = new long[columns.length];
+    }
+
+    /**
+     * Writes up to maxRows rows of the cursor, starting at its current position.
+     *
+     * @return the number of rows written
+     */
+    int writeRows(Cursor cursor, int maxRows) throws IOException {
+        int columns = previousIntegers.length;
+        int available = Math.min(maxRows, cursor.getCount() - cursor.getPosition() - 1);
+        if (available <= 0) {
+            return 0;
+        }
+        out.writeByte(TAG_ROWS);
+        writeVarLong(available);
+        int written = 0;
+        while (written < available && cursor.moveToNext()) {
+            for (int i = 0; i < columns; i++) {
+                writeValue(cursor, i);
+            }
+            written++;
+        }
+        if (written != available) {
+            throw new IOException("Cursor ended after " + written + " of " + available + " rows");
+        }
+        rowCount += written;
+        return written;
+    }
+
+    private void writeValue(Cursor cursor, int column) throws IOException {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                out.writeByte(TYPE_NULL);
+                break;
+            case Cursor.FIELD_TYPE_INTEGER:
+                long value = cursor.getLong(column);
+                out.writeByte(TYPE_INTEGER);
+                writeVarLong(zigzag(value - previousIntegers[column]));
+                previousIntegers[column] = value;
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                out.writeByte(TYPE_FLOAT);
+                out.writeDouble(cursor.getDouble(column));
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                byte[] blob = cursor.getBlob(column);
+                out.writeByte(TYPE_BLOB);
+                writeVarLong(blob.length);
+                out.write(blob);
+                break;
+            default:
+                byte[] text = cursor.getString(column).getBytes(UTF8);
+                out.writeByte(TYPE_TEXT);
+                writeVarLong(text.length);
+                out.write(text);
+                break;
+        }
+    }
+
+    void writeEnd() throws IOException {
+        out.writeByte(TAG_END);
+        out.flush();
+    }
+
+    long getRowCount() {
+        return rowCount;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
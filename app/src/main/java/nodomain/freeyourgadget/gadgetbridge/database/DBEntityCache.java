@@ -0,0 +1,135 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+
+/**
+ * Remembers the Device entities (by MAC address) and the User entity of a single DaoSession,
+ * so that {@link DBHelper} does not need to query them for every batch of samples.
+ * The attributes are cached along with them in their to-many lists.
+ * <p/>
+ * It also remembers which entities DBHelper found up to date with the preferences and the
+ * GBDevice (name, firmware, ...), so that it does not check them again for every batch of
+ * samples. Changed preferences invalidate these checks, for the devices the values of the
+ * GBDevice they were checked against are remembered as well.
+ * <p/>
+ * The cache only needs to be cleared when entities are deleted or the session is cleared.
+ * A different session (e.g. after the database was reopened) implicitly clears the cache.
+ */
+class DBEntityCache {
+    private DaoSession session;
+    private final Map<String, Device> devices = new HashMap<>();
+    private User user;
+    private boolean userChecked;
+    private final Map<String, String> checkedDeviceStates = new HashMap<>();
+    private boolean listening;
+
+    // SharedPreferences only keeps a weak reference to its listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener preferenceListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            invalidateChecks();
+        }
+    };
+
+    @Nullable
+    synchronized Device getDevice(DaoSession session, String address) {
+        ensureSession(session);
+        return devices.get(address);
+    }
+
+    synchronized void putDevice(DaoSession session, Device device) {
+        ensureSession(session);
+        devices.put(device.getIdentifier(), device);
+    }
+
+    @Nullable
+    synchronized User getUser(DaoSession session) {
+        ensureSession(session);
+        return user;
+    }
+
+    synchronized void putUser(DaoSession session, User user) {
+        ensureSession(session);
+        this.user = user;
+    }
+
+    synchronized boolean isUserChecked(DaoSession session) {
+        ensureSession(session);
+        return userChecked;
+    }
+
+    synchronized void setUserChecked(DaoSession session) {
+        ensureSession(session);
+        listenToPreferences();
+        userChecked = true;
+    }
+
+    /**
+     * @param state the values of the GBDevice the device entity was checked against
+     */
+    synchronized boolean isDeviceChecked(DaoSession session, String address, String state) {
+        ensureSession(session);
+        return state.equals(checkedDeviceStates.get(address));
+    }
+
+    synchronized void setDeviceChecked(DaoSession session, String address, String state) {
+        ensureSession(session);
+        listenToPreferences();
+        checkedDeviceStates.put(address, state);
+    }
+
+    synchronized void invalidateChecks() {
+        userChecked = false;
+        checkedDeviceStates.clear();
+    }
+
+    synchronized void clear() {
+        session = null;
+        devices.clear();
+        user = null;
+        invalidateChecks();
+    }
+
+    private void listenToPreferences() {
+        if (!listening) {
+            Prefs prefs = GBApplication.getPrefs();
+            if (prefs != null) {
+                prefs.getPreferences().registerOnSharedPreferenceChangeListener(preferenceListener);
+                listening = true;
+            }
+        }
+    }
+
+    private void ensureSession(DaoSession session) {
+        if (this.session != session) {
+            clear();
+            this.session = session;
+        }
+    }
+}
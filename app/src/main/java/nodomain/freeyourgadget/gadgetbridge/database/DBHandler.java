@@ -28,7 +28,8 @@ import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
  */
 public interface DBHandler extends AutoCloseable {
     /**
-     * Closes the database.
+     * Closes the database. The handler must have been acquired through
+     * GBApplication#acquireExclusiveDB(), so that nobody else is using it.
      */
     void closeDb();
 
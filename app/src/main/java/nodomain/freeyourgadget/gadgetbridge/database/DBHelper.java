@@ -26,8 +26,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Collections;
@@ -61,6 +62,7 @@ import nodomain.freeyourgadget.gadgetbridge.entities.TagDao;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.entities.UserAttributes;
 import nodomain.freeyourgadget.gadgetbridge.entities.UserDao;
+import nodomain.freeyourgadget.gadgetbridge.externalevents.NotificationFilterRegistry;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
 import nodomain.freeyourgadget.gadgetbridge.model.ValidByDate;
@@ -79,6 +81,7 @@ import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
  */
 public class DBHelper {
     private static final Logger LOG = LoggerFactory.getLogger(DBHelper.class);
+    private static final DBEntityCache entityCache = new DBEntityCache();
 
     private final Context context;
 
@@ -126,27 +129,40 @@ public class DBHelper {
         }
     }
 
-    public void exportDB(DBHandler dbHandler, OutputStream dest) throws IOException {
-        String dbPath = getClosedDBPath(dbHandler);
-        try {
-            File source = new File(dbPath);
-            FileUtils.copyFileToStream(source, dest);
-        } finally {
-            dbHandler.openDb();
-        }
-    }
-
     private String getDate() {
         return new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
     }
 
+    /**
+     * Replaces the database with the given copy of a database file, or merges the given
+     * {@link DBBackup} into the database.
+     */
     public void importDB(DBHandler dbHandler, File fromFile) throws IllegalStateException, IOException {
+        if (DBBackup.isBackup(fromFile)) {
+            mergeDB(dbHandler, fromFile);
+            return;
+        }
         String dbPath = getClosedDBPath(dbHandler);
         try {
             File toFile = new File(dbPath);
             FileUtils.copyFile(fromFile, toFile);
         } finally {
             dbHandler.openDb();
+            NotificationFilterRegistry.invalidate();
+        }
+    }
+
+    /**
+     * Merges the given {@link DBBackup} into the database, keeping the existing data.
+     * The activity rollups of the merged hours are deleted and created again when read.
+     */
+    public void mergeDB(DBHandler dbHandler, File fromFile) throws IOException {
+        try (InputStream in = new FileInputStream(fromFile)) {
+            DBBackup.merge(in, dbHandler.getDatabase());
+        } finally {
+            clearEntityCache();
+            dbHandler.getDaoSession().clear();
+            NotificationFilterRegistry.invalidate();
         }
     }
 
@@ -209,17 +225,24 @@ public class DBHelper {
      */
     @NonNull
     public static User getUser(DaoSession session) {
+        User user = entityCache.getUser(session);
+        if (user != null && entityCache.isUserChecked(session)) {
+            return user;
+        }
         ActivityUser prefsUser = new ActivityUser();
-        UserDao userDao = session.getUserDao();
-        User user;
-        List<User> users = userDao.loadAll();
-        if (users.isEmpty()) {
-            user = createUser(prefsUser, session);
-        } else {
-            user = users.get(0); // TODO: multiple users support?
-            ensureUserUpToDate(user, prefsUser, session);
+        if (user == null) {
+            UserDao userDao = session.getUserDao();
+            List<User> users = userDao.loadAll();
+            if (users.isEmpty()) {
+                user = createUser(prefsUser, session);
+            } else {
+                user = users.get(0); // TODO: multiple users support?
+            }
         }
+        ensureUserUpToDate(user, prefsUser, session);
         ensureUserAttributes(user, prefsUser, session);
+        entityCache.putUser(session, user);
+        entityCache.setUserChecked(session);
 
         return user;
     }
@@ -376,11 +399,17 @@ public class DBHelper {
      */
     @Nullable
     public static Device findDevice(GBDevice gbDevice, DaoSession session) {
+        Device device = entityCache.getDevice(session, gbDevice.getAddress());
+        if (device != null) {
+            return device;
+        }
         DeviceDao deviceDao = session.getDeviceDao();
         Query<Device> query = deviceDao.queryBuilder().where(DeviceDao.Properties.Identifier.eq(gbDevice.getAddress())).build();
         List<Device> devices = query.list();
         if (devices.size() > 0) {
-            return devices.get(0);
+            device = devices.get(0);
+            entityCache.putDevice(session, device);
+            return device;
         }
         return null;
     }
@@ -403,7 +432,11 @@ public class DBHelper {
      * @return the device entity corresponding to the given GBDevice
      */
     public static Device getDevice(GBDevice gbDevice, DaoSession session) {
+        String state = getCheckedState(gbDevice);
         Device device = findDevice(gbDevice, session);
+        if (device != null && entityCache.isDeviceChecked(session, gbDevice.getAddress(), state)) {
+            return device;
+        }
         if (device == null) {
             device = createDevice(gbDevice, session);
         } else {
@@ -412,10 +445,22 @@ public class DBHelper {
         if (gbDevice.isInitialized()) {
             ensureDeviceAttributes(device, gbDevice, session);
         }
+        entityCache.putDevice(session, device);
+        entityCache.setDeviceChecked(session, gbDevice.getAddress(), state);
 
         return device;
     }
 
+    /**
+     * Returns the values of the GBDevice that #getDevice() stores in the Device entity
+     * and its attributes.
+     */
+    private static String getCheckedState(GBDevice gbDevice) {
+        return gbDevice.getName() + '\n' + gbDevice.getModel() + '\n' + gbDevice.getType() + '\n'
+                + gbDevice.isInitialized() + '\n' + gbDevice.getFirmwareVersion() + '\n'
+                + gbDevice.getFirmwareVersion2() + '\n' + gbDevice.getVolatileAddress();
+    }
+
     @NonNull
     public static DeviceAttributes getDeviceAttributes(Device device) {
         List<DeviceAttributes> list = device.getDeviceAttributesList();
@@ -617,9 +662,18 @@ public class DBHelper {
         }
     }
 
+    /**
+     * Forgets all Device and User entities that were cached to avoid looking them up
+     * again for every batch of samples. Must be called when such entities are deleted.
+     */
+    public static void clearEntityCache() {
+        entityCache.clear();
+    }
+
     public static void clearSession() {
         try (DBHandler dbHandler = GBApplication.acquireDB()) {
             DaoSession session = dbHandler.getDaoSession();
+            clearEntityCache();
             session.clear();
         } catch (Exception e) {
             LOG.warn("Unable to acquire database to clear the session", e);
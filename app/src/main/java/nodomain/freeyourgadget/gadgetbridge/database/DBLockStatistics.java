@@ -0,0 +1,170 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects how long database users wait for and hold the database lock, separately
+ * for read-only and for write access.
+ * <p/>
+ * Note: this class is used very early during application startup, so it must not
+ * initialize slf4j statically.
+ */
+public class DBLockStatistics {
+    /**
+     * Acquisitions waiting longer than this are logged.
+     */
+    private static final long SLOW_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Counter readCounter = new Counter("read");
+    private final Counter writeCounter = new Counter("write");
+
+    private final ThreadLocal<long[]> holdStates = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            // read depth, read start, write depth, write start
+            return new long[4];
+        }
+    };
+
+    /**
+     * To be called after the lock has been acquired.
+     */
+    public void acquired(boolean write, long waitNanos) {
+        long[] state = holdStates.get();
+        int offset = write ? 2 : 0;
+        if (state[offset]++ == 0) {
+            state[offset + 1] = System.nanoTime();
+            getCounter(write).addWait(waitNanos);
+        }
+    }
+
+    /**
+     * To be called before the lock is released.
+     */
+    public void released(boolean write) {
+        long[] state = holdStates.get();
+        int offset = write ? 2 : 0;
+        if (state[offset] > 0 && --state[offset] == 0) {
+            getCounter(write).addHold(System.nanoTime() - state[offset + 1]);
+        }
+    }
+
+    public void timedOut(boolean write) {
+        getCounter(write).addTimeout();
+    }
+
+    public Counter getReadCounter() {
+        return readCounter;
+    }
+
+    public Counter getWriteCounter() {
+        return writeCounter;
+    }
+
+    private Counter getCounter(boolean write) {
+        return write ? writeCounter : readCounter;
+    }
+
+    public synchronized void reset() {
+        readCounter.reset();
+        writeCounter.reset();
+    }
+
+    @Override
+    public String toString() {
+        return readCounter + "; " + writeCounter;
+    }
+
+    public static class Counter {
+        private final String name;
+        private long acquisitions;
+        private long timeouts;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+        private long releases;
+        private long totalHoldNanos;
+        private long maxHoldNanos;
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        synchronized void addWait(long nanos) {
+            acquisitions++;
+            totalWaitNanos += nanos;
+            maxWaitNanos = Math.max(maxWaitNanos, nanos);
+            if (nanos > SLOW_WAIT_NANOS) {
+                LoggerFactory.getLogger(DBLockStatistics.class).warn("Waited " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms for " + name + " access to the database");
+            }
+        }
+
+        synchronized void addHold(long nanos) {
+            releases++;
+            totalHoldNanos += nanos;
+            maxHoldNanos = Math.max(maxHoldNanos, nanos);
+        }
+
+        synchronized void addTimeout() {
+            timeouts++;
+        }
+
+        synchronized void reset() {
+            acquisitions = 0;
+            timeouts = 0;
+            totalWaitNanos = 0;
+            maxWaitNanos = 0;
+            releases = 0;
+            totalHoldNanos = 0;
+            maxHoldNanos = 0;
+        }
+
+        public synchronized long getAcquisitions() {
+            return acquisitions;
+        }
+
+        public synchronized long getTimeouts() {
+            return timeouts;
+        }
+
+        public synchronized long getAverageWaitMillis() {
+            return acquisitions > 0 ? TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / acquisitions) : 0;
+        }
+
+        public synchronized long getMaxWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+        }
+
+        public synchronized long getAverageHoldMillis() {
+            return releases > 0 ? TimeUnit.NANOSECONDS.toMillis(totalHoldNanos / releases) : 0;
+        }
+
+        public synchronized long getMaxHoldMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxHoldNanos);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US, "%s: %d acquired, %d timed out, wait avg/max %d/%dms, hold avg/max %d/%dms",
+                    name, acquisitions, timeouts, getAverageWaitMillis(), getMaxWaitMillis(), getAverageHoldMillis(), getMaxHoldMillis());
+        }
+    }
+}
@@ -22,11 +22,14 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
@@ -41,6 +44,7 @@ import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
 
 public class PeriodicExporter extends BroadcastReceiver {
     private static final Logger LOG = LoggerFactory.getLogger(PeriodicExporter.class);
+    private static final String STATE_FILE_NAME = "auto_export.state";
 
     public static void enablePeriodicExport(Context context) {
         Prefs prefs = GBApplication.getPrefs();
@@ -71,22 +75,102 @@ public class PeriodicExporter extends BroadcastReceiver {
     }
 
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(final Context context, Intent intent) {
+        final PendingResult pendingResult = goAsync();
+        // the export does not hold the database lock all the time, so it may take a while
+        new Thread("Gadgetbridge DB Export") {
+            @Override
+            public void run() {
+                try {
+                    export(context);
+                } finally {
+                    pendingResult.finish();
+                }
+            }
+        }.start();
+    }
+
+    private void export(Context context) {
         LOG.info("Exporting DB");
-        try (DBHandler dbHandler = GBApplication.acquireDB()) {
-            DBHelper helper = new DBHelper(context);
+        try {
             String dst = GBApplication.getPrefs().getString(GBPrefs.AUTO_EXPORT_LOCATION, null);
             if (dst == null) {
                 LOG.info("Unable to export DB, export location not set");
                 return;
             }
             Uri dstUri = Uri.parse(dst);
-            try (OutputStream out = context.getContentResolver().openOutputStream(dstUri)) {
-                helper.exportDB(dbHandler, out);
+            File stateFile = new File(context.getFilesDir(), STATE_FILE_NAME);
+            DBBackup.State previous = null;
+            try {
+                previous = DBBackup.State.load(stateFile);
+            } catch (IOException ex) {
+                LOG.warn("Unable to load the state of the last export, exporting everything", ex);
+            }
+            if (previous != null && !dst.equals(previous.getLocation())) {
+                previous = null;
+            }
+
+            OutputStream out = null;
+            if (previous != null) {
+                // append the changes since the last export to it
+                try {
+                    out = openForAppending(context, dstUri, previous.getLength());
+                } catch (Exception ex) {
+                    LOG.info("Unable to append to the export: " + ex.getMessage());
+                }
+                if (out == null) {
+                    LOG.info("Exporting everything");
+                    previous = null;
+                }
+            }
+            if (out == null) {
+                out = context.getContentResolver().openOutputStream(dstUri, "w");
+            }
+            DBBackup.State state;
+            try {
+                state = DBBackup.export(out, previous, dst);
+            } finally {
+                out.close();
             }
+            state.setLength(getLength(context, dstUri));
+            state.save(stateFile);
         } catch (Exception ex) {
+            // the export may be incomplete now, so the next one must start from scratch
+            new File(context.getFilesDir(), STATE_FILE_NAME).delete();
             GB.updateExportFailedNotification(context.getString(R.string.notif_export_failed_title), context);
             LOG.info("Exception while exporting DB: ", ex);
         }
     }
+
+    /**
+     * Some providers truncate the file although asked to append to it, so this
+     * checks that the file still has the length of the last export.
+     *
+     * @return the stream appending to the export, or null if the export is not intact
+     */
+    private static OutputStream openForAppending(Context context, Uri uri, long expectedLength) throws IOException {
+        ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(uri, "wa");
+        if (fd == null) {
+            return null;
+        }
+        long length = fd.getStatSize();
+        if (expectedLength < 0 || length != expectedLength) {
+            LOG.info("The export has " + length + " bytes instead of " + expectedLength + " bytes");
+            fd.close();
+            return null;
+        }
+        return new ParcelFileDescriptor.AutoCloseOutputStream(fd);
+    }
+
+    /**
+     * @return the size of the given document, or -1 if the provider does not tell
+     */
+    private static long getLength(Context context, Uri uri) {
+        try (ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(uri, "r")) {
+            return fd != null ? fd.getStatSize() : -1;
+        } catch (Exception ex) {
+            LOG.info("Unable to determine the size of the export: " + ex.getMessage());
+            return -1;
+        }
+    }
 }
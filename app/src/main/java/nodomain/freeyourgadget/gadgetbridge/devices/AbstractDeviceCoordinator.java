@@ -31,6 +31,7 @@ import androidx.annotation.NonNull;
 import de.greenrobot.dao.query.QueryBuilder;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.GBException;
+import nodomain.freeyourgadget.gadgetbridge.database.ActivityRollups;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandConst;
@@ -70,7 +71,7 @@ public abstract class AbstractDeviceCoordinator implements DeviceCoordinator {
     public void deleteDevice(final GBDevice gbDevice) throws GBException {
         LOG.info("will try to delete device: " + gbDevice.getName());
         if (gbDevice.isConnected() || gbDevice.isConnecting()) {
-            GBApplication.deviceService().disconnect();
+            GBApplication.deviceService().disconnect(gbDevice);
         }
         Prefs prefs = getPrefs();
         String lastDevice = prefs.getPreferences().getString("last_device_address","");
@@ -90,7 +91,9 @@ public abstract class AbstractDeviceCoordinator implements DeviceCoordinator {
                 deleteDevice(gbDevice, device, session);
                 QueryBuilder<?> qb = session.getDeviceAttributesDao().queryBuilder();
                 qb.where(DeviceAttributesDao.Properties.DeviceId.eq(device.getId())).buildDelete().executeDeleteWithoutDetachingEntities();
+                ActivityRollups.deleteRollups(device.getId(), session);
                 session.getDeviceDao().delete(device);
+                DBHelper.clearEntityCache();
             } else {
                 LOG.info("device to delete not found in db: " + gbDevice);
             }
@@ -17,6 +17,8 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.devices;
 
+import android.database.Cursor;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -27,12 +29,15 @@ import de.greenrobot.dao.AbstractDao;
 import de.greenrobot.dao.Property;
 import de.greenrobot.dao.query.QueryBuilder;
 import de.greenrobot.dao.query.WhereCondition;
+import nodomain.freeyourgadget.gadgetbridge.database.ActivityRollups;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySampleSeries;
 
 /**
  * Base class for all sample providers. A Sample provider is device specific and provides
@@ -83,11 +88,97 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
     @Override
     public void addGBActivitySample(T activitySample) {
         getSampleDao().insertOrReplace(activitySample);
+        if (supportsActivityRollups()) {
+            new ActivityRollups(this).update(new AbstractActivitySample[] { activitySample });
+        }
     }
 
     @Override
     public void addGBActivitySamples(T[] activitySamples) {
         getSampleDao().insertOrReplaceInTx(activitySamples);
+        if (supportsActivityRollups()) {
+            new ActivityRollups(this).update(activitySamples);
+        }
+    }
+
+    /**
+     * Returns whether the samples of this provider may be pre-aggregated into hourly
+     * {@link ActivityRollups}. Providers that modify the samples at query time, e.g. by
+     * applying overlays, or that store samples bypassing #addGBActivitySamples must
+     * return false.
+     */
+    public boolean supportsActivityRollups() {
+        return true;
+    }
+
+    /**
+     * Returns all samples of the given range (both inclusive) as an {@link ActivitySampleSeries}.
+     * Unless the provider post-processes its samples, see #supportsSampleSeriesQueries(),
+     * they are read with a raw cursor without creating entities.
+     */
+    public ActivitySampleSeries getAllActivitySampleSeries(int timestamp_from, int timestamp_to) {
+        if (!supportsSampleSeriesQueries()) {
+            return ActivitySampleSeries.fromSamples(getAllActivitySamples(timestamp_from, timestamp_to));
+        }
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        if (dbDevice == null) {
+            // no device, no samples
+            return new ActivitySampleSeries(0);
+        }
+
+        Property timestampProperty = getTimestampSampleProperty();
+        Property rawKindProperty = getRawKindSampleProperty();
+        String sql = "SELECT " + timestampProperty.columnName
+                + ", " + (rawKindProperty != null ? rawKindProperty.columnName : ActivitySample.NOT_MEASURED)
+                + ", " + getColumnOrNotMeasured("rawIntensity")
+                + ", " + getColumnOrNotMeasured("steps")
+                + ", " + getColumnOrNotMeasured("heartRate")
+                + " FROM " + getSampleDao().getTablename()
+                + " WHERE " + getDeviceIdentifierSampleProperty().columnName + " = ? AND "
+                + timestampProperty.columnName + " >= ? AND " + timestampProperty.columnName + " <= ?"
+                + " ORDER BY " + timestampProperty.columnName;
+        String[] args = {String.valueOf(dbDevice.getId()), String.valueOf(timestamp_from), String.valueOf(timestamp_to)};
+
+        try (Cursor cursor = getSession().getDatabase().rawQuery(sql, args)) {
+            ActivitySampleSeries series = new ActivitySampleSeries(cursor.getCount());
+            // consecutive samples mostly have the same raw values, so normalize only on changes
+            int lastRawKind = 0;
+            int kind = normalizeType(lastRawKind);
+            int lastRawIntensity = 0;
+            float intensity = normalizeIntensity(lastRawIntensity);
+            while (cursor.moveToNext()) {
+                int rawKind = cursor.getInt(1);
+                if (rawKind != lastRawKind) {
+                    kind = normalizeType(rawKind);
+                    lastRawKind = rawKind;
+                }
+                int rawIntensity = cursor.getInt(2);
+                if (rawIntensity != lastRawIntensity) {
+                    intensity = normalizeIntensity(rawIntensity);
+                    lastRawIntensity = rawIntensity;
+                }
+                series.add(cursor.getInt(0), kind, rawKind, intensity, cursor.getInt(3), cursor.getInt(4));
+            }
+            return series;
+        }
+    }
+
+    /**
+     * Returns whether #getAllActivitySampleSeries may read the samples directly from the
+     * columns of the sample table. Providers that modify the samples after loading them,
+     * or whose sample entities compute their values from other columns, must return false.
+     */
+    protected boolean supportsSampleSeriesQueries() {
+        return true;
+    }
+
+    private String getColumnOrNotMeasured(String propertyName) {
+        for (Property property : getSampleDao().getProperties()) {
+            if (propertyName.equals(property.name)) {
+                return property.columnName;
+            }
+        }
+        return String.valueOf(ActivitySample.NOT_MEASURED);
     }
 
     @Nullable
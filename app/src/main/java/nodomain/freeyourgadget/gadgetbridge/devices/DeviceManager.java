@@ -184,6 +184,21 @@ public class DeviceManager {
         return Collections.unmodifiableList(deviceList);
     }
 
+    /**
+     * Returns the devices that are connected and initialized, for the commands that apply
+     * to all of them, e.g. the weather or a global setting. Each one must be sent with
+     * {@code GBApplication.deviceService().forDevice(device)}.
+     */
+    public List<GBDevice> getInitializedDevices() {
+        List<GBDevice> devices = new ArrayList<>();
+        for (GBDevice device : deviceList) {
+            if (device.isInitialized()) {
+                devices.add(device);
+            }
+        }
+        return devices;
+    }
+
     @Nullable
     public GBDevice getSelectedDevice() {
         return selectedDevice;
@@ -113,6 +113,17 @@ public class HPlusHealthSampleProvider extends AbstractSampleProvider<HPlusHealt
         return getSession().getHPlusHealthActivitySampleDao();
     }
 
+    @Override
+    public boolean supportsActivityRollups() {
+        // overlays and step counters are applied depending on the queried range
+        return false;
+    }
+
+    @Override
+    protected boolean supportsSampleSeriesQueries() {
+        return false;
+    }
+
 
     public List<HPlusHealthActivitySample> getActivityamples(int timestamp_from, int timestamp_to) {
         return getAllActivitySamples(timestamp_from, timestamp_to);
@@ -88,7 +88,8 @@ public class AmazfitBipCoordinator extends HuamiCoordinator {
                 R.xml.devicesettings_disconnectnotification,
                 R.xml.devicesettings_expose_hr_thirdparty,
                 R.xml.devicesettings_buttonactions_with_longpress,
-                R.xml.devicesettings_pairingkey
+                R.xml.devicesettings_pairingkey,
+                R.xml.devicesettings_gatt_notification_capacity
         };
     }
 }
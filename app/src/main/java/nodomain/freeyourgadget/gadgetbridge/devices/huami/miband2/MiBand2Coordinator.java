@@ -86,7 +86,8 @@ public class MiBand2Coordinator extends HuamiCoordinator {
                 R.xml.devicesettings_buttonactions,
                 R.xml.devicesettings_reserve_alarms_calendar,
                 R.xml.devicesettings_expose_hr_thirdparty,
-                R.xml.devicesettings_pairingkey
+                R.xml.devicesettings_pairingkey,
+                R.xml.devicesettings_gatt_notification_capacity
         };
     }
 }
@@ -20,11 +20,14 @@ package nodomain.freeyourgadget.gadgetbridge.devices.miband;
 import java.util.List;
 
 import de.greenrobot.dao.query.QueryBuilder;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiConst;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySampleDao;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySampleSeries;
 
 import static nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiConst.TYPE_IGNORE;
 import static nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiConst.TYPE_NO_CHANGE;
@@ -43,6 +46,13 @@ public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
         return samples;
     }
 
+    @Override
+    public ActivitySampleSeries getAllActivitySampleSeries(int timestamp_from, int timestamp_to) {
+        ActivitySampleSeries series = super.getAllActivitySampleSeries(timestamp_from, timestamp_to);
+        postprocess(series);
+        return series;
+    }
+
     /**
      * "Temporary" runtime post processing of activity kinds.
      * @param samples
@@ -52,7 +62,8 @@ public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
             return;
         }
 
-        int lastValidKind = determinePreviousValidActivityType(samples.get(0));
+        MiBandActivitySample first = samples.get(0);
+        int lastValidKind = determinePreviousValidActivityType(first.getDeviceId(), first.getUserId(), first.getTimestamp());
         for (MiBandActivitySample sample : samples) {
             int rawKind = sample.getRawKind();
             if (rawKind != TYPE_UNSET) {
@@ -74,11 +85,53 @@ public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
         }
     }
 
-    private int determinePreviousValidActivityType(MiBandActivitySample sample) {
+    /**
+     * The same post processing for the samples read directly from the database.
+     */
+    private void postprocess(ActivitySampleSeries series) {
+        if (series.isEmpty()) {
+            return;
+        }
+
+        // the series has no user ids, look up the user of the first sample like for the entities
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        MiBandActivitySample first = getSampleDao().queryBuilder()
+                .where(MiBandActivitySampleDao.Properties.DeviceId.eq(dbDevice.getId()),
+                        MiBandActivitySampleDao.Properties.Timestamp.eq(series.getTimestamp(0)))
+                .limit(1).unique();
+        int lastValidKind = TYPE_UNSET;
+        if (first != null) {
+            lastValidKind = determinePreviousValidActivityType(first.getDeviceId(), first.getUserId(), first.getTimestamp());
+        }
+        for (int i = 0; i < series.size(); i++) {
+            int originalRawKind = series.getRawKind(i);
+            int rawKind = originalRawKind;
+            if (rawKind != TYPE_UNSET) {
+                rawKind &= 0xf;
+            }
+
+            switch (rawKind) {
+                case TYPE_IGNORE:
+                case TYPE_NO_CHANGE:
+                    if (lastValidKind != TYPE_UNSET) {
+                        rawKind = lastValidKind;
+                    }
+                    break;
+                default:
+                    lastValidKind = rawKind;
+                    break;
+            }
+            if (rawKind != originalRawKind) {
+                series.setKind(i, normalizeType(rawKind), rawKind);
+            }
+        }
+    }
+
+    private int determinePreviousValidActivityType(long deviceId, long userId, int timestamp) {
         QueryBuilder<MiBandActivitySample> qb = getSampleDao().queryBuilder();
-        qb.where(MiBandActivitySampleDao.Properties.DeviceId.eq(sample.getDeviceId()),
-                MiBandActivitySampleDao.Properties.UserId.eq(sample.getUserId()),
-                MiBandActivitySampleDao.Properties.Timestamp.lt(sample.getTimestamp()),
+        qb.where(MiBandActivitySampleDao.Properties.DeviceId.eq(deviceId),
+                MiBandActivitySampleDao.Properties.UserId.eq(userId),
+                MiBandActivitySampleDao.Properties.Timestamp.lt(timestamp),
                 MiBandActivitySampleDao.Properties.RawKind.notIn(TYPE_NO_CHANGE, TYPE_IGNORE, TYPE_UNSET, 16, 80, 96, 112)); // all I ever had that are 0 when doing &=0xf
         qb.orderDesc(MiBandActivitySampleDao.Properties.Timestamp);
         qb.limit(1);
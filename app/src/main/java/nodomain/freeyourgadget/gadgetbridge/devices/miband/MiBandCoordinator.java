@@ -263,6 +263,7 @@ public class MiBandCoordinator extends AbstractDeviceCoordinator {
         return new int[]{
                 R.xml.devicesettings_wearlocation,
                 R.xml.devicesettings_lowlatency_fwupdate,
+                R.xml.devicesettings_gatt_notification_capacity,
                 R.xml.devicesettings_reserve_alarms_calendar,
                 R.xml.devicesettings_fake_timeoffset
         };
@@ -31,6 +31,7 @@ import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.activities.AbstractSettingsActivity;
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceManager;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationType;
@@ -68,7 +69,9 @@ public class MiBandPreferencesActivity extends AbstractSettingsActivity {
         enableHeartrateSleepSupport.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
             @Override
             public boolean onPreferenceChange(Preference preference, Object newVal) {
-                GBApplication.deviceService().onEnableHeartRateSleepSupport(Boolean.TRUE.equals(newVal));
+                for (GBDevice device : GBApplication.app().getDeviceManager().getInitializedDevices()) {
+                    GBApplication.deviceService().forDevice(device).onEnableHeartRateSleepSupport(Boolean.TRUE.equals(newVal));
+                }
                 return true;
             }
         });
@@ -77,7 +80,9 @@ public class MiBandPreferencesActivity extends AbstractSettingsActivity {
         heartrateMeasurementInterval.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
             @Override
             public boolean onPreferenceChange(Preference preference, Object newVal) {
-                GBApplication.deviceService().onSetHeartRateMeasurementInterval(Integer.parseInt((String) newVal));
+                for (GBDevice device : GBApplication.app().getDeviceManager().getInitializedDevices()) {
+                    GBApplication.deviceService().forDevice(device).onSetHeartRateMeasurementInterval(Integer.parseInt((String) newVal));
+                }
                 return true;
             }
         });
@@ -89,7 +94,7 @@ public class MiBandPreferencesActivity extends AbstractSettingsActivity {
                 invokeLater(new Runnable() {
                     @Override
                     public void run() {
-                        GBApplication.deviceService().onSendConfiguration(PREF_MI2_GOAL_NOTIFICATION);
+                        sendConfiguration(PREF_MI2_GOAL_NOTIFICATION);
                     }
                 });
                 return true;
@@ -104,7 +109,7 @@ public class MiBandPreferencesActivity extends AbstractSettingsActivity {
                 invokeLater(new Runnable() {
                     @Override
                     public void run() {
-                        GBApplication.deviceService().onSendConfiguration(PREF_MI2_INACTIVITY_WARNINGS);
+                        sendConfiguration(PREF_MI2_INACTIVITY_WARNINGS);
                     }
                 });
                 return true;
@@ -118,7 +123,7 @@ public class MiBandPreferencesActivity extends AbstractSettingsActivity {
                 invokeLater(new Runnable() {
                     @Override
                     public void run() {
-                        GBApplication.deviceService().onSendConfiguration(PREF_MI2_INACTIVITY_WARNINGS_THRESHOLD);
+                        sendConfiguration(PREF_MI2_INACTIVITY_WARNINGS_THRESHOLD);
                     }
                 });
                 return true;
@@ -132,7 +137,7 @@ public class MiBandPreferencesActivity extends AbstractSettingsActivity {
                 invokeLater(new Runnable() {
                     @Override
                     public void run() {
-                        GBApplication.deviceService().onSendConfiguration(PREF_MI2_INACTIVITY_WARNINGS_START);
+                        sendConfiguration(PREF_MI2_INACTIVITY_WARNINGS_START);
                     }
                 });
                 return true;
@@ -146,7 +151,7 @@ public class MiBandPreferencesActivity extends AbstractSettingsActivity {
                 invokeLater(new Runnable() {
                     @Override
                     public void run() {
-                        GBApplication.deviceService().onSendConfiguration(PREF_MI2_INACTIVITY_WARNINGS_END);
+                        sendConfiguration(PREF_MI2_INACTIVITY_WARNINGS_END);
                     }
                 });
                 return true;
@@ -160,7 +165,7 @@ public class MiBandPreferencesActivity extends AbstractSettingsActivity {
                 invokeLater(new Runnable() {
                     @Override
                     public void run() {
-                        GBApplication.deviceService().onSendConfiguration(PREF_MI2_INACTIVITY_WARNINGS_DND);
+                        sendConfiguration(PREF_MI2_INACTIVITY_WARNINGS_DND);
                     }
                 });
                 return true;
@@ -174,7 +179,7 @@ public class MiBandPreferencesActivity extends AbstractSettingsActivity {
                 invokeLater(new Runnable() {
                     @Override
                     public void run() {
-                        GBApplication.deviceService().onSendConfiguration(PREF_MI2_INACTIVITY_WARNINGS_DND_START);
+                        sendConfiguration(PREF_MI2_INACTIVITY_WARNINGS_DND_START);
                     }
                 });
                 return true;
@@ -188,7 +193,7 @@ public class MiBandPreferencesActivity extends AbstractSettingsActivity {
                 invokeLater(new Runnable() {
                     @Override
                     public void run() {
-                        GBApplication.deviceService().onSendConfiguration(PREF_MI2_INACTIVITY_WARNINGS_DND_END);
+                        sendConfiguration(PREF_MI2_INACTIVITY_WARNINGS_DND_END);
                     }
                 });
                 return true;
@@ -203,7 +208,7 @@ public class MiBandPreferencesActivity extends AbstractSettingsActivity {
                 invokeLater(new Runnable() {
                     @Override
                     public void run() {
-                        GBApplication.deviceService().onSendConfiguration(ActivityUser.PREF_USER_STEPS_GOAL);
+                        sendConfiguration(ActivityUser.PREF_USER_STEPS_GOAL);
                     }
                 });
                 return true;
@@ -218,6 +223,12 @@ public class MiBandPreferencesActivity extends AbstractSettingsActivity {
         getListView().post(runnable);
     }
 
+    private void sendConfiguration(String config) {
+        for (GBDevice device : GBApplication.app().getDeviceManager().getInitializedDevices()) {
+            GBApplication.deviceService().forDevice(device).onSendConfiguration(config);
+        }
+    }
+
     @Override
     protected void onPostCreate(Bundle savedInstanceState) {
         super.onPostCreate(savedInstanceState);
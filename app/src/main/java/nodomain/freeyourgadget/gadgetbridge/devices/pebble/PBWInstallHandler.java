@@ -42,6 +42,7 @@ import nodomain.freeyourgadget.gadgetbridge.impl.GBDeviceApp;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
 import nodomain.freeyourgadget.gadgetbridge.model.GenericItem;
 import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.PebbleAppKeys;
 import nodomain.freeyourgadget.gadgetbridge.util.PebbleUtils;
 
 public class PBWInstallHandler implements InstallHandler {
@@ -187,6 +188,7 @@ public class PBWInstallHandler implements InstallHandler {
         } catch (JSONException e) {
             LOG.error(e.getMessage(), e);
         }
+        PebbleAppKeys.invalidate(app.getUUID());
 
         InputStream jsConfigFile = mPBWReader.getInputStreamFile("pebble-js-app.js");
         if (jsConfigFile != null) {
@@ -17,8 +17,11 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.devices.pebble;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import de.greenrobot.dao.AbstractDao;
 import de.greenrobot.dao.Property;
@@ -62,28 +65,95 @@ public class PebbleHealthSampleProvider extends AbstractSampleProvider<PebbleHea
 
         QueryBuilder<PebbleHealthActivityOverlay> qb = getSession().getPebbleHealthActivityOverlayDao().queryBuilder();
 
-        // I assume it returns the records by id ascending ... (last overlay is dominant)
+        // the order of the primary key, which was the implicit order before (last overlay is dominant)
         qb.where(PebbleHealthActivityOverlayDao.Properties.DeviceId.eq(dbDevice.getId()), PebbleHealthActivityOverlayDao.Properties.TimestampTo.ge(timestamp_from))
-                .where(PebbleHealthActivityOverlayDao.Properties.TimestampFrom.le(timestamp_to));
+                .where(PebbleHealthActivityOverlayDao.Properties.TimestampFrom.le(timestamp_to))
+                .orderAsc(PebbleHealthActivityOverlayDao.Properties.TimestampFrom, PebbleHealthActivityOverlayDao.Properties.TimestampTo, PebbleHealthActivityOverlayDao.Properties.RawKind);
         List<PebbleHealthActivityOverlay> overlayRecords = qb.build().list();
 
-        for (PebbleHealthActivityOverlay overlay : overlayRecords) {
-            for (PebbleHealthActivitySample sample : samples) {
-                if (overlay.getTimestampFrom() <= sample.getTimestamp() && sample.getTimestamp() < overlay.getTimestampTo()) {
-                    // patch in the raw kind
-                    sample.setRawKind(overlay.getRawKind());
-                }
-            }
-        }
+        applyOverlays(samples, overlayRecords);
         detachFromSession();
         return samples;
     }
 
+    /**
+     * Patches the raw kind of every sample that is covered by an overlay (timestampFrom
+     * inclusive, timestampTo exclusive). If several overlays cover a sample, the one that
+     * comes last in the given list wins.
+     * <p/>
+     * Samples and overlays are swept in the order of their timestamps, keeping the overlays
+     * covering the current sample in a heap ordered by their dominance, so this takes
+     * O((samples + overlays) * log(overlays)) instead of O(samples * overlays).
+     * The samples are sorted by their timestamp, if they are not already.
+     */
+    public static void applyOverlays(List<PebbleHealthActivitySample> samples, final List<PebbleHealthActivityOverlay> overlays) {
+        if (samples.isEmpty() || overlays.isEmpty()) {
+            return;
+        }
+        ensureSortedByTimestamp(samples);
+
+        List<Integer> byStart = new ArrayList<>(overlays.size());
+        for (int i = 0; i < overlays.size(); i++) {
+            byStart.add(i);
+        }
+        // stable, so overlays with the same start keep their relative order
+        Collections.sort(byStart, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Integer.compare(overlays.get(lhs).getTimestampFrom(), overlays.get(rhs).getTimestampFrom());
+            }
+        });
+
+        // the most dominant (i.e. last) overlay that has started is on top
+        PriorityQueue<Integer> active = new PriorityQueue<>(16, Collections.<Integer>reverseOrder());
+        int next = 0;
+        for (PebbleHealthActivitySample sample : samples) {
+            int timestamp = sample.getTimestamp();
+            while (next < byStart.size() && overlays.get(byStart.get(next)).getTimestampFrom() <= timestamp) {
+                active.add(byStart.get(next++));
+            }
+            // timestamps only grow, so overlays that ended will never cover a sample again
+            while (!active.isEmpty() && overlays.get(active.peek()).getTimestampTo() <= timestamp) {
+                active.poll();
+            }
+            if (!active.isEmpty()) {
+                // patch in the raw kind
+                sample.setRawKind(overlays.get(active.peek()).getRawKind());
+            }
+        }
+    }
+
+    private static void ensureSortedByTimestamp(List<PebbleHealthActivitySample> samples) {
+        for (int i = 1; i < samples.size(); i++) {
+            if (samples.get(i - 1).getTimestamp() > samples.get(i).getTimestamp()) {
+                Collections.sort(samples, new Comparator<PebbleHealthActivitySample>() {
+                    @Override
+                    public int compare(PebbleHealthActivitySample lhs, PebbleHealthActivitySample rhs) {
+                        return Integer.compare(lhs.getTimestamp(), rhs.getTimestamp());
+                    }
+                });
+                return;
+            }
+        }
+    }
+
     @Override
     public AbstractDao<PebbleHealthActivitySample, ?> getSampleDao() {
         return getSession().getPebbleHealthActivitySampleDao();
     }
 
+    @Override
+    public boolean supportsActivityRollups() {
+        // activity overlays are applied at query time
+        return false;
+    }
+
+    @Override
+    protected boolean supportsSampleSeriesQueries() {
+        // activity overlays are applied at query time
+        return false;
+    }
+
     @Override
     protected Property getTimestampSampleProperty() {
         return PebbleHealthActivitySampleDao.Properties.Timestamp;
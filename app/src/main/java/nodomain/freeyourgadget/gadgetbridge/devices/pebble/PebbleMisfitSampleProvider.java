@@ -57,6 +57,18 @@ public class PebbleMisfitSampleProvider extends AbstractSampleProvider<PebbleMis
         return getSession().getPebbleMisfitSampleDao();
     }
 
+    @Override
+    public boolean supportsActivityRollups() {
+        // a Pebble may switch between several providers, which rollups are not keyed by
+        return false;
+    }
+
+    @Override
+    protected boolean supportsSampleSeriesQueries() {
+        // the values are calculated by the sample entities
+        return false;
+    }
+
     @Override
     protected Property getRawKindSampleProperty() {
         return null;
@@ -37,6 +37,18 @@ public class PebbleMorpheuzSampleProvider extends AbstractSampleProvider<PebbleM
         return getSession().getPebbleMorpheuzSampleDao();
     }
 
+    @Override
+    public boolean supportsActivityRollups() {
+        // a Pebble may switch between several providers, which rollups are not keyed by
+        return false;
+    }
+
+    @Override
+    protected boolean supportsSampleSeriesQueries() {
+        // the values are calculated by the sample entities
+        return false;
+    }
+
     @Override
     protected Property getTimestampSampleProperty() {
         return PebbleMorpheuzSampleDao.Properties.Timestamp;
@@ -21,6 +21,7 @@ import java.io.IOException;
 
 import androidx.annotation.NonNull;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrackSeries;
 
 public interface ActivityTrackExporter {
     @NonNull
@@ -28,6 +29,8 @@ public interface ActivityTrackExporter {
 
     void performExport(ActivityTrack track, File targetFile) throws IOException, GPXTrackEmptyException;
 
+    void performExport(ActivityTrackSeries track, File targetFile) throws IOException, GPXTrackEmptyException;
+
     class GPXTrackEmptyException extends Exception {
     }
 }
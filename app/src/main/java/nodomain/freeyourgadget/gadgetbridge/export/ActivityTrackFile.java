@@ -0,0 +1,442 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.export;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import androidx.annotation.Nullable;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrackSeries;
+
+/**
+ * A compact binary file holding the track of one activity, which is stored next to the
+ * activity summary instead of a GPX file. It contains two sections:
+ * <ul>
+ * <li>the raw data as received from the device, which stays the source of truth, so
+ * that the track can be decoded again when a parser gets fixed</li>
+ * <li>the decoded track, column by column as zigzag varints of the difference to the
+ * previous value, which usually takes one or two bytes per value</li>
+ * </ul>
+ * Opening a file only reads the header, the track is decoded when it is needed, and GPX
+ * (or any other {@link ActivityTrackExporter} format) is rendered from it on demand.
+ * <p/>
+ * Layout: magic, version, name, raw format, raw length, raw bytes, track length, track.
+ */
+public class ActivityTrackFile {
+    private static final Logger LOG = LoggerFactory.getLogger(ActivityTrackFile.class);
+
+    public static final String EXTENSION = ".gbtrack";
+
+    public static final int RAW_FORMAT_NONE = 0;
+    public static final int RAW_FORMAT_HUAMI_SPORTS_DETAILS = 1;
+
+    private static final int MAGIC = 0x47425452; // "GBTR"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final String name;
+    private final int rawFormat;
+    private final int rawLength;
+    private final long rawOffset;
+    private final int trackLength;
+    private final long trackOffset;
+
+    private ActivityTrackFile(File file, String name, int rawFormat, long rawOffset, int rawLength, long trackOffset, int trackLength) {
+        this.file = file;
+        this.name = name;
+        this.rawFormat = rawFormat;
+        this.rawOffset = rawOffset;
+        this.rawLength = rawLength;
+        this.trackOffset = trackOffset;
+        this.trackLength = trackLength;
+    }
+
+    public static boolean isTrackFile(@Nullable String path) {
+        return path != null && path.endsWith(EXTENSION);
+    }
+
+    /**
+     * Reads the header of the given file, but neither the raw data nor the track.
+     */
+    public static ActivityTrackFile open(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an activity track file: " + file);
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported activity track file version: " + version);
+            }
+            int nameLength = readVarInt(in);
+            byte[] name = new byte[nameLength];
+            in.readFully(name);
+            int rawFormat = readVarInt(in);
+            int rawLength = readVarInt(in);
+            long rawOffset = 5 + varIntSize(nameLength) + nameLength + varIntSize(rawFormat) + varIntSize(rawLength);
+            skipFully(in, rawLength);
+            int trackLength = readVarInt(in);
+            long trackOffset = rawOffset + rawLength + varIntSize(trackLength);
+            if (trackOffset + trackLength > file.length()) {
+                throw new EOFException("Truncated activity track file: " + file);
+            }
+            return new ActivityTrackFile(file, new String(name, UTF8), rawFormat, rawOffset, rawLength, trackOffset, trackLength);
+        }
+    }
+
+    /**
+     * Writes the track together with the raw data it was decoded from. The file is written
+     * to a temporary file first, so that an existing file is only replaced when complete.
+     */
+    public static void write(File file, ActivityTrackSeries track, int rawFormat, @Nullable byte[] rawData) throws IOException {
+        if (rawData == null) {
+            rawData = new byte[0];
+        }
+        byte[] encodedTrack = encodeTrack(track);
+        byte[] name = track.getName() != null ? track.getName().getBytes(UTF8) : new byte[0];
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeVarLong(out, name.length);
+            out.write(name);
+            writeVarLong(out, rawFormat);
+            writeVarLong(out, rawData.length);
+            out.write(rawData);
+            writeVarLong(out, encodedTrack.length);
+            out.write(encodedTrack);
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to write activity track file: " + file);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * One of the RAW_FORMAT constants, telling how {@link #readRawData()} is to be parsed.
+     */
+    public int getRawFormat() {
+        return rawFormat;
+    }
+
+    public byte[] readRawData() throws IOException {
+        return readSection(rawOffset, rawLength);
+    }
+
+    /**
+     * Decodes the track. User and device are not part of the file and need to be set by
+     * the caller if they are needed for rendering.
+     */
+    public ActivityTrackSeries readTrack() throws IOException {
+        ActivityTrackSeries track = decodeTrack(readSection(trackOffset, trackLength));
+        track.setName(name);
+        return track;
+    }
+
+    /**
+     * Renders the track with the given exporter into a file next to this one, with the
+     * given extension instead of {@link #EXTENSION}. The rendered file is kept and reused
+     * as long as it is newer than this file. Both must not have the same time, since file
+     * times may only have a granularity of a second.
+     */
+    public File render(ActivityTrackExporter exporter, String extension, @Nullable User user, @Nullable Device device) throws IOException, ActivityTrackExporter.GPXTrackEmptyException {
+        String path = file.getPath();
+        File target = new File(path.substring(0, path.length() - EXTENSION.length()) + extension);
+        if (target.exists() && target.lastModified() > file.lastModified()) {
+            return target;
+        }
+        ActivityTrackSeries track = readTrack();
+        track.setUser(user);
+        track.setDevice(device);
+        LOG.debug("Rendering " + track.size() + " track points to " + target);
+        exporter.performExport(track, target);
+        return target;
+    }
+
+    private byte[] readSection(long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(offset);
+            in.readFully(data);
+        }
+        return data;
+    }
+
+    static byte[] encodeTrack(ActivityTrackSeries track) throws IOException {
+        int size = track.size();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size * 6 + 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeVarLong(out, size);
+
+        // devices usually record whole seconds, so the time deltas get a lot smaller
+        int timeUnit = 1000;
+        for (int i = 0; i < size; i++) {
+            if (track.getTime(i) % timeUnit != 0) {
+                timeUnit = 1;
+                break;
+            }
+        }
+        writeVarLong(out, timeUnit);
+        long previousTime = 0;
+        for (int i = 0; i < size; i++) {
+            long time = track.getTime(i) / timeUnit;
+            writeVarLong(out, zigzag(time - previousTime));
+            previousTime = time;
+        }
+
+        // one bit per point telling whether it has a location
+        int bits = 0;
+        for (int i = 0; i < size; i++) {
+            if (track.hasLocation(i)) {
+                bits |= 1 << (i & 7);
+            }
+            if ((i & 7) == 7 || i == size - 1) {
+                out.writeByte(bits);
+                bits = 0;
+            }
+        }
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            if (track.hasLocation(i)) {
+                writeVarLong(out, zigzag(track.getLongitude(i) - previous));
+                previous = track.getLongitude(i);
+            }
+        }
+        previous = 0;
+        for (int i = 0; i < size; i++) {
+            if (track.hasLocation(i)) {
+                writeVarLong(out, zigzag(track.getLatitude(i) - previous));
+                previous = track.getLatitude(i);
+            }
+        }
+        previous = 0;
+        for (int i = 0; i < size; i++) {
+            if (track.hasLocation(i)) {
+                writeVarLong(out, zigzag(track.getAltitude(i) - previous));
+                previous = track.getAltitude(i);
+            }
+        }
+        previous = 0;
+        for (int i = 0; i < size; i++) {
+            writeVarLong(out, zigzag(track.getHeartRate(i) - previous));
+            previous = track.getHeartRate(i);
+        }
+
+        int descriptions = 0;
+        for (int i = 0; i < size; i++) {
+            if (track.getDescription(i) != null) {
+                descriptions++;
+            }
+        }
+        writeVarLong(out, descriptions);
+        int previousIndex = 0;
+        for (int i = 0; i < size; i++) {
+            String description = track.getDescription(i);
+            if (description != null) {
+                byte[] text = description.getBytes(UTF8);
+                writeVarLong(out, i - previousIndex);
+                writeVarLong(out, text.length);
+                out.write(text);
+                previousIndex = i;
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static ActivityTrackSeries decodeTrack(byte[] data) throws IOException {
+        Decoder in = new Decoder(data);
+        int size = in.readVarInt();
+        ActivityTrackSeries track = new ActivityTrackSeries(size);
+
+        int timeUnit = in.readVarInt();
+        long time = 0;
+        for (int i = 0; i < size; i++) {
+            time += unzigzag(in.readVarLong());
+            track.add(time * timeUnit, ActivityTrackSeries.NO_LOCATION, ActivityTrackSeries.NO_LOCATION, ActivityTrackSeries.NO_LOCATION, 0);
+        }
+
+        int bitmapOffset = in.position;
+        in.position += (size + 7) / 8;
+        if (in.position > data.length) {
+            throw new EOFException("Truncated activity track");
+        }
+        int located = 0;
+        for (int i = 0; i < size; i++) {
+            if (isLocated(data, bitmapOffset, i)) {
+                located++;
+            }
+        }
+        int[] longitudes = in.readDeltas(located);
+        int[] latitudes = in.readDeltas(located);
+        int[] altitudes = in.readDeltas(located);
+        int location = 0;
+        for (int i = 0; i < size; i++) {
+            if (isLocated(data, bitmapOffset, i)) {
+                track.setLocation(i, longitudes[location], latitudes[location], altitudes[location]);
+                location++;
+            }
+        }
+
+        int heartRate = 0;
+        for (int i = 0; i < size; i++) {
+            heartRate += (int) unzigzag(in.readVarLong());
+            track.setHeartRate(i, heartRate);
+        }
+
+        int descriptions = in.readVarInt();
+        int index = 0;
+        for (int i = 0; i < descriptions; i++) {
+            index += in.readVarInt();
+            if (index >= size) {
+                throw new IOException("Invalid description index in activity track: " + index);
+            }
+            int length = in.readVarInt();
+            track.setDescription(index, in.readString(length));
+        }
+        return track;
+    }
+
+    private static boolean isLocated(byte[] data, int bitmapOffset, int index) {
+        return (data[bitmapOffset + (index >> 3)] & (1 << (index & 7))) != 0;
+    }
+
+    private static class Decoder {
+        private final byte[] data;
+        private int position;
+
+        Decoder(byte[] data) {
+            this.data = data;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= data.length) {
+                    throw new EOFException("Truncated activity track");
+                }
+                int b = data[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in activity track");
+        }
+
+        int readVarInt() throws IOException {
+            long value = readVarLong();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IOException("Invalid length in activity track: " + value);
+            }
+            return (int) value;
+        }
+
+        int[] readDeltas(int count) throws IOException {
+            int[] values = new int[count];
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                value += unzigzag(readVarLong());
+                values[i] = (int) value;
+            }
+            return values;
+        }
+
+        String readString(int length) throws IOException {
+            if (position + length > data.length) {
+                throw new EOFException("Truncated activity track");
+            }
+            String value = new String(data, position, length, UTF8);
+            position += length;
+            return value;
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in activity track file");
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
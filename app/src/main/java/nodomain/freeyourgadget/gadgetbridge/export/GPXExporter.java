@@ -17,39 +17,53 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.export;
 
-import android.util.Xml;
-
-import org.xmlpull.v1.XmlSerializer;
-
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.Date;
-import java.util.List;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
-import nodomain.freeyourgadget.gadgetbridge.model.ActivityPoint;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
-import nodomain.freeyourgadget.gadgetbridge.model.GPSCoordinate;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrackSeries;
 import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
 
+/**
+ * Writes GPX 1.1 files. The XML is streamed directly to the output, in a single pass over
+ * the track and without creating strings or other objects per track point, so that even
+ * tracks of multi-day hikes are exported in linear time and constant additional memory.
+ */
 public class GPXExporter implements ActivityTrackExporter {
     private static final String NS_GPX_URI = "http://www.topografix.com/GPX/1/1";
-    private static final String NS_GPX_PREFIX = "";
     private static final String NS_TRACKPOINT_EXTENSION = "gpxtpx";
     private static final String NS_TRACKPOINT_EXTENSION_URI = "http://www.garmin.com/xmlschemas/TrackPointExtension/v1";
     private static final String NS_XSI_URI = "http://www.w3.org/2001/XMLSchema-instance";
 
+    /**
+     * Points without heart rate get the one of the closest earlier point, if it is not
+     * older than this.
+     */
+    private static final long NEAREST_HEART_RATE_MAX_MILLIS = 60 * 2 * 1000;
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+    private static final int OUTPUT_SCALE = 6;
+
     private String creator;
     private boolean includeHeartRate = true;
     private boolean includeHeartRateOfNearestSample = true;
 
+    // per export state
+    private Writer writer;
+    private final char[] buffer = new char[32];
+    private final char[] date = new char[10];
+    private long dateDay = Long.MIN_VALUE;
+
     @NonNull
     @Override
     public String getDefaultFileName(@NonNull ActivityTrack track) {
@@ -58,147 +72,236 @@ public class GPXExporter implements ActivityTrackExporter {
 
     @Override
     public void performExport(ActivityTrack track, File targetFile) throws IOException, GPXTrackEmptyException {
-        String encoding = StandardCharsets.UTF_8.name();
-        XmlSerializer ser = Xml.newSerializer();
+        performExport(ActivityTrackSeries.fromTrack(track), targetFile);
+    }
+
+    @Override
+    public void performExport(ActivityTrackSeries track, File targetFile) throws IOException, GPXTrackEmptyException {
+        if (!track.hasLocations()) {
+            throw new GPXTrackEmptyException();
+        }
         try (FileOutputStream outputStream = new FileOutputStream(targetFile)) {
-            ser.setOutput(outputStream, encoding);
-            ser.startDocument(encoding, Boolean.TRUE);
-            ser.setPrefix("xsi", NS_XSI_URI);
-            ser.setPrefix(NS_TRACKPOINT_EXTENSION, NS_TRACKPOINT_EXTENSION_URI);
-            ser.setPrefix(NS_GPX_PREFIX, NS_GPX_URI);
-
-            ser.startTag(NS_GPX_URI, "gpx");
-            ser.attribute(null,"version", "1.1");
-            ser.attribute(null, "creator", getCreator());
-            ser.attribute(NS_XSI_URI, "schemaLocation", NS_GPX_URI + " " + "http://www.topografix.com/GPX/1/1/gpx.xsd");
-
-            exportMetadata(ser, track);
-            exportTrack(ser, track);
-
-            ser.endTag(NS_GPX_URI, "gpx");
-            ser.endDocument();
-            ser.flush();
+            performExport(track, outputStream);
         }
     }
 
-    private void exportMetadata(XmlSerializer ser, ActivityTrack track) throws IOException {
-        ser.startTag(NS_GPX_URI, "metadata");
-        ser.startTag(NS_GPX_URI, "name").text(track.getName()).endTag(NS_GPX_URI, "name");
-
-        ser.startTag(NS_GPX_URI, "author");
-        ser.startTag(NS_GPX_URI, "name").text(track.getUser().getName()).endTag(NS_GPX_URI, "name");
-        ser.endTag(NS_GPX_URI, "author");
+    /**
+     * Writes the track to the given stream, which is not closed.
+     */
+    public synchronized void performExport(ActivityTrackSeries track, OutputStream outputStream) throws IOException, GPXTrackEmptyException {
+        if (!track.hasLocations()) {
+            throw new GPXTrackEmptyException();
+        }
+        writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        dateDay = Long.MIN_VALUE;
+        try {
+            writer.write("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>\n");
+            writer.write("<gpx xmlns:xsi=\"" + NS_XSI_URI + "\" xmlns:" + NS_TRACKPOINT_EXTENSION + "=\"" + NS_TRACKPOINT_EXTENSION_URI + "\" xmlns=\"" + NS_GPX_URI + "\" version=\"1.1\"");
+            if (getCreator() != null) {
+                writer.write(" creator=\"");
+                writeEscaped(getCreator());
+                writer.write('"');
+            }
+            writer.write(" xsi:schemaLocation=\"" + NS_GPX_URI + " http://www.topografix.com/GPX/1/1/gpx.xsd\">\n");
 
-        ser.startTag(NS_GPX_URI, "time").text(formatTime(new Date())).endTag(NS_GPX_URI, "time");
+            exportMetadata(track);
+            exportTrack(track);
 
-        ser.endTag(NS_GPX_URI, "metadata");
+            writer.write("</gpx>\n");
+            writer.flush();
+        } finally {
+            writer = null;
+        }
     }
 
-    private String formatTime(Date date) {
-        return DateTimeUtils.formatIso8601(date);
+    private void exportMetadata(ActivityTrackSeries track) throws IOException {
+        writer.write("<metadata><name>");
+        writeEscaped(track.getName());
+        writer.write("</name>");
+        if (track.getUser() != null) {
+            writer.write("<author><name>");
+            writeEscaped(track.getUser().getName());
+            writer.write("</name></author>");
+        }
+        writer.write("<time>");
+        writer.write(DateTimeUtils.formatIso8601(new Date()));
+        writer.write("</time></metadata>\n");
     }
 
-    private void exportTrack(XmlSerializer ser, ActivityTrack track) throws IOException, GPXTrackEmptyException {
-        ser.startTag(NS_GPX_URI, "trk");
-        ser.startTag(NS_GPX_URI, "trkseg");
+    private void exportTrack(ActivityTrackSeries track) throws IOException {
+        writer.write("<trk><trkseg>\n");
 
-        List<ActivityPoint> trackPoints = track.getTrackPoints();
-        String source = getSource(track);
-        boolean atLeastOnePointExported = false;
-        for (ActivityPoint point : trackPoints) {
-            atLeastOnePointExported |= exportTrackPoint(ser, point, source, trackPoints);
-        }
+        HeartRateUtils heartRateUtils = HeartRateUtils.getInstance();
+        int minHeartRate = heartRateUtils.getMinHeartRate();
+        int maxHeartRate = heartRateUtils.getMaxHeartRate();
 
-        if(!atLeastOnePointExported) {
-            throw new GPXTrackEmptyException();
-        }
+        // the last valid heart rate before the current point, the track is sorted by time
+        int nearestIndex = 0;
+        int nearestHeartRate = 0;
+        long nearestTime = 0;
+        boolean haveNearest = false;
 
-        ser.endTag(NS_GPX_URI, "trkseg");
-        ser.endTag(NS_GPX_URI, "trk");
-    }
+        int size = track.size();
+        for (int i = 0; i < size; i++) {
+            if (!track.hasLocation(i)) {
+                continue; // skip invalid points, that just contain hr data, for example
+            }
+            long time = track.getTime(i);
+            // lon and lat attributes do not have an explicit namespace
+            writer.write("<trkpt lon=\"");
+            writeDecimal(track.getLongitude(i), ActivityTrackSeries.DEGREES_SCALE);
+            writer.write("\" lat=\"");
+            writeDecimal(track.getLatitude(i), ActivityTrackSeries.DEGREES_SCALE);
+            writer.write("\"><ele>");
+            writeDecimal(track.getAltitude(i), ActivityTrackSeries.ALTITUDE_SCALE);
+            writer.write("</ele><time>");
+            writeTime(time);
+            writer.write("</time>");
+            String description = track.getDescription(i);
+            if (description != null) {
+                writer.write("<desc>");
+                writeEscaped(description);
+                writer.write("</desc>");
+            }
 
-    private String getSource(ActivityTrack track) {
-        return track.getDevice().getName();
-    }
+            if (includeHeartRate) {
+                int hr = track.getHeartRate(i);
+                if ((hr < minHeartRate || hr > maxHeartRate) && includeHeartRateOfNearestSample) {
+                    while (nearestIndex < size && track.getTime(nearestIndex) < time) {
+                        int candidate = track.getHeartRate(nearestIndex);
+                        if (candidate >= minHeartRate && candidate <= maxHeartRate) {
+                            nearestHeartRate = candidate;
+                            nearestTime = track.getTime(nearestIndex);
+                            haveNearest = true;
+                        }
+                        nearestIndex++;
+                    }
+                    if (haveNearest && time - nearestTime < NEAREST_HEART_RATE_MAX_MILLIS) {
+                        hr = nearestHeartRate;
+                    }
+                }
+                if (hr >= minHeartRate && hr <= maxHeartRate) {
+                    writer.write("<extensions><" + NS_TRACKPOINT_EXTENSION + ":TrackPointExtension><" + NS_TRACKPOINT_EXTENSION + ":hr>");
+                    writeDecimal(hr, 0);
+                    writer.write("</" + NS_TRACKPOINT_EXTENSION + ":hr></" + NS_TRACKPOINT_EXTENSION + ":TrackPointExtension></extensions>");
+                }
+            }
 
-    private boolean exportTrackPoint(XmlSerializer ser, ActivityPoint point, String source, List<ActivityPoint> trackPoints) throws IOException {
-        GPSCoordinate location = point.getLocation();
-        if (location == null) {
-            return false; // skip invalid points, that just contain hr data, for example
-        }
-        ser.startTag(NS_GPX_URI, "trkpt");
-        // lon and lat attributes do not have an explicit namespace
-        ser.attribute(null, "lon", formatLocation(location.getLongitude()));
-        ser.attribute(null, "lat", formatLocation(location.getLatitude()));
-        ser.startTag(NS_GPX_URI, "ele").text(formatLocation(location.getAltitude())).endTag(NS_GPX_URI, "ele");
-        ser.startTag(NS_GPX_URI, "time").text(DateTimeUtils.formatIso8601UTC(point.getTime())).endTag(NS_GPX_URI, "time");
-        String description = point.getDescription();
-        if (description != null) {
-            ser.startTag(NS_GPX_URI, "desc").text(description).endTag(NS_GPX_URI, "desc");
+            writer.write("</trkpt>\n");
         }
-        //ser.startTag(NS_GPX_URI, "src").text(source).endTag(NS_GPX_URI, "src");
 
-        exportTrackpointExtensions(ser, point, trackPoints);
-
-        ser.endTag(NS_GPX_URI, "trkpt");
-
-        return true;
+        writer.write("</trkseg></trk>\n");
     }
 
-    private void exportTrackpointExtensions(XmlSerializer ser, ActivityPoint point, List<ActivityPoint> trackPoints) throws IOException {
-        if (!includeHeartRate) {
-            return;
-        }
-
-        int hr = point.getHeartRate();
-        if (!HeartRateUtils.getInstance().isValidHeartRateValue(hr)) {
-            if (!includeHeartRateOfNearestSample) {
-                return;
+    /**
+     * Writes the fixed-point value unscaledValue / 10^scale, padded to six decimals if it has
+     * any decimals at all.
+     */
+    private void writeDecimal(long unscaledValue, int scale) throws IOException {
+        int pos = buffer.length;
+        boolean negative = unscaledValue < 0;
+        long value = Math.abs(unscaledValue);
+        if (scale > 0) {
+            for (int i = scale; i < OUTPUT_SCALE; i++) {
+                buffer[--pos] = '0';
             }
-
-            ActivityPoint closestPointItem = findClosestSensibleActivityPoint(point.getTime(), trackPoints);
-            if(closestPointItem == null) {
-                return;
+            for (int i = 0; i < scale; i++) {
+                buffer[--pos] = (char) ('0' + value % 10);
+                value /= 10;
             }
+            buffer[--pos] = '.';
+        }
+        do {
+            buffer[--pos] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        if (negative) {
+            buffer[--pos] = '-';
+        }
+        writer.write(buffer, pos, buffer.length - pos);
+    }
 
-            hr = closestPointItem.getHeartRate();
-            if (!HeartRateUtils.getInstance().isValidHeartRateValue(hr)) {
-                return;
-            }
+    /**
+     * Writes the time as ISO 8601 in UTC, e.g. 2015-07-26T07:43:42Z.
+     */
+    private void writeTime(long millis) throws IOException {
+        long day = millis / MILLIS_PER_DAY;
+        if (millis % MILLIS_PER_DAY < 0) {
+            day--;
+        }
+        if (day != dateDay) {
+            updateDate(day);
         }
+        int secondOfDay = (int) ((millis - day * MILLIS_PER_DAY) / 1000);
+        writer.write(date, 0, date.length);
+        writer.write('T');
+        writeTwoDigits(secondOfDay / 3600);
+        writer.write(':');
+        writeTwoDigits(secondOfDay / 60 % 60);
+        writer.write(':');
+        writeTwoDigits(secondOfDay % 60);
+        writer.write('Z');
+    }
 
-        ser.startTag(NS_GPX_URI, "extensions");
-        ser.setPrefix(NS_TRACKPOINT_EXTENSION, NS_TRACKPOINT_EXTENSION_URI);
-        ser.startTag(NS_TRACKPOINT_EXTENSION_URI, "TrackPointExtension");
-        ser.startTag(NS_TRACKPOINT_EXTENSION_URI, "hr").text(String.valueOf(hr)).endTag(NS_TRACKPOINT_EXTENSION_URI, "hr");
-        ser.endTag(NS_TRACKPOINT_EXTENSION_URI, "TrackPointExtension");
-        ser.endTag(NS_GPX_URI, "extensions");
+    private void writeTwoDigits(int value) throws IOException {
+        writer.write('0' + value / 10);
+        writer.write('0' + value % 10);
     }
 
-    private @Nullable ActivityPoint findClosestSensibleActivityPoint(Date time, List<ActivityPoint> trackPoints) {
-        ActivityPoint closestPointItem = null;
-        HeartRateUtils heartRateUtilsInstance = HeartRateUtils.getInstance();
-
-        long lowestDifference = 60 * 2 * 1000; // minimum distance is 2min
-        for (ActivityPoint pointItem : trackPoints) {
-            int hrItem = pointItem.getHeartRate();
-            if (heartRateUtilsInstance.isValidHeartRateValue(hrItem)) {
-                Date timeItem = pointItem.getTime();
-                if (timeItem.after(time) || timeItem.equals(time)) {
-                    break; // we assume that the given trackPoints are sorted in time ascending order (oldest first)
-                }
-                long difference = time.getTime() - timeItem.getTime();
-                if (difference < lowestDifference) {
-                    lowestDifference = difference;
-                    closestPointItem = pointItem;
-                }
-            }
-        }
-        return closestPointItem;
+    /**
+     * Converts days since the epoch to yyyy-MM-dd, see
+     * http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+     */
+    private void updateDate(long day) {
+        long z = day + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        date[0] = (char) ('0' + year / 1000 % 10);
+        date[1] = (char) ('0' + year / 100 % 10);
+        date[2] = (char) ('0' + year / 10 % 10);
+        date[3] = (char) ('0' + year % 10);
+        date[4] = '-';
+        date[5] = (char) ('0' + month / 10);
+        date[6] = (char) ('0' + month % 10);
+        date[7] = '-';
+        date[8] = (char) ('0' + dayOfMonth / 10);
+        date[9] = (char) ('0' + dayOfMonth % 10);
+        dateDay = day;
     }
 
-    private String formatLocation(double value) {
-        return new BigDecimal(value).setScale(GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE, RoundingMode.HALF_UP).toPlainString();
+    private void writeEscaped(@Nullable String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    writer.write("&amp;");
+                    break;
+                case '<':
+                    writer.write("&lt;");
+                    break;
+                case '>':
+                    writer.write("&gt;");
+                    break;
+                case '"':
+                    writer.write("&quot;");
+                    break;
+                default:
+                    // control characters are not allowed in XML 1.0
+                    if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+                        writer.write(c);
+                    }
+            }
+        }
     }
 
     public String getCreator() {
@@ -36,11 +36,13 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.TimeZone;
 
 import androidx.core.app.ActivityCompat;
 import nodomain.freeyourgadget.gadgetbridge.BuildConfig;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.CalendarEventSpec;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
 
@@ -83,8 +85,11 @@ public class AlarmReceiver extends BroadcastReceiver {
          */
         byte id_tomorrow = (byte) ((dateTimeTomorrow.getTimeInMillis() / (1000L * 60L * 60L * 24L)) % 3);
 
-        GBApplication.deviceService().onDeleteCalendarEvent(CalendarEventSpec.TYPE_SUNRISE, id_tomorrow);
-        GBApplication.deviceService().onDeleteCalendarEvent(CalendarEventSpec.TYPE_SUNSET, id_tomorrow);
+        List<GBDevice> devices = GBApplication.app().getDeviceManager().getInitializedDevices();
+        for (GBDevice device : devices) {
+            GBApplication.deviceService().forDevice(device).onDeleteCalendarEvent(CalendarEventSpec.TYPE_SUNRISE, id_tomorrow);
+            GBApplication.deviceService().forDevice(device).onDeleteCalendarEvent(CalendarEventSpec.TYPE_SUNSET, id_tomorrow);
+        }
 
         Prefs prefs = GBApplication.getPrefs();
 
@@ -117,7 +122,9 @@ public class AlarmReceiver extends BroadcastReceiver {
         if (sunriseTransitSetTomorrow[0] != null) {
             calendarEventSpec.id = id_tomorrow;
             calendarEventSpec.timestamp = (int) (sunriseTransitSetTomorrow[0].getTimeInMillis() / 1000);
-            GBApplication.deviceService().onAddCalendarEvent(calendarEventSpec);
+            for (GBDevice device : devices) {
+                GBApplication.deviceService().forDevice(device).onAddCalendarEvent(calendarEventSpec);
+            }
         }
 
         calendarEventSpec.type = CalendarEventSpec.TYPE_SUNSET;
@@ -125,7 +132,9 @@ public class AlarmReceiver extends BroadcastReceiver {
         if (sunriseTransitSetTomorrow[2] != null) {
             calendarEventSpec.id = id_tomorrow;
             calendarEventSpec.timestamp = (int) (sunriseTransitSetTomorrow[2].getTimeInMillis() / 1000);
-            GBApplication.deviceService().onAddCalendarEvent(calendarEventSpec);
+            for (GBDevice device : devices) {
+                GBApplication.deviceService().forDevice(device).onAddCalendarEvent(calendarEventSpec);
+            }
         }
     }
 }
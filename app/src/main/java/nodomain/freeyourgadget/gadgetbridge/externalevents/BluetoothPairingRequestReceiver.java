@@ -54,9 +54,17 @@ public class BluetoothPairingRequestReceiver extends BroadcastReceiver {
             return;
         }
 
-        GBDevice gbDevice = service.getGBDevice();
         BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-        if (gbDevice == null || device == null)
+        if (device == null)
+            return;
+
+        GBDevice gbDevice = null;
+        for (GBDevice candidate : service.getGBDevices()) {
+            if (candidate.getAddress().equals(device.getAddress())) {
+                gbDevice = candidate;
+            }
+        }
+        if (gbDevice == null)
             return;
 
         DeviceCoordinator coordinator = DeviceHelper.getInstance().getCoordinator(gbDevice);
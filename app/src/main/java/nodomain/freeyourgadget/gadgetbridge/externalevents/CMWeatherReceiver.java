@@ -36,6 +36,7 @@ import cyanogenmod.weather.WeatherLocation;
 import cyanogenmod.weather.util.WeatherUtils;
 import nodomain.freeyourgadget.gadgetbridge.BuildConfig;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.Weather;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
@@ -176,7 +177,9 @@ public class CMWeatherReceiver extends BroadcastReceiver implements CMWeatherMan
                 weatherSpec.forecasts.add(gbForecast);
             }
             Weather.getInstance().setWeatherSpec(weatherSpec);
-            GBApplication.deviceService().onSendWeather(weatherSpec);
+            for (GBDevice device : GBApplication.app().getDeviceManager().getInitializedDevices()) {
+                GBApplication.deviceService().forDevice(device).onSendWeather(weatherSpec);
+            }
         } else {
             LOG.info("request has returned null for WeatherInfo");
         }
@@ -21,18 +21,19 @@ package nodomain.freeyourgadget.gadgetbridge.externalevents;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 import android.widget.Toast;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Enumeration;
 import java.util.GregorianCalendar;
-import java.util.Hashtable;
 import java.util.List;
 
-import de.greenrobot.dao.query.QueryBuilder;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
@@ -42,58 +43,51 @@ import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.CalendarEventSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.CalendarEvents;
+import nodomain.freeyourgadget.gadgetbridge.model.DeviceService;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
+import nodomain.freeyourgadget.gadgetbridge.util.GBEnvironment;
 
 public class CalendarReceiver extends BroadcastReceiver {
     private static final Logger LOG = LoggerFactory.getLogger(CalendarReceiver.class);
-    private Hashtable<Long, EventSyncState> eventState = new Hashtable<>();
 
-    private GBDevice mGBDevice;
-
-    private class EventSyncState {
-        private int state;
-        private CalendarEvents.CalendarEvent event;
-
-        EventSyncState(CalendarEvents.CalendarEvent event, int state) {
-            this.state = state;
-            this.event = event;
-        }
-
-        public int getState() {
-            return state;
-        }
-
-        public void setState(int state) {
-            this.state = state;
+    /**
+     * The calendar provider sends bursts of PROVIDER_CHANGED broadcasts (e.g. one per
+     * synced calendar or per edited instance), only sync once they have calmed down.
+     */
+    private static final long SYNC_DELAY_MILLIS = 5000;
+
+    private final GBDevice mGBDevice;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            List<CalendarEvents.CalendarEvent> eventList = (new CalendarEvents()).getCalendarEventList(GBApplication.getContext());
+            syncCalendar(eventList);
         }
-
-        public CalendarEvents.CalendarEvent getEvent() {
-            return event;
-        }
-
-        public void setEvent(CalendarEvents.CalendarEvent event) {
-            this.event = event;
-        }
-    }
-
-    private static class EventState {
-        private static final int NOT_SYNCED = 0;
-        private static final int SYNCED = 1;
-        private static final int NEEDS_UPDATE = 2;
-        private static final int NEEDS_DELETE = 3;
-    }
+    };
 
     public CalendarReceiver(GBDevice gbDevice) {
         LOG.info("Created calendar receiver.");
         mGBDevice = gbDevice;
-        onReceive(GBApplication.getContext(), new Intent());
+        mSyncRunnable.run();
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
         LOG.info("got calendar changed broadcast");
-        List<CalendarEvents.CalendarEvent> eventList = (new CalendarEvents()).getCalendarEventList(GBApplication.getContext());
-        syncCalendar(eventList);
+        if (GBEnvironment.env().isLocalTest()) {
+            mSyncRunnable.run();
+            return;
+        }
+        mHandler.removeCallbacks(mSyncRunnable);
+        mHandler.postDelayed(mSyncRunnable, SYNC_DELAY_MILLIS);
+    }
+
+    /**
+     * Cancels a pending sync, to be called when the receiver is unregistered.
+     */
+    public void dispose() {
+        mHandler.removeCallbacks(mSyncRunnable);
     }
 
     public void syncCalendar(List<CalendarEvents.CalendarEvent> eventList) {
@@ -101,115 +95,104 @@ public class CalendarReceiver extends BroadcastReceiver {
             DaoSession session = dbHandler.getDaoSession();
             syncCalendar(eventList, session);
         } catch (Exception e1) {
+            LOG.error("Error syncing calendar", e1);
             GB.toast("Database Error while syncing Calendar", Toast.LENGTH_SHORT, GB.ERROR);
         }
     }
 
+    /**
+     * Compares the given events with the sync state stored for this device and sends only
+     * the new, changed and removed events to the device. The stored sync state is read with
+     * a single query and written back in a single transaction.
+     */
     public void syncCalendar(List<CalendarEvents.CalendarEvent> eventList, DaoSession session) {
         LOG.info("Syncing with calendar.");
-        Hashtable<Long, CalendarEvents.CalendarEvent> eventTable = new Hashtable<>();
+        // only this device, the other devices have their own calendar receiver
+        DeviceService deviceService = GBApplication.deviceService().forDevice(mGBDevice);
+        final CalendarSyncStateDao dao = session.getCalendarSyncStateDao();
         Long deviceId = DBHelper.getDevice(mGBDevice, session).getId();
-        QueryBuilder<CalendarSyncState> qb = session.getCalendarSyncStateDao().queryBuilder();
 
+        // the stored states, sorted by calendar id so that they can be looked up by binary search
+        List<CalendarSyncState> states = dao.queryBuilder()
+                .where(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId))
+                .orderAsc(CalendarSyncStateDao.Properties.CalendarEntryId)
+                .list();
+        long[] syncedIds = new long[states.size()];
+        for (int i = 0; i < syncedIds.length; i++) {
+            syncedIds[i] = states.get(i).getCalendarEntryId();
+        }
+        boolean[] stillExists = new boolean[syncedIds.length];
+
+        final List<CalendarSyncState> toInsert = new ArrayList<>();
+        final List<CalendarSyncState> toUpdate = new ArrayList<>();
+        final List<CalendarSyncState> toDelete = new ArrayList<>();
 
         for (CalendarEvents.CalendarEvent e : eventList) {
             long id = e.getId();
-            eventTable.put(id, e);
-            if (!eventState.containsKey(e.getId())) {
-                qb = session.getCalendarSyncStateDao().queryBuilder();
-
-                CalendarSyncState calendarSyncState = qb.where(qb.and(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId), CalendarSyncStateDao.Properties.CalendarEntryId.eq(id)))
-                        .build().unique();
-                if (calendarSyncState == null) {
-                    eventState.put(id, new EventSyncState(e, EventState.NOT_SYNCED));
-                    LOG.info("event id=" + id + " is yet unknown to device id=" + deviceId);
-                } else if (calendarSyncState.getHash() == e.hashCode()) {
-                    eventState.put(id, new EventSyncState(e, EventState.SYNCED));
-                    LOG.info("event id=" + id + " is up to date on device id=" + deviceId);
-                }
-                else {
-                    eventState.put(id, new EventSyncState(e, EventState.NEEDS_UPDATE));
-                    LOG.info("event id=" + id + " is not up to date on device id=" + deviceId);
-                }
+            int hash = e.hashCode();
+            int index = Arrays.binarySearch(syncedIds, id);
+            if (index < 0) {
+                LOG.info("event id=" + id + " is yet unknown to device id=" + deviceId);
+                deviceService.onAddCalendarEvent(createEventSpec(e));
+                toInsert.add(new CalendarSyncState(null, deviceId, id, hash));
+                continue;
+            }
+            if (stillExists[index]) {
+                // duplicate instance of the same event in the list
+                continue;
+            }
+            stillExists[index] = true;
+            CalendarSyncState state = states.get(index);
+            if (state.getHash() != hash) {
+                LOG.info("event id=" + id + " is not up to date on device id=" + deviceId);
+                deviceService.onDeleteCalendarEvent(CalendarEventSpec.TYPE_UNKNOWN, id);
+                deviceService.onAddCalendarEvent(createEventSpec(e));
+                state.setHash(hash);
+                toUpdate.add(state);
             }
         }
 
-        // add all missing calendar ids on the device to sync status (so that they are deleted later)
-        List<CalendarSyncState> CalendarSyncStateList = qb.where(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId)).build().list();
-        for (CalendarSyncState CalendarSyncState : CalendarSyncStateList) {
-            if (!eventState.containsKey(CalendarSyncState.getCalendarEntryId())) {
-                eventState.put(CalendarSyncState.getCalendarEntryId(), new EventSyncState(null, EventState.NEEDS_DELETE));
-                LOG.info("insert null event for orphanded calendar id=" + CalendarSyncState.getCalendarEntryId() + " for device=" + mGBDevice.getName());
+        for (int i = 0; i < syncedIds.length; i++) {
+            if (!stillExists[i]) {
+                LOG.info("deleting orphaned calendar id=" + syncedIds[i] + " for device=" + mGBDevice.getName());
+                deviceService.onDeleteCalendarEvent(CalendarEventSpec.TYPE_UNKNOWN, syncedIds[i]);
+                toDelete.add(states.get(i));
             }
         }
 
-        Enumeration<Long> ids = eventState.keys();
-        while (ids.hasMoreElements()) {
-            qb = session.getCalendarSyncStateDao().queryBuilder();
-            Long i = ids.nextElement();
-            EventSyncState es = eventState.get(i);
-            if (eventTable.containsKey(i)) {
-                if (es.getState() == EventState.SYNCED) {
-                    if (!es.getEvent().equals(eventTable.get(i))) {
-                        eventState.put(i, new EventSyncState(eventTable.get(i), EventState.NEEDS_UPDATE));
-                    }
-                }
-            } else {
-                if (es.getState() == EventState.NOT_SYNCED) {
-                    // delete for current device only
-                    qb.where(qb.and(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId), CalendarSyncStateDao.Properties.CalendarEntryId.eq(i)))
-                            .buildDelete().executeDeleteWithoutDetachingEntities();
-                    eventState.remove(i);
-                } else {
-                    es.setState(EventState.NEEDS_DELETE);
-                    eventState.put(i, es);
-                }
-            }
-            updateEvents(deviceId, session);
+        if (toInsert.isEmpty() && toUpdate.isEmpty() && toDelete.isEmpty()) {
+            LOG.info("Calendar is up to date on device id=" + deviceId);
+            return;
         }
+        LOG.info("Calendar sync: " + toInsert.size() + " added, " + toUpdate.size() + " updated, " + toDelete.size() + " deleted");
+        session.runInTx(new Runnable() {
+            @Override
+            public void run() {
+                dao.deleteInTx(toDelete);
+                dao.updateInTx(toUpdate);
+                dao.insertOrReplaceInTx(toInsert);
+            }
+        });
     }
 
-    private void updateEvents(Long deviceId, DaoSession session) {
-        Enumeration<Long> ids = eventState.keys();
-        while (ids.hasMoreElements()) {
-            Long i = ids.nextElement();
-            EventSyncState es = eventState.get(i);
-            int syncState = es.getState();
-            if (syncState == EventState.NOT_SYNCED || syncState == EventState.NEEDS_UPDATE) {
-                CalendarEvents.CalendarEvent calendarEvent = es.getEvent();
-                CalendarEventSpec calendarEventSpec = new CalendarEventSpec();
-                calendarEventSpec.id = i;
-                calendarEventSpec.title = calendarEvent.getTitle();
-                calendarEventSpec.allDay = calendarEvent.isAllDay();
-                calendarEventSpec.timestamp = calendarEvent.getBeginSeconds();
-                calendarEventSpec.durationInSeconds = calendarEvent.getDurationSeconds(); //FIXME: leads to problems right now
-                if (calendarEvent.isAllDay()) {
-                    //force the all day events to begin at midnight and last a whole day
-                    Calendar c = GregorianCalendar.getInstance();
-                    c.setTimeInMillis(calendarEvent.getBegin());
-                    c.set(Calendar.HOUR, 0);
-                    calendarEventSpec.timestamp = (int) (c.getTimeInMillis() / 1000);
-                    calendarEventSpec.durationInSeconds = 24 * 60 * 60;
-                }
-                calendarEventSpec.description = calendarEvent.getDescription();
-                calendarEventSpec.location = calendarEvent.getLocation();
-                calendarEventSpec.type = CalendarEventSpec.TYPE_UNKNOWN;
-                if (syncState == EventState.NEEDS_UPDATE) {
-                    GBApplication.deviceService().onDeleteCalendarEvent(CalendarEventSpec.TYPE_UNKNOWN, i);
-                }
-                GBApplication.deviceService().onAddCalendarEvent(calendarEventSpec);
-                es.setState(EventState.SYNCED);
-                eventState.put(i, es);
-                // update db
-                session.insertOrReplace(new CalendarSyncState(null, deviceId, i, es.event.hashCode()));
-            } else if (syncState == EventState.NEEDS_DELETE) {
-                GBApplication.deviceService().onDeleteCalendarEvent(CalendarEventSpec.TYPE_UNKNOWN, i);
-                eventState.remove(i);
-                // delete from db for current device only
-                QueryBuilder<CalendarSyncState> qb = session.getCalendarSyncStateDao().queryBuilder();
-                qb.where(qb.and(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId), CalendarSyncStateDao.Properties.CalendarEntryId.eq(i)))
-                        .buildDelete().executeDeleteWithoutDetachingEntities();
-            }
+    private CalendarEventSpec createEventSpec(CalendarEvents.CalendarEvent calendarEvent) {
+        CalendarEventSpec calendarEventSpec = new CalendarEventSpec();
+        calendarEventSpec.id = calendarEvent.getId();
+        calendarEventSpec.title = calendarEvent.getTitle();
+        calendarEventSpec.allDay = calendarEvent.isAllDay();
+        calendarEventSpec.timestamp = calendarEvent.getBeginSeconds();
+        calendarEventSpec.durationInSeconds = calendarEvent.getDurationSeconds(); //FIXME: leads to problems right now
+        if (calendarEvent.isAllDay()) {
+            //force the all day events to begin at midnight and last a whole day
+            Calendar c = GregorianCalendar.getInstance();
+            c.setTimeInMillis(calendarEvent.getBegin());
+            c.set(Calendar.HOUR, 0);
+            calendarEventSpec.timestamp = (int) (c.getTimeInMillis() / 1000);
+            calendarEventSpec.durationInSeconds = 24 * 60 * 60;
         }
+        calendarEventSpec.description = calendarEvent.getDescription();
+        calendarEventSpec.location = calendarEvent.getLocation();
+        calendarEventSpec.type = CalendarEventSpec.TYPE_UNKNOWN;
+        return calendarEventSpec;
     }
 }
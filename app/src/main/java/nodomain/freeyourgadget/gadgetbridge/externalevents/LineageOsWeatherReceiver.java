@@ -39,6 +39,7 @@ import lineageos.weather.WeatherLocation;
 import lineageos.weather.util.WeatherUtils;
 import nodomain.freeyourgadget.gadgetbridge.BuildConfig;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.Weather;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
@@ -180,7 +181,9 @@ public class LineageOsWeatherReceiver extends BroadcastReceiver implements Linea
                 weatherSpec.forecasts.add(gbForecast);
             }
             Weather.getInstance().setWeatherSpec(weatherSpec);
-            GBApplication.deviceService().onSendWeather(weatherSpec);
+            for (GBDevice device : GBApplication.app().getDeviceManager().getInitializedDevices()) {
+                GBApplication.deviceService().forDevice(device).onSendWeather(weatherSpec);
+            }
         } else {
             LOG.info("request has returned null for WeatherInfo");
         }
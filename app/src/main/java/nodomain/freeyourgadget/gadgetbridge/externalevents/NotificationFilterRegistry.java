@@ -0,0 +1,192 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.externalevents;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.NotificationFilter;
+import nodomain.freeyourgadget.gadgetbridge.entities.NotificationFilterEntry;
+import nodomain.freeyourgadget.gadgetbridge.util.AhoCorasick;
+
+import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_MODE_BLACKLIST;
+import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_MODE_WHITELIST;
+import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_SUBMODE_ALL;
+
+/**
+ * Keeps all notification filters in memory, so that filtering a notification does not need
+ * the database. The filters are loaded when they are needed for the first time and must be
+ * invalidated whenever they are changed in the database.
+ */
+public class NotificationFilterRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationFilterRegistry.class);
+
+    private static final Object lock = new Object();
+    private static Map<String, CompiledFilter> filters;
+    private static int generation;
+
+    /**
+     * Returns the filter for the given app, or null if there is none.
+     */
+    @Nullable
+    public static CompiledFilter getFilter(String packageName) {
+        Map<String, CompiledFilter> currentFilters;
+        int loadGeneration;
+        synchronized (lock) {
+            currentFilters = filters;
+            loadGeneration = generation;
+        }
+        if (currentFilters == null) {
+            // loaded without holding the lock, invalidate() may be called while holding the database
+            currentFilters = loadFilters();
+            if (currentFilters == null) {
+                // not cached, so that the next notification tries again
+                return null;
+            }
+            synchronized (lock) {
+                if (generation == loadGeneration) {
+                    filters = currentFilters;
+                }
+            }
+        }
+        return currentFilters.get(packageName.toLowerCase());
+    }
+
+    /**
+     * Discards the loaded filters, to be called after they were changed in the database.
+     */
+    public static void invalidate() {
+        synchronized (lock) {
+            filters = null;
+            generation++;
+        }
+    }
+
+    /**
+     * @return the filters by lower case package name, or null if they could not be loaded
+     */
+    @Nullable
+    private static Map<String, CompiledFilter> loadFilters() {
+        long start = System.currentTimeMillis();
+        try (DBHandler db = GBApplication.acquireReadOnlyDB()) {
+            DaoSession session = db.getDaoSession();
+            Map<Long, List<String>> wordsByFilter = new HashMap<>();
+            for (NotificationFilterEntry entry : session.getNotificationFilterEntryDao().loadAll()) {
+                List<String> words = wordsByFilter.get(entry.getNotificationFilterId());
+                if (words == null) {
+                    words = new ArrayList<>();
+                    wordsByFilter.put(entry.getNotificationFilterId(), words);
+                }
+                words.add(entry.getNotificationFilterContent());
+            }
+
+            Map<String, CompiledFilter> result = new HashMap<>();
+            for (NotificationFilter filter : session.getNotificationFilterDao().loadAll()) {
+                List<String> words = wordsByFilter.get(filter.getId());
+                if (words == null) {
+                    words = Collections.emptyList();
+                }
+                result.put(filter.getAppIdentifier().toLowerCase(),
+                        new CompiledFilter(filter.getNotificationFilterMode(), filter.getNotificationFilterSubMode(), words));
+            }
+            LOG.debug("Loaded " + result.size() + " notification filters in " + (System.currentTimeMillis() - start) + "ms");
+            return result;
+        } catch (Exception e) {
+            LOG.error("Could not load notification filters.", e);
+            return null;
+        }
+    }
+
+    /**
+     * A notification filter with its words compiled into a single automaton,
+     * so that every mode needs a single pass over the notification body.
+     */
+    public static class CompiledFilter {
+        private final int mode;
+        private final int subMode;
+        private final List<String> words;
+        private final AhoCorasick matcher;
+
+        public CompiledFilter(int mode, int subMode, @NonNull List<String> words) {
+            this.mode = mode;
+            this.subMode = subMode;
+            this.words = words;
+            this.matcher = new AhoCorasick(words);
+        }
+
+        /**
+         * Returns whether a notification with the given body should be processed further.
+         */
+        public boolean shouldContinue(@NonNull String body) {
+            LOG.debug("Mode: '{}' Submode: '{}' WordsList: '{}'", mode, subMode, words);
+
+            boolean allMode = subMode == NOTIFICATION_FILTER_SUBMODE_ALL;
+
+            switch (mode) {
+                case NOTIFICATION_FILTER_MODE_BLACKLIST:
+                    if (allMode) {
+                        if (!matcher.containsAll(body)) {
+                            LOG.info("Not every word was found, blacklist has no effect, processing continues.");
+                            return true;
+                        }
+                        LOG.info("Every word was found, blacklist has effect, processing stops.");
+                        return false;
+                    } else {
+                        boolean containsAny = matcher.containsAny(body);
+                        if (!containsAny) {
+                            LOG.info("No matching word was found, blacklist has no effect, processing continues.");
+                        } else {
+                            LOG.info("At least one matching word was found, blacklist has effect, processing stops.");
+                        }
+                        return !containsAny;
+                    }
+
+                case NOTIFICATION_FILTER_MODE_WHITELIST:
+                    if (allMode) {
+                        if (!matcher.containsAll(body)) {
+                            LOG.info("Not every word was found, whitelist has no effect, processing stops.");
+                            return false;
+                        }
+                        LOG.info("Every word was found, whitelist has effect, processing continues.");
+                        return true;
+                    } else {
+                        boolean containsAny = matcher.containsAny(body);
+                        if (containsAny) {
+                            LOG.info("At least one matching word was found, whitelist has effect, processing continues.");
+                        } else {
+                            LOG.info("No matching word was found, whitelist has no effect, processing stops.");
+                        }
+                        return containsAny;
+                    }
+
+                default:
+                    return true;
+            }
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.Weather;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
 
@@ -137,7 +138,9 @@ public class OmniJawsObserver extends ContentObserver {
                 }
 
                 Weather.getInstance().setWeatherSpec(weatherSpec);
-                GBApplication.deviceService().onSendWeather(weatherSpec);
+                for (GBDevice device : GBApplication.app().getDeviceManager().getInitializedDevices()) {
+                    GBApplication.deviceService().forDevice(device).onSendWeather(weatherSpec);
+                }
 
             } finally {
                 c.close();
@@ -24,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.Weather;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
 import ru.gelin.android.weather.notification.ParcelableWeather2;
@@ -54,7 +55,9 @@ public class WeatherNotificationReceiver extends BroadcastReceiver {
             LOG.info("weather in " + weatherSpec.location + " is " + weatherSpec.currentCondition + " (" + (weatherSpec.currentTemp - 273) + "°C)");
 
             Weather.getInstance().setWeatherSpec(weatherSpec);
-            GBApplication.deviceService().onSendWeather(weatherSpec);
+            for (GBDevice device : GBApplication.app().getDeviceManager().getInitializedDevices()) {
+                GBApplication.deviceService().forDevice(device).onSendWeather(weatherSpec);
+            }
         }
     }
 }
\ No newline at end of file
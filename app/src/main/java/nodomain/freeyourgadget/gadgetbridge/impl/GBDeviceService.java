@@ -43,8 +43,7 @@ import nodomain.freeyourgadget.gadgetbridge.model.MusicStateSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
 import nodomain.freeyourgadget.gadgetbridge.service.DeviceCommunicationService;
-import nodomain.freeyourgadget.gadgetbridge.util.LanguageUtils;
-import nodomain.freeyourgadget.gadgetbridge.util.RtlUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.TextSanitizer;
 
 import static nodomain.freeyourgadget.gadgetbridge.util.JavaExtensions.coalesce;
 
@@ -52,6 +51,8 @@ import static nodomain.freeyourgadget.gadgetbridge.util.JavaExtensions.coalesce;
 public class GBDeviceService implements DeviceService {
     protected final Context mContext;
     private final Class<? extends Service> mServiceClass;
+    @Nullable
+    private final String mDeviceAddress;
     private final String[] transliterationExtras = new String[]{
             EXTRA_NOTIFICATION_PHONENUMBER,
             EXTRA_NOTIFICATION_SENDER,
@@ -69,28 +70,35 @@ public class GBDeviceService implements DeviceService {
     };
 
     public GBDeviceService(Context context) {
+        this(context, null);
+    }
+
+    protected GBDeviceService(Context context, @Nullable String deviceAddress) {
         mContext = context;
         mServiceClass = DeviceCommunicationService.class;
+        mDeviceAddress = deviceAddress;
     }
 
     protected Intent createIntent() {
-        return new Intent(mContext, mServiceClass);
+        Intent intent = new Intent(mContext, mServiceClass);
+        if (mDeviceAddress != null) {
+            intent.putExtra(EXTRA_DEVICE_ADDRESS, mDeviceAddress);
+        }
+        return intent;
     }
 
-    protected void invokeService(Intent intent) {
-        if (LanguageUtils.transliterate()) {
-            for (String extra : transliterationExtras) {
-                if (intent.hasExtra(extra)) {
-                    intent.putExtra(extra, LanguageUtils.transliterate(intent.getStringExtra(extra)));
-                }
-            }
-        }
+    @Override
+    public DeviceService forDevice(GBDevice device) {
+        return new GBDeviceService(mContext, device.getAddress());
+    }
 
-        if (RtlUtils.rtlSupport()) {
-            for (String extra : transliterationExtras) {
-                if (intent.hasExtra(extra)) {
-                    intent.putExtra(extra, RtlUtils.fixRtl(intent.getStringExtra(extra)));
-                }
+    protected void invokeService(Intent intent) {
+        // before the device's customStringFilter(), which may map chars to ones that
+        // the transliteration would destroy
+        TextSanitizer sanitizer = TextSanitizer.getInstance();
+        for (String extra : transliterationExtras) {
+            if (intent.hasExtra(extra)) {
+                intent.putExtra(extra, sanitizer.sanitize(intent.getStringExtra(extra)));
             }
         }
 
@@ -131,6 +139,15 @@ public class GBDeviceService implements DeviceService {
         invokeService(intent);
     }
 
+    @Override
+    public void disconnect(@Nullable GBDevice device) {
+        Intent intent = createIntent().setAction(ACTION_DISCONNECT);
+        if (device != null) {
+            intent.putExtra(EXTRA_DEVICE_ADDRESS, device.getAddress());
+        }
+        invokeService(intent);
+    }
+
     @Override
     public void quit() {
         Intent intent = createIntent();
@@ -0,0 +1,198 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+
+/**
+ * The samples of a time range, in ascending timestamp order, stored column by column in
+ * primitive arrays. The activity kind and intensity are normalized once when the samples
+ * are added, so the analysis and charting code can iterate over them without creating
+ * entities and without calling into the SampleProvider for every access.
+ */
+public class ActivitySampleSeries {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int size;
+    private int[] timestamps;
+    private short[] kinds;
+    private int[] rawKinds;
+    private float[] intensities;
+    private int[] steps;
+    private short[] heartRates;
+
+    public ActivitySampleSeries() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public ActivitySampleSeries(int capacity) {
+        capacity = Math.max(capacity, 1);
+        timestamps = new int[capacity];
+        kinds = new short[capacity];
+        rawKinds = new int[capacity];
+        intensities = new float[capacity];
+        steps = new int[capacity];
+        heartRates = new short[capacity];
+    }
+
+    /**
+     * Returns all samples of the given range, read directly from the database if the
+     * provider supports it.
+     */
+    public static ActivitySampleSeries query(SampleProvider<?> provider, int timestamp_from, int timestamp_to) {
+        if (provider instanceof AbstractSampleProvider) {
+            return ((AbstractSampleProvider<?>) provider).getAllActivitySampleSeries(timestamp_from, timestamp_to);
+        }
+        return fromSamples(provider.getAllActivitySamples(timestamp_from, timestamp_to));
+    }
+
+    public static ActivitySampleSeries fromSamples(List<? extends ActivitySample> samples) {
+        ActivitySampleSeries series = new ActivitySampleSeries(samples.size());
+        for (ActivitySample sample : samples) {
+            series.add(sample);
+        }
+        return series;
+    }
+
+    public void add(ActivitySample sample) {
+        add(sample.getTimestamp(), sample.getKind(), sample.getRawKind(), sample.getIntensity(), sample.getSteps(), sample.getHeartRate());
+    }
+
+    /**
+     * Appends a sample, which must not be older than the last one.
+     *
+     * @param kind the normalized activity kind
+     * @param intensity the normalized intensity
+     */
+    public void add(int timestamp, int kind, int rawKind, float intensity, int sampleSteps, int heartRate) {
+        ensureCapacity(size + 1);
+        set(size++, timestamp, kind, rawKind, intensity, sampleSteps, heartRate);
+    }
+
+    /**
+     * Inserts a sample before all other samples.
+     */
+    public void addFirst(int timestamp, int kind, int rawKind, float intensity, int sampleSteps, int heartRate) {
+        ensureCapacity(size + 1);
+        System.arraycopy(timestamps, 0, timestamps, 1, size);
+        System.arraycopy(kinds, 0, kinds, 1, size);
+        System.arraycopy(rawKinds, 0, rawKinds, 1, size);
+        System.arraycopy(intensities, 0, intensities, 1, size);
+        System.arraycopy(steps, 0, steps, 1, size);
+        System.arraycopy(heartRates, 0, heartRates, 1, size);
+        size++;
+        set(0, timestamp, kind, rawKind, intensity, sampleSteps, heartRate);
+    }
+
+    private void set(int index, int timestamp, int kind, int rawKind, float intensity, int sampleSteps, int heartRate) {
+        timestamps[index] = timestamp;
+        kinds[index] = (short) kind;
+        rawKinds[index] = rawKind;
+        intensities[index] = intensity;
+        steps[index] = sampleSteps;
+        heartRates[index] = (short) heartRate;
+    }
+
+    /**
+     * Replaces the kind of the sample at the given index, e.g. when post-processing samples.
+     */
+    public void setKind(int index, int kind, int rawKind) {
+        kinds[index] = (short) kind;
+        rawKinds[index] = rawKind;
+    }
+
+    /**
+     * Removes all samples outside the given range (both inclusive).
+     */
+    public void retainRange(int timestamp_from, int timestamp_to) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int timestamp = timestamps[i];
+            if (timestamp >= timestamp_from && timestamp <= timestamp_to) {
+                if (count != i) {
+                    set(count, timestamp, kinds[i], rawKinds[i], intensities[i], steps[i], heartRates[i]);
+                }
+                count++;
+            }
+        }
+        size = count;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= timestamps.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        kinds = Arrays.copyOf(kinds, newCapacity);
+        rawKinds = Arrays.copyOf(rawKinds, newCapacity);
+        intensities = Arrays.copyOf(intensities, newCapacity);
+        steps = Arrays.copyOf(steps, newCapacity);
+        heartRates = Arrays.copyOf(heartRates, newCapacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    /**
+     * @see ActivitySample#getKind()
+     */
+    public int getKind(int index) {
+        return kinds[index];
+    }
+
+    /**
+     * @see ActivitySample#getRawKind()
+     */
+    public int getRawKind(int index) {
+        return rawKinds[index];
+    }
+
+    /**
+     * @see ActivitySample#getIntensity()
+     */
+    public float getIntensity(int index) {
+        return intensities[index];
+    }
+
+    /**
+     * @see ActivitySample#getSteps()
+     */
+    public int getSteps(int index) {
+        return steps[index];
+    }
+
+    /**
+     * @see ActivitySample#getHeartRate()
+     */
+    public int getHeartRate(int index) {
+        return heartRates[index];
+    }
+}
@@ -0,0 +1,269 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.model;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import androidx.annotation.Nullable;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+
+/**
+ * The points of an activity track, in ascending time order, stored column by column in
+ * primitive arrays. Coordinates are fixed-point integers: longitude and latitude in
+ * millionths of a degree (see {@link GPSCoordinate#GPS_DECIMAL_DEGREES_SCALE}), the
+ * altitude in millimeters. Points that only carry e.g. heart rate data have
+ * {@link #NO_LOCATION} as coordinates.
+ */
+public class ActivityTrackSeries {
+    public static final int NO_LOCATION = Integer.MIN_VALUE;
+    public static final int DEGREES_SCALE = GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE;
+    public static final int ALTITUDE_SCALE = 3;
+
+    private static final double DEGREES_FACTOR = 1000000.0;
+    private static final double ALTITUDE_FACTOR = 1000.0;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private String name;
+    private User user;
+    private Device device;
+
+    private int size;
+    private long[] times;
+    private int[] longitudes;
+    private int[] latitudes;
+    private int[] altitudes;
+    private int[] heartRates;
+    // only allocated when the first description is set
+    private String[] descriptions;
+
+    public ActivityTrackSeries() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public ActivityTrackSeries(int capacity) {
+        capacity = Math.max(capacity, 1);
+        times = new long[capacity];
+        longitudes = new int[capacity];
+        latitudes = new int[capacity];
+        altitudes = new int[capacity];
+        heartRates = new int[capacity];
+    }
+
+    public static ActivityTrackSeries fromTrack(ActivityTrack track) {
+        ActivityTrackSeries series = new ActivityTrackSeries(track.getTrackPoints().size());
+        series.setName(track.getName());
+        series.setUser(track.getUser());
+        series.setDevice(track.getDevice());
+        for (ActivityPoint point : track.getTrackPoints()) {
+            GPSCoordinate location = point.getLocation();
+            int index;
+            if (location != null) {
+                index = series.add(point.getTime().getTime(),
+                        toFixedDegrees(location.getLongitude()),
+                        toFixedDegrees(location.getLatitude()),
+                        toFixedAltitude(location.getAltitude()),
+                        point.getHeartRate());
+            } else {
+                index = series.add(point.getTime().getTime(), NO_LOCATION, NO_LOCATION, NO_LOCATION, point.getHeartRate());
+            }
+            if (point.getDescription() != null) {
+                series.setDescription(index, point.getDescription());
+            }
+        }
+        return series;
+    }
+
+    /**
+     * Creates an ActivityTrack with one ActivityPoint per point of this series.
+     */
+    public ActivityTrack toTrack() {
+        ActivityTrack track = new ActivityTrack();
+        track.setName(name);
+        track.setUser(user);
+        track.setDevice(device);
+        for (int i = 0; i < size; i++) {
+            ActivityPoint point = new ActivityPoint(new Date(times[i]));
+            if (hasLocation(i)) {
+                point.setLocation(new GPSCoordinate(toDegrees(longitudes[i]), toDegrees(latitudes[i]), toMeters(altitudes[i])));
+            }
+            point.setHeartRate(heartRates[i]);
+            point.setDescription(getDescription(i));
+            track.addTrackPoint(point);
+        }
+        return track;
+    }
+
+    /**
+     * Converts decimal degrees to millionths of a degree, rounding half up like
+     * {@link java.math.RoundingMode#HALF_UP}.
+     */
+    public static int toFixedDegrees(double degrees) {
+        return (int) roundHalfUp(degrees * DEGREES_FACTOR);
+    }
+
+    public static int toFixedAltitude(double meters) {
+        return (int) roundHalfUp(meters * ALTITUDE_FACTOR);
+    }
+
+    public static double toDegrees(int fixedDegrees) {
+        return fixedDegrees / DEGREES_FACTOR;
+    }
+
+    public static double toMeters(int fixedAltitude) {
+        return fixedAltitude / ALTITUDE_FACTOR;
+    }
+
+    private static long roundHalfUp(double value) {
+        return value < 0 ? -Math.round(-value) : Math.round(value);
+    }
+
+    /**
+     * Appends a point, which must not be older than the last one, and returns its index.
+     */
+    public int add(long timeMillis, int longitude, int latitude, int altitude, int heartRate) {
+        ensureCapacity(size + 1);
+        times[size] = timeMillis;
+        longitudes[size] = longitude;
+        latitudes[size] = latitude;
+        altitudes[size] = altitude;
+        heartRates[size] = heartRate;
+        return size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > times.length) {
+            int newCapacity = Math.max(capacity, times.length * 2);
+            times = Arrays.copyOf(times, newCapacity);
+            longitudes = Arrays.copyOf(longitudes, newCapacity);
+            latitudes = Arrays.copyOf(latitudes, newCapacity);
+            altitudes = Arrays.copyOf(altitudes, newCapacity);
+            heartRates = Arrays.copyOf(heartRates, newCapacity);
+            if (descriptions != null) {
+                descriptions = Arrays.copyOf(descriptions, newCapacity);
+            }
+        }
+    }
+
+    public void setTime(int index, long timeMillis) {
+        times[checkIndex(index)] = timeMillis;
+    }
+
+    public void setLocation(int index, int longitude, int latitude, int altitude) {
+        checkIndex(index);
+        longitudes[index] = longitude;
+        latitudes[index] = latitude;
+        altitudes[index] = altitude;
+    }
+
+    public void setHeartRate(int index, int heartRate) {
+        heartRates[checkIndex(index)] = heartRate;
+    }
+
+    public void setDescription(int index, @Nullable String description) {
+        checkIndex(index);
+        if (descriptions == null) {
+            if (description == null) {
+                return;
+            }
+            descriptions = new String[times.length];
+        }
+        descriptions[index] = description;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return index;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getTime(int index) {
+        return times[checkIndex(index)];
+    }
+
+    public boolean hasLocation(int index) {
+        return latitudes[checkIndex(index)] != NO_LOCATION;
+    }
+
+    /**
+     * Returns true if at least one point has a location, i.e. there is something to draw.
+     */
+    public boolean hasLocations() {
+        for (int i = 0; i < size; i++) {
+            if (latitudes[i] != NO_LOCATION) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getLongitude(int index) {
+        return longitudes[checkIndex(index)];
+    }
+
+    public int getLatitude(int index) {
+        return latitudes[checkIndex(index)];
+    }
+
+    public int getAltitude(int index) {
+        return altitudes[checkIndex(index)];
+    }
+
+    public int getHeartRate(int index) {
+        return heartRates[checkIndex(index)];
+    }
+
+    @Nullable
+    public String getDescription(int index) {
+        checkIndex(index);
+        return descriptions != null ? descriptions[index] : null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public void setUser(User user) {
+        this.user = user;
+    }
+
+    public Device getDevice() {
+        return device;
+    }
+
+    public void setDevice(Device device) {
+        this.device = device;
+    }
+}
@@ -26,7 +26,7 @@ import java.util.Calendar;
 import java.util.List;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
-import nodomain.freeyourgadget.gadgetbridge.activities.charts.ActivityAnalysis;
+import nodomain.freeyourgadget.gadgetbridge.database.ActivityRollups;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceCoordinator;
 import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
@@ -68,13 +68,12 @@ public class DailyTotals {
 
     public int[] getDailyTotalsForDevice(GBDevice device, Calendar day) {
 
-        try (DBHandler handler = GBApplication.acquireDB()) {
-            ActivityAnalysis analysis = new ActivityAnalysis();
+        try (DBHandler handler = GBApplication.acquireReadOnlyDB()) {
             ActivityAmounts amountsSteps;
             ActivityAmounts amountsSleep;
 
-            amountsSteps = analysis.calculateActivityAmounts(getSamplesOfDay(handler, day, 0, device));
-            amountsSleep = analysis.calculateActivityAmounts(getSamplesOfDay(handler, day, -12, device));
+            amountsSteps = getActivityAmountsOfDay(handler, day, 0, device);
+            amountsSleep = getActivityAmountsOfDay(handler, day, -12, device);
 
             int[] Sleep = getTotalsSleepForActivityAmounts(amountsSleep);
             int Steps = getTotalsStepsForActivityAmounts(amountsSteps);
@@ -114,7 +113,7 @@ public class DailyTotals {
     }
 
 
-    private List<? extends ActivitySample> getSamplesOfDay(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
+    private ActivityAmounts getActivityAmountsOfDay(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
         int startTs;
         int endTs;
 
@@ -127,12 +126,16 @@ public class DailyTotals {
         startTs = (int) (day.getTimeInMillis() / 1000);
         endTs = startTs + 24 * 60 * 60 - 1;
 
-        return getSamples(db, device, startTs, endTs);
+        return getActivityAmounts(db, device, startTs, endTs);
     }
 
 
-    protected List<? extends ActivitySample> getSamples(DBHandler db, GBDevice device, int tsFrom, int tsTo) {
-        return getAllSamples(db, device, tsFrom, tsTo);
+    /**
+     * Reads the completed hours from the activity rollups and only the remainder
+     * from the raw samples, see {@link ActivityRollups}.
+     */
+    protected ActivityAmounts getActivityAmounts(DBHandler db, GBDevice device, int tsFrom, int tsTo) {
+        return ActivityRollups.getActivityAmounts(getProvider(db, device), tsFrom, tsTo);
     }
 
 
@@ -140,10 +143,4 @@ public class DailyTotals {
         DeviceCoordinator coordinator = DeviceHelper.getInstance().getCoordinator(device);
         return coordinator.getSampleProvider(device, db.getDaoSession());
     }
-
-
-    protected List<? extends ActivitySample> getAllSamples(DBHandler db, GBDevice device, int tsFrom, int tsTo) {
-        SampleProvider<? extends ActivitySample> provider = getProvider(db, device);
-        return provider.getAllActivitySamples(tsFrom, tsTo);
-    }
 }
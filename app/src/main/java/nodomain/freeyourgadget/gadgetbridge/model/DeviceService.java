@@ -105,6 +105,11 @@ public interface DeviceService extends EventHandler {
     String EXTRA_CONFIG = "config";
     String EXTRA_ALARMS = "alarms";
     String EXTRA_CONNECT_FIRST_TIME = "connect_first_time";
+    /**
+     * The address of the device an action is meant for. Actions without this extra are
+     * delivered to all connected devices.
+     */
+    String EXTRA_DEVICE_ADDRESS = "device_address";
     String EXTRA_BOOLEAN_ENABLE = "enable_realtime_steps";
     String EXTRA_INTERVAL_SECONDS = "interval_seconds";
     String EXTRA_WEATHER = "weather";
@@ -143,6 +148,8 @@ public interface DeviceService extends EventHandler {
 
     void disconnect();
 
+    void disconnect(@Nullable GBDevice device);
+
     void quit();
 
     /**
@@ -153,4 +160,10 @@ public interface DeviceService extends EventHandler {
      * from the service will be reported.
      */
     void requestDeviceInfo();
+
+    /**
+     * Returns a DeviceService that delivers all actions only to the given device,
+     * instead of all connected devices.
+     */
+    DeviceService forDevice(GBDevice device);
 }
@@ -36,7 +36,6 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.widget.Toast;
 
-import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
@@ -44,6 +43,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
@@ -76,10 +83,10 @@ import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
 import nodomain.freeyourgadget.gadgetbridge.service.receivers.AutoConnectIntervalReceiver;
 import nodomain.freeyourgadget.gadgetbridge.service.receivers.GBAutoFetchReceiver;
 import nodomain.freeyourgadget.gadgetbridge.util.DeviceHelper;
-import nodomain.freeyourgadget.gadgetbridge.util.EmojiConverter;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+import nodomain.freeyourgadget.gadgetbridge.util.TextSanitizer;
 
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.ACTION_ADD_CALENDAREVENT;
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.ACTION_APP_CONFIGURE;
@@ -137,6 +144,7 @@ import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CAN
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CANNEDMESSAGES_TYPE;
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CONFIG;
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CONNECT_FIRST_TIME;
+import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_DEVICE_ADDRESS;
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_FIND_START;
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_FM_FREQUENCY;
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_INTERVAL_SECONDS;
@@ -172,15 +180,34 @@ import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_WEA
 
 public class DeviceCommunicationService extends Service implements SharedPreferences.OnSharedPreferenceChangeListener {
     private static final Logger LOG = LoggerFactory.getLogger(DeviceCommunicationService.class);
+
+    /**
+     * The actions that are sent to all connected devices when the intent has no
+     * EXTRA_DEVICE_ADDRESS. All other actions must be addressed to a device.
+     */
+    private static final Set<String> BROADCAST_ACTIONS = new HashSet<>(Arrays.asList(
+            ACTION_NOTIFICATION,
+            ACTION_DELETE_NOTIFICATION,
+            ACTION_CALLSTATE,
+            ACTION_SETMUSICINFO,
+            ACTION_SETMUSICSTATE,
+            ACTION_SETTIME,
+            ACTION_REQUEST_DEVICEINFO, // only reports the state of the devices
+            ACTION_DISCONNECT
+    ));
+
     @SuppressLint("StaticFieldLeak") // only used for test cases
     private static DeviceSupportFactory DEVICE_SUPPORT_FACTORY = null;
 
     private boolean mStarted = false;
 
     private DeviceSupportFactory mFactory;
-    private GBDevice mGBDevice = null;
-    private DeviceSupport mDeviceSupport;
-    private DeviceCoordinator mCoordinator = null;
+    /**
+     * The devices this service is connected or connecting to, by address.
+     * Only accessed while holding #mLanesLock.
+     */
+    private final Map<String, DeviceLane> mLanes = new LinkedHashMap<>();
+    private final Object mLanesLock = new Object();
 
     private PhoneCallReceiver mPhoneCallReceiver = null;
     private SMSReceiver mSMSReceiver = null;
@@ -194,7 +221,7 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
     private AutoConnectIntervalReceiver mAutoConnectInvervalReceiver= null;
 
     private AlarmReceiver mAlarmReceiver = null;
-    private CalendarReceiver mCalendarReceiver = null;
+    private final Map<String, CalendarReceiver> mCalendarReceivers = new HashMap<>();
     private CMWeatherReceiver mCMWeatherReceiver = null;
     private LineageOsWeatherReceiver mLineageOsWeatherReceiver = null;
     private OmniJawsObserver mOmniJawsObserver = null;
@@ -231,13 +258,14 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
             String action = intent.getAction();
             if (GBDevice.ACTION_DEVICE_CHANGED.equals(action)) {
                 GBDevice device = intent.getParcelableExtra(GBDevice.EXTRA_DEVICE);
-                if (mGBDevice != null && mGBDevice.equals(device)) {
-                    mGBDevice = device;
-                    mCoordinator = DeviceHelper.getInstance().getCoordinator(device);
-                    boolean enableReceivers = mDeviceSupport != null && (mDeviceSupport.useAutoConnect() || mGBDevice.isInitialized());
-                    setReceiversEnableState(enableReceivers, mGBDevice.isInitialized(), mCoordinator);
-                } else {
-                    LOG.error("Got ACTION_DEVICE_CHANGED from unexpected device: " + device);
+                synchronized (mLanesLock) {
+                    DeviceLane lane = device != null ? mLanes.get(device.getAddress()) : null;
+                    if (lane != null && lane.getDevice().equals(device)) {
+                        lane.setDevice(device);
+                        updateReceiversEnableState();
+                    } else {
+                        LOG.error("Got ACTION_DEVICE_CHANGED from unexpected device: " + device);
+                    }
                 }
             }
         }
@@ -263,14 +291,22 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
     }
 
     @Override
-    public synchronized int onStartCommand(Intent intent, int flags, int startId) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        synchronized (mLanesLock) {
+            return handleStartCommand(intent);
+        }
+    }
 
+    /**
+     * Called while holding #mLanesLock.
+     */
+    private int handleStartCommand(Intent intent) {
         if (intent == null) {
             LOG.info("no intent");
             return START_NOT_STICKY;
         }
 
-        String action = intent.getAction();
+        final String action = intent.getAction();
         boolean firstTime = intent.getBooleanExtra(EXTRA_CONNECT_FIRST_TIME, false);
 
         if (action == null) {
@@ -280,26 +316,13 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
 
         LOG.debug("Service startcommand: " + action);
 
-        if (!action.equals(ACTION_START) && !action.equals(ACTION_CONNECT)) {
-            if (!mStarted) {
-                // using the service before issuing ACTION_START
-                LOG.info("Must start service with " + ACTION_START + " or " + ACTION_CONNECT + " before using it: " + action);
-                return START_NOT_STICKY;
-            }
-
-            if (mDeviceSupport == null || (!isInitialized() && !action.equals(ACTION_DISCONNECT) && (!mDeviceSupport.useAutoConnect() || isConnected()))) {
-                // trying to send notification without valid Bluetooth connection
-                if (mGBDevice != null) {
-                    // at least send back the current device state
-                    mGBDevice.sendDeviceUpdateIntent(this);
-                }
-                return START_STICKY;
-            }
+        if (!action.equals(ACTION_START) && !action.equals(ACTION_CONNECT) && !mStarted) {
+            // using the service before issuing ACTION_START
+            LOG.info("Must start service with " + ACTION_START + " or " + ACTION_CONNECT + " before using it: " + action);
+            return START_NOT_STICKY;
         }
 
-        // when we get past this, we should have valid mDeviceSupport and mGBDevice instances
-
-        Prefs prefs = getPrefs();
+        final Prefs prefs = getPrefs();
         switch (action) {
             case ACTION_START:
                 start();
@@ -325,71 +348,138 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                     autoReconnect = getGBPrefs().getAutoReconnect();
                 }
 
-                if (gbDevice != null && !isConnecting() && !isConnected()) {
-                    setDeviceSupport(null);
+                if (gbDevice == null) {
+                    break;
+                }
+                DeviceLane lane = mLanes.get(gbDevice.getAddress());
+                if (lane == null || (!lane.isConnecting() && !lane.isConnected())) {
                     try {
                         DeviceSupport deviceSupport = mFactory.createDeviceSupport(gbDevice);
                         if (deviceSupport != null) {
-                            setDeviceSupport(deviceSupport);
-                            if (firstTime) {
-                                deviceSupport.connectFirstTime();
-                            } else {
-                                deviceSupport.setAutoReconnect(autoReconnect);
-                                deviceSupport.connect();
+                            if (lane == null) {
+                                lane = new DeviceLane(gbDevice);
+                                mLanes.put(gbDevice.getAddress(), lane);
                             }
+                            // disposes the previous device support of this device, if any
+                            lane.connect(deviceSupport, firstTime, autoReconnect, this);
                         } else {
                             GB.toast(this, getString(R.string.cannot_connect, "Can't create device support"), Toast.LENGTH_SHORT, GB.ERROR);
                         }
                     } catch (Exception e) {
                         GB.toast(this, getString(R.string.cannot_connect, e.getMessage()), Toast.LENGTH_SHORT, GB.ERROR, e);
-                        setDeviceSupport(null);
+                        removeLane(gbDevice.getAddress());
                     }
-                } else if (mGBDevice != null) {
+                } else {
                     // send an update at least
-                    mGBDevice.sendDeviceUpdateIntent(this);
+                    lane.getDevice().sendDeviceUpdateIntent(this);
+                }
+                break;
+            case ACTION_DISCONNECT:
+                for (DeviceLane target : getTargetLanes(intent)) {
+                    removeLane(target.getAddress());
                 }
                 break;
             default:
-                if (mDeviceSupport == null || mGBDevice == null) {
-                    LOG.warn("device support:" + mDeviceSupport + ", device: " + mGBDevice + ", aborting");
-                } else {
-                    handleAction(intent, action, prefs);
+                for (final DeviceLane target : getTargetLanes(intent)) {
+                    if (!target.isReady()) {
+                        // trying to send notification without valid Bluetooth connection,
+                        // at least send back the current device state
+                        target.getDevice().sendDeviceUpdateIntent(this);
+                        continue;
+                    }
+                    final Intent command = intent;
+                    boolean posted = target.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            handleAction(command, action, prefs, target);
+                        }
+                    }, ACTION_CALLSTATE.equals(action));
+                    if (!posted) {
+                        LOG.warn(DeviceLane.MAX_PENDING_COMMANDS + " commands are pending for " + target.getAddress() + ", rejecting " + action);
+                    }
                 }
                 break;
         }
         return START_STICKY;
     }
 
+    /**
+     * Returns the lanes an intent is meant for: the device given by EXTRA_DEVICE_ADDRESS.
+     * Without an address, the {@link #BROADCAST_ACTIONS} are meant for all devices, the
+     * other actions only for the single connected device. They are rejected when several
+     * devices are connected, e.g. a firmware must never be installed on every device.
+     * Called while holding #mLanesLock.
+     */
+    private List<DeviceLane> getTargetLanes(Intent intent) {
+        String address = intent.getStringExtra(EXTRA_DEVICE_ADDRESS);
+        if (address == null) {
+            if (BROADCAST_ACTIONS.contains(intent.getAction()) || mLanes.size() <= 1) {
+                return new ArrayList<>(mLanes.values());
+            }
+            LOG.warn(intent.getAction() + " has no device address, but " + mLanes.size() + " devices are connected, ignoring it");
+            return Collections.emptyList();
+        }
+        DeviceLane lane = mLanes.get(address);
+        if (lane == null) {
+            LOG.info("Device " + address + " is not connected, ignoring " + intent.getAction());
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(lane);
+    }
+
+    /**
+     * Disposes the DeviceSupport of the given device, if any. Called while holding #mLanesLock.
+     */
+    private void removeLane(String address) {
+        DeviceLane lane = mLanes.remove(address);
+        if (lane != null) {
+            lane.dispose(this);
+        }
+        updateReceiversEnableState();
+    }
+
     /**
      * @param text original text
+     * @param deviceSupport the DeviceSupport the text is sent with, it may already have
+     *                      been removed from its lane
      * @return 'text' or a new String without non supported chars like emoticons, etc.
      */
-    private String sanitizeNotifText(String text) {
+    private String sanitizeNotifText(String text, DeviceSupport deviceSupport, DeviceCoordinator coordinator) {
         if (text == null || text.length() == 0)
             return text;
 
-        text = mDeviceSupport.customStringFilter(text);
+        // GBDeviceService transliterated the text already, except for the calendar event location
+        text = deviceSupport.customStringFilter(text);
 
-        if (!mCoordinator.supportsUnicodeEmojis()) {
-            return EmojiConverter.convertUnicodeEmojiToAscii(text, getApplicationContext());
+        if (!coordinator.supportsUnicodeEmojis()) {
+            return TextSanitizer.convertEmojiToAscii(text, getApplicationContext());
         }
 
         return text;
     }
 
-    private void handleAction(Intent intent, String action, Prefs prefs) {
+    /**
+     * Executed on the thread of the device lane.
+     */
+    private void handleAction(Intent intent, String action, Prefs prefs, DeviceLane lane) {
+        DeviceSupport deviceSupport = lane.getDeviceSupport();
+        if (deviceSupport == null) {
+            LOG.warn("device " + lane.getAddress() + " has been disconnected, aborting " + action);
+            return;
+        }
+        DeviceCoordinator coordinator = lane.getCoordinator();
         switch (action) {
             case ACTION_REQUEST_DEVICEINFO:
-                mGBDevice.sendDeviceUpdateIntent(this);
+                lane.getDevice().sendDeviceUpdateIntent(this);
                 break;
             case ACTION_NOTIFICATION: {
                 int desiredId = intent.getIntExtra(EXTRA_NOTIFICATION_ID, -1);
                 NotificationSpec notificationSpec = new NotificationSpec(desiredId);
                 notificationSpec.phoneNumber = intent.getStringExtra(EXTRA_NOTIFICATION_PHONENUMBER);
-                notificationSpec.sender = sanitizeNotifText(intent.getStringExtra(EXTRA_NOTIFICATION_SENDER));
-                notificationSpec.subject = sanitizeNotifText(intent.getStringExtra(EXTRA_NOTIFICATION_SUBJECT));
-                notificationSpec.title = sanitizeNotifText(intent.getStringExtra(EXTRA_NOTIFICATION_TITLE));
-                notificationSpec.body = sanitizeNotifText(intent.getStringExtra(EXTRA_NOTIFICATION_BODY));
+                notificationSpec.sender = sanitizeNotifText(intent.getStringExtra(EXTRA_NOTIFICATION_SENDER), deviceSupport, coordinator);
+                notificationSpec.subject = sanitizeNotifText(intent.getStringExtra(EXTRA_NOTIFICATION_SUBJECT), deviceSupport, coordinator);
+                notificationSpec.title = sanitizeNotifText(intent.getStringExtra(EXTRA_NOTIFICATION_TITLE), deviceSupport, coordinator);
+                notificationSpec.body = sanitizeNotifText(intent.getStringExtra(EXTRA_NOTIFICATION_BODY), deviceSupport, coordinator);
                 notificationSpec.sourceName = intent.getStringExtra(EXTRA_NOTIFICATION_SOURCENAME);
                 notificationSpec.type = (NotificationType) intent.getSerializableExtra(EXTRA_NOTIFICATION_TYPE);
                 notificationSpec.attachedActions = (ArrayList<NotificationSpec.Action>) intent.getSerializableExtra(EXTRA_NOTIFICATION_ACTIONS);
@@ -417,11 +507,11 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                     notificationSpec.cannedReplies = replies.toArray(new String[replies.size()]);
                 }
 
-                mDeviceSupport.onNotification(notificationSpec);
+                deviceSupport.onNotification(notificationSpec);
                 break;
             }
             case ACTION_DELETE_NOTIFICATION: {
-                mDeviceSupport.onDeleteNotification(intent.getIntExtra(EXTRA_NOTIFICATION_ID, -1));
+                deviceSupport.onDeleteNotification(intent.getIntExtra(EXTRA_NOTIFICATION_ID, -1));
                 break;
             }
             case ACTION_ADD_CALENDAREVENT: {
@@ -430,60 +520,48 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 calendarEventSpec.type = intent.getByteExtra(EXTRA_CALENDAREVENT_TYPE, (byte) -1);
                 calendarEventSpec.timestamp = intent.getIntExtra(EXTRA_CALENDAREVENT_TIMESTAMP, -1);
                 calendarEventSpec.durationInSeconds = intent.getIntExtra(EXTRA_CALENDAREVENT_DURATION, -1);
-                calendarEventSpec.title = sanitizeNotifText(intent.getStringExtra(EXTRA_CALENDAREVENT_TITLE));
-                calendarEventSpec.description = sanitizeNotifText(intent.getStringExtra(EXTRA_CALENDAREVENT_DESCRIPTION));
-                calendarEventSpec.location = sanitizeNotifText(intent.getStringExtra(EXTRA_CALENDAREVENT_LOCATION));
-                mDeviceSupport.onAddCalendarEvent(calendarEventSpec);
+                calendarEventSpec.title = sanitizeNotifText(intent.getStringExtra(EXTRA_CALENDAREVENT_TITLE), deviceSupport, coordinator);
+                calendarEventSpec.description = sanitizeNotifText(intent.getStringExtra(EXTRA_CALENDAREVENT_DESCRIPTION), deviceSupport, coordinator);
+                calendarEventSpec.location = sanitizeNotifText(intent.getStringExtra(EXTRA_CALENDAREVENT_LOCATION), deviceSupport, coordinator);
+                deviceSupport.onAddCalendarEvent(calendarEventSpec);
                 break;
             }
             case ACTION_DELETE_CALENDAREVENT: {
                 long id = intent.getLongExtra(EXTRA_CALENDAREVENT_ID, -1);
                 byte type = intent.getByteExtra(EXTRA_CALENDAREVENT_TYPE, (byte) -1);
-                mDeviceSupport.onDeleteCalendarEvent(type, id);
+                deviceSupport.onDeleteCalendarEvent(type, id);
                 break;
             }
             case ACTION_RESET: {
                 int flags = intent.getIntExtra(EXTRA_RESET_FLAGS, 0);
-                mDeviceSupport.onReset(flags);
+                deviceSupport.onReset(flags);
                 break;
             }
             case ACTION_HEARTRATE_TEST: {
-                mDeviceSupport.onHeartRateTest();
+                deviceSupport.onHeartRateTest();
                 break;
             }
             case ACTION_FETCH_RECORDED_DATA: {
                 int dataTypes = intent.getIntExtra(EXTRA_RECORDED_DATA_TYPES, 0);
-                mDeviceSupport.onFetchRecordedData(dataTypes);
-                break;
-            }
-            case ACTION_DISCONNECT: {
-                mDeviceSupport.dispose();
-                if (mGBDevice != null) {
-                    mGBDevice.setState(GBDevice.State.NOT_CONNECTED);
-                    mGBDevice.sendDeviceUpdateIntent(this);
-                }
-                setReceiversEnableState(false, false, null);
-                mGBDevice = null;
-                mDeviceSupport = null;
-                mCoordinator = null;
+                deviceSupport.onFetchRecordedData(dataTypes);
                 break;
             }
             case ACTION_FIND_DEVICE: {
                 boolean start = intent.getBooleanExtra(EXTRA_FIND_START, false);
-                mDeviceSupport.onFindDevice(start);
+                deviceSupport.onFindDevice(start);
                 break;
             }
             case ACTION_SET_CONSTANT_VIBRATION: {
                 int intensity = intent.getIntExtra(EXTRA_VIBRATION_INTENSITY, 0);
-                mDeviceSupport.onSetConstantVibration(intensity);
+                deviceSupport.onSetConstantVibration(intensity);
                 break;
             }
             case ACTION_CALLSTATE:
                 CallSpec callSpec = new CallSpec();
                 callSpec.command = intent.getIntExtra(EXTRA_CALL_COMMAND, CallSpec.CALL_UNDEFINED);
                 callSpec.number = intent.getStringExtra(EXTRA_CALL_PHONENUMBER);
-                callSpec.name = sanitizeNotifText(intent.getStringExtra(EXTRA_CALL_DISPLAYNAME));
-                mDeviceSupport.onSetCallState(callSpec);
+                callSpec.name = sanitizeNotifText(intent.getStringExtra(EXTRA_CALL_DISPLAYNAME), deviceSupport, coordinator);
+                deviceSupport.onSetCallState(callSpec);
                 break;
             case ACTION_SETCANNEDMESSAGES:
                 int type = intent.getIntExtra(EXTRA_CANNEDMESSAGES_TYPE, -1);
@@ -492,20 +570,20 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 CannedMessagesSpec cannedMessagesSpec = new CannedMessagesSpec();
                 cannedMessagesSpec.type = type;
                 cannedMessagesSpec.cannedMessages = cannedMessages;
-                mDeviceSupport.onSetCannedMessages(cannedMessagesSpec);
+                deviceSupport.onSetCannedMessages(cannedMessagesSpec);
                 break;
             case ACTION_SETTIME:
-                mDeviceSupport.onSetTime();
+                deviceSupport.onSetTime();
                 break;
             case ACTION_SETMUSICINFO:
                 MusicSpec musicSpec = new MusicSpec();
-                musicSpec.artist = sanitizeNotifText(intent.getStringExtra(EXTRA_MUSIC_ARTIST));
-                musicSpec.album = sanitizeNotifText(intent.getStringExtra(EXTRA_MUSIC_ALBUM));
-                musicSpec.track = sanitizeNotifText(intent.getStringExtra(EXTRA_MUSIC_TRACK));
+                musicSpec.artist = sanitizeNotifText(intent.getStringExtra(EXTRA_MUSIC_ARTIST), deviceSupport, coordinator);
+                musicSpec.album = sanitizeNotifText(intent.getStringExtra(EXTRA_MUSIC_ALBUM), deviceSupport, coordinator);
+                musicSpec.track = sanitizeNotifText(intent.getStringExtra(EXTRA_MUSIC_TRACK), deviceSupport, coordinator);
                 musicSpec.duration = intent.getIntExtra(EXTRA_MUSIC_DURATION, 0);
                 musicSpec.trackCount = intent.getIntExtra(EXTRA_MUSIC_TRACKCOUNT, 0);
                 musicSpec.trackNr = intent.getIntExtra(EXTRA_MUSIC_TRACKNR, 0);
-                mDeviceSupport.onSetMusicInfo(musicSpec);
+                deviceSupport.onSetMusicInfo(musicSpec);
                 break;
             case ACTION_SETMUSICSTATE:
                 MusicStateSpec stateSpec = new MusicStateSpec();
@@ -514,23 +592,23 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 stateSpec.position = intent.getIntExtra(EXTRA_MUSIC_POSITION, 0);
                 stateSpec.playRate = intent.getIntExtra(EXTRA_MUSIC_RATE, 0);
                 stateSpec.state = intent.getByteExtra(EXTRA_MUSIC_STATE, (byte) 0);
-                mDeviceSupport.onSetMusicState(stateSpec);
+                deviceSupport.onSetMusicState(stateSpec);
                 break;
             case ACTION_REQUEST_APPINFO:
-                mDeviceSupport.onAppInfoReq();
+                deviceSupport.onAppInfoReq();
                 break;
             case ACTION_REQUEST_SCREENSHOT:
-                mDeviceSupport.onScreenshotReq();
+                deviceSupport.onScreenshotReq();
                 break;
             case ACTION_STARTAPP: {
                 UUID uuid = (UUID) intent.getSerializableExtra(EXTRA_APP_UUID);
                 boolean start = intent.getBooleanExtra(EXTRA_APP_START, true);
-                mDeviceSupport.onAppStart(uuid, start);
+                deviceSupport.onAppStart(uuid, start);
                 break;
             }
             case ACTION_DELETEAPP: {
                 UUID uuid = (UUID) intent.getSerializableExtra(EXTRA_APP_UUID);
-                mDeviceSupport.onAppDelete(uuid);
+                deviceSupport.onAppDelete(uuid);
                 break;
             }
             case ACTION_APP_CONFIGURE: {
@@ -540,99 +618,81 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 if (intent.hasExtra(EXTRA_APP_CONFIG_ID)) {
                     id = intent.getIntExtra(EXTRA_APP_CONFIG_ID, 0);
                 }
-                mDeviceSupport.onAppConfiguration(uuid, config, id);
+                deviceSupport.onAppConfiguration(uuid, config, id);
                 break;
             }
             case ACTION_APP_REORDER: {
                 UUID[] uuids = (UUID[]) intent.getSerializableExtra(EXTRA_APP_UUID);
-                mDeviceSupport.onAppReorder(uuids);
+                deviceSupport.onAppReorder(uuids);
                 break;
             }
             case ACTION_INSTALL:
                 Uri uri = intent.getParcelableExtra(EXTRA_URI);
                 if (uri != null) {
                     LOG.info("will try to install app/fw");
-                    mDeviceSupport.onInstallApp(uri);
+                    deviceSupport.onInstallApp(uri);
                 }
                 break;
             case ACTION_SET_ALARMS:
                 ArrayList<? extends Alarm> alarms = (ArrayList<? extends Alarm>) intent.getSerializableExtra(EXTRA_ALARMS);
-                mDeviceSupport.onSetAlarms(alarms);
+                deviceSupport.onSetAlarms(alarms);
                 break;
             case ACTION_ENABLE_REALTIME_STEPS: {
                 boolean enable = intent.getBooleanExtra(EXTRA_BOOLEAN_ENABLE, false);
-                mDeviceSupport.onEnableRealtimeSteps(enable);
+                deviceSupport.onEnableRealtimeSteps(enable);
                 break;
             }
             case ACTION_ENABLE_HEARTRATE_SLEEP_SUPPORT: {
                 boolean enable = intent.getBooleanExtra(EXTRA_BOOLEAN_ENABLE, false);
-                mDeviceSupport.onEnableHeartRateSleepSupport(enable);
+                deviceSupport.onEnableHeartRateSleepSupport(enable);
                 break;
             }
             case ACTION_SET_HEARTRATE_MEASUREMENT_INTERVAL: {
                 int seconds = intent.getIntExtra(EXTRA_INTERVAL_SECONDS, 0);
-                mDeviceSupport.onSetHeartRateMeasurementInterval(seconds);
+                deviceSupport.onSetHeartRateMeasurementInterval(seconds);
                 break;
             }
             case ACTION_ENABLE_REALTIME_HEARTRATE_MEASUREMENT: {
                 boolean enable = intent.getBooleanExtra(EXTRA_BOOLEAN_ENABLE, false);
-                mDeviceSupport.onEnableRealtimeHeartRateMeasurement(enable);
+                deviceSupport.onEnableRealtimeHeartRateMeasurement(enable);
                 break;
             }
             case ACTION_SEND_CONFIGURATION: {
                 String config = intent.getStringExtra(EXTRA_CONFIG);
-                mDeviceSupport.onSendConfiguration(config);
+                deviceSupport.onSendConfiguration(config);
                 break;
             }
             case ACTION_READ_CONFIGURATION: {
                 String config = intent.getStringExtra(EXTRA_CONFIG);
-                mDeviceSupport.onReadConfiguration(config);
+                deviceSupport.onReadConfiguration(config);
                 break;
             }
             case ACTION_TEST_NEW_FUNCTION: {
-                mDeviceSupport.onTestNewFunction();
+                deviceSupport.onTestNewFunction();
                 break;
             }
             case ACTION_SEND_WEATHER: {
                 WeatherSpec weatherSpec = intent.getParcelableExtra(EXTRA_WEATHER);
                 if (weatherSpec != null) {
-                    mDeviceSupport.onSendWeather(weatherSpec);
+                    deviceSupport.onSendWeather(weatherSpec);
                 }
                 break;
             }
             case ACTION_SET_LED_COLOR:
                 int color = intent.getIntExtra(EXTRA_LED_COLOR, 0);
                 if (color != 0) {
-                    mDeviceSupport.onSetLedColor(color);
+                    deviceSupport.onSetLedColor(color);
                 }
                 break;
             case ACTION_SET_FM_FREQUENCY:
                 float frequency = intent.getFloatExtra(EXTRA_FM_FREQUENCY, -1);
                 if (frequency != -1) {
-                    mDeviceSupport.onSetFmFrequency(frequency);
+                    deviceSupport.onSetFmFrequency(frequency);
                 }
                 break;
         }
     }
 
-    /**
-     * Disposes the current DeviceSupport instance (if any) and sets a new device support instance
-     * (if not null).
-     *
-     * @param deviceSupport
-     */
-    private void setDeviceSupport(@Nullable DeviceSupport deviceSupport) {
-        if (deviceSupport != mDeviceSupport && mDeviceSupport != null) {
-            mDeviceSupport.dispose();
-            mDeviceSupport = null;
-            mGBDevice = null;
-            mCoordinator = null;
-        }
-        mDeviceSupport = deviceSupport;
-        mGBDevice = mDeviceSupport != null ? mDeviceSupport.getDevice() : null;
-        mCoordinator = mGBDevice != null ? DeviceHelper.getInstance().getCoordinator(mGBDevice) : null;
-    }
-
     private void start() {
         if (!mStarted) {
             startForeground(GB.NOTIFICATION_ID, GB.createNotification(getString(R.string.gadgetbridge_running), this));
@@ -644,42 +704,71 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
         return mStarted;
     }
 
-    private boolean isConnected() {
-        return mGBDevice != null && mGBDevice.isConnected();
-    }
-
-    private boolean isConnecting() {
-        return mGBDevice != null && mGBDevice.isConnecting();
-    }
-
-    private boolean isInitialized() {
-        return mGBDevice != null && mGBDevice.isInitialized();
+    /**
+     * Enables the broadcast receivers needed by the devices that are initialized or
+     * (re)connecting by themselves, and disables all others. Called while holding #mLanesLock.
+     */
+    private void updateReceiversEnableState() {
+        List<DeviceLane> enabledLanes = new ArrayList<>();
+        for (DeviceLane lane : mLanes.values()) {
+            if (lane.useAutoConnect() || lane.isInitialized()) {
+                enabledLanes.add(lane);
+            }
+        }
+        setReceiversEnableState(enabledLanes);
     }
 
-
-    private void setReceiversEnableState(boolean enable, boolean initialized, DeviceCoordinator coordinator) {
+    private void setReceiversEnableState(List<DeviceLane> enabledLanes) {
+        boolean enable = !enabledLanes.isEmpty();
         LOG.info("Setting broadcast receivers to: " + enable);
 
-        if (enable && initialized && coordinator != null && coordinator.supportsCalendarEvents()) {
-            if (mCalendarReceiver == null && getPrefs().getBoolean("enable_calendar_sync", true)) {
+        List<GBDevice> calendarDevices = new ArrayList<>();
+        boolean supportsMusicInfo = false;
+        boolean supportsWeather = false;
+        boolean supportsActivityDataFetching = false;
+        for (DeviceLane lane : enabledLanes) {
+            DeviceCoordinator coordinator = lane.getCoordinator();
+            if (coordinator == null) {
+                continue;
+            }
+            if (lane.isInitialized() && coordinator.supportsCalendarEvents()) {
+                calendarDevices.add(lane.getDevice());
+            }
+            supportsMusicInfo |= coordinator.supportsMusicInfo();
+            supportsWeather |= coordinator.supportsWeather();
+            supportsActivityDataFetching |= coordinator.supportsActivityDataFetching();
+        }
+
+        // one calendar receiver per device, since each device has its own calendar sync state
+        List<String> calendarAddresses = new ArrayList<>();
+        for (GBDevice device : calendarDevices) {
+            calendarAddresses.add(device.getAddress());
+            if (!mCalendarReceivers.containsKey(device.getAddress()) && getPrefs().getBoolean("enable_calendar_sync", true)) {
                 if (!(GBApplication.isRunningMarshmallowOrLater() && ContextCompat.checkSelfPermission(this, Manifest.permission.READ_CALENDAR) == PackageManager.PERMISSION_DENIED)) {
                     IntentFilter calendarIntentFilter = new IntentFilter();
                     calendarIntentFilter.addAction("android.intent.action.PROVIDER_CHANGED");
                     calendarIntentFilter.addDataScheme("content");
                     calendarIntentFilter.addDataAuthority("com.android.calendar", null);
-                    mCalendarReceiver = new CalendarReceiver(mGBDevice);
-                    registerReceiver(mCalendarReceiver, calendarIntentFilter);
+                    CalendarReceiver calendarReceiver = new CalendarReceiver(device);
+                    mCalendarReceivers.put(device.getAddress(), calendarReceiver);
+                    registerReceiver(calendarReceiver, calendarIntentFilter);
                 }
             }
+        }
+        for (String address : new ArrayList<>(mCalendarReceivers.keySet())) {
+            if (!calendarAddresses.contains(address)) {
+                CalendarReceiver calendarReceiver = mCalendarReceivers.remove(address);
+                unregisterReceiver(calendarReceiver);
+                calendarReceiver.dispose();
+            }
+        }
+
+        if (!calendarDevices.isEmpty()) {
             if (mAlarmReceiver == null) {
                 mAlarmReceiver = new AlarmReceiver();
                 registerReceiver(mAlarmReceiver, new IntentFilter("DAILY_ALARM"));
             }
         } else {
-            if (mCalendarReceiver != null) {
-                unregisterReceiver(mCalendarReceiver);
-                mCalendarReceiver = null;
-            }
             if (mAlarmReceiver != null) {
                 unregisterReceiver(mAlarmReceiver);
                 mAlarmReceiver = null;
@@ -703,7 +792,7 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 mPebbleReceiver = new PebbleReceiver();
                 registerReceiver(mPebbleReceiver, new IntentFilter("com.getpebble.action.SEND_NOTIFICATION"));
             }
-            if (mMusicPlaybackReceiver == null && coordinator != null && coordinator.supportsMusicInfo()) {
+            if (mMusicPlaybackReceiver == null && supportsMusicInfo) {
                 mMusicPlaybackReceiver = new MusicPlaybackReceiver();
                 IntentFilter filter = new IntentFilter();
                 for (String action : mMusicActions) {
@@ -735,18 +824,18 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 filter.addAction(AlarmClockReceiver.GOOGLE_CLOCK_ALARM_DONE_ACTION);
                 registerReceiver(mAlarmClockReceiver, filter);
             }
-            if (mCMWeatherReceiver == null && coordinator != null && coordinator.supportsWeather()) {
+            if (mCMWeatherReceiver == null && supportsWeather) {
                 mCMWeatherReceiver = new CMWeatherReceiver();
                 registerReceiver(mCMWeatherReceiver, new IntentFilter("GB_UPDATE_WEATHER"));
             }
             if (GBApplication.isRunningOreoOrLater()) {
-                if (mLineageOsWeatherReceiver == null && coordinator != null && coordinator.supportsWeather()) {
+                if (mLineageOsWeatherReceiver == null && supportsWeather) {
 
                     mLineageOsWeatherReceiver = new LineageOsWeatherReceiver();
                     registerReceiver(mLineageOsWeatherReceiver, new IntentFilter("GB_UPDATE_WEATHER"));
                 }
             }
-            if (mOmniJawsObserver == null && coordinator != null && coordinator.supportsWeather()) {
+            if (mOmniJawsObserver == null && supportsWeather) {
                 try {
                     mOmniJawsObserver = new OmniJawsObserver(new Handler());
                     getContentResolver().registerContentObserver(OmniJawsObserver.WEATHER_URI, true, mOmniJawsObserver);
@@ -755,7 +844,7 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 }
             }
             if (GBApplication.getPrefs().getBoolean("auto_fetch_enabled", false) &&
-                    coordinator != null && coordinator.supportsActivityDataFetching() && mGBAutoFetchReceiver == null) {
+                    supportsActivityDataFetching && mGBAutoFetchReceiver == null) {
                 mGBAutoFetchReceiver = new GBAutoFetchReceiver();
                 registerReceiver(mGBAutoFetchReceiver, new IntentFilter("android.intent.action.USER_PRESENT"));
             }
@@ -830,9 +919,14 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
         super.onDestroy();
 
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mReceiver);
-        setReceiversEnableState(false, false, null); // disable BroadcastReceivers
+        setReceiversEnableState(Collections.<DeviceLane>emptyList()); // disable BroadcastReceivers
 
-        setDeviceSupport(null);
+        synchronized (mLanesLock) {
+            for (DeviceLane lane : mLanes.values()) {
+                lane.dispose(this);
+            }
+            mLanes.clear();
+        }
         NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         if (nm != null) {
             nm.cancel(GB.NOTIFICATION_ID); // need to do this because the updated notification won't be cancelled when service stops
@@ -848,8 +942,13 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         if (GBPrefs.AUTO_RECONNECT.equals(key)) {
             boolean autoReconnect = getGBPrefs().getAutoReconnect();
-            if (mDeviceSupport != null) {
-                mDeviceSupport.setAutoReconnect(autoReconnect);
+            synchronized (mLanesLock) {
+                for (DeviceLane lane : mLanes.values()) {
+                    DeviceSupport deviceSupport = lane.getDeviceSupport();
+                    if (deviceSupport != null) {
+                        deviceSupport.setAutoReconnect(autoReconnect);
+                    }
+                }
             }
         }
         if (GBPrefs.CHART_MAX_HEART_RATE.equals(key) || GBPrefs.CHART_MIN_HEART_RATE.equals(key)) {
@@ -869,7 +968,16 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
         return GBApplication.getGBPrefs();
     }
 
-    public GBDevice getGBDevice() {
-        return mGBDevice;
+    /**
+     * Returns the devices this service is connected or connecting to.
+     */
+    public List<GBDevice> getGBDevices() {
+        synchronized (mLanesLock) {
+            List<GBDevice> devices = new ArrayList<>(mLanes.size());
+            for (DeviceLane lane : mLanes.values()) {
+                devices.add(lane.getDevice());
+            }
+            return devices;
+        }
     }
 }
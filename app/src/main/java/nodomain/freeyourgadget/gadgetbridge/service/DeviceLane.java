@@ -0,0 +1,252 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.widget.Toast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.Nullable;
+import nodomain.freeyourgadget.gadgetbridge.GBEnvironment;
+import nodomain.freeyourgadget.gadgetbridge.R;
+import nodomain.freeyourgadget.gadgetbridge.devices.DeviceCoordinator;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.util.DeviceHelper;
+import nodomain.freeyourgadget.gadgetbridge.util.GB;
+
+/**
+ * A single device of the {@link DeviceCommunicationService}: its DeviceSupport and the
+ * thread the commands for this device are executed on.
+ * <p/>
+ * Each device has its own lane, so that a slow command for one device (e.g. the start
+ * of a firmware upload, or disposing a BtLEQueue that is still busy) does not delay the
+ * commands for other devices. The commands only hand the command to the DeviceSupport,
+ * whose {@link ServiceDeviceSupport} queue prioritizes, coalesces and bounds them. Only when
+ * the device thread itself is blocked, the commands pile up here: at most
+ * {@link #MAX_PENDING_COMMANDS} are queued, further ones are rejected unless they are
+ * essential. Connecting and disposing the DeviceSupport happen on the same thread, in order
+ * with the commands, and are never rejected.
+ * <p/>
+ * In local tests, everything is executed directly.
+ */
+class DeviceLane {
+    private static final Logger LOG = LoggerFactory.getLogger(DeviceLane.class);
+
+    /**
+     * A warning is logged when this many commands are pending, as the device thread is
+     * apparently blocked
+     */
+    static final int PENDING_COMMANDS_WARNING = 64;
+
+    /**
+     * At most this many commands are pending, further ones are rejected unless they are
+     * essential
+     */
+    static final int MAX_PENDING_COMMANDS = 256;
+
+    private volatile DeviceSupport deviceSupport;
+    private volatile GBDevice device;
+    private volatile DeviceCoordinator coordinator;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final AtomicInteger pendingCommands = new AtomicInteger();
+
+    DeviceLane(GBDevice device) {
+        setDevice(device);
+        if (GBEnvironment.env().isLocalTest()) {
+            thread = null;
+            handler = null;
+        } else {
+            thread = new HandlerThread("Device " + device.getAddress());
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+    }
+
+    /**
+     * Only for tests: executes the commands with the given handler.
+     */
+    DeviceLane(GBDevice device, Handler handler) {
+        setDevice(device);
+        this.thread = null;
+        this.handler = handler;
+    }
+
+    @Nullable
+    DeviceSupport getDeviceSupport() {
+        return deviceSupport;
+    }
+
+    GBDevice getDevice() {
+        return device;
+    }
+
+    DeviceCoordinator getCoordinator() {
+        return coordinator;
+    }
+
+    String getAddress() {
+        return device.getAddress();
+    }
+
+    void setDevice(GBDevice device) {
+        this.device = device;
+        this.coordinator = DeviceHelper.getInstance().getCoordinator(device);
+    }
+
+    boolean isConnected() {
+        return device.isConnected();
+    }
+
+    boolean isConnecting() {
+        return device.isConnecting();
+    }
+
+    boolean isInitialized() {
+        return device.isInitialized();
+    }
+
+    boolean useAutoConnect() {
+        DeviceSupport support = deviceSupport;
+        return support != null && support.useAutoConnect();
+    }
+
+    /**
+     * Whether the device is able to handle commands, otherwise they should not be posted.
+     * Commands are accepted when the device is initialized, or when it is (re)connecting
+     * by itself.
+     */
+    boolean isReady() {
+        return deviceSupport != null && (isInitialized() || (useAutoConnect() && !isConnected()));
+    }
+
+    /**
+     * Disposes the current DeviceSupport (if any) and connects the given one.
+     */
+    void connect(final DeviceSupport newSupport, final boolean firstTime, final boolean autoReconnect, final Context context) {
+        final DeviceSupport oldSupport = deviceSupport;
+        deviceSupport = newSupport;
+        setDevice(newSupport.getDevice());
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (oldSupport != null) {
+                    oldSupport.dispose();
+                }
+                try {
+                    if (firstTime) {
+                        newSupport.connectFirstTime();
+                    } else {
+                        newSupport.setAutoReconnect(autoReconnect);
+                        newSupport.connect();
+                    }
+                } catch (Exception e) {
+                    GB.toast(context, context.getString(R.string.cannot_connect, e.getMessage()), Toast.LENGTH_SHORT, GB.ERROR, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Executes the given command on the thread of this device.
+     *
+     * @param essential whether the command must be queued even if
+     *                  {@link #MAX_PENDING_COMMANDS} are pending, e.g. an incoming call
+     * @return false if the command was rejected, because too many commands are pending
+     */
+    boolean post(final Runnable command, boolean essential) {
+        if (handler == null) {
+            command.run();
+            return true;
+        }
+        int pending = pendingCommands.incrementAndGet();
+        if (pending > MAX_PENDING_COMMANDS && !essential) {
+            pendingCommands.decrementAndGet();
+            return false;
+        }
+        if (pending == PENDING_COMMANDS_WARNING) {
+            LOG.warn(PENDING_COMMANDS_WARNING + " pending commands for " + getAddress() + ", the device thread is slow or blocked");
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                pendingCommands.decrementAndGet();
+                try {
+                    command.run();
+                } catch (Exception e) {
+                    LOG.error("Error executing command for " + getAddress(), e);
+                }
+            }
+        });
+        return true;
+    }
+
+    int getPendingCommands() {
+        return pendingCommands.get();
+    }
+
+    /**
+     * Disposes the DeviceSupport after all pending commands have been executed and stops
+     * the thread. The device is set to NOT_CONNECTED afterwards.
+     * The lane must not be used anymore afterwards.
+     */
+    void dispose(final Context context) {
+        final DeviceSupport oldSupport = deviceSupport;
+        final GBDevice oldDevice = device;
+        deviceSupport = null;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (oldSupport != null) {
+                    oldSupport.dispose();
+                }
+                oldDevice.setState(GBDevice.State.NOT_CONNECTED);
+                oldDevice.sendDeviceUpdateIntent(context);
+            }
+        });
+        if (thread != null) {
+            thread.quitSafely();
+        }
+    }
+
+    /**
+     * Executes the given runnable in order with the commands, without counting it as a
+     * pending command.
+     */
+    private void execute(final Runnable runnable) {
+        if (handler == null) {
+            runnable.run();
+        } else {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } catch (Exception e) {
+                        LOG.error("Error in device thread of " + getAddress(), e);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,490 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import android.os.SystemClock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A process wide scheduler for the periodic and one-shot tasks of the device supports, e.g.
+ * polling a device for new data, keep-alive messages or timeouts. All tasks are run on a
+ * single thread, so they must not block for long.
+ * <p/>
+ * The tasks are kept in a hierarchical timing wheel with levels of 256, 64, 64 and 64 slots
+ * of 100ms, 25.6s, 27min and 29h. Scheduling and cancelling a task is O(1) and does not
+ * allocate anything, so a task may be rescheduled as often as needed. Tasks further in
+ * the future than the wheel covers (77 days) are parked in the last slot and rescheduled
+ * from there.
+ * <p/>
+ * A task may allow some slack. Its deadline is then moved to the next multiple of a
+ * coarser interval (1s, 5s, 15s, 1min or 5min) within the slack, so that the tasks of
+ * all devices tend to become due together and the scheduler thread wakes up less often.
+ * <p/>
+ * All times are milliseconds. The wheel runs on {@link SystemClock#elapsedRealtime()},
+ * so it is not affected by changes of the wall clock. It neither holds a wake lock nor
+ * uses the AlarmManager: while the phone is in deep sleep or Doze, due tasks are delayed
+ * until the CPU is woken up for some other reason, e.g. a Bluetooth notification.
+ */
+public class DeviceTaskScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(DeviceTaskScheduler.class);
+
+    static final long TICK_MILLIS = 100;
+    private static final int LEVELS = 4;
+    private static final int[] SLOT_COUNTS = {256, 64, 64, 64};
+    private static final int[] SHIFTS = {0, 8, 14, 20};
+    private static final long MAX_TICKS = 1L << 26;
+
+    /**
+     * The intervals deadlines are aligned to, if the slack of the task allows it.
+     */
+    private static final long[] COALESCING_MILLIS = {
+            TimeUnit.MINUTES.toMillis(5),
+            TimeUnit.MINUTES.toMillis(1),
+            TimeUnit.SECONDS.toMillis(15),
+            TimeUnit.SECONDS.toMillis(5),
+            TimeUnit.SECONDS.toMillis(1),
+    };
+
+    private static DeviceTaskScheduler instance;
+
+    private final Task[][] slots = new Task[LEVELS][];
+    private final long[][] occupied = new long[LEVELS][];
+    private final long startMillis;
+    /** The next tick to be processed */
+    private long currentTick;
+    /** The tick the scheduler thread sleeps until */
+    private long wakeupTick = Long.MAX_VALUE;
+    private long wakeups;
+    private long runs;
+
+    public static synchronized DeviceTaskScheduler getInstance() {
+        if (instance == null) {
+            instance = new DeviceTaskScheduler(SystemClock.elapsedRealtime());
+            instance.start();
+        }
+        return instance;
+    }
+
+    DeviceTaskScheduler(long startMillis) {
+        this.startMillis = startMillis;
+        for (int level = 0; level < LEVELS; level++) {
+            slots[level] = new Task[SLOT_COUNTS[level]];
+            occupied[level] = new long[(SLOT_COUNTS[level] + 63) / 64];
+        }
+    }
+
+    private void start() {
+        Thread thread = new Thread("Gadgetbridge Device Scheduler") {
+            @Override
+            public void run() {
+                loop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Creates a new task, which does not run until it is scheduled.
+     *
+     * @param owner the device (address) or component the task belongs to
+     * @param name  a short description of the task
+     */
+    public Task createTask(String owner, String name, Runnable runnable) {
+        return new Task(owner, name, runnable);
+    }
+
+    /**
+     * Returns a snapshot of all scheduled tasks, ordered by their next run.
+     */
+    public List<Task> getScheduledTasks() {
+        List<Task> result = new ArrayList<>();
+        synchronized (this) {
+            for (int level = 0; level < LEVELS; level++) {
+                for (Task task : slots[level]) {
+                    for (; task != null; task = task.next) {
+                        result.add(task);
+                    }
+                }
+            }
+            Collections.sort(result, new Comparator<Task>() {
+                @Override
+                public int compare(Task lhs, Task rhs) {
+                    return Long.compare(lhs.deadlineMillis, rhs.deadlineMillis);
+                }
+            });
+        }
+        return result;
+    }
+
+    public String dump() {
+        long nowMillis = System.currentTimeMillis();
+        StringBuilder builder = new StringBuilder();
+        synchronized (this) {
+            builder.append(String.format(Locale.US, "%d tasks run in %d wake-ups\n", runs, wakeups));
+        }
+        for (Task task : getScheduledTasks()) {
+            builder.append(String.format(Locale.US, "%s %s: in %.1fs", task.owner, task.name, Math.max(0, task.getNextRunMillis() - nowMillis) / 1000f));
+            if (task.getPeriodMillis() > 0) {
+                builder.append(String.format(Locale.US, ", every %.1fs", task.getPeriodMillis() / 1000f));
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    private void loop() {
+        List<Task> due = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                long nowMillis = now();
+                collectDueTasks(nowMillis, due);
+                if (due.isEmpty()) {
+                    wakeupTick = nextTick(true);
+                    try {
+                        if (wakeupTick == Long.MAX_VALUE) {
+                            wait();
+                        } else {
+                            wait(Math.max(1, startMillis + wakeupTick * TICK_MILLIS - nowMillis));
+                        }
+                    } catch (InterruptedException e) {
+                        LOG.warn("Device scheduler interrupted", e);
+                    }
+                    wakeupTick = Long.MAX_VALUE;
+                    continue;
+                }
+                wakeups++;
+            }
+            runTasks(due);
+            due.clear();
+        }
+    }
+
+    /**
+     * Processes the wheel up to the given time and runs the tasks that are due in the
+     * calling thread. Returns the number of tasks run.
+     */
+    int advanceTo(long nowMillis) {
+        List<Task> due = new ArrayList<>();
+        synchronized (this) {
+            collectDueTasks(nowMillis, due);
+        }
+        return runTasks(due);
+    }
+
+    private int runTasks(List<Task> due) {
+        int count = 0;
+        for (Task task : due) {
+            synchronized (this) {
+                // cancelled or rescheduled in the meantime
+                if (!task.pendingRun) {
+                    continue;
+                }
+                task.pendingRun = false;
+                runs++;
+            }
+            count++;
+            try {
+                task.runnable.run();
+            } catch (Exception e) {
+                LOG.error("Error running task " + task, e);
+            }
+        }
+        return count;
+    }
+
+    private void collectDueTasks(long nowMillis, List<Task> due) {
+        long nowTick = (nowMillis - startMillis) / TICK_MILLIS;
+        while (true) {
+            long tick = nextTick(false);
+            if (tick > nowTick) {
+                break;
+            }
+            currentTick = tick;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << SHIFTS[level]) - 1)) == 0) {
+                    cascade(level, (int) ((tick >>> SHIFTS[level]) & (SLOT_COUNTS[level] - 1)));
+                }
+            }
+            expire(tick, nowMillis, due);
+            currentTick = tick + 1;
+        }
+        currentTick = Math.max(currentTick, nowTick + 1);
+    }
+
+    /**
+     * Returns the next tick at which a slot needs to be processed, or, if expiryOnly is set,
+     * the next tick at which a task is due.
+     */
+    private long nextTick(boolean expiryOnly) {
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            long mask = (1L << SHIFTS[level]) - 1;
+            Task first = null;
+            long firstTick = Long.MAX_VALUE;
+            long[] bits = occupied[level];
+            for (int word = 0; word < bits.length; word++) {
+                long remaining = bits[word];
+                while (remaining != 0) {
+                    int slot = word * 64 + Long.numberOfTrailingZeros(remaining);
+                    remaining &= remaining - 1;
+                    Task head = slots[level][slot];
+                    long slotTick = head.slotTick & ~mask;
+                    if (slotTick < firstTick) {
+                        firstTick = slotTick;
+                        first = head;
+                    }
+                }
+            }
+            if (expiryOnly && first != null && level > 0) {
+                firstTick = Long.MAX_VALUE;
+                for (Task task = first; task != null; task = task.next) {
+                    firstTick = Math.min(firstTick, task.slotTick);
+                }
+            }
+            next = Math.min(next, firstTick);
+        }
+        return next;
+    }
+
+    private void cascade(int level, int slot) {
+        Task task = slots[level][slot];
+        clearSlot(level, slot);
+        while (task != null) {
+            Task next = task.next;
+            task.prev = null;
+            task.next = null;
+            task.level = -1;
+            insert(task);
+            task = next;
+        }
+    }
+
+    private void expire(long tick, long nowMillis, List<Task> due) {
+        int slot = (int) (tick & (SLOT_COUNTS[0] - 1));
+        Task task = slots[0][slot];
+        clearSlot(0, slot);
+        while (task != null) {
+            Task next = task.next;
+            task.prev = null;
+            task.next = null;
+            task.level = -1;
+            if (task.tick > tick) {
+                // was parked beyond the range of the wheel
+                insert(task);
+            } else {
+                if (task.periodMillis > 0) {
+                    task.nominalMillis += task.periodMillis;
+                    if (task.nominalMillis <= nowMillis) {
+                        // do not try to catch up with missed runs
+                        task.nominalMillis = nowMillis + task.periodMillis;
+                    }
+                    setDeadline(task);
+                    insert(task);
+                }
+                task.pendingRun = true;
+                due.add(task);
+            }
+            task = next;
+        }
+    }
+
+    private void clearSlot(int level, int slot) {
+        slots[level][slot] = null;
+        occupied[level][slot >>> 6] &= ~(1L << (slot & 63));
+    }
+
+    private void insert(Task task) {
+        long tick = Math.max(task.tick, currentTick);
+        long delta = tick - currentTick;
+        if (delta >= MAX_TICKS) {
+            tick = currentTick + MAX_TICKS - 1;
+            delta = MAX_TICKS - 1;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << SHIFTS[level + 1])) {
+            level++;
+        }
+        int slot = (int) ((tick >>> SHIFTS[level]) & (SLOT_COUNTS[level] - 1));
+        task.slotTick = tick;
+        task.level = level;
+        task.slot = slot;
+        task.prev = null;
+        task.next = slots[level][slot];
+        if (task.next != null) {
+            task.next.prev = task;
+        }
+        slots[level][slot] = task;
+        occupied[level][slot >>> 6] |= 1L << (slot & 63);
+    }
+
+    private void remove(Task task) {
+        if (task.level < 0) {
+            return;
+        }
+        if (task.prev != null) {
+            task.prev.next = task.next;
+        } else {
+            slots[task.level][task.slot] = task.next;
+            if (task.next == null) {
+                clearSlot(task.level, task.slot);
+            }
+        }
+        if (task.next != null) {
+            task.next.prev = task.prev;
+        }
+        task.prev = null;
+        task.next = null;
+        task.level = -1;
+    }
+
+    private void setDeadline(Task task) {
+        task.deadlineMillis = coalesce(task.nominalMillis, task.slackMillis);
+        task.tick = (task.deadlineMillis - startMillis + TICK_MILLIS - 1) / TICK_MILLIS;
+    }
+
+    static long coalesce(long deadlineMillis, long slackMillis) {
+        for (long interval : COALESCING_MILLIS) {
+            if (interval <= slackMillis) {
+                return (deadlineMillis + interval - 1) / interval * interval;
+            }
+        }
+        return deadlineMillis;
+    }
+
+    private synchronized void schedule(Task task, long delayMillis, long periodMillis) {
+        remove(task);
+        task.pendingRun = false;
+        task.nominalMillis = now() + Math.max(0, delayMillis);
+        task.periodMillis = Math.max(0, periodMillis);
+        setDeadline(task);
+        insert(task);
+        if (task.tick < wakeupTick) {
+            notifyAll();
+        }
+    }
+
+    private synchronized void cancel(Task task) {
+        remove(task);
+        task.pendingRun = false;
+    }
+
+    public class Task {
+        private final String owner;
+        private final String name;
+        private final Runnable runnable;
+        private long slackMillis;
+
+        // guarded by the scheduler
+        private long nominalMillis;
+        private long deadlineMillis;
+        private long periodMillis;
+        private long tick;
+        private long slotTick;
+        private int level = -1;
+        private int slot;
+        private Task prev;
+        private Task next;
+        private boolean pendingRun;
+
+        private Task(String owner, String name, Runnable runnable) {
+            this.owner = owner;
+            this.name = name;
+            this.runnable = runnable;
+        }
+
+        /**
+         * Allows the task to run up to the given time later than scheduled, so that it can
+         * run together with other tasks. Applies to the next #schedule() call.
+         */
+        public Task setSlackMillis(long slackMillis) {
+            this.slackMillis = slackMillis;
+            return this;
+        }
+
+        /**
+         * Runs the task once after the given delay. A previous schedule of this task is replaced.
+         */
+        public void schedule(long delayMillis) {
+            DeviceTaskScheduler.this.schedule(this, delayMillis, 0);
+        }
+
+        /**
+         * Runs the task after the given delay and then periodically, until it is cancelled
+         * or scheduled again. Runs that were missed, e.g. because the phone was sleeping,
+         * are not repeated.
+         */
+        public void schedule(long delayMillis, long periodMillis) {
+            DeviceTaskScheduler.this.schedule(this, delayMillis, periodMillis);
+        }
+
+        public void cancel() {
+            DeviceTaskScheduler.this.cancel(this);
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isScheduled() {
+            synchronized (DeviceTaskScheduler.this) {
+                return level >= 0;
+            }
+        }
+
+        public long getPeriodMillis() {
+            synchronized (DeviceTaskScheduler.this) {
+                return periodMillis;
+            }
+        }
+
+        /**
+         * Returns the wall clock time of the next run in milliseconds since the epoch,
+         * or -1 if the task is not scheduled.
+         */
+        public long getNextRunMillis() {
+            synchronized (DeviceTaskScheduler.this) {
+                if (level < 0) {
+                    return -1;
+                }
+                return System.currentTimeMillis() + deadlineMillis - now();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return owner + " " + name;
+        }
+    }
+}
@@ -14,21 +14,26 @@
     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
     GNU Affero General Public License for more details.
 
-    You should have received a copy of the GNU Affero General Public License
-    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service;
 
 import android.bluetooth.BluetoothAdapter;
 import android.content.Context;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
+import androidx.annotation.Nullable;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.Alarm;
 import nodomain.freeyourgadget.gadgetbridge.model.CalendarEventSpec;
@@ -38,9 +43,20 @@ import nodomain.freeyourgadget.gadgetbridge.model.MusicSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.MusicStateSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEMetrics;
 
 /**
  * Wraps another device support instance and supports busy-checking and throttling of events.
+ * <p/>
+ * Events are not dropped: while the device is busy (e.g. fetching activity data) or an event
+ * is throttled, it is queued and delivered later, by priority: calls first, then notifications,
+ * then other commands, and music, weather and time updates last. A newer update replaces a
+ * queued update of the same kind instead of being queued as well. Queued events are only
+ * discarded when the connection they were meant for is lost or replaced.
+ * <p/>
+ * The queue is drained on the thread of the Looper the first event was queued on (i.e. the
+ * thread of the device in the DeviceCommunicationService), as soon as the device is not busy
+ * anymore. The time the events waited is recorded in the {@link BtLEMetrics}.
  */
 public class ServiceDeviceSupport implements DeviceSupport {
 
@@ -49,15 +65,49 @@ public class ServiceDeviceSupport implements DeviceSupport {
         BUSY_CHECKING,
     }
 
+    /**
+     * The order queued events are delivered in.
+     */
+    enum Priority {
+        CALL,
+        NOTIFICATION,
+        COMMAND,
+        UPDATE,
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(ServiceDeviceSupport.class);
 
     private static final long THROTTLING_THRESHOLD = 1000; // throttle multiple events in between one second
+    /**
+     * How often to check whether the device is still busy while events are queued.
+     */
+    private static final long BUSY_CHECK_INTERVAL = 1000;
+    private static final int MAX_PENDING_COMMANDS = 256;
+
     private final DeviceSupport delegate;
 
     private long lastNotificationTime = 0;
     private String lastNotificationKind;
     private final EnumSet<Flags> flags;
 
+    private final PriorityQueue<PendingCommand> pendingCommands = new PriorityQueue<>();
+    private final Map<String, PendingCommand> coalescableCommands = new HashMap<>();
+    private long commandSequence;
+    private int maxPendingCommands;
+    private int coalescedCommands;
+    private Handler drainHandler;
+    private boolean drainScheduled;
+    /**
+     * Whether a queued event is being delivered, newer events must wait for it
+     */
+    private boolean delivering;
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainPendingCommands();
+        }
+    };
+
     public ServiceDeviceSupport(DeviceSupport delegate, EnumSet<Flags> flags) {
         this.delegate = delegate;
         this.flags = flags;
@@ -75,11 +125,13 @@ public class ServiceDeviceSupport implements DeviceSupport {
 
     @Override
     public boolean connectFirstTime() {
+        discardPendingCommands();
         return delegate.connectFirstTime();
     }
 
     @Override
     public boolean connect() {
+        discardPendingCommands();
         return delegate.connect();
     }
 
@@ -95,9 +147,25 @@ public class ServiceDeviceSupport implements DeviceSupport {
 
     @Override
     public void dispose() {
+        discardPendingCommands();
         delegate.dispose();
     }
 
+    /**
+     * Discards the queued events, they were meant for the previous connection.
+     */
+    private synchronized void discardPendingCommands() {
+        if (!pendingCommands.isEmpty()) {
+            LOG.info("Discarding " + pendingCommands.size() + " queued events");
+        }
+        pendingCommands.clear();
+        coalescableCommands.clear();
+        if (drainHandler != null) {
+            drainHandler.removeCallbacks(drainRunnable);
+        }
+        drainScheduled = false;
+    }
+
     @Override
     public GBDevice getDevice() {
         return delegate.getDevice();
@@ -123,285 +191,529 @@ public class ServiceDeviceSupport implements DeviceSupport {
         return delegate.useAutoConnect();
     }
 
-    private boolean checkBusy(String notificationKind) {
-        if (!flags.contains(Flags.BUSY_CHECKING)) {
-            return false;
+    /**
+     * Returns the number of events currently waiting to be delivered.
+     */
+    public synchronized int getPendingCommandCount() {
+        return pendingCommands.size();
+    }
+
+    /**
+     * Returns the highest number of events that were waiting at the same time.
+     */
+    public synchronized int getMaxPendingCommandCount() {
+        return maxPendingCommands;
+    }
+
+    /**
+     * Returns the number of queued events that were replaced by newer ones.
+     */
+    public synchronized int getCoalescedCommandCount() {
+        return coalescedCommands;
+    }
+
+    private boolean isBusy() {
+        return flags.contains(Flags.BUSY_CHECKING) && getDevice().isBusy();
+    }
+
+    /**
+     * Returns how long the given kind of event must still be delayed because of throttling,
+     * or 0 if it may be delivered now.
+     */
+    private long getThrottleDelay(String notificationKind) {
+        if (!flags.contains(Flags.THROTTLING)) {
+            return 0;
         }
-        if (getDevice().isBusy()) {
-            LOG.info("Ignoring " + notificationKind + " because we're busy with " + getDevice().getBusyTask());
-            return true;
+        long elapsed = System.currentTimeMillis() - lastNotificationTime;
+        if (elapsed < THROTTLING_THRESHOLD && notificationKind.equals(lastNotificationKind)) {
+            return THROTTLING_THRESHOLD - elapsed;
         }
-        return false;
+        return 0;
     }
 
-    private boolean checkThrottle(String notificationKind) {
-        if (!flags.contains(Flags.THROTTLING)) {
+    private void updateThrottle(String notificationKind) {
+        lastNotificationTime = System.currentTimeMillis();
+        lastNotificationKind = notificationKind;
+    }
+
+    /**
+     * Delivers the given event immediately if possible, or queues it.
+     * The delegate is called without holding the lock of the queue.
+     *
+     * @param notificationKind describes the event, for logging and throttling
+     * @param throttle         whether the event is subject to throttling
+     * @param coalesceKey      if not null, a queued event with the same key is replaced by this one
+     */
+    private void dispatch(String notificationKind, Priority priority, boolean throttle, @Nullable String coalesceKey, Runnable command) {
+        if (enqueue(notificationKind, priority, throttle, coalesceKey, command)) {
+            return;
+        }
+        command.run();
+    }
+
+    /**
+     * Queues the given event, unless it may be delivered immediately.
+     *
+     * @return false if the event must be delivered immediately by the caller
+     */
+    private synchronized boolean enqueue(String notificationKind, Priority priority, boolean throttle, @Nullable String coalesceKey, Runnable command) {
+        boolean busy = isBusy();
+        long throttleDelay = throttle ? getThrottleDelay(notificationKind) : 0;
+        if (pendingCommands.isEmpty() && !delivering && !busy && throttleDelay == 0) {
+            if (throttle) {
+                updateThrottle(notificationKind);
+            }
             return false;
         }
-        long currentTime = System.currentTimeMillis();
-        if ((currentTime - lastNotificationTime) < THROTTLING_THRESHOLD) {
-            if (notificationKind != null && notificationKind.equals(lastNotificationKind)) {
-                LOG.info("Ignoring " + notificationKind + " because of throttling threshold reached");
+
+        if (coalesceKey != null) {
+            PendingCommand queued = coalescableCommands.get(coalesceKey);
+            if (queued != null) {
+                LOG.debug("Replacing queued " + queued.kind + " with a newer one");
+                queued.command = command;
+                coalescedCommands++;
                 return true;
             }
         }
-        lastNotificationTime = currentTime;
-        lastNotificationKind = notificationKind;
-        return false;
+        if (pendingCommands.size() >= MAX_PENDING_COMMANDS && priority != Priority.CALL) {
+            LOG.warn("Ignoring " + notificationKind + " because too many events are queued");
+            return true;
+        }
+
+        PendingCommand pending = new PendingCommand(notificationKind, priority, throttle, coalesceKey, commandSequence++, command);
+        pendingCommands.add(pending);
+        if (coalesceKey != null) {
+            coalescableCommands.put(coalesceKey, pending);
+        }
+        maxPendingCommands = Math.max(maxPendingCommands, pendingCommands.size());
+        if (busy) {
+            LOG.info("Queueing " + notificationKind + " because we're busy with " + getDevice().getBusyTask());
+            scheduleDrain(BUSY_CHECK_INTERVAL);
+        } else if (delivering) {
+            LOG.info("Queueing " + notificationKind + " because queued events are being delivered");
+        } else {
+            LOG.info("Queueing " + notificationKind + " because of throttling threshold reached");
+            scheduleDrain(Math.max(throttleDelay, 1));
+        }
+        return true;
     }
 
-    @Override
-    public void onNotification(NotificationSpec notificationSpec) {
-        if (checkBusy("generic notification") || checkThrottle("generic notification")) {
+    private void scheduleDrain(long delayMillis) {
+        if (drainScheduled) {
             return;
         }
-        delegate.onNotification(notificationSpec);
+        if (drainHandler == null) {
+            Looper looper = Looper.myLooper();
+            drainHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+        }
+        drainScheduled = true;
+        drainHandler.postDelayed(drainRunnable, delayMillis);
+    }
+
+    /**
+     * Delivers the queued events, as long as the device is not busy and they are not throttled.
+     * Events queued while the device was disconnected in the meantime are discarded.
+     */
+    void drainPendingCommands() {
+        synchronized (this) {
+            drainScheduled = false;
+        }
+        PendingCommand next;
+        while ((next = nextPendingCommand()) != null) {
+            try {
+                next.command.run();
+            } catch (Exception e) {
+                LOG.error("Error delivering queued " + next.kind, e);
+            }
+        }
+    }
+
+    /**
+     * Removes the next event that may be delivered now from the queue.
+     *
+     * @return null if there is none, the queue is drained again later if necessary
+     */
+    @Nullable
+    private synchronized PendingCommand nextPendingCommand() {
+        delivering = false;
+        if (pendingCommands.isEmpty()) {
+            return null;
+        }
+        if (!getDevice().isConnected()) {
+            discardPendingCommands();
+            return null;
+        }
+        if (isBusy()) {
+            scheduleDrain(BUSY_CHECK_INTERVAL);
+            return null;
+        }
+        PendingCommand next = pendingCommands.peek();
+        if (next.throttle) {
+            long throttleDelay = getThrottleDelay(next.kind);
+            if (throttleDelay > 0) {
+                scheduleDrain(throttleDelay);
+                return null;
+            }
+            updateThrottle(next.kind);
+        }
+        pendingCommands.poll();
+        if (next.coalesceKey != null) {
+            coalescableCommands.remove(next.coalesceKey);
+        }
+        delivering = true;
+
+        long waitNanos = System.nanoTime() - next.queuedNanos;
+        BtLEMetrics.getInstance().record(getDevice().getAddress(), "event wait " + next.priority.name().toLowerCase(), null, waitNanos);
+        LOG.info("Delivering " + next.kind + " after " + TimeUnit.NANOSECONDS.toMillis(waitNanos) + "ms, " + pendingCommands.size() + " events still queued");
+        return next;
+    }
+
+    private static class PendingCommand implements Comparable<PendingCommand> {
+        final String kind;
+        final Priority priority;
+        final boolean throttle;
+        final String coalesceKey;
+        final long sequence;
+        final long queuedNanos = System.nanoTime();
+        Runnable command;
+
+        PendingCommand(String kind, Priority priority, boolean throttle, String coalesceKey, long sequence, Runnable command) {
+            this.kind = kind;
+            this.priority = priority;
+            this.throttle = throttle;
+            this.coalesceKey = coalesceKey;
+            this.sequence = sequence;
+            this.command = command;
+        }
+
+        @Override
+        public int compareTo(PendingCommand other) {
+            int result = priority.compareTo(other.priority);
+            if (result == 0) {
+                // first in, first out
+                result = sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+            }
+            return result;
+        }
     }
 
     @Override
-    public void onDeleteNotification(int id) {
-        delegate.onDeleteNotification(id);
+    public void onNotification(final NotificationSpec notificationSpec) {
+        dispatch("generic notification", Priority.NOTIFICATION, true, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onNotification(notificationSpec);
+            }
+        });
     }
 
     @Override
-    public void onSetTime() {
-        if (checkBusy("set time") || checkThrottle("set time")) {
-            return;
-        }
-        delegate.onSetTime();
+    public void onDeleteNotification(final int id) {
+        dispatch("delete notification", Priority.NOTIFICATION, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onDeleteNotification(id);
+            }
+        });
     }
 
-    // No throttling for the other events
+    @Override
+    public void onSetTime() {
+        dispatch("set time", Priority.UPDATE, true, "set time", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onSetTime();
+            }
+        });
+    }
 
     @Override
-    public void onSetCallState(CallSpec callSpec) {
-        if (checkBusy("set call state")) {
-            return;
-        }
-        delegate.onSetCallState(callSpec);
+    public void onSetCallState(final CallSpec callSpec) {
+        dispatch("set call state", Priority.CALL, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onSetCallState(callSpec);
+            }
+        });
     }
 
     @Override
-    public void onSetCannedMessages(CannedMessagesSpec cannedMessagesSpec) {
-        if (checkBusy("set canned messages")) {
-            return;
-        }
-        delegate.onSetCannedMessages(cannedMessagesSpec);
+    public void onSetCannedMessages(final CannedMessagesSpec cannedMessagesSpec) {
+        dispatch("set canned messages", Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onSetCannedMessages(cannedMessagesSpec);
+            }
+        });
     }
 
     @Override
-    public void onSetMusicState(MusicStateSpec stateSpec) {
-        if (checkBusy("set music state")) {
-            return;
-        }
-        delegate.onSetMusicState(stateSpec);
+    public void onSetMusicState(final MusicStateSpec stateSpec) {
+        dispatch("set music state", Priority.UPDATE, false, "set music state", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onSetMusicState(stateSpec);
+            }
+        });
     }
 
     @Override
-    public void onSetMusicInfo(MusicSpec musicSpec) {
-        if (checkBusy("set music info")) {
-            return;
-        }
-        delegate.onSetMusicInfo(musicSpec);
+    public void onSetMusicInfo(final MusicSpec musicSpec) {
+        dispatch("set music info", Priority.UPDATE, false, "set music info", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onSetMusicInfo(musicSpec);
+            }
+        });
     }
 
     @Override
-    public void onInstallApp(Uri uri) {
-        if (checkBusy("install app")) {
-            return;
-        }
-        delegate.onInstallApp(uri);
+    public void onInstallApp(final Uri uri) {
+        dispatch("install app", Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onInstallApp(uri);
+            }
+        });
     }
 
     @Override
     public void onAppInfoReq() {
-        if (checkBusy("app info request")) {
-            return;
-        }
-        delegate.onAppInfoReq();
+        dispatch("app info request", Priority.COMMAND, false, "app info request", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onAppInfoReq();
+            }
+        });
     }
 
     @Override
-    public void onAppStart(UUID uuid, boolean start) {
-        if (checkBusy("app start")) {
-            return;
-        }
-        delegate.onAppStart(uuid, start);
+    public void onAppStart(final UUID uuid, final boolean start) {
+        dispatch("app start", Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onAppStart(uuid, start);
+            }
+        });
     }
 
     @Override
-    public void onAppDelete(UUID uuid) {
-        if (checkBusy("app delete")) {
-            return;
-        }
-        delegate.onAppDelete(uuid);
+    public void onAppDelete(final UUID uuid) {
+        dispatch("app delete", Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onAppDelete(uuid);
+            }
+        });
     }
 
     @Override
-    public void onAppConfiguration(UUID uuid, String config, Integer id) {
-        if (checkBusy("app configuration")) {
-            return;
-        }
-        delegate.onAppConfiguration(uuid, config, id);
+    public void onAppConfiguration(final UUID uuid, final String config, final Integer id) {
+        dispatch("app configuration", Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onAppConfiguration(uuid, config, id);
+            }
+        });
     }
 
     @Override
-    public void onAppReorder(UUID[] uuids) {
-        if (checkBusy("app reorder")) {
-            return;
-        }
-        delegate.onAppReorder(uuids);
+    public void onAppReorder(final UUID[] uuids) {
+        dispatch("app reorder", Priority.COMMAND, false, "app reorder", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onAppReorder(uuids);
+            }
+        });
     }
 
     @Override
-    public void onFetchRecordedData(int dataTypes) {
-        if (checkBusy("fetch activity data")) {
-            return;
-        }
-        delegate.onFetchRecordedData(dataTypes);
+    public void onFetchRecordedData(final int dataTypes) {
+        dispatch("fetch activity data", Priority.COMMAND, false, "fetch activity data " + dataTypes, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onFetchRecordedData(dataTypes);
+            }
+        });
     }
 
     @Override
-    public void onReset(int flags) {
-        if (checkBusy("reset")) {
-            return;
-        }
-        delegate.onReset(flags);
+    public void onReset(final int flags) {
+        dispatch("reset", Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onReset(flags);
+            }
+        });
     }
 
     @Override
     public void onHeartRateTest() {
-        if (checkBusy("heartrate")) {
-            return;
-        }
-        delegate.onHeartRateTest();
+        dispatch("heartrate", Priority.COMMAND, false, "heartrate", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onHeartRateTest();
+            }
+        });
     }
 
     @Override
-    public void onFindDevice(boolean start) {
-        if (checkBusy("find device")) {
-            return;
-        }
-        delegate.onFindDevice(start);
+    public void onFindDevice(final boolean start) {
+        dispatch("find device", Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onFindDevice(start);
+            }
+        });
     }
 
     @Override
-    public void onSetConstantVibration(int intensity) {
-        if (checkBusy("set constant vibration")) {
-            return;
-        }
-        delegate.onSetConstantVibration(intensity);
+    public void onSetConstantVibration(final int intensity) {
+        dispatch("set constant vibration", Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onSetConstantVibration(intensity);
+            }
+        });
     }
 
     @Override
     public void onScreenshotReq() {
-        if (checkBusy("request screenshot")) {
-            return;
-        }
-        delegate.onScreenshotReq();
+        dispatch("request screenshot", Priority.COMMAND, false, "request screenshot", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onScreenshotReq();
+            }
+        });
     }
 
     @Override
-    public void onSetAlarms(ArrayList<? extends Alarm> alarms) {
-        if (checkBusy("set alarms")) {
-            return;
-        }
-        delegate.onSetAlarms(alarms);
+    public void onSetAlarms(final ArrayList<? extends Alarm> alarms) {
+        dispatch("set alarms", Priority.COMMAND, false, "set alarms", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onSetAlarms(alarms);
+            }
+        });
     }
 
     @Override
-    public void onEnableRealtimeSteps(boolean enable) {
-        if (checkBusy("enable realtime steps: " + enable)) {
-            return;
-        }
-        delegate.onEnableRealtimeSteps(enable);
+    public void onEnableRealtimeSteps(final boolean enable) {
+        dispatch("enable realtime steps: " + enable, Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onEnableRealtimeSteps(enable);
+            }
+        });
     }
 
     @Override
-    public void onEnableHeartRateSleepSupport(boolean enable) {
-        if (checkBusy("enable heart rate sleep support: " + enable)) {
-            return;
-        }
-        delegate.onEnableHeartRateSleepSupport(enable);
+    public void onEnableHeartRateSleepSupport(final boolean enable) {
+        dispatch("enable heart rate sleep support: " + enable, Priority.COMMAND, false, "enable heart rate sleep support", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onEnableHeartRateSleepSupport(enable);
+            }
+        });
     }
 
     @Override
-    public void onSetHeartRateMeasurementInterval(int seconds) {
-        if (checkBusy("set heart rate measurement interval: " + seconds + "s")) {
-            return;
-        }
-        delegate.onSetHeartRateMeasurementInterval(seconds);
+    public void onSetHeartRateMeasurementInterval(final int seconds) {
+        dispatch("set heart rate measurement interval: " + seconds + "s", Priority.COMMAND, false, "set heart rate measurement interval", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onSetHeartRateMeasurementInterval(seconds);
+            }
+        });
     }
 
     @Override
-    public void onEnableRealtimeHeartRateMeasurement(boolean enable) {
-        if (checkBusy("enable realtime heart rate measurement: " + enable)) {
-            return;
-        }
-        delegate.onEnableRealtimeHeartRateMeasurement(enable);
+    public void onEnableRealtimeHeartRateMeasurement(final boolean enable) {
+        dispatch("enable realtime heart rate measurement: " + enable, Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onEnableRealtimeHeartRateMeasurement(enable);
+            }
+        });
     }
 
     @Override
-    public void onAddCalendarEvent(CalendarEventSpec calendarEventSpec) {
-        if (checkBusy("add calendar event")) {
-            return;
-        }
-        delegate.onAddCalendarEvent(calendarEventSpec);
+    public void onAddCalendarEvent(final CalendarEventSpec calendarEventSpec) {
+        dispatch("add calendar event", Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onAddCalendarEvent(calendarEventSpec);
+            }
+        });
     }
 
     @Override
-    public void onDeleteCalendarEvent(byte type, long id) {
-        if (checkBusy("delete calendar event")) {
-            return;
-        }
-        delegate.onDeleteCalendarEvent(type, id);
+    public void onDeleteCalendarEvent(final byte type, final long id) {
+        dispatch("delete calendar event", Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onDeleteCalendarEvent(type, id);
+            }
+        });
     }
 
     @Override
-    public void onSendConfiguration(String config) {
-        if (checkBusy("send configuration: " + config)) {
-            return;
-        }
-        delegate.onSendConfiguration(config);
+    public void onSendConfiguration(final String config) {
+        dispatch("send configuration: " + config, Priority.COMMAND, false, "send configuration: " + config, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onSendConfiguration(config);
+            }
+        });
     }
 
     @Override
-    public void onReadConfiguration(String config) {
-        if (checkBusy("read configuration: " + config)) {
-            return;
-        }
-        delegate.onReadConfiguration(config);
+    public void onReadConfiguration(final String config) {
+        dispatch("read configuration: " + config, Priority.COMMAND, false, "read configuration: " + config, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onReadConfiguration(config);
+            }
+        });
     }
 
     @Override
     public void onTestNewFunction() {
-        if (checkBusy("test new function event")) {
-            return;
-        }
-        delegate.onTestNewFunction();
+        dispatch("test new function event", Priority.COMMAND, false, null, new Runnable() {
+            @Override
+            public void run() {
+                delegate.onTestNewFunction();
+            }
+        });
     }
 
     @Override
-    public void onSendWeather(WeatherSpec weatherSpec) {
-        if (checkBusy("send weather event")) {
-            return;
-        }
-        delegate.onSendWeather(weatherSpec);
+    public void onSendWeather(final WeatherSpec weatherSpec) {
+        dispatch("send weather event", Priority.UPDATE, false, "send weather event", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onSendWeather(weatherSpec);
+            }
+        });
     }
 
     @Override
-    public void onSetFmFrequency(float frequency) {
-        if (checkBusy("set frequency event")) {
-            return;
-        }
-        delegate.onSetFmFrequency(frequency);
+    public void onSetFmFrequency(final float frequency) {
+        dispatch("set frequency event", Priority.COMMAND, false, "set frequency event", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onSetFmFrequency(frequency);
+            }
+        });
     }
 
     @Override
-    public void onSetLedColor(int color) {
-        if (checkBusy("set led color event")) {
-            return;
-        }
-        delegate.onSetLedColor(color);
+    public void onSetLedColor(final int color) {
+        dispatch("set led color event", Priority.COMMAND, false, "set led color event", new Runnable() {
+            @Override
+            public void run() {
+                delegate.onSetLedColor(color);
+            }
+        });
     }
 }
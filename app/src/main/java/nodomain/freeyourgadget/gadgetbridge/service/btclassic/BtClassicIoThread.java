@@ -34,6 +34,7 @@ import java.util.UUID;
 import androidx.annotation.NonNull;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEvent;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.service.capture.TrafficRecorder;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.AbstractSerialDeviceSupport;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceIoThread;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceProtocol;
@@ -82,7 +83,10 @@ public abstract class BtClassicIoThread extends GBDeviceIoThread {
             LOG.error("mOutStream is null");
             return;
         }
-        LOG.debug("writing:" + GB.hexdump(bytes, 0, bytes.length));
+        TrafficRecorder.getInstance().record(gbDevice.getAddress(), null, TrafficRecorder.DIRECTION_OUT, bytes);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("writing:" + GB.hexdump(bytes, 0, bytes.length));
+        }
         try {
             mOutStream.write(bytes);
             mOutStream.flush();
@@ -104,7 +108,9 @@ public abstract class BtClassicIoThread extends GBDeviceIoThread {
             LOG.info("Ready for a new message exchange.");
 
             try {
-                GBDeviceEvent deviceEvents[] = mProtocol.decodeResponse(parseIncoming(mInStream));
+                byte[] incoming = parseIncoming(mInStream);
+                TrafficRecorder.getInstance().record(gbDevice.getAddress(), null, TrafficRecorder.DIRECTION_IN, incoming);
+                GBDeviceEvent deviceEvents[] = mProtocol.decodeResponse(incoming);
                 if (deviceEvents == null) {
                     LOG.info("unhandled message");
                 } else {
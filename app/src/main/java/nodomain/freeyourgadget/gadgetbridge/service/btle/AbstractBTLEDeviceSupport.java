@@ -34,6 +34,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
+import androidx.annotation.VisibleForTesting;
 import nodomain.freeyourgadget.gadgetbridge.Logging;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.service.AbstractDeviceSupport;
@@ -187,6 +188,15 @@ public abstract class AbstractBTLEDeviceSupport extends AbstractDeviceSupport im
         return mQueue;
     }
 
+    /**
+     * Replaces the queue created by #connect(), e.g. with an offline queue for replaying
+     * recorded traffic.
+     */
+    @VisibleForTesting
+    void setQueue(BtLEQueue queue) {
+        mQueue = queue;
+    }
+
     /**
      * Subclasses should call this method to add services they support.
      * Only supported services will be queried for characteristics.
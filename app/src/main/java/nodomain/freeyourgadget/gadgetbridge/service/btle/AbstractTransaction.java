@@ -24,6 +24,7 @@ import java.util.Locale;
 public abstract class AbstractTransaction {
     private final String mName;
     private final long creationTimestamp = System.currentTimeMillis();
+    private long queuedNanos;
 
     public AbstractTransaction(String taskName) {
         this.mName = taskName;
@@ -33,6 +34,17 @@ public abstract class AbstractTransaction {
         return mName;
     }
 
+    void setQueuedNanos(long queuedNanos) {
+        this.queuedNanos = queuedNanos;
+    }
+
+    /**
+     * Returns the System#nanoTime() when this transaction was added to the queue, or 0.
+     */
+    long getQueuedNanos() {
+        return queuedNanos;
+    }
+
     protected String getCreationTime() {
         return DateFormat.getTimeInstance(DateFormat.MEDIUM).format(new Date(creationTimestamp));
     }
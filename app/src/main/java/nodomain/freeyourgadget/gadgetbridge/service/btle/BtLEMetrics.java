@@ -0,0 +1,182 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Collects latency histograms of the BLE communication, per device, per characteristic
+ * and per action type, e.g. how long transactions wait in the queue, how long the device
+ * takes to respond to a write and how long handling a notification takes on the phone.
+ * <p/>
+ * The histograms are dumped to the log periodically and can be viewed in the DebugActivity.
+ */
+public class BtLEMetrics {
+    private static final Logger LOG = LoggerFactory.getLogger(BtLEMetrics.class);
+    private static final BtLEMetrics instance = new BtLEMetrics();
+
+    private static final long DUMP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    /** Time between queueing a transaction and the start of its execution */
+    public static final String QUEUE_DELAY = "queue delay";
+    /** Time the queue waited for the device to be connected */
+    public static final String CONNECTION_WAIT = "connection wait";
+    /** Execution time of a whole transaction */
+    public static final String TRANSACTION = "transaction";
+    /** Time spent in the GattCallback for a changed characteristic */
+    public static final String NOTIFICATION_HANDLING = "notification handling";
+    /** Time between receiving a changed characteristic and handing it to the GattCallback */
+    public static final String NOTIFICATION_DELAY = "notification delay";
+    /** Time the binder thread waited for a free slot, because all slots were in use */
+    public static final String NOTIFICATION_BLOCKED = "notification blocked";
+
+    private final Map<String, Map<String, Histogram>> devices = new TreeMap<>();
+    private long lastDumpMillis = System.currentTimeMillis();
+
+    public static BtLEMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Records a duration for the given device and metric, optionally per characteristic.
+     * Actions are recorded with the name of their class as the metric.
+     */
+    public void record(String deviceAddress, String metric, @Nullable UUID characteristic, long nanos) {
+        String key = characteristic != null ? metric + " " + characteristic : metric;
+        synchronized (devices) {
+            Map<String, Histogram> histograms = devices.get(deviceAddress);
+            if (histograms == null) {
+                histograms = new TreeMap<>();
+                devices.put(deviceAddress, histograms);
+            }
+            Histogram histogram = histograms.get(key);
+            if (histogram == null) {
+                histogram = new Histogram();
+                histograms.put(key, histogram);
+            }
+            histogram.add(nanos);
+        }
+    }
+
+    public void recordAction(String deviceAddress, BtLEAction action, long nanos) {
+        record(deviceAddress, action.getClass().getSimpleName(), action.getCharacteristic() != null ? action.getCharacteristic().getUuid() : null, nanos);
+    }
+
+    /**
+     * Writes all histograms to the log, if the last dump is older than the dump interval.
+     */
+    public void dumpPeriodically() {
+        synchronized (devices) {
+            long now = System.currentTimeMillis();
+            if (now - lastDumpMillis < DUMP_INTERVAL_MILLIS || devices.isEmpty()) {
+                return;
+            }
+            lastDumpMillis = now;
+        }
+        LOG.info("BLE metrics:\n" + dump());
+    }
+
+    /**
+     * Returns all histograms as text, grouped by device.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (devices) {
+            for (Map.Entry<String, Map<String, Histogram>> device : devices.entrySet()) {
+                builder.append(device.getKey()).append('\n');
+                for (Map.Entry<String, Histogram> entry : device.getValue().entrySet()) {
+                    builder.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    public void reset() {
+        synchronized (devices) {
+            devices.clear();
+        }
+    }
+
+    /**
+     * A histogram with exponential buckets: below 1ms, below 2ms, below 4ms, ... and above.
+     */
+    static class Histogram {
+        private static final int BUCKETS = 16;
+
+        private final long[] counts = new long[BUCKETS];
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        void add(long nanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(Math.max(0, nanos));
+            int bucket = 0;
+            while (bucket < BUCKETS - 1 && millis >= (1L << bucket)) {
+                bucket++;
+            }
+            counts[bucket]++;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        /**
+         * Returns the upper bound in milliseconds of the bucket containing the given
+         * percentile, or -1 if it is in the last, unbounded bucket.
+         */
+        long getPercentileMillis(int percentile) {
+            long threshold = (count * percentile + 99) / 100;
+            long sum = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                sum += counts[i];
+                if (sum >= threshold) {
+                    return i < BUCKETS - 1 ? 1L << i : -1;
+                }
+            }
+            return -1;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d avg=%.1fms max=%dms p50<%s p90<%s p99<%s",
+                    count,
+                    count > 0 ? totalNanos / 1000000d / count : 0d,
+                    TimeUnit.NANOSECONDS.toMillis(maxNanos),
+                    formatBound(getPercentileMillis(50)),
+                    formatBound(getPercentileMillis(90)),
+                    formatBound(getPercentileMillis(99)));
+        }
+
+        private static String formatBound(long millis) {
+            return millis < 0 ? "inf" : millis + "ms";
+        }
+    }
+}
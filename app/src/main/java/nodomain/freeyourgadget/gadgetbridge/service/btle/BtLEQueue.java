@@ -30,6 +30,7 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Looper;
 
@@ -45,12 +46,16 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
-import nodomain.freeyourgadget.gadgetbridge.Logging;
+import nodomain.freeyourgadget.gadgetbridge.activities.devicesettings.DeviceSettingsPreferenceConst;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice.State;
 import nodomain.freeyourgadget.gadgetbridge.service.DeviceSupport;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WriteAction;
+import nodomain.freeyourgadget.gadgetbridge.service.capture.TrafficRecorder;
 import nodomain.freeyourgadget.gadgetbridge.service.receivers.AutoConnectIntervalReceiver;
+import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
 
 /**
  * One queue/thread per connectable device.
@@ -76,8 +81,11 @@ public final class BtLEQueue {
     private CountDownLatch mWaitForServerActionResultLatch;
     private CountDownLatch mConnectionLatch;
     private BluetoothGattCharacteristic mWaitCharacteristic;
+    private volatile WritePipeline mWritePipeline;
+    private final BtLEMetrics mMetrics = BtLEMetrics.getInstance();
     private final InternalGattCallback internalGattCallback;
     private final InternalGattServerCallback internalGattServerCallback;
+    private final GattNotificationLoop mNotificationLoop;
     private boolean mAutoReconnect;
 
     private Thread dispatchThread = new Thread("Gadgetbridge GATT Dispatcher") {
@@ -89,6 +97,10 @@ public final class BtLEQueue {
             while (!mDisposed && !mCrashed) {
                 try {
                     AbstractTransaction qTransaction = mTransactions.take();
+                    long transactionStart = System.nanoTime();
+                    if (qTransaction.getQueuedNanos() != 0) {
+                        mMetrics.record(mGbDevice.getAddress(), BtLEMetrics.QUEUE_DELAY, null, transactionStart - qTransaction.getQueuedNanos());
+                    }
 
                     if (!isConnected()) {
                         LOG.debug("not connected, waiting for connection...");
@@ -101,8 +113,11 @@ public final class BtLEQueue {
                         // devices have different kinds of initializations and this class has no
                         // idea about them.
                         mConnectionLatch = new CountDownLatch(1);
+                        long connectionWaitStart = System.nanoTime();
                         mConnectionLatch.await();
+                        mMetrics.record(mGbDevice.getAddress(), BtLEMetrics.CONNECTION_WAIT, null, System.nanoTime() - connectionWaitStart);
                         mConnectionLatch = null;
+                        transactionStart = System.nanoTime();
                     }
 
                     if(qTransaction instanceof ServerTransaction) {
@@ -139,12 +154,37 @@ public final class BtLEQueue {
                         Transaction transaction = (Transaction)qTransaction;
                         internalGattCallback.setTransactionGattCallback(transaction.getGattCallback());
                         mAbortTransaction = false;
+                        TransactionStatistics statistics = new TransactionStatistics();
+                        WritePipeline pipeline = null;
+                        if (transaction.getWriteWindow() > 0) {
+                            pipeline = new WritePipeline(transaction.getWriteWindow());
+                            mWritePipeline = pipeline;
+                        }
                         // Run all actions of the transaction until one doesn't succeed
                         for (BtLEAction action : transaction.getActions()) {
                             if (mAbortTransaction) { // got disconnected
                                 LOG.info("Aborting running transaction");
                                 break;
                             }
+                            if (pipeline != null) {
+                                boolean pipelined = canPipeline(action);
+                                if (!pipelined || !pipeline.isWritingTo(action.getCharacteristic())) {
+                                    // all other actions must wait until the pending writes are done
+                                    long waitStart = System.nanoTime();
+                                    boolean drained = pipeline.drain();
+                                    statistics.addWait(System.nanoTime() - waitStart);
+                                    if (!drained) {
+                                        LOG.info("Aborting running transaction");
+                                        break;
+                                    }
+                                }
+                                if (pipelined) {
+                                    if (!runPipelined((WriteAction) action, pipeline, statistics)) {
+                                        break;
+                                    }
+                                    continue;
+                                }
+                            }
                             mWaitCharacteristic = action.getCharacteristic();
                             mWaitForActionResultLatch = new CountDownLatch(1);
                             if (LOG.isDebugEnabled()) {
@@ -155,11 +195,19 @@ public final class BtLEQueue {
                                 // always be the last action in the transaction
                                 internalGattCallback.setTransactionGattCallback(((GattListenerAction) action).getGattCallback());
                             }
+                            long actionStart = System.nanoTime();
                             if (action.run(mBluetoothGatt)) {
+                                if (action instanceof WriteAction) {
+                                    statistics.addWrite(((WriteAction) action).getValue().length, false);
+                                }
                                 // check again, maybe due to some condition, action did not need to write, so we can't wait
                                 boolean waitForResult = action.expectsResult();
                                 if (waitForResult) {
+                                    long waitStart = System.nanoTime();
                                     mWaitForActionResultLatch.await();
+                                    long now = System.nanoTime();
+                                    statistics.addWait(now - waitStart);
+                                    mMetrics.recordAction(mGbDevice.getAddress(), action, now - actionStart);
                                     mWaitForActionResultLatch = null;
                                     if (mAbortTransaction) {
                                         break;
@@ -170,6 +218,20 @@ public final class BtLEQueue {
                                 break; // abort the transaction
                             }
                         }
+                        if (pipeline != null) {
+                            // the next transaction may only start when all writes are done
+                            long waitStart = System.nanoTime();
+                            pipeline.drain();
+                            statistics.addWait(System.nanoTime() - waitStart);
+                        }
+                        statistics.finish();
+                        mMetrics.record(mGbDevice.getAddress(), BtLEMetrics.TRANSACTION, null, System.nanoTime() - transactionStart);
+                        mMetrics.dumpPeriodically();
+                        if (statistics.getPipelinedWrites() > 0) {
+                            LOG.info("Transaction " + transaction.getTaskName() + ": " + statistics);
+                        } else if (LOG.isDebugEnabled() && statistics.getWrites() > 0) {
+                            LOG.debug("Transaction " + transaction.getTaskName() + ": " + statistics);
+                        }
                     }
                 } catch (InterruptedException ignored) {
                     mConnectionLatch = null;
@@ -181,21 +243,104 @@ public final class BtLEQueue {
                 } finally {
                     mWaitForActionResultLatch = null;
                     mWaitCharacteristic = null;
+                    mWritePipeline = null;
                 }
             }
             LOG.info("Queue Dispatch Thread terminated.");
         }
     };
 
+    private boolean canPipeline(BtLEAction action) {
+        // subclasses of WriteAction may depend on the result of the write
+        if (action.getClass() != WriteAction.class) {
+            return false;
+        }
+        BluetoothGattCharacteristic characteristic = action.getCharacteristic();
+        return characteristic != null && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) > 0;
+    }
+
+    /**
+     * Sends the given write without response as soon as the pipeline has a credit for it.
+     * Android only accepts a new write after the previous one was confirmed by the stack, so
+     * if a write is rejected while others are in flight, it is retried after the next
+     * confirmation.
+     *
+     * @return false if the transaction must be aborted
+     */
+    private boolean runPipelined(WriteAction action, WritePipeline pipeline, TransactionStatistics statistics) throws InterruptedException {
+        BluetoothGattCharacteristic characteristic = action.getCharacteristic();
+        mWaitCharacteristic = null;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("About to run pipelined action: " + action);
+        }
+        while (true) {
+            long waitStart = System.nanoTime();
+            boolean acquired = pipeline.acquire(characteristic);
+            statistics.addWait(System.nanoTime() - waitStart);
+            if (!acquired || mAbortTransaction) {
+                LOG.info("Aborting running transaction");
+                return false;
+            }
+            int writeType = characteristic.getWriteType();
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            boolean success = action.run(mBluetoothGatt);
+            characteristic.setWriteType(writeType);
+            if (success) {
+                statistics.addWrite(action.getValue().length, true);
+                return true;
+            }
+            waitStart = System.nanoTime();
+            boolean retry = pipeline.cancelAndAwaitRetry();
+            statistics.addWait(System.nanoTime() - waitStart);
+            if (!retry) {
+                LOG.error("Action returned false: " + action);
+                return false;
+            }
+        }
+    }
+
     public BtLEQueue(BluetoothAdapter bluetoothAdapter, GBDevice gbDevice, GattCallback externalGattCallback, GattServerCallback externalGattServerCallback, Context context, Set<BluetoothGattService> supportedServerServices) {
+        this(bluetoothAdapter, gbDevice, externalGattCallback, externalGattServerCallback, context, supportedServerServices, true);
+    }
+
+    private BtLEQueue(BluetoothAdapter bluetoothAdapter, GBDevice gbDevice, GattCallback externalGattCallback, GattServerCallback externalGattServerCallback, Context context, Set<BluetoothGattService> supportedServerServices, boolean start) {
         mBluetoothAdapter = bluetoothAdapter;
         mGbDevice = gbDevice;
         internalGattCallback = new InternalGattCallback(externalGattCallback);
         internalGattServerCallback = new InternalGattServerCallback(externalGattServerCallback);
         mContext = context;
         mSupportedServerServices = supportedServerServices;
+        mNotificationLoop = new GattNotificationLoop(gbDevice.getAddress(), getNotificationCapacity(gbDevice));
+
+        if (start) {
+            dispatchThread.start();
+            mNotificationLoop.start();
+        }
+    }
+
+    private static int getNotificationCapacity(GBDevice gbDevice) {
+        SharedPreferences devicePrefs = GBApplication.getDeviceSpecificSharedPrefs(gbDevice.getAddress());
+        if (devicePrefs == null) {
+            return GattNotificationLoop.DEFAULT_CAPACITY;
+        }
+        return new Prefs(devicePrefs).getInt(DeviceSettingsPreferenceConst.PREF_GATT_NOTIFICATION_CAPACITY, GattNotificationLoop.DEFAULT_CAPACITY);
+    }
 
-        dispatchThread.start();
+    /**
+     * Creates a queue that never connects and only collects the transactions added to it,
+     * for feeding recorded traffic into a device support without a device.
+     */
+    @VisibleForTesting
+    static BtLEQueue createOffline(GBDevice gbDevice, Context context) {
+        return new BtLEQueue(null, gbDevice, null, null, context, Collections.<BluetoothGattService>emptySet(), false);
+    }
+
+    /**
+     * Returns the number of transactions waiting to be executed.
+     */
+    @VisibleForTesting
+    int getPendingTransactionCount() {
+        return mTransactions.size();
     }
 
     public void setAutoReconnect(boolean enable) {
@@ -296,6 +441,10 @@ public final class BtLEQueue {
         if (mWaitForActionResultLatch != null) {
             mWaitForActionResultLatch.countDown();
         }
+        WritePipeline pipeline = mWritePipeline;
+        if (pipeline != null) {
+            pipeline.abort();
+        }
         if (mWaitForServerActionResultLatch != null) {
             mWaitForServerActionResultLatch.countDown();
         }
@@ -343,11 +492,13 @@ public final class BtLEQueue {
             dispatchThread.interrupt();
           }
           dispatchThread.join();
-          disconnect();
-          dispatchThread = null;
         } catch (InterruptedException ex) {
-            LOG.error("Exception while disposing BtLEQueue", ex);
+            LOG.error("Interrupted while waiting for the dispatch thread, disposing anyway", ex);
+            Thread.currentThread().interrupt();
         }
+        disconnect();
+        dispatchThread = null;
+        mNotificationLoop.dispose();
     }
 
     /**
@@ -358,6 +509,7 @@ public final class BtLEQueue {
     public void add(Transaction transaction) {
         LOG.debug("about to add: " + transaction);
         if (!transaction.isEmpty()) {
+            transaction.setQueuedNanos(System.nanoTime());
             mTransactions.add(transaction);
         }
     }
@@ -370,6 +522,7 @@ public final class BtLEQueue {
     public void add(ServerTransaction transaction) {
         LOG.debug("about to add: " + transaction);
         if(!transaction.isEmpty()) {
+            transaction.setQueuedNanos(System.nanoTime());
             mTransactions.add(transaction);
         }
     }
@@ -390,6 +543,7 @@ public final class BtLEQueue {
                 tail.add(t);
             }
             mTransactions.clear();
+            transaction.setQueuedNanos(System.nanoTime());
             mTransactions.add(transaction);
             mTransactions.addAll(tail);
         }
@@ -455,7 +609,7 @@ public final class BtLEQueue {
         }
 
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
             LOG.debug("connection state change, newState: " + newState + getStatusString(status));
 
             synchronized (mGattMonitor) {
@@ -468,6 +622,16 @@ public final class BtLEQueue {
                 return;
             }
 
+            // in order with the notifications, e.g. those received right before disconnecting
+            mNotificationLoop.enqueueResult(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnectionStateChange(gatt, status, newState);
+                }
+            });
+        }
+
+        private void handleConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             if (status != BluetoothGatt.GATT_SUCCESS) {
                 LOG.warn("connection state event with error status " + status);
             }
@@ -480,7 +644,7 @@ public final class BtLEQueue {
                     List<BluetoothGattService> cachedServices = gatt.getServices();
                     if (cachedServices != null && cachedServices.size() > 0) {
                         LOG.info("Using cached services, skipping discovery");
-                        onServicesDiscovered(gatt, BluetoothGatt.GATT_SUCCESS);
+                        handleServicesDiscovered(gatt, BluetoothGatt.GATT_SUCCESS);
                     } else {
                         LOG.info("Attempting to start service discovery");
                         // discover services in the main thread (appears to fix Samsung connection problems)
@@ -506,11 +670,19 @@ public final class BtLEQueue {
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
             if (!checkCorrectGattInstance(gatt, "services discovered: " + getStatusString(status))) {
                 return;
             }
+            mNotificationLoop.enqueueResult(new Runnable() {
+                @Override
+                public void run() {
+                    handleServicesDiscovered(gatt, status);
+                }
+            });
+        }
 
+        private void handleServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 if (getCallbackToUse() != null) {
                     // only propagate the successful event
@@ -525,14 +697,36 @@ public final class BtLEQueue {
         }
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
             LOG.debug("characteristic write: " + characteristic.getUuid() + getStatusString(status));
             if (!checkCorrectGattInstance(gatt, "characteristic write")) {
                 return;
             }
+            // in order with the notifications
+            mNotificationLoop.enqueueResult(new Runnable() {
+                @Override
+                public void run() {
+                    handleCharacteristicWrite(gatt, characteristic, status);
+                }
+            });
+        }
+
+        private void handleCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             if (getCallbackToUse() != null) {
                 getCallbackToUse().onCharacteristicWrite(gatt, characteristic, status);
             }
+            WritePipeline pipeline = mWritePipeline;
+            long pipelinedNanos = pipeline != null ? pipeline.written(characteristic) : -1;
+            if (pipelinedNanos >= 0) {
+                // same metric as a queued WriteAction, from sending until the confirmation
+                mMetrics.record(mGbDevice.getAddress(), WriteAction.class.getSimpleName(), characteristic.getUuid(), pipelinedNanos);
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    LOG.debug("failed pipelined write, aborting transaction: " + characteristic.getUuid() + getStatusString(status));
+                    mAbortTransaction = true;
+                    pipeline.abort();
+                }
+                return;
+            }
             checkWaitingCharacteristic(characteristic, status);
         }
 
@@ -550,13 +744,27 @@ public final class BtLEQueue {
 
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
+        public void onCharacteristicRead(final BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
-                                         int status) {
+                                         final int status) {
             LOG.debug("characteristic read: " + characteristic.getUuid() + getStatusString(status));
             if (!checkCorrectGattInstance(gatt, "characteristic read")) {
                 return;
             }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                TrafficRecorder.getInstance().record(mGbDevice.getAddress(), characteristic.getUuid(), TrafficRecorder.DIRECTION_READ, characteristic.getValue());
+            }
+            // in order with the notifications, which overwrite the value in the meantime
+            final BluetoothGattCharacteristic snapshot = new GattNotificationLoop.CharacteristicSnapshot(characteristic, characteristic.getValue());
+            mNotificationLoop.enqueueResult(new Runnable() {
+                @Override
+                public void run() {
+                    handleCharacteristicRead(gatt, snapshot, status);
+                }
+            });
+        }
+
+        private void handleCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             if (getCallbackToUse() != null) {
                 try {
                     getCallbackToUse().onCharacteristicRead(gatt, characteristic, status);
@@ -568,11 +776,20 @@ public final class BtLEQueue {
         }
 
         @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        public void onDescriptorRead(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
             LOG.debug("descriptor read: " + descriptor.getUuid() + getStatusString(status));
             if (!checkCorrectGattInstance(gatt, "descriptor read")) {
                 return;
             }
+            mNotificationLoop.enqueueResult(new Runnable() {
+                @Override
+                public void run() {
+                    handleDescriptorRead(gatt, descriptor, status);
+                }
+            });
+        }
+
+        private void handleDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             if (getCallbackToUse() != null) {
                 try {
                     getCallbackToUse().onDescriptorRead(gatt, descriptor, status);
@@ -584,11 +801,20 @@ public final class BtLEQueue {
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        public void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
             LOG.debug("descriptor write: " + descriptor.getUuid() + getStatusString(status));
             if (!checkCorrectGattInstance(gatt, "descriptor write")) {
                 return;
             }
+            mNotificationLoop.enqueueResult(new Runnable() {
+                @Override
+                public void run() {
+                    handleDescriptorWrite(gatt, descriptor, status);
+                }
+            });
+        }
+
+        private void handleDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             if (getCallbackToUse() != null) {
                 try {
                     getCallbackToUse().onDescriptorWrite(gatt, descriptor, status);
@@ -602,19 +828,13 @@ public final class BtLEQueue {
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            if (LOG.isDebugEnabled()) {
-                String content = Logging.formatBytes(characteristic.getValue());
-                LOG.debug("characteristic changed: " + characteristic.getUuid() + " value: " + content);
-            }
             if (!checkCorrectGattInstance(gatt, "characteristic changed")) {
                 return;
             }
-            if (getCallbackToUse() != null) {
-                try {
-                    getCallbackToUse().onCharacteristicChanged(gatt, characteristic);
-                } catch (Throwable ex) {
-                    LOG.error("onCharaceristicChanged: " + ex.getMessage(), ex);
-                }
+            GattCallback callback = getCallbackToUse();
+            if (callback != null) {
+                // handled on the notification thread, the binder thread only copies the value
+                mNotificationLoop.enqueue(gatt, characteristic, callback);
             } else {
                 LOG.info("No gattcallback registered, ignoring characteristic change");
             }
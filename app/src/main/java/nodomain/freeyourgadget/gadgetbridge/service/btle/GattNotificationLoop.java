@@ -0,0 +1,414 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import androidx.annotation.Nullable;
+import nodomain.freeyourgadget.gadgetbridge.Logging;
+import nodomain.freeyourgadget.gadgetbridge.activities.devicesettings.DeviceSettingsPreferenceConst;
+import nodomain.freeyourgadget.gadgetbridge.service.capture.TrafficRecorder;
+
+/**
+ * Hands changed characteristics over from the Bluetooth binder thread to a separate thread
+ * per device, so that slow handlers (e.g. writing activity data to the database) do not
+ * stall the other GATT callbacks.
+ * <p/>
+ * The binder thread only copies the value into one of the preallocated slots. The results
+ * of reads and writes and the connection events are passed through the same slots, so that
+ * the handlers see them in the order in which they were received, relative to the
+ * notifications. Nothing is ever dropped: when all slots are in use, the pool grows up to
+ * the capacity configured for the device. Beyond that, the binder thread waits for a free
+ * slot, so that the Bluetooth stack is slowed down instead of losing data.
+ * <p/>
+ * The handlers get a snapshot of the characteristic with the received value, because the
+ * value of the original characteristic is overwritten by the next notification.
+ */
+final class GattNotificationLoop {
+    private static final Logger LOG = LoggerFactory.getLogger(GattNotificationLoop.class);
+
+    /**
+     * The number of slots that are allocated up front
+     */
+    static final int INITIAL_SLOTS = 64;
+    /**
+     * The default for the maximum number of slots, see
+     * {@link DeviceSettingsPreferenceConst#PREF_GATT_NOTIFICATION_CAPACITY}
+     */
+    static final int DEFAULT_CAPACITY = 1024;
+    /**
+     * The maximum length of an attribute value, larger values get a buffer of their own.
+     */
+    static final int SLOT_SIZE = 512;
+    private static final long DISPOSE_TIMEOUT_MILLIS = 1000;
+
+    private final String mDeviceAddress;
+    private final int mCapacity;
+    private final BtLEMetrics mMetrics = BtLEMetrics.getInstance();
+    private final TrafficRecorder mRecorder = TrafficRecorder.getInstance();
+    private final Thread mThread;
+
+    private byte[][] mBuffers;
+    private byte[][] mOversized;
+    private int[] mLengths;
+    private long[] mReceivedNanos;
+    private BluetoothGatt[] mGatts;
+    private BluetoothGattCharacteristic[] mCharacteristics;
+    private GattCallback[] mCallbacks;
+    /**
+     * Set for the slots that hold the result of a read or write, or a connection event,
+     * instead of a notification
+     */
+    private Runnable[] mResults;
+    private int mHead;
+    private int mCount;
+    private int mMaxCount;
+    private long mBlockedCount;
+    private boolean mDisposed;
+
+    /**
+     * @param capacity the maximum number of pending notifications and results, before the
+     *                 binder thread has to wait
+     */
+    GattNotificationLoop(String deviceAddress, int capacity) {
+        mDeviceAddress = deviceAddress;
+        mCapacity = Math.max(1, capacity);
+        allocate(Math.min(INITIAL_SLOTS, mCapacity));
+        for (int i = 0; i < mBuffers.length; i++) {
+            mBuffers[i] = new byte[SLOT_SIZE];
+        }
+        mThread = new Thread("Gadgetbridge GATT Notifications") {
+            @Override
+            public void run() {
+                LOG.debug("Notification thread started.");
+                try {
+                    loop();
+                } catch (InterruptedException ex) {
+                    LOG.debug("Notification thread interrupted");
+                }
+                LOG.info("Notification thread terminated.");
+            }
+        };
+    }
+
+    private void allocate(int slots) {
+        mBuffers = new byte[slots][];
+        mOversized = new byte[slots][];
+        mLengths = new int[slots];
+        mReceivedNanos = new long[slots];
+        mGatts = new BluetoothGatt[slots];
+        mCharacteristics = new BluetoothGattCharacteristic[slots];
+        mCallbacks = new GattCallback[slots];
+        mResults = new Runnable[slots];
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Copies the current value of the characteristic and queues it for the given callback.
+     * To be called on the binder thread, blocks only if the capacity is exhausted.
+     *
+     * @return false if the loop was disposed already
+     */
+    boolean enqueue(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, GattCallback callback) {
+        byte[] value = characteristic.getValue();
+        long receivedNanos = System.nanoTime();
+        mRecorder.record(mDeviceAddress, characteristic.getUuid(), TrafficRecorder.DIRECTION_IN, value);
+        synchronized (this) {
+            if (!awaitSlot(characteristic.getUuid())) {
+                return false;
+            }
+            int slot = (mHead + mCount) % mBuffers.length;
+            if (value == null) {
+                mLengths[slot] = -1;
+            } else if (value.length <= SLOT_SIZE) {
+                System.arraycopy(value, 0, mBuffers[slot], 0, value.length);
+                mLengths[slot] = value.length;
+            } else {
+                mOversized[slot] = value.clone();
+                mLengths[slot] = value.length;
+            }
+            mReceivedNanos[slot] = receivedNanos;
+            mGatts[slot] = gatt;
+            mCharacteristics[slot] = characteristic;
+            mCallbacks[slot] = callback;
+            add();
+        }
+        return true;
+    }
+
+    /**
+     * Queues the handling of the result of a read or write, or of a connection event, after
+     * the notifications that were received before. To be called on the binder thread, blocks
+     * only if the capacity is exhausted. The result is handled directly if the loop was
+     * disposed already.
+     */
+    void enqueueResult(Runnable result) {
+        synchronized (this) {
+            if (awaitSlot(null)) {
+                int slot = (mHead + mCount) % mBuffers.length;
+                mResults[slot] = result;
+                mReceivedNanos[slot] = System.nanoTime();
+                add();
+                return;
+            }
+        }
+        result.run();
+    }
+
+    /**
+     * Makes sure that there is a free slot: grows the pool up to the capacity, and waits
+     * for the notification thread afterwards. Called while holding the lock.
+     *
+     * @return false if the loop was disposed
+     */
+    private boolean awaitSlot(@Nullable UUID characteristic) {
+        if (mDisposed) {
+            return false;
+        }
+        if (mCount < mBuffers.length) {
+            return true;
+        }
+        if (mBuffers.length < mCapacity || Thread.currentThread() == mThread) {
+            // the notification thread itself must never wait for a slot
+            grow(Math.min(2 * mBuffers.length, Math.max(mCapacity, mBuffers.length + 1)));
+            return true;
+        }
+        mBlockedCount++;
+        LOG.warn("All " + mCapacity + " slots are in use, waiting for the notification thread");
+        long start = System.nanoTime();
+        try {
+            while (mCount == mBuffers.length && !mDisposed) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            // never drop anything, even if we cannot wait
+            Thread.currentThread().interrupt();
+            grow(mBuffers.length + 1);
+        }
+        mMetrics.record(mDeviceAddress, BtLEMetrics.NOTIFICATION_BLOCKED, characteristic, System.nanoTime() - start);
+        return !mDisposed;
+    }
+
+    /**
+     * Enlarges the pool to the given number of slots, keeping the order of the pending ones.
+     */
+    private void grow(int slots) {
+        byte[][] buffers = mBuffers;
+        byte[][] oversized = mOversized;
+        int[] lengths = mLengths;
+        long[] receivedNanos = mReceivedNanos;
+        BluetoothGatt[] gatts = mGatts;
+        BluetoothGattCharacteristic[] characteristics = mCharacteristics;
+        GattCallback[] callbacks = mCallbacks;
+        Runnable[] results = mResults;
+        allocate(slots);
+        for (int i = 0; i < buffers.length; i++) {
+            int slot = (mHead + i) % buffers.length;
+            mBuffers[i] = buffers[slot];
+            mOversized[i] = oversized[slot];
+            mLengths[i] = lengths[slot];
+            mReceivedNanos[i] = receivedNanos[slot];
+            mGatts[i] = gatts[slot];
+            mCharacteristics[i] = characteristics[slot];
+            mCallbacks[i] = callbacks[slot];
+            mResults[i] = results[slot];
+        }
+        for (int i = buffers.length; i < slots; i++) {
+            mBuffers[i] = new byte[SLOT_SIZE];
+        }
+        mHead = 0;
+        LOG.info("Grew the notification slots of " + mDeviceAddress + " to " + slots);
+    }
+
+    private void add() {
+        if (mCount++ == 0) {
+            notifyAll();
+        }
+        mMaxCount = Math.max(mMaxCount, mCount);
+    }
+
+    private void loop() throws InterruptedException {
+        while (true) {
+            BluetoothGatt gatt;
+            BluetoothGattCharacteristic characteristic;
+            GattCallback callback;
+            byte[] value;
+            long receivedNanos;
+            Runnable result;
+            synchronized (this) {
+                while (mCount == 0 && !mDisposed) {
+                    wait();
+                }
+                if (mCount == 0) {
+                    return;
+                }
+                int slot = mHead;
+                result = mResults[slot];
+                mResults[slot] = null;
+                int length = result != null ? -1 : mLengths[slot];
+                if (length < 0) {
+                    value = null;
+                } else if (mOversized[slot] != null) {
+                    value = mOversized[slot];
+                    mOversized[slot] = null;
+                } else {
+                    // the handlers may keep the value, so it must not be one of the slots
+                    value = Arrays.copyOf(mBuffers[slot], length);
+                }
+                gatt = mGatts[slot];
+                characteristic = mCharacteristics[slot];
+                callback = mCallbacks[slot];
+                receivedNanos = mReceivedNanos[slot];
+                mGatts[slot] = null;
+                mCharacteristics[slot] = null;
+                mCallbacks[slot] = null;
+                mHead = (mHead + 1) % mBuffers.length;
+                if (mCount-- == mBuffers.length) {
+                    // the binder thread may be waiting for a free slot
+                    notifyAll();
+                }
+            }
+            if (result != null) {
+                try {
+                    result.run();
+                } catch (Throwable ex) {
+                    LOG.error("Error handling result: " + ex.getMessage(), ex);
+                }
+            } else {
+                dispatch(gatt, characteristic, callback, value, receivedNanos);
+            }
+        }
+    }
+
+    private void dispatch(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, GattCallback callback, byte[] value, long receivedNanos) {
+        // the values are available through the TrafficRecorder, without formatting each one
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("characteristic changed: " + characteristic.getUuid() + " value: " + Logging.formatBytes(value));
+        }
+        long start = System.nanoTime();
+        mMetrics.record(mDeviceAddress, BtLEMetrics.NOTIFICATION_DELAY, characteristic.getUuid(), start - receivedNanos);
+        try {
+            callback.onCharacteristicChanged(gatt, new CharacteristicSnapshot(characteristic, value));
+        } catch (Throwable ex) {
+            LOG.error("onCharaceristicChanged: " + ex.getMessage(), ex);
+        }
+        mMetrics.record(mDeviceAddress, BtLEMetrics.NOTIFICATION_HANDLING, characteristic.getUuid(), System.nanoTime() - start);
+    }
+
+    synchronized int getPendingCount() {
+        return mCount;
+    }
+
+    synchronized int getMaxPendingCount() {
+        return mMaxCount;
+    }
+
+    synchronized int getSlotCount() {
+        return mBuffers.length;
+    }
+
+    /**
+     * Returns how often the binder thread had to wait, because all slots were in use.
+     */
+    synchronized long getBlockedCount() {
+        return mBlockedCount;
+    }
+
+    /**
+     * Handles the remaining notifications and stops the thread afterwards. Waits a short time
+     * for that, unless called from a handler.
+     */
+    void dispose() {
+        synchronized (this) {
+            if (mDisposed) {
+                return;
+            }
+            mDisposed = true;
+            notifyAll();
+        }
+        if (Thread.currentThread() != mThread && mThread.isAlive()) {
+            try {
+                mThread.join(DISPOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException ex) {
+                LOG.warn("Interrupted while waiting for pending notifications");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A characteristic with a fixed value, that otherwise behaves like the original one,
+     * so that the handlers can also use it to write and read.
+     */
+    static final class CharacteristicSnapshot extends BluetoothGattCharacteristic {
+        private final BluetoothGattCharacteristic mOriginal;
+
+        CharacteristicSnapshot(BluetoothGattCharacteristic original, byte[] value) {
+            super(original.getUuid(), original.getProperties(), original.getPermissions());
+            mOriginal = original;
+            setValue(value);
+        }
+
+        @Override
+        public BluetoothGattService getService() {
+            return mOriginal.getService();
+        }
+
+        @Override
+        public int getInstanceId() {
+            return mOriginal.getInstanceId();
+        }
+
+        @Override
+        public int getWriteType() {
+            return mOriginal.getWriteType();
+        }
+
+        @Override
+        public void setWriteType(int writeType) {
+            mOriginal.setWriteType(writeType);
+        }
+
+        @Override
+        public BluetoothGattDescriptor getDescriptor(UUID uuid) {
+            return mOriginal.getDescriptor(uuid);
+        }
+
+        @Override
+        public List<BluetoothGattDescriptor> getDescriptors() {
+            return mOriginal.getDescriptors();
+        }
+
+        @Override
+        public boolean addDescriptor(BluetoothGattDescriptor descriptor) {
+            return mOriginal.addDescriptor(descriptor);
+        }
+    }
+}
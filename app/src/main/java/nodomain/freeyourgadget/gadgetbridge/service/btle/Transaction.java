@@ -34,6 +34,7 @@ public class Transaction extends AbstractTransaction {
     private
     @Nullable
     GattCallback gattCallback;
+    private int writeWindow;
 
     public Transaction(String taskName) {
         super(taskName);
@@ -64,6 +65,18 @@ public class Transaction extends AbstractTransaction {
         return gattCallback;
     }
 
+    /**
+     * Sets the maximum number of writes without response that may be in flight at the same
+     * time, or 0 to wait for the result of every write.
+     */
+    public void setWriteWindow(int writeWindow) {
+        this.writeWindow = writeWindow;
+    }
+
+    public int getWriteWindow() {
+        return writeWindow;
+    }
+
     @Override
     public int getActionCount() {
         return mActions.size();
@@ -34,6 +34,10 @@ import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WriteAction;
 
 public class TransactionBuilder {
     private static final Logger LOG = LoggerFactory.getLogger(TransactionBuilder.class);
+    /**
+     * A reasonable number of unconfirmed writes for {@link #pipelineWrites(int)}.
+     */
+    public static final int DEFAULT_WRITE_WINDOW = 4;
 
     private final Transaction mTransaction;
     private boolean mQueued;
@@ -91,6 +95,24 @@ public class TransactionBuilder {
         return add(action);
     }
 
+    /**
+     * Enables pipelining of the writes of this transaction: consecutive writes to the same
+     * characteristic are sent without response, without waiting for each one to complete,
+     * as long as no more than maxInFlight writes are unconfirmed by the Bluetooth stack.
+     * Only plain writes to characteristics supporting write without response are pipelined,
+     * all other actions wait for the pending writes first.
+     * <p/>
+     * Useful for bulk transfers like firmware or file uploads.
+     * @param maxInFlight the maximum number of unconfirmed writes
+     */
+    public TransactionBuilder pipelineWrites(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1: " + maxInFlight);
+        }
+        mTransaction.setWriteWindow(maxInFlight);
+        return this;
+    }
+
     public TransactionBuilder add(BtLEAction action) {
         mTransaction.add(action);
         return this;
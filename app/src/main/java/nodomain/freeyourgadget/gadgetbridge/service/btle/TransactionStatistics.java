@@ -0,0 +1,85 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a single executed transaction: the written bytes, the number of writes and
+ * how long the dispatch thread waited for the results of actions.
+ */
+public class TransactionStatistics {
+    private final long startNanos = System.nanoTime();
+    private long endNanos;
+    private int writes;
+    private int pipelinedWrites;
+    private long bytes;
+    private long waitNanos;
+
+    void addWrite(int length, boolean pipelined) {
+        writes++;
+        if (pipelined) {
+            pipelinedWrites++;
+        }
+        bytes += length;
+    }
+
+    void addWait(long nanos) {
+        waitNanos += nanos;
+    }
+
+    void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    public int getWrites() {
+        return writes;
+    }
+
+    public int getPipelinedWrites() {
+        return pipelinedWrites;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos);
+    }
+
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+    }
+
+    public double getBytesPerSecond() {
+        long millis = getDurationMillis();
+        return millis > 0 ? bytes * 1000d / millis : 0;
+    }
+
+    public double getWritesPerSecond() {
+        long millis = getDurationMillis();
+        return millis > 0 ? writes * 1000d / millis : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d writes (%d pipelined), %d bytes in %dms (%.0f bytes/s, %.1f writes/s), waited %dms for results",
+                writes, pipelinedWrites, bytes, getDurationMillis(), getBytesPerSecond(), getWritesPerSecond(), getWaitMillis());
+    }
+}
@@ -0,0 +1,124 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * Flow control for pipelined writes without response: up to a fixed number of writes may
+ * be in flight, and every confirmation of a write by the Bluetooth stack (through
+ * onCharacteristicWrite) returns a credit for the next one.
+ * <p/>
+ * The dispatch thread waits for credits, while the confirmations arrive on a binder thread.
+ */
+final class WritePipeline {
+    private final int window;
+    private int inFlight;
+    private BluetoothGattCharacteristic characteristic;
+    private boolean aborted;
+    /** Number of confirmed writes, to tell whether a confirmation arrived since a write was sent */
+    private long confirmed;
+    private long confirmedAtAcquire;
+    /** Start times of the writes in flight, oldest first (ring buffer) */
+    private final long[] startNanos;
+    private int first;
+
+    WritePipeline(int window) {
+        this.window = window;
+        this.startNanos = new long[window];
+    }
+
+    /**
+     * Waits until another write may be sent and reserves a credit for it.
+     *
+     * @return false if the pipeline was aborted
+     */
+    synchronized boolean acquire(BluetoothGattCharacteristic characteristic) throws InterruptedException {
+        while (inFlight >= window && !aborted) {
+            wait();
+        }
+        if (aborted) {
+            return false;
+        }
+        startNanos[(first + inFlight) % window] = System.nanoTime();
+        inFlight++;
+        confirmedAtAcquire = confirmed;
+        this.characteristic = characteristic;
+        return true;
+    }
+
+    /**
+     * Returns the credit reserved by #acquire(), because the Bluetooth stack rejected the
+     * write, and waits until the write may be retried. This is the case as soon as one of
+     * the writes in flight was confirmed, including confirmations that arrived between
+     * #acquire() and this call.
+     *
+     * @return false if the write can not be retried, because no write was in flight or
+     * the pipeline was aborted
+     */
+    synchronized boolean cancelAndAwaitRetry() throws InterruptedException {
+        inFlight--;
+        notifyAll();
+        while (confirmed == confirmedAtAcquire && inFlight > 0 && !aborted) {
+            wait();
+        }
+        if (aborted || confirmed == confirmedAtAcquire) {
+            return false;
+        }
+        confirmedAtAcquire = confirmed;
+        return true;
+    }
+
+    /**
+     * Called when the Bluetooth stack confirmed a write.
+     *
+     * @return the nanoseconds since the confirmed write was started, or -1 if the write was
+     * not one of the pipelined writes
+     */
+    synchronized long written(BluetoothGattCharacteristic characteristic) {
+        if (inFlight == 0 || this.characteristic == null || !this.characteristic.getUuid().equals(characteristic.getUuid())) {
+            return -1;
+        }
+        long nanos = System.nanoTime() - startNanos[first];
+        first = (first + 1) % window;
+        inFlight--;
+        confirmed++;
+        notifyAll();
+        return nanos;
+    }
+
+    /**
+     * Waits until all writes in flight were confirmed.
+     *
+     * @return false if the pipeline was aborted
+     */
+    synchronized boolean drain() throws InterruptedException {
+        while (inFlight > 0 && !aborted) {
+            wait();
+        }
+        return !aborted;
+    }
+
+    synchronized boolean isWritingTo(BluetoothGattCharacteristic characteristic) {
+        return inFlight > 0 && this.characteristic != null && this.characteristic.getUuid().equals(characteristic.getUuid());
+    }
+
+    synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+}
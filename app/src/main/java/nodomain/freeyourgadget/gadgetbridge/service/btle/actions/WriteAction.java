@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 
 import nodomain.freeyourgadget.gadgetbridge.Logging;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEAction;
+import nodomain.freeyourgadget.gadgetbridge.service.capture.TrafficRecorder;
 
 /**
  * Invokes a write operation on a given GATT characteristic.
@@ -54,8 +55,12 @@ public class WriteAction extends BtLEAction {
     }
 
     protected boolean writeValue(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("writing to characteristic: " + characteristic.getUuid() + ": " + Logging.formatBytes(value));
+        TrafficRecorder recorder = TrafficRecorder.getInstance();
+        if (recorder.isRecording()) {
+            recorder.record(gatt.getDevice().getAddress(), characteristic.getUuid(), TrafficRecorder.DIRECTION_OUT, value);
+        }
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("writing to characteristic: " + characteristic.getUuid() + ": " + Logging.formatBytes(value));
         }
         if (characteristic.setValue(value)) {
             return gatt.writeCharacteristic(characteristic);
@@ -63,7 +68,7 @@ public class WriteAction extends BtLEAction {
         return false;
     }
 
-    protected final byte[] getValue() {
+    public final byte[] getValue() {
         return value;
     }
 
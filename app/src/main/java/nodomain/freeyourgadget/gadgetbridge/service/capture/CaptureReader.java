@@ -0,0 +1,214 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.capture;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import androidx.annotation.Nullable;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.GattCallback;
+import nodomain.freeyourgadget.gadgetbridge.util.GB;
+
+/**
+ * Reads the capture files written by the {@link TrafficRecorder}, e.g. to print them
+ * as text or to replay the received data into a device support.
+ */
+public class CaptureReader implements Closeable {
+    private final DataInputStream mIn;
+    private final List<String> mDevices = new ArrayList<>();
+    private final List<UUID> mCharacteristics = new ArrayList<>();
+    private long mTimestamp;
+
+    public CaptureReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in));
+        byte[] magic = new byte[TrafficRecorder.MAGIC.length];
+        mIn.readFully(magic);
+        if (!Arrays.equals(TrafficRecorder.MAGIC, magic)) {
+            throw new IOException("Not a capture file");
+        }
+        byte version = mIn.readByte();
+        if (version != TrafficRecorder.VERSION) {
+            throw new IOException("Unsupported capture file version: " + version);
+        }
+    }
+
+    /**
+     * Returns the next packet, or null at the end of the capture. A capture that is still
+     * being written may end with an incomplete packet, which is ignored.
+     */
+    @Nullable
+    public Packet next() throws IOException {
+        try {
+            return readPacket();
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private Packet readPacket() throws IOException {
+        while (true) {
+            int type = mIn.read();
+            switch (type) {
+                case -1:
+                    return null;
+                case TrafficRecorder.RECORD_DEVICE:
+                    mIn.readUnsignedByte(); // the index is implicit
+                    mDevices.add(mIn.readUTF());
+                    break;
+                case TrafficRecorder.RECORD_CHARACTERISTIC:
+                    mIn.readUnsignedShort();
+                    mCharacteristics.add(new UUID(mIn.readLong(), mIn.readLong()));
+                    break;
+                case TrafficRecorder.RECORD_PACKET:
+                    mTimestamp += readVarLong();
+                    String device = mDevices.get(mIn.readUnsignedByte());
+                    int characteristicIndex = mIn.readUnsignedShort();
+                    UUID characteristic = characteristicIndex != TrafficRecorder.NO_CHARACTERISTIC ? mCharacteristics.get(characteristicIndex) : null;
+                    byte direction = mIn.readByte();
+                    byte[] value = new byte[(int) readVarLong()];
+                    mIn.readFully(value);
+                    return new Packet(mTimestamp, device, characteristic, direction, value);
+                default:
+                    throw new IOException("Unknown record type: " + type);
+            }
+        }
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = mIn.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Writes the packets of the capture as text, one line per packet.
+     */
+    public static void toText(InputStream in, Writer out) throws IOException {
+        try (CaptureReader reader = new CaptureReader(in)) {
+            Packet packet;
+            while ((packet = reader.next()) != null) {
+                out.write(packet.toString());
+                out.write('\n');
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Passes the changed characteristics and read responses of the given device to the given
+     * callback, e.g. an AbstractBTLEDeviceSupport, as fast as possible. The data written to
+     * the device is skipped.
+     *
+     * @param deviceAddress the device to replay, or null for all devices
+     * @return the number of replayed packets
+     */
+    public static int replay(InputStream in, @Nullable String deviceAddress, GattCallback callback) throws IOException {
+        int count = 0;
+        try (CaptureReader reader = new CaptureReader(in)) {
+            Packet packet;
+            while ((packet = reader.next()) != null) {
+                if (packet.characteristic == null || packet.direction == TrafficRecorder.DIRECTION_OUT
+                        || (deviceAddress != null && !deviceAddress.equals(packet.deviceAddress))) {
+                    continue;
+                }
+                BluetoothGattCharacteristic characteristic = packet.toCharacteristic();
+                if (packet.direction == TrafficRecorder.DIRECTION_READ) {
+                    callback.onCharacteristicRead(null, characteristic, BluetoothGatt.GATT_SUCCESS);
+                } else {
+                    callback.onCharacteristicChanged(null, characteristic);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public static class Packet {
+        public final long timestamp;
+        public final String deviceAddress;
+        @Nullable
+        public final UUID characteristic;
+        public final byte direction;
+        public final byte[] value;
+
+        Packet(long timestamp, String deviceAddress, @Nullable UUID characteristic, byte direction, byte[] value) {
+            this.timestamp = timestamp;
+            this.deviceAddress = deviceAddress;
+            this.characteristic = characteristic;
+            this.direction = direction;
+            this.value = value;
+        }
+
+        /**
+         * Creates a characteristic with the value of this packet, that can be passed
+         * to a GattCallback.
+         */
+        public BluetoothGattCharacteristic toCharacteristic() {
+            BluetoothGattCharacteristic result = new BluetoothGattCharacteristic(characteristic,
+                    BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                    BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+            result.setValue(value);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            String arrow;
+            switch (direction) {
+                case TrafficRecorder.DIRECTION_OUT:
+                    arrow = " > ";
+                    break;
+                case TrafficRecorder.DIRECTION_READ:
+                    arrow = " <r ";
+                    break;
+                default:
+                    arrow = " < ";
+                    break;
+            }
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+            return format.format(new Date(timestamp)) + " " + deviceAddress + arrow
+                    + (characteristic != null ? characteristic + " " : "") + GB.hexdump(value, 0, value.length);
+        }
+    }
+}
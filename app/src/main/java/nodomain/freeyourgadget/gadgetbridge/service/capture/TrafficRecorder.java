@@ -0,0 +1,403 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.capture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Records the raw data exchanged with the devices into binary capture files, as a cheaper
+ * alternative to hexdumps in the log. The capture files can be turned back into text
+ * or replayed into a device support with {@link CaptureReader}.
+ * <p/>
+ * The threads talking to the devices only copy the data into a preallocated ring buffer,
+ * without locking. A background thread writes the ring buffer to the current capture file.
+ * When the ring buffer is full, the data is dropped rather than stalling the communication.
+ * The files are rotated when they reach {@link #MAX_FILE_SIZE}, keeping the latest
+ * {@link #MAX_FILES}.
+ */
+public class TrafficRecorder {
+    private static final Logger LOG = LoggerFactory.getLogger(TrafficRecorder.class);
+    private static final TrafficRecorder instance = new TrafficRecorder();
+
+    /** Data written to the device */
+    public static final byte DIRECTION_OUT = 0;
+    /** Data received from the device, e.g. a changed characteristic */
+    public static final byte DIRECTION_IN = 1;
+    /** The value of a characteristic read from the device */
+    public static final byte DIRECTION_READ = 2;
+
+    static final byte[] MAGIC = {'G', 'B', 'C', 'P'};
+    static final byte VERSION = 1;
+    static final byte RECORD_DEVICE = 1;
+    static final byte RECORD_CHARACTERISTIC = 2;
+    static final byte RECORD_PACKET = 3;
+    static final int NO_CHARACTERISTIC = 0xffff;
+    static final String FILE_EXTENSION = ".gbcap";
+
+    static final int CAPACITY = 1024;
+    static final int SLOT_SIZE = 512;
+    static final int MAX_FILE_SIZE = 4 * 1024 * 1024;
+    static final int MAX_FILES = 8;
+    private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private volatile Ring mRing;
+    private Thread mDrainThread;
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    public static TrafficRecorder getInstance() {
+        return instance;
+    }
+
+    public boolean isRecording() {
+        return mRing != null;
+    }
+
+    /**
+     * Starts writing capture files to the given directory.
+     */
+    public synchronized void start(File directory) throws IOException {
+        if (mRing != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        final Ring ring = new Ring();
+        final CaptureWriter writer = new CaptureWriter(directory);
+        writer.rotate();
+        mDrainThread = new Thread("Gadgetbridge Traffic Recorder") {
+            @Override
+            public void run() {
+                try {
+                    while (mRing == ring) {
+                        if (ring.drainTo(writer) == 0) {
+                            writer.flush();
+                            LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+                        }
+                    }
+                    ring.drainTo(writer);
+                } catch (IOException ex) {
+                    LOG.error("Error writing capture file, stopping the recording", ex);
+                    mRing = null;
+                } finally {
+                    writer.close();
+                }
+            }
+        };
+        mRing = ring;
+        mDrainThread.start();
+        LOG.info("Recording the device traffic to " + directory);
+    }
+
+    /**
+     * Stops recording and waits until the remaining data has been written.
+     */
+    public synchronized void stop() {
+        if (mRing == null) {
+            return;
+        }
+        mRing = null;
+        LockSupport.unpark(mDrainThread);
+        try {
+            mDrainThread.join();
+        } catch (InterruptedException ex) {
+            LOG.warn("Interrupted while waiting for the traffic recorder");
+        }
+        mDrainThread = null;
+        LOG.info("Stopped recording the device traffic, " + mDroppedCount.get() + " packets dropped");
+    }
+
+    public void record(String deviceAddress, @Nullable UUID characteristic, byte direction, @Nullable byte[] value) {
+        if (value != null) {
+            record(deviceAddress, characteristic, direction, value, 0, value.length);
+        }
+    }
+
+    /**
+     * Records the given data, if the recorder is running. Does not block, but drops the data
+     * if the ring buffer is full.
+     *
+     * @param characteristic the characteristic for BLE devices, or null for serial data
+     */
+    public void record(String deviceAddress, @Nullable UUID characteristic, byte direction, byte[] buffer, int offset, int length) {
+        Ring ring = mRing;
+        if (ring != null && !ring.offer(System.currentTimeMillis(), deviceAddress, characteristic, direction, buffer, offset, length)) {
+            mDroppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records the remaining bytes of the given buffer, if the recorder is running. The buffer
+     * may be read-only, its position is not changed.
+     */
+    public void record(String deviceAddress, @Nullable UUID characteristic, byte direction, ByteBuffer buffer) {
+        Ring ring = mRing;
+        if (ring != null && !ring.offer(System.currentTimeMillis(), deviceAddress, characteristic, direction, buffer)) {
+            mDroppedCount.incrementAndGet();
+        }
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * A bounded multi producer, single consumer queue of packets with preallocated slots.
+     * Producers claim a sequence number with a CAS, fill the slot and publish the sequence
+     * number, the consumer frees the slot by advancing the read sequence.
+     */
+    static final class Ring {
+        private static final int MASK = CAPACITY - 1;
+
+        private final AtomicLong mClaimSequence = new AtomicLong();
+        private final AtomicLongArray mPublished = new AtomicLongArray(CAPACITY);
+        private volatile long mReadSequence;
+
+        private final long[] mTimestamps = new long[CAPACITY];
+        private final String[] mDevices = new String[CAPACITY];
+        private final UUID[] mCharacteristics = new UUID[CAPACITY];
+        private final byte[] mDirections = new byte[CAPACITY];
+        private final int[] mLengths = new int[CAPACITY];
+        private final byte[][] mData = new byte[CAPACITY][SLOT_SIZE];
+        private final byte[][] mOversized = new byte[CAPACITY][];
+
+        Ring() {
+            for (int i = 0; i < CAPACITY; i++) {
+                mPublished.set(i, -1);
+            }
+        }
+
+        boolean offer(long timestamp, String device, @Nullable UUID characteristic, byte direction, byte[] buffer, int offset, int length) {
+            long sequence = claim();
+            if (sequence < 0) {
+                return false;
+            }
+            int slot = (int) (sequence & MASK);
+            byte[] data = fill(slot, timestamp, device, characteristic, direction, length);
+            System.arraycopy(buffer, offset, data, 0, length);
+            mPublished.set(slot, sequence);
+            return true;
+        }
+
+        boolean offer(long timestamp, String device, @Nullable UUID characteristic, byte direction, ByteBuffer buffer) {
+            long sequence = claim();
+            if (sequence < 0) {
+                return false;
+            }
+            int slot = (int) (sequence & MASK);
+            int position = buffer.position();
+            int length = buffer.remaining();
+            byte[] data = fill(slot, timestamp, device, characteristic, direction, length);
+            for (int i = 0; i < length; i++) {
+                data[i] = buffer.get(position + i);
+            }
+            mPublished.set(slot, sequence);
+            return true;
+        }
+
+        /**
+         * @return the claimed sequence number, or -1 if the ring is full
+         */
+        private long claim() {
+            long sequence;
+            do {
+                sequence = mClaimSequence.get();
+                if (sequence - mReadSequence >= CAPACITY) {
+                    return -1;
+                }
+            } while (!mClaimSequence.compareAndSet(sequence, sequence + 1));
+            return sequence;
+        }
+
+        /**
+         * Sets the fields of the slot and returns the array for the data.
+         */
+        private byte[] fill(int slot, long timestamp, String device, @Nullable UUID characteristic, byte direction, int length) {
+            mTimestamps[slot] = timestamp;
+            mDevices[slot] = device;
+            mCharacteristics[slot] = characteristic;
+            mDirections[slot] = direction;
+            mLengths[slot] = length;
+            if (length <= SLOT_SIZE) {
+                return mData[slot];
+            }
+            mOversized[slot] = new byte[length];
+            return mOversized[slot];
+        }
+
+        /**
+         * Writes all published packets, in the order of their sequence numbers.
+         *
+         * @return the number of packets written
+         */
+        int drainTo(CaptureWriter writer) throws IOException {
+            int count = 0;
+            long sequence = mReadSequence;
+            while (true) {
+                int slot = (int) (sequence & MASK);
+                if (mPublished.get(slot) != sequence) {
+                    return count;
+                }
+                byte[] data = mOversized[slot] != null ? mOversized[slot] : mData[slot];
+                writer.writePacket(mTimestamps[slot], mDevices[slot], mCharacteristics[slot], mDirections[slot], data, mLengths[slot]);
+                mDevices[slot] = null;
+                mCharacteristics[slot] = null;
+                mOversized[slot] = null;
+                mReadSequence = ++sequence;
+                count++;
+            }
+        }
+    }
+
+    /**
+     * Writes the packets into rotating capture files. Device addresses and characteristics
+     * are written only once per file and referenced by index afterwards.
+     */
+    static final class CaptureWriter {
+        private final File mDirectory;
+        private final Map<String, Integer> mDeviceIndexes = new HashMap<>();
+        private final Map<UUID, Integer> mCharacteristicIndexes = new HashMap<>();
+        private DataOutputStream mOut;
+        private long mLastTimestamp;
+        private boolean mDirty;
+
+        CaptureWriter(File directory) {
+            mDirectory = directory;
+        }
+
+        void writePacket(long timestamp, String device, @Nullable UUID characteristic, byte direction, byte[] data, int length) throws IOException {
+            if (mOut.size() >= MAX_FILE_SIZE || (!mDeviceIndexes.containsKey(device) && mDeviceIndexes.size() > 0xff)) {
+                rotate();
+            }
+            Integer deviceIndex = mDeviceIndexes.get(device);
+            if (deviceIndex == null) {
+                deviceIndex = mDeviceIndexes.size();
+                mDeviceIndexes.put(device, deviceIndex);
+                mOut.writeByte(RECORD_DEVICE);
+                mOut.writeByte(deviceIndex);
+                mOut.writeUTF(device);
+            }
+            int characteristicIndex = NO_CHARACTERISTIC;
+            if (characteristic != null) {
+                Integer index = mCharacteristicIndexes.get(characteristic);
+                if (index == null) {
+                    if (mCharacteristicIndexes.size() == NO_CHARACTERISTIC) {
+                        rotate();
+                        writePacket(timestamp, device, characteristic, direction, data, length);
+                        return;
+                    }
+                    index = mCharacteristicIndexes.size();
+                    mCharacteristicIndexes.put(characteristic, index);
+                    mOut.writeByte(RECORD_CHARACTERISTIC);
+                    mOut.writeShort(index);
+                    mOut.writeLong(characteristic.getMostSignificantBits());
+                    mOut.writeLong(characteristic.getLeastSignificantBits());
+                }
+                characteristicIndex = index;
+            }
+            mOut.writeByte(RECORD_PACKET);
+            writeVarLong(mOut, Math.max(0, timestamp - mLastTimestamp));
+            mLastTimestamp = Math.max(mLastTimestamp, timestamp);
+            mOut.writeByte(deviceIndex);
+            mOut.writeShort(characteristicIndex);
+            mOut.writeByte(direction);
+            writeVarLong(mOut, length);
+            mOut.write(data, 0, length);
+            mDirty = true;
+        }
+
+        void rotate() throws IOException {
+            close();
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US);
+            File file = new File(mDirectory, "traffic-" + format.format(new Date()) + FILE_EXTENSION);
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            mOut.write(MAGIC);
+            mOut.writeByte(VERSION);
+            mDeviceIndexes.clear();
+            mCharacteristicIndexes.clear();
+            mLastTimestamp = 0;
+            deleteOldFiles();
+        }
+
+        void flush() throws IOException {
+            if (mDirty) {
+                mOut.flush();
+                mDirty = false;
+            }
+        }
+
+        void close() {
+            if (mOut != null) {
+                try {
+                    mOut.close();
+                } catch (IOException ex) {
+                    LOG.warn("Error closing capture file", ex);
+                }
+                mOut = null;
+            }
+        }
+
+        private void deleteOldFiles() {
+            File[] files = mDirectory.listFiles();
+            if (files == null) {
+                return;
+            }
+            int count = 0;
+            for (File file : files) {
+                if (file.getName().endsWith(FILE_EXTENSION)) {
+                    files[count++] = file;
+                }
+            }
+            // the names sort by creation time
+            Arrays.sort(files, 0, count);
+            for (int i = 0; i < count - MAX_FILES; i++) {
+                if (!files[i].delete()) {
+                    LOG.warn("Unable to delete old capture file " + files[i]);
+                }
+            }
+        }
+
+        private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                out.writeByte((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+    }
+}
@@ -28,11 +28,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.TimeZone;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
@@ -50,14 +49,13 @@ import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceService;
+import nodomain.freeyourgadget.gadgetbridge.service.DeviceTaskScheduler;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
-import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceIoThread;
 
 
-class HPlusHandlerThread extends GBDeviceIoThread {
-    private static final Logger LOG = LoggerFactory.getLogger(HPlusHandlerThread.class);
+class HPlusSyncHelper {
+    private static final Logger LOG = LoggerFactory.getLogger(HPlusSyncHelper.class);
 
-    private int CURRENT_DAY_SYNC_PERIOD = 24 * 60 * 60 * 365; //Never
     private int CURRENT_DAY_SYNC_RETRY_PERIOD = 10;
 
     private int SLEEP_SYNC_PERIOD = 12 * 60 * 60;
@@ -68,108 +66,100 @@ class HPlusHandlerThread extends GBDeviceIoThread {
 
     private int HELLO_PERIOD = 60 * 2;
 
-    private boolean mQuit = false;
+    private final GBDevice gbDevice;
+    private final Context context;
     private HPlusSupport mHPlusSupport;
 
     private int mLastSlotReceived = -1;
     private int mLastSlotRequested = 0;
 
-    private Calendar mLastSleepDayReceived = GregorianCalendar.getInstance();
-    private Calendar mGetDaySlotsTime = GregorianCalendar.getInstance();
-    private Calendar mGetSleepTime = GregorianCalendar.getInstance();
-    private Calendar mGetDaySummaryTime = GregorianCalendar.getInstance();
+    private long mLastSleepDayReceived = 0;
 
-    private Calendar mHelloTime = GregorianCalendar.getInstance();
+    private final DeviceTaskScheduler.Task mDaySlotsTask;
+    private final DeviceTaskScheduler.Task mSleepTask;
+    private final DeviceTaskScheduler.Task mDaySummaryTask;
+    private final DeviceTaskScheduler.Task mHelloTask;
 
     private boolean mSlotsInitialSync = true;
 
     private HPlusDataRecordRealtime prevRealTimeRecord = null;
 
-    private final Object waitObject = new Object();
-
-    List<HPlusDataRecordDaySlot> mDaySlotRecords = new ArrayList<>();
+    private List<HPlusDataRecordDaySlot> mDaySlotRecords = new ArrayList<>();
 
     private HPlusDataRecordDaySlot mCurrentDaySlot = null;
 
-    public HPlusHandlerThread(GBDevice gbDevice, Context context, HPlusSupport hplusSupport) {
-        super(gbDevice, context);
-        LOG.info("Initializing HPlus Handler Thread");
-        mQuit = false;
-
+    public HPlusSyncHelper(GBDevice gbDevice, Context context, HPlusSupport hplusSupport) {
+        LOG.info("Initializing HPlus sync helper");
+        this.gbDevice = gbDevice;
+        this.context = context;
         mHPlusSupport = hplusSupport;
-    }
-
-
-    @Override
-    public void run() {
-        mQuit = false;
 
-        sync();
-
-        long waitTime = 0;
-        while (!mQuit) {
-
-            if (waitTime > 0) {
-                synchronized (waitObject) {
-                    try {
-                        waitObject.wait(waitTime);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+        DeviceTaskScheduler scheduler = DeviceTaskScheduler.getInstance();
+        String address = gbDevice.getAddress();
+        mDaySlotsTask = scheduler.createTask(address, "HPlus day slots", new Runnable() {
+            @Override
+            public void run() {
+                if (checkConnected()) {
+                    requestNextDaySlots();
                 }
             }
-
-            if (mQuit) {
-                break;
-            }
-
-            if (gbDevice.getState() == GBDevice.State.NOT_CONNECTED) {
-                quit();
+        });
+        mSleepTask = scheduler.createTask(address, "HPlus sleep", new Runnable() {
+            @Override
+            public void run() {
+                if (checkConnected()) {
+                    requestNextSleepData();
+                }
             }
-
-            Calendar now = GregorianCalendar.getInstance();
-
-            if (now.compareTo(mGetDaySlotsTime) > 0) {
-                requestNextDaySlots();
+        }).setSlackMillis(5000);
+        mDaySummaryTask = scheduler.createTask(address, "HPlus day summary", new Runnable() {
+            @Override
+            public void run() {
+                if (checkConnected()) {
+                    requestDaySummaryData();
+                }
             }
-
-            if (now.compareTo(mGetSleepTime) > 0) {
-                requestNextSleepData();
+        }).setSlackMillis(5000);
+        mHelloTask = scheduler.createTask(address, "HPlus hello", new Runnable() {
+            @Override
+            public void run() {
+                if (checkConnected()) {
+                    sendHello();
+                }
             }
+        }).setSlackMillis(15000);
+    }
 
-            if (now.compareTo(mGetDaySummaryTime) > 0) {
-                requestDaySummaryData();
-            }
+    public Context getContext() {
+        return context;
+    }
 
-            if (now.compareTo(mHelloTime) > 0) {
-                sendHello();
-            }
+    public GBDevice getDevice() {
+        return gbDevice;
+    }
 
-            now = GregorianCalendar.getInstance();
-            waitTime = Math.min(mGetDaySummaryTime.getTimeInMillis(), Math.min(mGetDaySlotsTime.getTimeInMillis(), Math.min(mHelloTime.getTimeInMillis(), mGetSleepTime.getTimeInMillis()))) - now.getTimeInMillis();
+    private boolean checkConnected() {
+        if (gbDevice.getState() == GBDevice.State.NOT_CONNECTED) {
+            quit();
+            return false;
         }
-
+        return true;
     }
 
-    @Override
     public void quit() {
-        LOG.info("HPlus: Quit Handler Thread");
-        mQuit = true;
-        synchronized (waitObject) {
-            waitObject.notify();
-        }
+        LOG.info("HPlus: Quit Handler");
+        mDaySlotsTask.cancel();
+        mSleepTask.cancel();
+        mDaySummaryTask.cancel();
+        mHelloTask.cancel();
     }
 
 
     public void sync() {
         LOG.info("HPlus: Starting data synchronization");
 
-        mGetSleepTime.setTimeInMillis(0);
-        mGetDaySlotsTime.setTimeInMillis(0);
-        mGetDaySummaryTime.setTimeInMillis(0);
-        mLastSleepDayReceived.setTimeInMillis(0);
-        mHelloTime = GregorianCalendar.getInstance();
-        mHelloTime.add(Calendar.SECOND, HELLO_PERIOD);
+        mLastSleepDayReceived = 0;
+        mHelloTask.schedule(HELLO_PERIOD * 1000L);
 
         mSlotsInitialSync = true;
         mLastSlotReceived = -1;
@@ -192,9 +182,9 @@ class HPlusHandlerThread extends GBDeviceIoThread {
             LOG.warn("HPlus: Synchronization exception: " + e);
         }
 
-        synchronized (waitObject) {
-            waitObject.notify();
-        }
+        mDaySlotsTask.schedule(0);
+        mSleepTask.schedule(0);
+        mDaySummaryTask.schedule(0);
     }
 
     public void sendHello() {
@@ -206,13 +196,18 @@ class HPlusHandlerThread extends GBDeviceIoThread {
         } catch(Exception e) {
 
         }
-        mHelloTime = GregorianCalendar.getInstance();
-        mHelloTime.add(Calendar.SECOND, HELLO_PERIOD);
+        mHelloTask.schedule(HELLO_PERIOD * 1000L);
+    }
 
-        synchronized (waitObject) {
-            waitObject.notify();
-        }
+    /**
+     * Returns the 10 minute slot of the current local day
+     */
+    private static int getCurrentSlot() {
+        long now = System.currentTimeMillis();
+        long localMillis = now + TimeZone.getDefault().getOffset(now);
+        return (int) (localMillis / (10 * 60 * 1000L) % 144);
     }
+
     /**
      * Process a message containing information regarding a day slot
      * A slot summarizes 10 minutes of data
@@ -231,8 +226,7 @@ class HPlusHandlerThread extends GBDeviceIoThread {
             return false;
         }
 
-        Calendar now = GregorianCalendar.getInstance();
-        int nowSlot = now.get(Calendar.HOUR_OF_DAY) * 6 + (now.get(Calendar.MINUTE) / 10);
+        int nowSlot = getCurrentSlot();
         if (record.slot == nowSlot){
             if (mCurrentDaySlot != null && mCurrentDaySlot != record) {
                 mCurrentDaySlot.accumulate(record);
@@ -263,18 +257,14 @@ class HPlusHandlerThread extends GBDeviceIoThread {
 
             //Still fetching ring buffer. Request the next slots
             if (record.slot == mLastSlotRequested) {
-                mGetDaySlotsTime.clear();
-                synchronized (waitObject) {
-                    waitObject.notify();
-                }
+                mDaySlotsTask.schedule(0);
             }
 
             //Keep buffering
             if (record.slot != 143)
                 return true;
         }  else {
-            mGetDaySlotsTime = GregorianCalendar.getInstance();
-            mGetDaySlotsTime.add(Calendar.DAY_OF_MONTH, 1);
+            mDaySlotsTask.schedule(24 * 60 * 60 * 1000L);
         }
 
         if (mDaySlotRecords.size() > 0) {
@@ -379,7 +369,7 @@ class HPlusHandlerThread extends GBDeviceIoThread {
             return false;
         }
 
-        mLastSleepDayReceived.setTimeInMillis(record.bedTimeStart * 1000L);
+        mLastSleepDayReceived = record.bedTimeStart * 1000L;
 
         try (DBHandler dbHandler = GBApplication.acquireDB()) {
             DaoSession session = dbHandler.getDaoSession();
@@ -411,8 +401,7 @@ class HPlusHandlerThread extends GBDeviceIoThread {
             LOG.info(ex.getMessage());
         }
 
-        mGetSleepTime = GregorianCalendar.getInstance();
-        mGetSleepTime.add(GregorianCalendar.SECOND, SLEEP_SYNC_PERIOD);
+        mSleepTask.schedule(SLEEP_SYNC_PERIOD * 1000L);
 
         return true;
     }
@@ -513,8 +502,7 @@ class HPlusHandlerThread extends GBDeviceIoThread {
             LOG.info(ex.getMessage());
         }
 
-        mGetDaySummaryTime = GregorianCalendar.getInstance();
-        mGetDaySummaryTime.add(Calendar.SECOND, DAY_SUMMARY_SYNC_PERIOD);
+        mDaySummaryTask.schedule(DAY_SUMMARY_SYNC_PERIOD * 1000L);
         return true;
     }
 
@@ -559,8 +547,7 @@ class HPlusHandlerThread extends GBDeviceIoThread {
 
         }
 
-        mGetSleepTime = GregorianCalendar.getInstance();
-        mGetSleepTime.add(GregorianCalendar.SECOND, SLEEP_SYNC_RETRY_PERIOD);
+        mSleepTask.schedule(SLEEP_SYNC_RETRY_PERIOD * 1000L);
     }
 
     /**
@@ -570,26 +557,20 @@ class HPlusHandlerThread extends GBDeviceIoThread {
      * Messages will be provided every 10 minutes after they are available
      */
     private void requestNextDaySlots() {
-        Calendar now = GregorianCalendar.getInstance();
-        int currentSlot = now.get(Calendar.HOUR_OF_DAY) * 6 + now.get(Calendar.MINUTE) / 10;
-
         //Finished dumping the entire ring buffer
         //Sync to current time
-        mGetDaySlotsTime = now;
-
         if (mSlotsInitialSync) {
             if (mLastSlotReceived == 143) {
                 mSlotsInitialSync = false;
-                mGetDaySlotsTime.set(Calendar.SECOND, CURRENT_DAY_SYNC_PERIOD); //Sync complete. Delay timer forever
+                //Sync complete. Not rescheduled until the next day slot is requested
                 mLastSlotReceived = -1;
                 mLastSlotRequested = mLastSlotReceived + 1;
                 return;
             } else {
-                mGetDaySlotsTime.add(Calendar.SECOND, CURRENT_DAY_SYNC_RETRY_PERIOD);
+                mDaySlotsTask.schedule(CURRENT_DAY_SYNC_RETRY_PERIOD * 1000L);
             }
         } else {
-            //Sync complete. Delay timer forever
-            mGetDaySlotsTime.set(Calendar.SECOND, CURRENT_DAY_SYNC_PERIOD);
+            //Sync complete. Not rescheduled until the next day slot is requested
             return;
         }
 
@@ -625,8 +606,7 @@ class HPlusHandlerThread extends GBDeviceIoThread {
         } catch(Exception e) {
 
         }
-        mGetDaySummaryTime = GregorianCalendar.getInstance();
-        mGetDaySummaryTime.add(Calendar.SECOND, DAY_SUMMARY_SYNC_RETRY_PERIOD);
+        mDaySummaryTask.schedule(DAY_SUMMARY_SYNC_RETRY_PERIOD * 1000L);
     }
 
     /**
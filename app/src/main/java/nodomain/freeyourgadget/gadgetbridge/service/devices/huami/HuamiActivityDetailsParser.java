@@ -20,21 +20,20 @@ package nodomain.freeyourgadget.gadgetbridge.service.devices.huami;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.concurrent.TimeUnit;
-
+import androidx.annotation.VisibleForTesting;
 import nodomain.freeyourgadget.gadgetbridge.GBException;
 import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
-import nodomain.freeyourgadget.gadgetbridge.model.ActivityPoint;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
-import nodomain.freeyourgadget.gadgetbridge.model.GPSCoordinate;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrackSeries;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 
+/**
+ * Parses the sports details (the GPS track and heart rates) of a Huami activity.
+ * The data may be passed in any chunks as it arrives, see {@link #consume(byte[], int, int)},
+ * and is decoded in a single pass into an {@link ActivityTrackSeries}, without creating
+ * objects per record. Coordinates are computed with fixed-point integers.
+ */
 public class HuamiActivityDetailsParser {
     private static final Logger LOG = LoggerFactory.getLogger(HuamiActivityDetailsParser.class);
 
@@ -47,158 +46,187 @@ public class HuamiActivityDetailsParser {
     private static final byte TYPE_SPEED6 = 6;
     private static final byte TYPE_SWIMMING = 8;
 
-    private static final BigDecimal HUAMI_TO_DECIMAL_DEGREES_DIVISOR = new BigDecimal(3000000.0);
-    private final ActivityTrack activityTrack;
-    private final Date baseDate;
+    // type, time offset and 6 bytes of payload
+    private static final int RECORD_LENGTH = 8;
+    // with counter bytes, every 17th byte is a counter (in front of two records)
+    private static final int COUNTER_INTERVAL = 17;
+
+    private final ActivityTrackSeries activityTrack;
+    private final long baseTime;
     private long baseLongitude;
     private long baseLatitude;
     private int baseAltitude;
-    private ActivityPoint lastActivityPoint;
-
-    public void setSkipCounterByte(boolean skipCounterByte) {
-        this.skipCounterByte = skipCounterByte;
-    }
 
     private boolean skipCounterByte;
 
+    // a record that was split across chunks
+    private final byte[] record = new byte[RECORD_LENGTH];
+    private int recordLength;
+    private long position;
+    private int lastTimeOffset;
+    private long totalTimeOffset;
+
+    // the number of points with a location, but without a proper timestamp, at the start
+    private int pointsWithoutTimestamp;
+    private boolean timestampsFixed;
+
     public HuamiActivityDetailsParser(BaseActivitySummary summary) {
         this.baseLongitude = summary.getBaseLongitude();
         this.baseLatitude = summary.getBaseLatitude();
         this.baseAltitude = summary.getBaseAltitude();
-        this.baseDate = summary.getStartTime();
+        this.baseTime = summary.getStartTime().getTime();
 
-        this.activityTrack = new ActivityTrack();
+        this.activityTrack = new ActivityTrackSeries();
         activityTrack.setUser(summary.getUser());
         activityTrack.setDevice(summary.getDevice());
         activityTrack.setName(summary.getName() + "-" + summary.getId());
     }
 
+    public void setSkipCounterByte(boolean skipCounterByte) {
+        this.skipCounterByte = skipCounterByte;
+    }
+
+    /**
+     * Parses all the given data at once.
+     */
     public ActivityTrack parse(byte[] bytes) throws GBException {
-        int i = 0;
-        try {
-            long totalTimeOffset = 0;
-            int lastTimeOffset = 0;
-            while (i < bytes.length) {
-                if (skipCounterByte && (i % 17) == 0) {
-                    i++;
-                }
+        consume(bytes, 0, bytes.length);
+        return finish().toTrack();
+    }
 
-                byte type = bytes[i++]; // lgtm [java/index-out-of-bounds]]
-                int timeOffset = BLETypeConversions.toUnsigned(bytes[i++]); // lgtm [java/index-out-of-bounds]
-                // handle timeOffset overflows (1 byte, always increasing, relative to base)
-                if (lastTimeOffset <= timeOffset) {
-                    timeOffset = timeOffset - lastTimeOffset;
-                    lastTimeOffset += timeOffset;
-                } else {
-                    lastTimeOffset = timeOffset;
+    /**
+     * Parses the next chunk of data. Records may be split across chunks.
+     */
+    public void consume(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (recordLength == 0) {
+                if (skipCounterByte && (position % COUNTER_INTERVAL) == 0) {
+                    i++;
+                    position++;
+                    continue;
                 }
-                totalTimeOffset += timeOffset;
-
-                switch (type) {
-                    case TYPE_GPS:
-                        i += consumeGPSAndUpdateBaseLocation(bytes, i, totalTimeOffset);
-                        break;
-                    case TYPE_HR:
-                        i += consumeHeartRate(bytes, i, totalTimeOffset);
-                        break;
-                    case TYPE_PAUSE:
-                        i += consumePause(bytes, i);
-                        break;
-                    case TYPE_RESUME:
-                        i += consumeResume(bytes, i);
-                        break;
-                    case TYPE_SPEED4:
-                        i += consumeSpeed4(bytes, i);
-                        break;
-                    case TYPE_SPEED5:
-                        i += consumeSpeed5(bytes, i);
-                        break;
-                    case TYPE_SPEED6:
-                        i += consumeSpeed6(bytes, i);
-                        break;
-                    case TYPE_SWIMMING:
-                        i += consumeSwimming(bytes, i);
-                        break;
-                    default:
-                        LOG.warn("unknown packet type" + type);
-                        i+=6;
+                if (end - i >= RECORD_LENGTH) {
+                    // the whole record is available, no need to copy it
+                    parseRecord(bytes, i);
+                    i += RECORD_LENGTH;
+                    position += RECORD_LENGTH;
+                    continue;
                 }
             }
-        } catch (IndexOutOfBoundsException ex) {
-            throw new GBException("Error parsing activity details: " + ex.getMessage(), ex);
+            int count = Math.min(RECORD_LENGTH - recordLength, end - i);
+            System.arraycopy(bytes, i, record, recordLength, count);
+            recordLength += count;
+            i += count;
+            position += count;
+            if (recordLength == RECORD_LENGTH) {
+                parseRecord(record, 0);
+                recordLength = 0;
+            }
         }
+    }
 
-        fixupMissingTimestamps(activityTrack);
-
+    /**
+     * Returns the track after all the data has been passed to {@link #consume(byte[], int, int)}.
+     */
+    public ActivityTrackSeries finish() throws GBException {
+        if (recordLength != 0) {
+            throw new GBException("Error parsing activity details: incomplete record of " + recordLength + " bytes");
+        }
         return activityTrack;
     }
 
-    private void fixupMissingTimestamps(ActivityTrack activityTrack) {
-        try {
-            int pointer = 0;
-            List<ActivityPoint> activityPointList = activityTrack.getTrackPoints();
-            Date gpsStartTime = null;
-            List<ActivityPoint> entriesToFixUp = new ArrayList<>();
-            while (pointer < activityPointList.size() - 1) {
-                ActivityPoint activityPoint = activityPointList.get(pointer);
-                if (activityPoint.getLocation() == null) {
-                    pointer++;
-                    continue;
-                }
-                if (activityPoint.getTime().equals(activityPointList.get(pointer + 1).getTime())) {
-                    entriesToFixUp.add(activityPoint);
-                } else {
-                    // found the first activity point with a proper timestamp
-                    entriesToFixUp.add(activityPoint);
-                    gpsStartTime = activityPointList.get(pointer + 1).getTime();
-                    break;
-                }
-                pointer++;
-            }
-            if (gpsStartTime != null) {
-                // now adjust those entries without a timestamp
-                long differenceInSec = TimeUnit.SECONDS.convert(Math.abs(gpsStartTime.getTime() - baseDate.getTime()), TimeUnit.MILLISECONDS);
-
-                double multiplier = (double) differenceInSec / (double) (entriesToFixUp.size());
-
-                for (int j = 0; j < entriesToFixUp.size(); j++) {
-                    long timeOffsetSeconds = Math.round(j * multiplier);
-                    entriesToFixUp.get(j).setTime(makeAbsolute(timeOffsetSeconds));
-                }
-            }
-        } catch (Exception ex) {
-            LOG.warn("Error cleaning activity details", ex);
+    private void parseRecord(byte[] bytes, int offset) {
+        byte type = bytes[offset];
+        int timeOffset = BLETypeConversions.toUnsigned(bytes[offset + 1]);
+        // handle timeOffset overflows (1 byte, always increasing, relative to base)
+        if (lastTimeOffset <= timeOffset) {
+            timeOffset = timeOffset - lastTimeOffset;
+            lastTimeOffset += timeOffset;
+        } else {
+            lastTimeOffset = timeOffset;
+        }
+        totalTimeOffset += timeOffset;
+
+        offset += 2;
+        switch (type) {
+            case TYPE_GPS:
+                consumeGPSAndUpdateBaseLocation(bytes, offset, totalTimeOffset);
+                break;
+            case TYPE_HR:
+                consumeHeartRate(bytes, offset, totalTimeOffset);
+                break;
+            case TYPE_PAUSE:
+                logRecord("got pause packet: ", bytes, offset);
+                break;
+            case TYPE_RESUME:
+                logRecord("got resume package: ", bytes, offset);
+                break;
+            case TYPE_SPEED4:
+                logRecord("got packet type 4 (speed): ", bytes, offset);
+                break;
+            case TYPE_SPEED5:
+                logRecord("got packet type 5 (speed): ", bytes, offset);
+                break;
+            case TYPE_SPEED6:
+                logRecord("got packet type 6 (speed): ", bytes, offset);
+                break;
+            case TYPE_SWIMMING:
+                logRecord("got packet type 8 (swimming?): ", bytes, offset);
+                break;
+            default:
+                LOG.warn("unknown packet type" + type);
         }
     }
 
-    private int consumeGPSAndUpdateBaseLocation(byte[] bytes, int offset, long timeOffset) {
-        int i = 0;
-        int longitudeDelta = BLETypeConversions.toInt16(bytes[offset + i++], bytes[offset + i++]);
-        int latitudeDelta = BLETypeConversions.toInt16(bytes[offset + i++], bytes[offset + i++]);
-        int altitudeDelta = BLETypeConversions.toInt16(bytes[offset + i++], bytes[offset + i++]);
+    private void consumeGPSAndUpdateBaseLocation(byte[] bytes, int offset, long timeOffset) {
+        int longitudeDelta = toInt16(bytes, offset);
+        int latitudeDelta = toInt16(bytes, offset + 2);
+        int altitudeDelta = toInt16(bytes, offset + 4);
 
         baseLongitude += longitudeDelta;
         baseLatitude += latitudeDelta;
         baseAltitude += altitudeDelta;
 
-        GPSCoordinate coordinate = new GPSCoordinate(
-                convertHuamiValueToDecimalDegrees(baseLongitude),
-                convertHuamiValueToDecimalDegrees(baseLatitude),
-                baseAltitude);
+        int longitude = convertHuamiValueToFixedDegrees(baseLongitude);
+        int latitude = convertHuamiValueToFixedDegrees(baseLatitude);
+        int altitude = ActivityTrackSeries.toFixedAltitude(baseAltitude);
 
-        ActivityPoint ap = getActivityPointFor(timeOffset, coordinate);
-        ap.setLocation(coordinate);
-        add(ap);
+        int index = activityTrack.size() - 1;
+        if (index < 0 || activityTrack.getTime(index) != makeAbsolute(timeOffset)
+                || (activityTrack.hasLocation(index) && (activityTrack.getLongitude(index) != longitude
+                        || activityTrack.getLatitude(index) != latitude || activityTrack.getAltitude(index) != altitude))) {
+            index = addPoint(timeOffset);
+        }
+        activityTrack.setLocation(index, longitude, latitude, altitude);
+    }
 
-        return i;
+    /**
+     * Same as {@link BLETypeConversions#toInt16(byte...)}, without creating an array.
+     */
+    private static int toInt16(byte[] bytes, int offset) {
+        return (short) (bytes[offset] & 0xff | ((bytes[offset + 1] & 0xff) << 8));
     }
 
-    private double convertHuamiValueToDecimalDegrees(long huamiValue) {
-        BigDecimal result = new BigDecimal(huamiValue).divide(HUAMI_TO_DECIMAL_DEGREES_DIVISOR, GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE, RoundingMode.HALF_UP);
-        return result.doubleValue();
+    /**
+     * Huami values are in units of 1/3000000 degrees, i.e. three of them make a millionth of a
+     * degree. The remainder is never exactly a half, so rounding to the nearest integer is the
+     * same as {@link java.math.RoundingMode#HALF_UP}.
+     */
+    @VisibleForTesting
+    public static int convertHuamiValueToFixedDegrees(long huamiValue) {
+        long result = huamiValue / 3;
+        long remainder = huamiValue % 3;
+        if (remainder == 2) {
+            result++;
+        } else if (remainder == -2) {
+            result--;
+        }
+        return (int) result;
     }
 
-    private int consumeHeartRate(byte[] bytes, int offset, long timeOffsetSeconds) {
+    private void consumeHeartRate(byte[] bytes, int offset, long timeOffsetSeconds) {
         int v1 = BLETypeConversions.toUint16(bytes[offset]);
         int v2 = BLETypeConversions.toUint16(bytes[offset + 1]);
         int v3 = BLETypeConversions.toUint16(bytes[offset + 2]);
@@ -209,88 +237,70 @@ public class HuamiActivityDetailsParser {
         if (v2 == 0 && v3 == 0 && v4 == 0 && v5 == 0 && v6 == 0) {
             // new version
             LOG.info("detected heart rate in 'new' version format");
-            ActivityPoint ap = getActivityPointFor(timeOffsetSeconds);
-            ap.setHeartRate(v1);
-            add(ap);
+            activityTrack.setHeartRate(getPointFor(timeOffsetSeconds), v1);
         } else {
-            ActivityPoint ap = getActivityPointFor(v1);
-            ap.setHeartRate(v2);
-            add(ap);
-
-            ap = getActivityPointFor(v3);
-            ap.setHeartRate(v4);
-            add(ap);
-
-            ap = getActivityPointFor(v5);
-            ap.setHeartRate(v6);
-            add(ap);
+            activityTrack.setHeartRate(getPointFor(v1), v2);
+            activityTrack.setHeartRate(getPointFor(v3), v4);
+            activityTrack.setHeartRate(getPointFor(v5), v6);
         }
-        return 6;
     }
 
-    private ActivityPoint getActivityPointFor(long timeOffsetSeconds) {
-        Date time = makeAbsolute(timeOffsetSeconds);
-        if (lastActivityPoint != null) {
-            if (lastActivityPoint.getTime().equals(time)) {
-                return lastActivityPoint;
-            }
+    /**
+     * Returns the index of the last point if it has the given time, otherwise adds a new one.
+     */
+    private int getPointFor(long timeOffsetSeconds) {
+        int index = activityTrack.size() - 1;
+        if (index >= 0 && activityTrack.getTime(index) == makeAbsolute(timeOffsetSeconds)) {
+            return index;
         }
-        return new ActivityPoint(time);
+        return addPoint(timeOffsetSeconds);
     }
 
-    private ActivityPoint getActivityPointFor(long timeOffsetSeconds, GPSCoordinate gpsCoordinate) {
-        Date time = makeAbsolute(timeOffsetSeconds);
-        if (lastActivityPoint != null) {
-            if (lastActivityPoint.getTime().equals(time)) {
-                if (lastActivityPoint.getLocation() != null && !lastActivityPoint.getLocation().equals(gpsCoordinate)) {
-                    return new ActivityPoint(time);
-                }
-                return lastActivityPoint;
-            }
+    private int addPoint(long timeOffsetSeconds) {
+        int index = activityTrack.add(makeAbsolute(timeOffsetSeconds), ActivityTrackSeries.NO_LOCATION,
+                ActivityTrackSeries.NO_LOCATION, ActivityTrackSeries.NO_LOCATION, 0);
+        if (!timestampsFixed && index > 0) {
+            // the previous point will not change anymore
+            checkTimestamp(index - 1);
         }
-        return new ActivityPoint(time);
-    }
-
-    private Date makeAbsolute(long timeOffsetSeconds) {
-        return new Date(baseDate.getTime() + timeOffsetSeconds * 1000);
+        return index;
     }
 
-    private void add(ActivityPoint ap) {
-        if (ap != lastActivityPoint) {
-            lastActivityPoint = ap;
-            activityTrack.addTrackPoint(ap);
-        } else {
-            LOG.info("skipping point!");
+    /**
+     * The first GPS points come without a proper timestamp, i.e. with the same time as their
+     * successor. Once the first one with a proper timestamp is found, the timestamps of those
+     * before it are spread evenly between the start of the activity and that timestamp.
+     */
+    private void checkTimestamp(int index) {
+        if (!activityTrack.hasLocation(index)) {
+            return;
+        }
+        pointsWithoutTimestamp++;
+        long gpsStartTime = activityTrack.getTime(index + 1);
+        if (activityTrack.getTime(index) == gpsStartTime) {
+            return;
+        }
+        timestampsFixed = true;
+
+        long differenceInSec = Math.abs(gpsStartTime - baseTime) / 1000;
+        double multiplier = (double) differenceInSec / (double) pointsWithoutTimestamp;
+        int j = 0;
+        for (int i = 0; i <= index; i++) {
+            if (activityTrack.hasLocation(i)) {
+                long timeOffsetSeconds = Math.round(j * multiplier);
+                activityTrack.setTime(i, makeAbsolute(timeOffsetSeconds));
+                j++;
+            }
         }
     }
 
-    private int consumePause(byte[] bytes, int offset) {
-        LOG.debug("got pause packet: " + GB.hexdump(bytes, offset, 6));
-        return 6;
-    }
-
-    private int consumeResume(byte[] bytes, int offset) {
-        LOG.debug("got resume package: " + GB.hexdump(bytes, offset, 6));
-        return 6;
-    }
-
-    private int consumeSpeed4(byte[] bytes, int offset) {
-        LOG.debug("got packet type 4 (speed): " + GB.hexdump(bytes, offset, 6));
-        return 6;
-    }
-
-    private int consumeSpeed5(byte[] bytes, int offset) {
-        LOG.debug("got packet type 5 (speed): " + GB.hexdump(bytes, offset, 6));
-        return 6;
-    }
-
-    private int consumeSpeed6(byte[] bytes, int offset) {
-        LOG.debug("got packet type 6 (speed): " + GB.hexdump(bytes, offset, 6));
-        return 6;
+    private long makeAbsolute(long timeOffsetSeconds) {
+        return baseTime + timeOffsetSeconds * 1000;
     }
 
-    private int consumeSwimming(byte[] bytes, int offset) {
-        LOG.debug("got packet type 8 (swimming?): " + GB.hexdump(bytes, offset, 6));
-        return 6;
+    private void logRecord(String message, byte[] bytes, int offset) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(message + GB.hexdump(bytes, offset, 6));
+        }
     }
 }
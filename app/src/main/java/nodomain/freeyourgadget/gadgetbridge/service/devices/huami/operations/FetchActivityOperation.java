@@ -24,10 +24,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.List;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
@@ -52,7 +50,62 @@ import nodomain.freeyourgadget.gadgetbridge.util.StringUtils;
 public class FetchActivityOperation extends AbstractFetchOperation {
     private static final Logger LOG = LoggerFactory.getLogger(FetchActivityOperation.class);
 
-    private List<MiBandActivitySample> samples = new ArrayList<>(60*24); // 1day per default
+    /**
+     * The number of samples (minutes) that are collected before they are written to the
+     * database and the sync timestamp is advanced.
+     */
+    private static final int FLUSH_SAMPLE_COUNT = 60 * 4;
+
+    private final SampleBuffer buffer = new SampleBuffer(FLUSH_SAMPLE_COUNT);
+    /**
+     * The timestamp of the next sample to be flushed in the current round,
+     * null until the first samples were flushed.
+     */
+    private GregorianCalendar nextSampleTimestamp;
+    private boolean saveFailed;
+
+    /**
+     * Holds the raw values of the received samples in primitive columns, so that
+     * no objects need to be created until they are written to the database.
+     */
+    private static class SampleBuffer {
+        private final int[] kinds;
+        private final int[] intensities;
+        private final int[] steps;
+        private final int[] heartRates;
+        private int size;
+
+        SampleBuffer(int capacity) {
+            kinds = new int[capacity];
+            intensities = new int[capacity];
+            steps = new int[capacity];
+            heartRates = new int[capacity];
+        }
+
+        void add(byte category, byte intensity, byte steps, byte heartRate) {
+            kinds[size] = category & 0xff;
+            intensities[size] = intensity & 0xff;
+            this.steps[size] = steps & 0xff;
+            heartRates[size] = heartRate & 0xff;
+            size++;
+        }
+
+        boolean isFull() {
+            return size == kinds.length;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
 
     public FetchActivityOperation(HuamiSupport support) {
         super(support);
@@ -61,7 +114,9 @@ public class FetchActivityOperation extends AbstractFetchOperation {
 
     @Override
     protected void startFetching() throws IOException {
-        samples.clear();
+        buffer.clear();
+        nextSampleTimestamp = null;
+        saveFailed = false;
         super.startFetching();
     }
 
@@ -74,8 +129,9 @@ public class FetchActivityOperation extends AbstractFetchOperation {
 
     protected void handleActivityFetchFinish(boolean success) {
         LOG.info(getName() + " has finished round " + fetchCount);
-        GregorianCalendar lastSyncTimestamp = saveSamples();
-        if (lastSyncTimestamp != null && needsAnotherFetch(lastSyncTimestamp)) {
+        flushSamples();
+        GregorianCalendar lastSyncTimestamp = nextSampleTimestamp;
+        if (lastSyncTimestamp != null && !saveFailed && needsAnotherFetch(lastSyncTimestamp)) {
             try {
                 startFetching();
                 return;
@@ -106,41 +162,56 @@ public class FetchActivityOperation extends AbstractFetchOperation {
         return true;
     }
 
-    private GregorianCalendar saveSamples() {
-        if (samples.size() > 0) {
-            // save all the samples that we got
-            try (DBHandler handler = GBApplication.acquireDB()) {
-                DaoSession session = handler.getDaoSession();
-                SampleProvider<MiBandActivitySample> sampleProvider = new MiBandSampleProvider(getDevice(), session);
-                Device device = DBHelper.getDevice(getDevice(), session);
-                User user = DBHelper.getUser(session);
-
-                GregorianCalendar timestamp = (GregorianCalendar) startTimestamp.clone();
-                for (MiBandActivitySample sample : samples) {
-                    sample.setDevice(device);
-                    sample.setUser(user);
-                    sample.setTimestamp((int) (timestamp.getTimeInMillis() / 1000));
-                    sample.setProvider(sampleProvider);
-
-                    if (LOG.isDebugEnabled()) {
-//                        LOG.debug("sample: " + sample);
-                    }
-
-                    timestamp.add(Calendar.MINUTE, 1);
-                }
-                sampleProvider.addGBActivitySamples(samples.toArray(new MiBandActivitySample[0]));
-
-                saveLastSyncTimestamp(timestamp);
-                LOG.info("Mi2 activity data: last sample timestamp: " + DateTimeUtils.formatDateTime(timestamp.getTime()));
-                return timestamp;
-
-            } catch (Exception ex) {
-                GB.toast(getContext(), "Error saving activity samples", Toast.LENGTH_LONG, GB.ERROR);
-            } finally {
-                samples.clear();
+    /**
+     * Writes the buffered samples to the database in a single transaction and advances
+     * the sync timestamp, so that an interrupted fetch continues after the stored samples.
+     * Once a batch failed to save, all following batches are discarded, so that the sync
+     * timestamp never skips over the missing samples.
+     */
+    private void flushSamples() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        if (saveFailed) {
+            buffer.clear();
+            return;
+        }
+        GregorianCalendar firstTimestamp = nextSampleTimestamp != null ? nextSampleTimestamp : (GregorianCalendar) startTimestamp.clone();
+        // the timestamps of the following samples must be correct, even if saving fails
+        nextSampleTimestamp = (GregorianCalendar) firstTimestamp.clone();
+        nextSampleTimestamp.add(Calendar.MINUTE, buffer.size());
+
+        try (DBHandler handler = GBApplication.acquireDB()) {
+            DaoSession session = handler.getDaoSession();
+            SampleProvider<MiBandActivitySample> sampleProvider = new MiBandSampleProvider(getDevice(), session);
+            Device device = DBHelper.getDevice(getDevice(), session);
+            User user = DBHelper.getUser(session);
+
+            int timestamp = (int) (firstTimestamp.getTimeInMillis() / 1000);
+            MiBandActivitySample[] samples = new MiBandActivitySample[buffer.size()];
+            for (int i = 0; i < samples.length; i++) {
+                MiBandActivitySample sample = new MiBandActivitySample();
+                sample.setRawKind(buffer.kinds[i]);
+                sample.setRawIntensity(buffer.intensities[i]);
+                sample.setSteps(buffer.steps[i]);
+                sample.setHeartRate(buffer.heartRates[i]);
+                sample.setDevice(device);
+                sample.setUser(user);
+                sample.setTimestamp(timestamp + i * 60);
+                sample.setProvider(sampleProvider);
+                samples[i] = sample;
             }
+            sampleProvider.addGBActivitySamples(samples);
+
+            saveLastSyncTimestamp(nextSampleTimestamp);
+            LOG.info("Mi2 activity data: saved " + samples.length + " samples, last sample timestamp: " + DateTimeUtils.formatDateTime(nextSampleTimestamp.getTime()));
+        } catch (Exception ex) {
+            saveFailed = true;
+            LOG.error("Error saving activity samples, discarding the rest of this fetch", ex);
+            GB.toast(getContext(), "Error saving activity samples", Toast.LENGTH_LONG, GB.ERROR);
+        } finally {
+            buffer.clear();
         }
-        return null;
     }
 
     /**
@@ -176,7 +247,8 @@ public class FetchActivityOperation extends AbstractFetchOperation {
     }
 
     /**
-     * Creates samples from the given 17-length array
+     * Buffers the samples of the given 17-length array, flushing them to the database
+     * whenever the buffer is full.
      * @param value
      */
     protected void bufferActivityData(byte[] value) {
@@ -187,21 +259,13 @@ public class FetchActivityOperation extends AbstractFetchOperation {
         }
 
         for (int i = 1; i < len; i+=4) {
-            MiBandActivitySample sample = createSample(value[i], value[i + 1], value[i + 2], value[i + 3]); // lgtm [java/index-out-of-bounds]
-            samples.add(sample);
+            buffer.add(value[i], value[i + 1], value[i + 2], value[i + 3]); // lgtm [java/index-out-of-bounds]
+            if (buffer.isFull()) {
+                flushSamples();
+            }
         }
     }
 
-    private MiBandActivitySample createSample(byte category, byte intensity, byte steps, byte heartrate) {
-        MiBandActivitySample sample = new MiBandActivitySample();
-        sample.setRawKind(category & 0xff);
-        sample.setRawIntensity(intensity & 0xff);
-        sample.setSteps(steps & 0xff);
-        sample.setHeartRate(heartrate & 0xff);
-
-        return sample;
-    }
-
     @Override
     protected String getLastSyncTimeKey() {
         return "lastSyncTimeMillis";
@@ -33,10 +33,9 @@ import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.amazfitbip.AmazfitBipService;
 import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
-import nodomain.freeyourgadget.gadgetbridge.export.ActivityTrackExporter;
-import nodomain.freeyourgadget.gadgetbridge.export.GPXExporter;
+import nodomain.freeyourgadget.gadgetbridge.export.ActivityTrackFile;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
-import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrackSeries;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiSupport;
@@ -55,6 +54,7 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
     private final String lastSyncTimeKey;
 
     private ByteArrayOutputStream buffer;
+    private HuamiActivityDetailsParser parser;
 
     FetchSportsDetailsOperation(@NonNull BaseActivitySummary summary, @NonNull HuamiSupport support, @NonNull String lastSyncTimeKey) {
         super(support);
@@ -67,6 +67,8 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
     protected void startFetching(TransactionBuilder builder) {
         LOG.info("start " + getName());
         buffer = new ByteArrayOutputStream(1024);
+        parser = new HuamiActivityDetailsParser(summary);
+        parser.setSkipCounterByte(false); // is already stripped
         GregorianCalendar sinceWhen = getLastSuccessfulSyncTime();
         startFetching(builder, AmazfitBipService.COMMAND_ACTIVITY_DATA_TYPE_SPORTS_DETAILS, sinceWhen);
     }
@@ -86,11 +88,8 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
 
 
         if (success) {
-            HuamiActivityDetailsParser parser = new HuamiActivityDetailsParser(summary);
-            parser.setSkipCounterByte(false); // is already stripped
             try {
-                ActivityTrack track = parser.parse(buffer.toByteArray());
-                ActivityTrackExporter exporter = createExporter();
+                ActivityTrackSeries track = parser.finish();
                 String trackType = "track";
                 switch (summary.getActivityKind()) {
                     case ActivityKind.TYPE_CYCLING:
@@ -106,18 +105,19 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
                         trackType = getContext().getString(R.string.activity_type_swimming);
                         break;
                 }
-                String fileName = FileUtils.makeValidFileName("gadgetbridge-"+trackType.toLowerCase()+"-" + DateTimeUtils.formatIso8601(summary.getStartTime()) + ".gpx");
-                File targetFile = new File(FileUtils.getExternalFilesDir(), fileName);
 
-                try {
-                    exporter.performExport(track, targetFile);
+                if (track.hasLocations()) {
+                    // GPX is rendered from this file when the track is viewed or shared
+                    String fileName = FileUtils.makeValidFileName("gadgetbridge-"+trackType.toLowerCase()+"-" + DateTimeUtils.formatIso8601(summary.getStartTime()) + ActivityTrackFile.EXTENSION);
+                    File targetFile = new File(FileUtils.getExternalFilesDir(), fileName);
+                    ActivityTrackFile.write(targetFile, track, ActivityTrackFile.RAW_FORMAT_HUAMI_SPORTS_DETAILS, buffer.toByteArray());
 
                     try (DBHandler dbHandler = GBApplication.acquireDB()) {
                         summary.setGpxTrack(targetFile.getAbsolutePath());
                         dbHandler.getDaoSession().getBaseActivitySummaryDao().update(summary);
                     }
-                } catch (ActivityTrackExporter.GPXTrackEmptyException ex) {
-                    GB.toast(getContext(), "This activity does not contain GPX tracks.", Toast.LENGTH_LONG, GB.ERROR, ex);
+                } else {
+                    GB.toast(getContext(), "This activity does not contain GPX tracks.", Toast.LENGTH_LONG, GB.ERROR);
                 }
 
                 GregorianCalendar endTime = BLETypeConversions.createCalendar();
@@ -131,12 +131,6 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
         super.handleActivityFetchFinish(success);
     }
 
-    private ActivityTrackExporter createExporter() {
-        GPXExporter exporter = new GPXExporter();
-        exporter.setCreator(GBApplication.app().getNameAndVersion());
-        return exporter;
-    }
-
     /**
      * Method to handle the incoming activity data.
      * There are two kind of messages we currently know:
@@ -173,13 +167,14 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
     }
 
     /**
-     * Buffers the given activity summary data. If the total size is reached,
-     * it is converted to an object and saved in the database.
+     * Parses the given activity details data as it arrives. The raw data is buffered
+     * as well, since it is stored along with the track.
      * @param value
      */
     @Override
     protected void bufferActivityData(byte[] value) {
         buffer.write(value, 1, value.length - 1); // skip the counter
+        parser.consume(value, 1, value.length - 1);
     }
 
     @Override
@@ -240,6 +240,9 @@ public class UpdateFirmwareOperation extends AbstractHuamiOperation {
             int firmwareProgress = 0;
 
             TransactionBuilder builder = performInitialized("send firmware packet");
+            if (GBApplication.isWritePipeliningEnabled()) {
+                builder.pipelineWrites(TransactionBuilder.DEFAULT_WRITE_WINDOW);
+            }
             builder.write(fwCControlChar, getFirmwareStartCommand());
 
             for (int i = 0; i < packets; i++) {
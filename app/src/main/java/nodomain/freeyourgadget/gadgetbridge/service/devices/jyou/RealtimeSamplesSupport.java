@@ -16,50 +16,47 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.devices.jyou;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.service.DeviceTaskScheduler;
 
 public abstract class RealtimeSamplesSupport {
     private final long delay;
     private final long period;
+    private final DeviceTaskScheduler.Task storageTask;
 
     protected int steps;
     protected int heartrateBpm;
     private int lastSteps;
     // subclasses may add more
 
-    private Timer realtimeStorageTimer;
 
-    public RealtimeSamplesSupport(long delay, long period) {
+    /**
+     * @param owner the address of the device, for identifying the task in the scheduler
+     */
+    public RealtimeSamplesSupport(String owner, long delay, long period) {
         this.delay = delay;
         this.period = period;
+        this.storageTask = DeviceTaskScheduler.getInstance().createTask(owner, "realtime samples", new Runnable() {
+            @Override
+            public void run() {
+                triggerCurrentSample();
+            }
+        });
     }
 
     public synchronized void start() {
         if (isRunning()) {
             return; // already running
         }
-        realtimeStorageTimer = new Timer("JYou Realtime Storage Timer");
-        realtimeStorageTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                triggerCurrentSample();
-            }
-        }, delay, period);
+        storageTask.schedule(delay, period);
     }
 
     public synchronized void stop() {
-        if (realtimeStorageTimer != null) {
-            realtimeStorageTimer.cancel();
-            realtimeStorageTimer.purge();
-            realtimeStorageTimer = null;
-        }
+        storageTask.cancel();
     }
 
     public synchronized boolean isRunning() {
-        return realtimeStorageTimer != null;
+        return storageTask.isScheduled();
     }
 
     public synchronized void setSteps(int stepsPerMinute) {
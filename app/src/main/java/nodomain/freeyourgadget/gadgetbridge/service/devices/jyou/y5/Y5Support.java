@@ -149,7 +149,7 @@ public class Y5Support extends JYouSupport {
 
     private RealtimeSamplesSupport getRealtimeSamplesSupport() {
         if (realtimeSamplesSupport == null) {
-            realtimeSamplesSupport = new RealtimeSamplesSupport(1000, 1000) {
+            realtimeSamplesSupport = new RealtimeSamplesSupport(getDevice().getAddress(), 1000, 1000) {
                 @Override
                 public void doCurrentSample() {
 
@@ -27,13 +27,13 @@
 
 package nodomain.freeyourgadget.gadgetbridge.service.devices.makibeshr3;
 
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
-import android.os.CountDownTimer;
-import android.os.Handler;
 import android.widget.Toast;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
@@ -60,6 +60,7 @@ import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.devices.makibeshr3.MakibesHR3Constants;
 import nodomain.freeyourgadget.gadgetbridge.devices.makibeshr3.MakibesHR3Coordinator;
 import nodomain.freeyourgadget.gadgetbridge.devices.makibeshr3.MakibesHR3SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.MakibesHR3ActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
@@ -77,8 +78,10 @@ import nodomain.freeyourgadget.gadgetbridge.model.MusicSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.MusicStateSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
+import nodomain.freeyourgadget.gadgetbridge.service.DeviceTaskScheduler;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractBTLEDeviceSupport;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.miband.RealtimeSampleBuffer;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceProtocol;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 
@@ -88,24 +91,15 @@ public class MakibesHR3DeviceSupport extends AbstractBTLEDeviceSupport implement
 
     // The delay must be at least as long as it takes the watch to respond.
     // Reordering the requests could maybe reduce the delay, but this works fine too.
-    private CountDownTimer mFetchCountDown = new CountDownTimer(2000, 2000) {
-        @Override
-        public void onTick(long millisUntilFinished) {
+    private static final long FETCH_FINISHED_DELAY_MILLIS = 2000;
 
-        }
-
-        @Override
-        public void onFinish() {
-            LOG.debug("download finished");
-            GB.updateTransferNotification(null, "", false, 100, getContext());
-        }
-    };
-
-    private Handler mFindPhoneHandler = new Handler();
+    private DeviceTaskScheduler.Task mFetchFinishedTask;
+    private DeviceTaskScheduler.Task mFindPhoneStopTask;
 
     private BluetoothGattCharacteristic mControlCharacteristic = null;
     private BluetoothGattCharacteristic mReportCharacteristic = null;
 
+    private RealtimeSampleBuffer<MakibesHR3ActivitySample> mRealtimeSamples = null;
 
     public MakibesHR3DeviceSupport() {
         super(LOG);
@@ -113,6 +107,41 @@ public class MakibesHR3DeviceSupport extends AbstractBTLEDeviceSupport implement
         addSupportedService(MakibesHR3Constants.UUID_SERVICE);
     }
 
+    @Override
+    public void setContext(GBDevice gbDevice, BluetoothAdapter btAdapter, Context context) {
+        super.setContext(gbDevice, btAdapter, context);
+
+        DeviceTaskScheduler scheduler = DeviceTaskScheduler.getInstance();
+        this.mFetchFinishedTask = scheduler.createTask(gbDevice.getAddress(), "Makibes HR3 fetch finished", new Runnable() {
+            @Override
+            public void run() {
+                LOG.debug("download finished");
+                GB.updateTransferNotification(null, "", false, 100, getContext());
+            }
+        });
+        this.mFindPhoneStopTask = scheduler.createTask(gbDevice.getAddress(), "Makibes HR3 stop find phone", new Runnable() {
+            @Override
+            public void run() {
+                onReverseFindDevice(false);
+            }
+        });
+    }
+
+    @Override
+    public void dispose() {
+        if (this.mFetchFinishedTask != null) {
+            this.mFetchFinishedTask.cancel();
+            this.mFindPhoneStopTask.cancel();
+        }
+
+        if (this.mRealtimeSamples != null) {
+            this.mRealtimeSamples.close();
+            this.mRealtimeSamples = null;
+        }
+
+        super.dispose();
+    }
+
     /**
      * Called whenever data is received to postpone the removing of the progress notification.
      *
@@ -124,8 +153,7 @@ public class MakibesHR3DeviceSupport extends AbstractBTLEDeviceSupport implement
             GB.updateTransferNotification(null, getContext().getString(R.string.busy_task_fetch_activity_data), true, 0, getContext());
         }
 
-        this.mFetchCountDown.cancel();
-        this.mFetchCountDown.start();
+        this.mFetchFinishedTask.schedule(FETCH_FINISHED_DELAY_MILLIS);
     }
 
     @Override
@@ -435,12 +463,7 @@ public class MakibesHR3DeviceSupport extends AbstractBTLEDeviceSupport implement
                 evaluateGBDeviceEvent(findPhoneEvent);
 
                 if (findPhone > 0) {
-                    this.mFindPhoneHandler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            onReverseFindDevice(false);
-                        }
-                    }, findPhone * 1000);
+                    this.mFindPhoneStopTask.schedule(findPhone * 1000L);
                 }
             }
         } else {
@@ -631,6 +654,12 @@ public class MakibesHR3DeviceSupport extends AbstractBTLEDeviceSupport implement
     }
 
     private void addGBActivitySamples(MakibesHR3ActivitySample[] samples) {
+        // Store the buffered realtime samples first, they must not overwrite newer samples
+        // with the same timestamp.
+        if (this.mRealtimeSamples != null) {
+            this.mRealtimeSamples.flush();
+        }
+
         try (DBHandler dbHandler = GBApplication.acquireDB()) {
 
             User user = DBHelper.getUser(dbHandler.getDaoSession());
@@ -662,9 +691,24 @@ public class MakibesHR3DeviceSupport extends AbstractBTLEDeviceSupport implement
     }
 
     /**
-     * Should only be called after the sample has been populated by
-     * {@link MakibesHR3DeviceSupport#addGBActivitySample} or
-     * {@link MakibesHR3DeviceSupport#addGBActivitySamples}
+     * Realtime samples are buffered and stored in batches, see
+     * {@link RealtimeSampleBuffer}.
+     */
+    private RealtimeSampleBuffer<MakibesHR3ActivitySample> getRealtimeSamples() {
+        if (this.mRealtimeSamples == null) {
+            this.mRealtimeSamples = new RealtimeSampleBuffer<MakibesHR3ActivitySample>(this.getDevice(), this.getContext()) {
+                @Override
+                protected SampleProvider<MakibesHR3ActivitySample> createSampleProvider(GBDevice device, DaoSession session) {
+                    return new MakibesHR3SampleProvider(device, session);
+                }
+            };
+        }
+
+        return this.mRealtimeSamples;
+    }
+
+    /**
+     * The sample is published directly, it doesn't need to be stored yet.
      */
     private void broadcastSample(MakibesHR3ActivitySample sample) {
         Intent intent = new Intent(DeviceService.ACTION_REALTIME_SAMPLES)
@@ -699,7 +743,8 @@ public class MakibesHR3DeviceSupport extends AbstractBTLEDeviceSupport implement
             }
         }
 
-        this.addGBActivitySample(sample);
+        this.getRealtimeSamples().add(sample.getTimestamp(), sample.getHeartRate(), sample.getSteps(),
+                sample.getRawKind(), ActivitySample.NOT_MEASURED);
         this.broadcastSample(sample);
     }
 
@@ -42,8 +42,6 @@ import java.util.UUID;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.activities.devicesettings.DeviceSettingsPreferenceConst;
-import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
-import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventBatteryInfo;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventVersionInfo;
 import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
@@ -987,6 +985,15 @@ public class MiBandSupport extends AbstractBTLEDeviceSupport {
         getRealtimeSamplesSupport().setSteps(steps);
     }
 
+    @Override
+    public void dispose() {
+        if (realtimeSamplesSupport != null) {
+            realtimeSamplesSupport.dispose();
+            realtimeSamplesSupport = null;
+        }
+        super.dispose();
+    }
+
     private void enableRealtimeSamplesTimer(boolean enable) {
         if (enable) {
             getRealtimeSamplesSupport().start();
@@ -1009,41 +1016,35 @@ public class MiBandSupport extends AbstractBTLEDeviceSupport {
 
     private RealtimeSamplesSupport getRealtimeSamplesSupport() {
         if (realtimeSamplesSupport == null) {
-            realtimeSamplesSupport = new RealtimeSamplesSupport(1000, 1000) {
+            RealtimeSampleBuffer<MiBandActivitySample> sampleBuffer = new RealtimeSampleBuffer<MiBandActivitySample>(gbDevice, getContext()) {
+                @Override
+                protected SampleProvider<MiBandActivitySample> createSampleProvider(GBDevice device, DaoSession session) {
+                    return new MiBandSampleProvider(device, session);
+                }
+            };
+            realtimeSamplesSupport = new RealtimeSamplesSupport(getDevice().getAddress(), 1000, 1000, sampleBuffer) {
                 @Override
                 public void doCurrentSample() {
-
-                    try (DBHandler handler = GBApplication.acquireDB()) {
-                        DaoSession session = handler.getDaoSession();
-
-                        Device device = DBHelper.getDevice(getDevice(), session);
-                        User user = DBHelper.getUser(session);
-                        int ts = (int) (System.currentTimeMillis() / 1000);
-                        MiBandSampleProvider provider = new MiBandSampleProvider(gbDevice, session);
-                        MiBandActivitySample sample = createActivitySample(device, user, ts, provider);
-                        sample.setHeartRate(getHeartrateBpm());
-                        sample.setRawIntensity(ActivitySample.NOT_MEASURED);
-                        sample.setRawKind(MiBandSampleProvider.TYPE_ACTIVITY); // to make it visible in the charts TODO: add a MANUAL kind for that?
-
-                        provider.addGBActivitySample(sample);
-
-                        // set the steps only afterwards, since realtime steps are also recorded
-                        // in the regular samples and we must not count them twice
-                        // Note: we know that the DAO sample is never committed again, so we simply
-                        // change the value here in memory.
-                        sample.setSteps(getSteps());
-
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("realtime sample: " + sample);
-                        }
-
-                        Intent intent = new Intent(DeviceService.ACTION_REALTIME_SAMPLES)
-                                .putExtra(DeviceService.EXTRA_REALTIME_SAMPLE, sample);
-                        LocalBroadcastManager.getInstance(getContext()).sendBroadcast(intent);
-
-                    } catch (Exception e) {
-                        LOG.warn("Unable to acquire db for saving realtime samples", e);
+                    int ts = (int) (System.currentTimeMillis() / 1000);
+                    // the steps are not stored, since realtime steps are also recorded
+                    // in the regular samples and we must not count them twice
+                    getSampleBuffer().add(ts, getHeartrateBpm(), 0, MiBandSampleProvider.TYPE_ACTIVITY, ActivitySample.NOT_MEASURED); // to make it visible in the charts TODO: add a MANUAL kind for that?
+
+                    // publish the sample directly, it will be stored with the next flush
+                    MiBandActivitySample sample = new MiBandActivitySample();
+                    sample.setTimestamp(ts);
+                    sample.setHeartRate(getHeartrateBpm());
+                    sample.setSteps(getSteps());
+                    sample.setRawIntensity(ActivitySample.NOT_MEASURED);
+                    sample.setRawKind(MiBandSampleProvider.TYPE_ACTIVITY);
+
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("realtime sample: " + sample);
                     }
+
+                    Intent intent = new Intent(DeviceService.ACTION_REALTIME_SAMPLES)
+                            .putExtra(DeviceService.EXTRA_REALTIME_SAMPLE, sample);
+                    LocalBroadcastManager.getInstance(getContext()).sendBroadcast(intent);
                 }
             };
         }
@@ -0,0 +1,223 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.devices.miband;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+
+/**
+ * Write-behind storage for realtime samples (heart rate, steps), which arrive about
+ * once per second while realtime mode is enabled.
+ * <p/>
+ * Instead of storing every sample in its own transaction, the values are kept in a
+ * primitive ring buffer and written in a single transaction every #flushIntervalSeconds,
+ * when the buffer is full, on #flush() (e.g. when the realtime mode is stopped or the
+ * device disconnects) and when the system is running low on memory.
+ * <p/>
+ * If writing fails, the samples are kept and retried with the next flush. Only when the
+ * buffer overflows while the database is unavailable, the oldest samples are dropped.
+ * <p/>
+ * Samples must be published to the UI by the caller from memory, they are not available
+ * in the database before the next flush.
+ */
+public abstract class RealtimeSampleBuffer<T extends AbstractActivitySample> implements ComponentCallbacks2 {
+    private static final Logger LOG = LoggerFactory.getLogger(RealtimeSampleBuffer.class);
+
+    public static final int DEFAULT_CAPACITY = 600;
+    public static final int DEFAULT_FLUSH_INTERVAL_SECONDS = 60;
+
+    /**
+     * Flushes the buffers on memory pressure, the callbacks arrive on the main thread
+     */
+    private static final ExecutorService memoryPressureFlusher = Executors.newSingleThreadExecutor();
+
+    private final GBDevice gbDevice;
+    private final Context context;
+    private final int flushIntervalSeconds;
+
+    private final int[] timestamps;
+    private final int[] heartRates;
+    private final int[] steps;
+    private final int[] rawKinds;
+    private final int[] rawIntensities;
+    private int head;
+    private int count;
+    private long lastFlushMillis;
+    private int droppedSamples;
+
+    public RealtimeSampleBuffer(GBDevice gbDevice, Context context) {
+        this(gbDevice, context, DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL_SECONDS);
+    }
+
+    public RealtimeSampleBuffer(GBDevice gbDevice, Context context, int capacity, int flushIntervalSeconds) {
+        this.gbDevice = gbDevice;
+        this.context = context.getApplicationContext();
+        this.flushIntervalSeconds = flushIntervalSeconds;
+        timestamps = new int[capacity];
+        heartRates = new int[capacity];
+        steps = new int[capacity];
+        rawKinds = new int[capacity];
+        rawIntensities = new int[capacity];
+        lastFlushMillis = System.currentTimeMillis();
+        this.context.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Creates the provider the buffered samples are stored with.
+     */
+    protected abstract SampleProvider<T> createSampleProvider(GBDevice device, DaoSession session);
+
+    /**
+     * Appends a sample to the buffer and flushes the buffer to the database if the flush
+     * interval has elapsed or the buffer is full.
+     */
+    public void add(int timestamp, int heartRate, int stepCount, int rawKind, int rawIntensity) {
+        boolean needsFlush;
+        synchronized (this) {
+            if (count == timestamps.length) {
+                // the last flush failed, drop the oldest sample
+                head = (head + 1) % timestamps.length;
+                count--;
+                droppedSamples++;
+            }
+            int index = (head + count) % timestamps.length;
+            timestamps[index] = timestamp;
+            heartRates[index] = heartRate;
+            steps[index] = stepCount;
+            rawKinds[index] = rawKind;
+            rawIntensities[index] = rawIntensity;
+            count++;
+
+            needsFlush = count == timestamps.length
+                    || System.currentTimeMillis() - lastFlushMillis >= flushIntervalSeconds * 1000L;
+        }
+        if (needsFlush) {
+            flush();
+        }
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Writes all buffered samples to the database in a single transaction.
+     * Does not touch the database if there is nothing to write.
+     *
+     * @return true if the buffer is empty afterwards
+     */
+    public synchronized boolean flush() {
+        lastFlushMillis = System.currentTimeMillis();
+        if (count == 0) {
+            return true;
+        }
+        if (droppedSamples > 0) {
+            LOG.warn("Dropped " + droppedSamples + " realtime samples that could not be stored");
+            droppedSamples = 0;
+        }
+        try (DBHandler handler = GBApplication.acquireDB()) {
+            DaoSession session = handler.getDaoSession();
+            Device device = DBHelper.getDevice(gbDevice, session);
+            User user = DBHelper.getUser(session);
+            SampleProvider<T> provider = createSampleProvider(gbDevice, session);
+
+            T[] samples = null;
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % timestamps.length;
+                T sample = provider.createActivitySample();
+                if (samples == null) {
+                    //noinspection unchecked
+                    samples = (T[]) Array.newInstance(sample.getClass(), count);
+                }
+                sample.setDeviceId(device.getId());
+                sample.setUserId(user.getId());
+                sample.setProvider(provider);
+                sample.setTimestamp(timestamps[index]);
+                sample.setHeartRate(heartRates[index]);
+                sample.setSteps(steps[index]);
+                sample.setRawKind(rawKinds[index]);
+                sample.setRawIntensity(rawIntensities[index]);
+                samples[i] = sample;
+            }
+            provider.addGBActivitySamples(samples);
+
+            LOG.debug("Stored " + count + " realtime samples");
+            head = 0;
+            count = 0;
+            return true;
+        } catch (Exception e) {
+            LOG.warn("Unable to store " + count + " realtime samples, will retry later", e);
+            return false;
+        }
+    }
+
+    /**
+     * Flushes the remaining samples and stops listening for memory pressure.
+     * The buffer must not be used anymore afterwards.
+     */
+    public void close() {
+        context.unregisterComponentCallbacks(this);
+        flush();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            flushLater();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        flushLater();
+    }
+
+    /**
+     * Flushes the buffer on a background thread, so that the main thread neither waits for
+     * the database write lock nor for a running flush.
+     */
+    private void flushLater() {
+        memoryPressureFlusher.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -16,10 +16,8 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.devices.miband;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.service.DeviceTaskScheduler;
 
 /**
  * Basic support for aggregating different sources of realtime data that comes in in a mostly
@@ -30,47 +28,72 @@ import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
  * manner.
  *
  * Subclasses must implement #doCurrentSample() and should override #resetCurrentValues()
- * (but call super!).
+ * (but call super!). They should add the current sample to the #getSampleBuffer(), if
+ * one is set, instead of storing it directly. The buffer is flushed on #stop() and
+ * #dispose().
  */
 public abstract class RealtimeSamplesSupport {
     private final long delay;
     private final long period;
+    private final DeviceTaskScheduler.Task storageTask;
 
     protected int steps;
     protected int heartrateBpm;
     private int lastSteps;
     // subclasses may add more
 
-    private Timer realtimeStorageTimer;
+    private RealtimeSampleBuffer<?> sampleBuffer;
 
-    public RealtimeSamplesSupport(long delay, long period) {
+    /**
+     * @param owner the address of the device, for identifying the task in the scheduler
+     */
+    public RealtimeSamplesSupport(String owner, long delay, long period) {
         this.delay = delay;
         this.period = period;
+        this.storageTask = DeviceTaskScheduler.getInstance().createTask(owner, "realtime samples", new Runnable() {
+            @Override
+            public void run() {
+                triggerCurrentSample();
+            }
+        });
+    }
+
+    public RealtimeSamplesSupport(String owner, long delay, long period, RealtimeSampleBuffer<?> sampleBuffer) {
+        this(owner, delay, period);
+        this.sampleBuffer = sampleBuffer;
+    }
+
+    public RealtimeSampleBuffer<?> getSampleBuffer() {
+        return sampleBuffer;
     }
 
     public synchronized void start() {
         if (isRunning()) {
             return; // already running
         }
-        realtimeStorageTimer = new Timer("Mi Band Realtime Storage Timer");
-        realtimeStorageTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                triggerCurrentSample();
-            }
-        }, delay, period);
+        storageTask.schedule(delay, period);
     }
 
     public synchronized void stop() {
-        if (realtimeStorageTimer != null) {
-            realtimeStorageTimer.cancel();
-            realtimeStorageTimer.purge();
-            realtimeStorageTimer = null;
+        storageTask.cancel();
+        if (sampleBuffer != null) {
+            sampleBuffer.flush();
+        }
+    }
+
+    /**
+     * Stops the timer and writes the remaining buffered samples.
+     * This instance must not be used anymore afterwards.
+     */
+    public synchronized void dispose() {
+        stop();
+        if (sampleBuffer != null) {
+            sampleBuffer.close();
         }
     }
 
     public synchronized boolean isRunning() {
-        return realtimeStorageTimer != null;
+        return storageTask.isScheduled();
     }
 
     public synchronized void setSteps(int stepsPerMinute) {
@@ -23,7 +23,6 @@ import android.util.Pair;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Map;
@@ -33,8 +32,7 @@ import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEvent;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventSendBytes;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
-import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
-import nodomain.freeyourgadget.gadgetbridge.util.PebbleUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.PebbleAppKeys;
 
 class AppMessageHandler {
     final PebbleProtocol mPebbleProtocol;
@@ -74,12 +72,9 @@ class AppMessageHandler {
     }
 
     JSONObject getAppKeys() throws IOException, JSONException {
-        File destDir = PebbleUtils.getPbwCacheDir();
-        File configurationFile = new File(destDir, mUUID.toString() + ".json");
-        if (configurationFile.exists()) {
-            String jsonstring = FileUtils.getStringFromFile(configurationFile);
-            JSONObject json = new JSONObject(jsonstring);
-            return json.getJSONObject("appKeys");
+        PebbleAppKeys appKeys = PebbleAppKeys.get(mUUID);
+        if (appKeys != null) {
+            return appKeys.toJSON();
         }
         throw new IOException();
     }
@@ -43,7 +43,9 @@ class DatalogSessionAnalytics extends DatalogSession {
 
     @Override
     GBDeviceEvent[] handleMessage(ByteBuffer datalogMessage, int length) {
-        LOG.info("DATALOG " + taginfo + GB.hexdump(datalogMessage.array(), datalogMessage.position(), length));
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("DATALOG " + taginfo + GB.hexdump(datalogMessage, datalogMessage.position(), length));
+        }
 
         datalogMessage.position(datalogMessage.position() + 3);
         int messageTS = datalogMessage.getInt();
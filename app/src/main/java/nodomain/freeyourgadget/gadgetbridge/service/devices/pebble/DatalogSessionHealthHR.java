@@ -37,7 +37,9 @@ class DatalogSessionHealthHR extends DatalogSessionPebbleHealth {
 
     @Override
     public GBDeviceEvent[] handleMessage(ByteBuffer datalogMessage, int length) {
-        LOG.info("DATALOG " + taginfo + GB.hexdump(datalogMessage.array(), datalogMessage.position(), length));
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("DATALOG " + taginfo + GB.hexdump(datalogMessage, datalogMessage.position(), length));
+        }
 
         return isPebbleHealthEnabled() ? new GBDeviceEvent[]{null} : null;
     }
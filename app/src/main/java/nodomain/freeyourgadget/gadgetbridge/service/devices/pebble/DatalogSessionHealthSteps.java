@@ -45,7 +45,9 @@ class DatalogSessionHealthSteps extends DatalogSessionPebbleHealth {
 
     @Override
     public GBDeviceEvent[] handleMessage(ByteBuffer datalogMessage, int length) {
-        LOG.info("DATALOG " + taginfo + GB.hexdump(datalogMessage.array(), datalogMessage.position(), length));
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("DATALOG " + taginfo + GB.hexdump(datalogMessage, datalogMessage.position(), length));
+        }
 
         if (!isPebbleHealthEnabled()) {
             return null;
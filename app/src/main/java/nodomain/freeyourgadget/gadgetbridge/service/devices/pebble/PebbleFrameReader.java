@@ -0,0 +1,128 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.devices.pebble;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reassembles Pebble Protocol frames (2 bytes length, 2 bytes endpoint, payload) from
+ * an input stream.
+ * <p/>
+ * All data is read into a single buffer that is reused for the whole connection, as much
+ * as is available with every read. Complete frames are handed out as a read-only view on
+ * that buffer, so no memory is allocated per frame. When a frame would not fit into the
+ * rest of the buffer, the bytes already received of it are moved to the beginning.
+ */
+class PebbleFrameReader {
+    private static final Logger LOG = LoggerFactory.getLogger(PebbleFrameReader.class);
+
+    static final int MAX_PAYLOAD_LENGTH = 8192;
+    private static final int LENGTH_HEADER = 4;
+
+    // the emulator wraps every frame into 0xfeed, 1, length ... 0xbeef
+    private static final int LENGTH_TCP_PREFIX = 6;
+    private static final int LENGTH_TCP_SUFFIX = 2;
+
+    private final InputStream mInStream;
+    private final int mPrefixLength;
+    private final int mSuffixLength;
+    private final byte[] mBuffer;
+    private final ByteBuffer mFrame;
+    private int mStart;
+    private int mEnd;
+
+    PebbleFrameReader(InputStream inStream, boolean isTCP) {
+        mInStream = inStream;
+        mPrefixLength = isTCP ? LENGTH_TCP_PREFIX : 0;
+        mSuffixLength = isTCP ? LENGTH_TCP_SUFFIX : 0;
+        // room for two frames of maximum size, so that moving a partial frame is rare
+        mBuffer = new byte[2 * (mPrefixLength + LENGTH_HEADER + MAX_PAYLOAD_LENGTH + mSuffixLength)];
+        mFrame = ByteBuffer.wrap(mBuffer).asReadOnlyBuffer();
+    }
+
+    /**
+     * Blocks until a complete frame has been received.
+     *
+     * @return a big endian, read-only view on the frame, positioned at its length header.
+     * The view and its contents are only valid until the next invocation.
+     * @throws IOException when reading fails or the end of the stream has been reached ("broken pipe")
+     */
+    ByteBuffer readFrame() throws IOException {
+        while (true) {
+            fill(mPrefixLength + LENGTH_HEADER);
+            int headerStart = mStart + mPrefixLength;
+            int length = (mBuffer[headerStart] & 0xff) << 8 | (mBuffer[headerStart + 1] & 0xff);
+            if (length > MAX_PAYLOAD_LENGTH) {
+                LOG.info("invalid length " + length);
+                discardAvailable();
+                continue;
+            }
+
+            int frameLength = mPrefixLength + LENGTH_HEADER + length + mSuffixLength;
+            fill(frameLength);
+            headerStart = mStart + mPrefixLength;
+            mStart += frameLength;
+
+            mFrame.clear();
+            mFrame.position(headerStart);
+            mFrame.limit(headerStart + LENGTH_HEADER + length);
+            mFrame.order(ByteOrder.BIG_ENDIAN);
+            return mFrame;
+        }
+    }
+
+    /**
+     * Makes sure that at least count bytes starting at mStart are in the buffer.
+     */
+    private void fill(int count) throws IOException {
+        if (mEnd - mStart >= count) {
+            return;
+        }
+        if (mStart + count > mBuffer.length) {
+            int pending = mEnd - mStart;
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, pending);
+            mStart = 0;
+            mEnd = pending;
+        }
+        while (mEnd - mStart < count) {
+            int read = mInStream.read(mBuffer, mEnd, mBuffer.length - mEnd);
+            if (read == -1) {
+                throw new IOException("broken pipe");
+            }
+            mEnd += read;
+        }
+    }
+
+    /**
+     * Drops everything that has been received so far, to resynchronize after garbage.
+     */
+    private void discardAvailable() throws IOException {
+        mStart = 0;
+        mEnd = 0;
+        while (mInStream.available() > 0) {
+            if (mInStream.read(mBuffer, 0, mBuffer.length) == -1) {
+                throw new IOException("broken pipe");
+            }
+        }
+    }
+}
@@ -38,8 +38,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
@@ -61,6 +59,7 @@ import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PBWReader;
 import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PebbleInstallable;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDeviceApp;
+import nodomain.freeyourgadget.gadgetbridge.service.capture.TrafficRecorder;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.pebble.ble.PebbleLESupport;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceIoThread;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceProtocol;
@@ -156,14 +155,6 @@ class PebbleIoThread extends GBDeviceIoThread {
         mPebbleActiveAppTracker = new PebbleActiveAppTracker();
     }
 
-    private int readWithException(InputStream inputStream, byte[] buffer, int byteOffset, int byteCount) throws IOException {
-        int ret = inputStream.read(buffer, byteOffset, byteCount);
-        if (ret == -1) {
-            throw new IOException("broken pipe");
-        }
-        return ret;
-    }
-
     @Override
     protected boolean connect() {
         String deviceAddress = gbDevice.getAddress();
@@ -187,9 +178,9 @@ class PebbleIoThread extends GBDeviceIoThread {
                 BluetoothDevice btDevice = mBtAdapter.getRemoteDevice(deviceAddress);
                 if (btDevice.getType() == BluetoothDevice.DEVICE_TYPE_LE) {
                     LOG.info("This is a Pebble 2 or Pebble-LE/Pebble Time LE, will use BLE");
-                    mInStream = new PipedInputStream();
-                    mOutStream = new PipedOutputStream();
-                    mPebbleLESupport = new PebbleLESupport(this.getContext(), btDevice, (PipedInputStream) mInStream, (PipedOutputStream) mOutStream);
+                    mPebbleLESupport = new PebbleLESupport(this.getContext(), btDevice);
+                    mInStream = mPebbleLESupport.getInputStream();
+                    mOutStream = mPebbleLESupport.getOutputStream();
                 } else {
                     ParcelUuid[] uuids = btDevice.getUuids();
                     if (uuids == null) {
@@ -249,6 +240,7 @@ class PebbleIoThread extends GBDeviceIoThread {
         }
 
         byte[] buffer = new byte[8192];
+        PebbleFrameReader frameReader = new PebbleFrameReader(mInStream, mIsTCP);
         enablePebbleKitSupport(true);
         mQuit = false;
         while (!mQuit) {
@@ -335,37 +327,16 @@ class PebbleIoThread extends GBDeviceIoThread {
                             break;
                     }
                 }
-                if (mIsTCP) {
-                    mInStream.skip(6);
-                }
-                int bytes = readWithException(mInStream, buffer, 0, 4);
-
-                while (bytes < 4) {
-                    bytes += readWithException(mInStream, buffer, bytes, 4 - bytes);
-                }
-
-                ByteBuffer buf = ByteBuffer.wrap(buffer);
-                buf.order(ByteOrder.BIG_ENDIAN);
-                short length = buf.getShort();
-                short endpoint = buf.getShort();
-                if (length < 0 || length > 8192) {
-                    LOG.info("invalid length " + length);
-                    while (mInStream.available() > 0) {
-                        readWithException(mInStream, buffer, 0, buffer.length); // read all
-                    }
-                    continue;
-                }
-
-                bytes = readWithException(mInStream, buffer, 4, length);
-                while (bytes < length) {
-                    bytes += readWithException(mInStream, buffer, bytes + 4, length - bytes);
-                }
-
-                if (mIsTCP) {
-                    mInStream.skip(2);
+                ByteBuffer frame = frameReader.readFrame();
+                int length = frame.getShort(frame.position()) & 0xffff;
+                short endpoint = frame.getShort(frame.position() + 2);
+                TrafficRecorder recorder = TrafficRecorder.getInstance();
+                if (recorder.isRecording()) {
+                    // the frame is a read-only view, its array is not accessible
+                    recorder.record(gbDevice.getAddress(), null, TrafficRecorder.DIRECTION_IN, frame);
                 }
 
-                GBDeviceEvent[] deviceEvents = mPebbleProtocol.decodeResponse(buffer);
+                GBDeviceEvent[] deviceEvents = mPebbleProtocol.decodeResponse(frame);
                 if (deviceEvents == null) {
                     LOG.info("unhandled message to endpoint " + endpoint + " (" + length + " bytes)");
                 } else {
@@ -431,6 +402,7 @@ class PebbleIoThread extends GBDeviceIoThread {
 
 
     private void write_real(byte[] bytes) {
+        TrafficRecorder.getInstance().record(gbDevice.getAddress(), null, TrafficRecorder.DIRECTION_OUT, bytes);
         try {
             if (mIsTCP) {
                 ByteBuffer buf = ByteBuffer.allocate(bytes.length + 8);
@@ -2352,6 +2352,14 @@ public class PebbleProtocol extends GBDeviceProtocol {
     public GBDeviceEvent[] decodeResponse(byte[] responseData) {
         ByteBuffer buf = ByteBuffer.wrap(responseData);
         buf.order(ByteOrder.BIG_ENDIAN);
+        return decodeResponse(buf);
+    }
+
+    /**
+     * Decodes the frame starting at the current position of the given big endian buffer.
+     * The buffer may be read-only, and only needs to be valid during this call.
+     */
+    GBDeviceEvent[] decodeResponse(ByteBuffer buf) {
         short length = buf.getShort();
         short endpoint = buf.getShort();
         GBDeviceEvent devEvts[] = null;
@@ -20,14 +20,11 @@ package nodomain.freeyourgadget.gadgetbridge.service.devices.pebble;
 import android.net.Uri;
 import android.util.Pair;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.UUID;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
@@ -44,6 +41,8 @@ import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.AbstractSerialDeviceSupport;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceIoThread;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceProtocol;
+import nodomain.freeyourgadget.gadgetbridge.util.PebbleAppKeys;
+import nodomain.freeyourgadget.gadgetbridge.util.PebbleUtils;
 
 public class PebbleSupport extends AbstractSerialDeviceSupport {
     private static final Logger LOG = LoggerFactory.getLogger(PebbleSupport.class);
@@ -100,27 +99,7 @@ public class PebbleSupport extends AbstractSerialDeviceSupport {
     @Override
     public void onAppConfiguration(UUID uuid, String config, Integer id) {
         try {
-            ArrayList<Pair<Integer, Object>> pairs = new ArrayList<>();
-
-            JSONObject json = new JSONObject(config);
-            Iterator<String> keysIterator = json.keys();
-            while (keysIterator.hasNext()) {
-                String keyStr = keysIterator.next();
-                Object object = json.get(keyStr);
-                if (object instanceof JSONArray) {
-                    JSONArray jsonArray = (JSONArray) object;
-                    byte[] byteArray = new byte[jsonArray.length()];
-                    for (int i = 0; i < jsonArray.length(); i++) {
-                        byteArray[i] = ((Integer) jsonArray.get(i)).byteValue();
-                    }
-                    object = byteArray;
-                } else if (object instanceof Boolean) {
-                    object = (short) (((Boolean) object) ? 1 : 0);
-                } else if (object instanceof Double) {
-                    object = ((Double) object).intValue();
-                }
-                pairs.add(new Pair<>(Integer.parseInt(keyStr), object));
-            }
+            ArrayList<Pair<Integer, Object>> pairs = PebbleUtils.parseOutgoingAppMessage(config, PebbleAppKeys.get(uuid));
             getDeviceIOThread().write(((PebbleProtocol) getDeviceProtocol()).encodeApplicationMessagePush(PebbleProtocol.ENDPOINT_APPLICATIONMESSAGE, uuid, pairs, id));
         } catch (JSONException e) {
             LOG.error("Error while parsing JSON", e);
@@ -0,0 +1,143 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.devices.pebble.ble;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the payload of received PPoGATT packets from the Bluetooth callbacks to the
+ * reading thread without copying and without locks. Packets are queued as they are and
+ * read until they are exhausted, skipping the one byte PPoGATT header.
+ * <p/>
+ * Only a single thread may read from this stream.
+ */
+class PPoGATTInputStream extends InputStream {
+    private static final int LENGTH_PPOGATT_HEADER = 1;
+
+    private final ConcurrentLinkedQueue<byte[]> mPackets = new ConcurrentLinkedQueue<>();
+    private volatile Thread mWaitingReader;
+    private volatile boolean mClosed;
+
+    // only accessed by the reading thread
+    private byte[] mCurrentPacket;
+    private int mPosition;
+
+    /**
+     * Enqueues the given packet. The array must not be modified afterwards.
+     */
+    void offer(byte[] packet) {
+        if (packet.length <= LENGTH_PPOGATT_HEADER) {
+            return;
+        }
+        mPackets.offer(packet);
+        Thread reader = mWaitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!awaitPacket()) {
+            return -1;
+        }
+        int value = mCurrentPacket[mPosition++] & 0xff;
+        if (mPosition == mCurrentPacket.length) {
+            nextPacket();
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (offset < 0 || count < 0 || count > buffer.length - offset) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (count == 0) {
+            return 0;
+        }
+        if (!awaitPacket()) {
+            return -1;
+        }
+        int read = 0;
+        while (read < count && mCurrentPacket != null) {
+            int chunk = Math.min(count - read, mCurrentPacket.length - mPosition);
+            System.arraycopy(mCurrentPacket, mPosition, buffer, offset + read, chunk);
+            mPosition += chunk;
+            read += chunk;
+            if (mPosition == mCurrentPacket.length) {
+                nextPacket();
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return mCurrentPacket != null ? mCurrentPacket.length - mPosition : 0;
+    }
+
+    /**
+     * Makes the stream return end of stream once all queued packets have been read,
+     * and wakes up a waiting reader.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        Thread reader = mWaitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    private void nextPacket() {
+        mCurrentPacket = mPackets.poll();
+        mPosition = LENGTH_PPOGATT_HEADER;
+    }
+
+    /**
+     * @return false if the stream has been closed and all packets have been read
+     */
+    private boolean awaitPacket() throws InterruptedIOException {
+        if (mCurrentPacket == null) {
+            nextPacket();
+        }
+        while (mCurrentPacket == null) {
+            if (mClosed) {
+                return false;
+            }
+            mWaitingReader = Thread.currentThread();
+            // check again, a packet may have been offered before we were visible as waiting
+            nextPacket();
+            if (mCurrentPacket == null && !mClosed) {
+                LockSupport.park(this);
+            }
+            mWaitingReader = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+            if (mCurrentPacket == null) {
+                nextPacket();
+            }
+        }
+        return true;
+    }
+}
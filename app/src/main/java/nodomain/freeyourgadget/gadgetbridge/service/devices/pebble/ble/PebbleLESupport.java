@@ -25,19 +25,45 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 
 public class PebbleLESupport {
     private static final Logger LOG = LoggerFactory.getLogger(PebbleLESupport.class);
     private final BluetoothDevice mBtDevice;
-    private PipeReader mPipeReader;
     private PebbleGATTServer mPebbleGATTServer;
     private PebbleGATTClient mPebbleGATTClient;
-    private PipedInputStream mPipedInputStream;
-    private PipedOutputStream mPipedOutputStream;
+    private final PPoGATTInputStream mInputStream = new PPoGATTInputStream();
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        /**
+         * Expects exactly one Pebble Protocol frame per invocation.
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final byte[] frame = (off == 0 && len == b.length) ? b : Arrays.copyOfRange(b, off, off + len);
+            if (!mWriteHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    sendFrameToPebble(frame);
+                }
+            })) {
+                throw new IOException("broken pipe");
+            }
+        }
+    };
+    // only accessed on the write handler thread
+    private final ArrayDeque<byte[]> mPendingFrames = new ArrayDeque<>();
+    private boolean mCanSendFrames = false;
+    private int mSequence = 0;
     private int mMTU = 20;
     private int mMTULimit = Integer.MAX_VALUE;
     public boolean clientOnly = false; // currently experimental, and only possible for Pebble 2
@@ -45,16 +71,8 @@ public class PebbleLESupport {
     private HandlerThread mWriteHandlerThread;
     private Handler mWriteHandler;
 
-    public PebbleLESupport(Context context, final BluetoothDevice btDevice, PipedInputStream pipedInputStream, PipedOutputStream pipedOutputStream) throws IOException {
+    public PebbleLESupport(Context context, final BluetoothDevice btDevice) throws IOException {
         mBtDevice = btDevice;
-        mPipedInputStream = new PipedInputStream();
-        mPipedOutputStream = new PipedOutputStream();
-        try {
-            pipedOutputStream.connect(mPipedInputStream);
-            pipedInputStream.connect(mPipedOutputStream);
-        } catch (IOException e) {
-            LOG.warn("could not connect input stream");
-        }
 
         mWriteHandlerThread = new HandlerThread("write handler thread");
         mWriteHandlerThread.start();
@@ -85,16 +103,22 @@ public class PebbleLESupport {
         throw new IOException("connection failed");
     }
 
-    private void writeToPipedOutputStream(byte[] value, int offset, int count) {
-        try {
-            mPipedOutputStream.write(value, offset, count);
-        } catch (IOException e) {
-            LOG.warn("error writing to output stream", e);
-        }
+    /**
+     * The data received from the Pebble, without the PPoGATT headers.
+     */
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * Sends Pebble Protocol frames to the Pebble. Frames written before the Pebble has
+     * requested the connection to be reset are held back until then.
+     */
+    public OutputStream getOutputStream() {
+        return mOutputStream;
     }
 
     synchronized public void close() {
-        destroyPipedInputReader();
         if (mPebbleGATTServer != null) {
             mPebbleGATTServer.close();
             mPebbleGATTServer = null;
@@ -103,40 +127,12 @@ public class PebbleLESupport {
             mPebbleGATTClient.close();
             mPebbleGATTClient = null;
         }
-        try {
-            mPipedInputStream.close();
-        } catch (IOException ignore) {
-        }
-        try {
-            mPipedOutputStream.close();
-        } catch (IOException ignore) {
-        }
+        mInputStream.close();
         if (mWriteHandlerThread != null) {
             mWriteHandlerThread.quit();
         }
     }
 
-    private synchronized void createPipedInputReader() {
-        if (mPipeReader == null) {
-            mPipeReader = new PipeReader();
-        }
-        if (!mPipeReader.isAlive()) {
-            mPipeReader.start();
-        }
-    }
-
-    synchronized private void destroyPipedInputReader() {
-        if (mPipeReader != null) {
-            mPipeReader.interrupt();
-            try {
-                mPipeReader.join();
-            } catch (InterruptedException e) {
-                LOG.error(e.getMessage());
-            }
-            mPipeReader = null;
-        }
-    }
-
     void setMTU(int mtu) {
         mMTU = Math.min(mtu, mMTULimit);
     }
@@ -159,7 +155,7 @@ public class PebbleLESupport {
             LOG.info("got command 0x02");
             if (value.length > 1) {
                 sendDataToPebble(new byte[]{0x03, 0x19, 0x19}); // no we don't know what that means
-                createPipedInputReader(); // FIXME: maybe not here
+                startSendingFrames(); // FIXME: maybe not here
             } else {
                 sendDataToPebble(new byte[]{0x03}); // no we don't know what that means
             }
@@ -168,7 +164,7 @@ public class PebbleLESupport {
 
             sendAckToPebble(serial);
 
-            writeToPipedOutputStream(value, 1, value.length - 1);
+            mInputStream.offer(value);
         }
     }
 
@@ -195,59 +191,47 @@ public class PebbleLESupport {
         }
     }
 
-    private class PipeReader extends Thread {
-        int mmSequence = 0;
-
-        @Override
-        public void run() {
-            byte[] buf = new byte[8192];
-            int bytesRead;
-            while (true) {
-                try {
-                    // this code is very similar to iothread, that is bad
-                    // because we are the ones who prepared the buffer, there should be no
-                    // need to do crazy stuff just to find out the PP boundaries again.
-                    bytesRead = mPipedInputStream.read(buf, 0, 4);
-                    while (bytesRead < 4) {
-                        bytesRead += mPipedInputStream.read(buf, bytesRead, 4 - bytesRead);
-                    }
-
-                    int length = (buf[0] & 0xff) << 8 | (buf[1] & 0xff);
-                    bytesRead = mPipedInputStream.read(buf, 4, length);
-
-                    while (bytesRead < length) {
-                        bytesRead += mPipedInputStream.read(buf, bytesRead + 4, length - bytesRead);
-                    }
-
-
-                    int payloadToSend = bytesRead + 4;
-                    int srcPos = 0;
-                    while (payloadToSend > 0) {
-                        int chunkSize = (payloadToSend < (mMTU - 4)) ? payloadToSend : mMTU - 4;
-                        byte[] outBuf = new byte[chunkSize + 1];
-                        outBuf[0] = (byte) ((mmSequence++ << 3) & 0xff);
-                        System.arraycopy(buf, srcPos, outBuf, 1, chunkSize);
-                        sendDataToPebble(outBuf);
-                        srcPos += chunkSize;
-                        payloadToSend -= chunkSize;
-                    }
-                } catch (IOException e) {
-                    LOG.info(e.getMessage());
-                    Thread.currentThread().interrupt();
-                    break;
+    private void startSendingFrames() {
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCanSendFrames = true;
+                byte[] frame;
+                while ((frame = mPendingFrames.poll()) != null) {
+                    sendFrameToPebble(frame);
                 }
             }
-            LOG.info("Pipereader thread shut down");
+        });
+    }
+
+    /**
+     * Splits the frame into PPoGATT packets. Must be called on the write handler thread.
+     */
+    private void sendFrameToPebble(byte[] frame) {
+        if (!mCanSendFrames) {
+            mPendingFrames.add(frame);
+            return;
+        }
+        int payloadToSend = frame.length;
+        int srcPos = 0;
+        while (payloadToSend > 0) {
+            int chunkSize = (payloadToSend < (mMTU - 4)) ? payloadToSend : mMTU - 4;
+            byte[] outBuf = new byte[chunkSize + 1];
+            outBuf[0] = (byte) ((mSequence++ << 3) & 0xff);
+            System.arraycopy(frame, srcPos, outBuf, 1, chunkSize);
+            sendPacketToPebble(outBuf);
+            srcPos += chunkSize;
+            payloadToSend -= chunkSize;
         }
+    }
 
-        @Override
-        public void interrupt() {
-            super.interrupt();
-            try {
-                LOG.info("closing piped inputstream");
-                mPipedInputStream.close();
-            } catch (IOException ignore) {
-            }
+    private void sendPacketToPebble(byte[] bytes) {
+        PebbleGATTServer pebbleGATTServer = mPebbleGATTServer;
+        PebbleGATTClient pebbleGATTClient = mPebbleGATTClient;
+        if (pebbleGATTServer != null) {
+            pebbleGATTServer.sendDataToPebble(bytes);
+        } else if (pebbleGATTClient != null) {
+            pebbleGATTClient.sendDataToPebble(bytes);
         }
     }
 
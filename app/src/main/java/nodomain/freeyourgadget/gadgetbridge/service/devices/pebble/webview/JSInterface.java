@@ -33,8 +33,6 @@ import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Iterator;
-import java.util.Scanner;
 import java.util.UUID;
 
 import androidx.annotation.NonNull;
@@ -42,6 +40,7 @@ import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
+import nodomain.freeyourgadget.gadgetbridge.util.PebbleAppKeys;
 import nodomain.freeyourgadget.gadgetbridge.util.PebbleUtils;
 
 public class JSInterface {
@@ -73,53 +72,18 @@ public class JSInterface {
     public String sendAppMessage(String msg, String needsTransactionMsg) {
         boolean needsTransaction = "true".equals(needsTransactionMsg);
         LOG.debug("from WEBVIEW: " + msg + " needs a transaction: " + needsTransaction);
-        JSONObject knownKeys = PebbleUtils.getAppConfigurationKeys(this.mUuid);
-        if (knownKeys == null) {
+        if (PebbleAppKeys.get(this.mUuid) == null) {
             LOG.warn("No app configuration keys for: " + mUuid);
             return null;
         }
 
-        try {
-            JSONObject in = new JSONObject(msg);
-            JSONObject out = new JSONObject();
-            String inKey, outKey;
-            boolean passKey;
-            for (Iterator<String> key = in.keys(); key.hasNext(); ) {
-                passKey = false;
-                inKey = key.next();
-                outKey = null;
-                int pebbleAppIndex = knownKeys.optInt(inKey, -1);
-                if (pebbleAppIndex != -1) {
-                    passKey = true;
-                    outKey = String.valueOf(pebbleAppIndex);
-                } else {
-                    //do not discard integer keys (see https://developer.pebble.com/guides/communication/using-pebblekit-js/ )
-                    Scanner scanner = new Scanner(inKey);
-                    if (scanner.hasNextInt() && inKey.equals("" + scanner.nextInt())) {
-                        passKey = true;
-                        outKey = inKey;
-                    }
-                }
-
-                if (passKey) {
-                    Object obj = in.get(inKey);
-                    out.put(outKey, obj);
-                } else {
-                    GB.toast("Discarded key " + inKey + ", not found in the local configuration and is not an integer key.", Toast.LENGTH_SHORT, GB.WARN);
-                }
-
-            }
-            LOG.info("WEBVIEW message to pebble: " + out.toString());
-            if (needsTransaction) {
-                this.lastTransaction++;
-                GBApplication.deviceService().onAppConfiguration(this.mUuid, out.toString(), this.lastTransaction);
-                return this.lastTransaction.toString();
-            } else {
-                GBApplication.deviceService().onAppConfiguration(this.mUuid, out.toString(), null);
-            }
-
-        } catch (JSONException e) {
-            LOG.warn("Error building the appmessage JSON object", e);
+        // the keys are mapped to their indices when the message is encoded for the watch
+        if (needsTransaction) {
+            this.lastTransaction++;
+            GBApplication.deviceService().forDevice(this.device).onAppConfiguration(this.mUuid, msg, this.lastTransaction);
+            return this.lastTransaction.toString();
+        } else {
+            GBApplication.deviceService().forDevice(this.device).onAppConfiguration(this.mUuid, msg, null);
         }
         return null;
     }
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.UUID;
 import java.util.zip.CRC32;
 
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.adapter.fossil.FossilWatchAdapter;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.requests.fossil.FossilRequest;
@@ -80,6 +81,9 @@ public class FilePutRequest extends FossilRequest {
                     state = UploadState.UPLOADING;
 
                     TransactionBuilder transactionBuilder = new TransactionBuilder("file upload");
+                    if (GBApplication.isWritePipeliningEnabled()) {
+                        transactionBuilder.pipelineWrites(TransactionBuilder.DEFAULT_WRITE_WINDOW);
+                    }
                     BluetoothGattCharacteristic uploadCharacteristic = adapter.getDeviceSupport().getCharacteristic(UUID.fromString("3dda0004-957f-7d4a-34a6-74696673696d"));
 
                     this.prepareFilePackets(this.file);
@@ -0,0 +1,186 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * Finds which of a set of words occur in a text, in a single pass over the text
+ * (Aho-Corasick automaton). Matching is case sensitive, like String#contains().
+ * <p/>
+ * Instances are immutable after construction and may be shared between threads.
+ */
+public class AhoCorasick {
+    private final String[] words;
+    // per state: the characters with a transition, sorted, and the target states
+    private final char[][] keys;
+    private final int[][] targets;
+    private final int[] failure;
+    // per state: the indices of all words ending here, including those of the failure states
+    private final int[][] outputs;
+
+    public AhoCorasick(Collection<String> words) {
+        // duplicate words would be counted twice otherwise
+        this.words = new LinkedHashSet<>(words).toArray(new String[0]);
+
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<List<Integer>> ends = new ArrayList<>();
+        trie.add(new TreeMap<Character, Integer>());
+        ends.add(new ArrayList<Integer>());
+        for (int i = 0; i < this.words.length; i++) {
+            int state = 0;
+            for (char c : this.words[i].toCharArray()) {
+                Integer next = trie.get(state).get(c);
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<Character, Integer>());
+                    ends.add(new ArrayList<Integer>());
+                    trie.get(state).put(c, next);
+                }
+                state = next;
+            }
+            ends.get(state).add(i);
+        }
+
+        int stateCount = trie.size();
+        keys = new char[stateCount][];
+        targets = new int[stateCount][];
+        failure = new int[stateCount];
+        outputs = new int[stateCount][];
+        for (int state = 0; state < stateCount; state++) {
+            TreeMap<Character, Integer> transitions = trie.get(state);
+            keys[state] = new char[transitions.size()];
+            targets[state] = new int[transitions.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> entry : transitions.entrySet()) {
+                keys[state][i] = entry.getKey();
+                targets[state][i] = entry.getValue();
+                i++;
+            }
+        }
+
+        // breadth first, so that the failure state of every state is complete before it
+        outputs[0] = toArray(ends.get(0));
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : targets[0]) {
+            failure[child] = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            List<Integer> out = ends.get(state);
+            int[] inherited = outputs[failure[state]];
+            if (inherited.length > 0) {
+                out = new ArrayList<>(out);
+                for (int index : inherited) {
+                    out.add(index);
+                }
+            }
+            outputs[state] = toArray(out);
+
+            for (int i = 0; i < keys[state].length; i++) {
+                char c = keys[state][i];
+                int child = targets[state][i];
+                int fallback = failure[state];
+                int next = transition(fallback, c);
+                while (next < 0 && fallback != 0) {
+                    fallback = failure[fallback];
+                    next = transition(fallback, c);
+                }
+                failure[child] = next >= 0 ? next : 0;
+                queue.add(child);
+            }
+        }
+    }
+
+    public int getWordCount() {
+        return words.length;
+    }
+
+    /**
+     * Returns true if at least one of the words occurs in the text.
+     */
+    public boolean containsAny(CharSequence text) {
+        return countMatches(text, 1) > 0;
+    }
+
+    /**
+     * Returns true if every word occurs in the text (also if there are no words).
+     */
+    public boolean containsAll(CharSequence text) {
+        return countMatches(text, words.length) == words.length;
+    }
+
+    /**
+     * Counts the distinct words occurring in the text, stopping as soon as the given
+     * number of words was found.
+     */
+    public int countMatches(CharSequence text, int stopAfter) {
+        if (stopAfter <= 0) {
+            return 0;
+        }
+        boolean[] found = new boolean[words.length];
+        int count = 0;
+        // only possible for the empty word
+        for (int index : outputs[0]) {
+            found[index] = true;
+            if (++count >= stopAfter) {
+                return count;
+            }
+        }
+        int state = 0;
+        for (int pos = 0; pos < text.length(); pos++) {
+            char c = text.charAt(pos);
+            int next = transition(state, c);
+            while (next < 0 && state != 0) {
+                state = failure[state];
+                next = transition(state, c);
+            }
+            state = next >= 0 ? next : 0;
+            for (int index : outputs[state]) {
+                if (!found[index]) {
+                    found[index] = true;
+                    if (++count >= stopAfter) {
+                        return count;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private int transition(int state, char c) {
+        int i = Arrays.binarySearch(keys[state], c);
+        return i >= 0 ? targets[state][i] : -1;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+}
@@ -29,7 +29,7 @@ import io.wax911.emojify.EmojiUtils;
 public class EmojiConverter {
     private static final Logger LOG = LoggerFactory.getLogger(EmojiConverter.class);
 
-    private static final String[][] simpleEmojiMapping = {
+    static final String[][] simpleEmojiMapping = {
             {"\uD83D\uDE00", ":-D"},  // grinning
             {"\uD83D\uDE01", ":-D"},  // grinning_face_with_smiling_eyes
             {"\uD83D\uDE02", ":'D"},  // face_with_tears_of_joy
@@ -68,7 +68,7 @@ public class EmojiConverter {
 
     private static boolean isEmojiDataInitialised = false;
 
-    private static String convertSimpleEmojiToAscii(String text) {
+    static String convertSimpleEmojiToAscii(String text) {
         for (String[] emojiMap : simpleEmojiMapping) {
             text = text.replace(emojiMap[0], emojiMap[1]);
         }
@@ -83,7 +83,7 @@ public class EmojiConverter {
         }
     }
 
-    private static String convertAdvancedEmojiToAscii(String text, Context context) {
+    static String convertAdvancedEmojiToAscii(String text, Context context) {
         initEmojiData(context);
         try {
             return EmojiUtils.shortCodify(text);
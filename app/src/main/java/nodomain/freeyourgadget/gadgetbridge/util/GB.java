@@ -196,6 +196,21 @@ public class GB {
         return new String(hexChars);
     }
 
+    /**
+     * Like {@link #hexdump(byte[], int, int)}, but using absolute indices of the given buffer,
+     * which may be a read-only view without accessible array.
+     */
+    public static String hexdump(ByteBuffer buffer, int offset, int length) {
+        final char[] hexArray = "0123456789ABCDEF".toCharArray();
+        char[] hexChars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int v = buffer.get(i + offset) & 0xFF;
+            hexChars[i * 2] = hexArray[v >>> 4];
+            hexChars[i * 2 + 1] = hexArray[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
     public static byte[] hexStringToByteArray(String s) {
         int len = s.length();
         byte[] data = new byte[len / 2];
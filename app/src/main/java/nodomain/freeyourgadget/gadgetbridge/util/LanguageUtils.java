@@ -133,7 +133,7 @@ public class LanguageUtils {
      * @param c input char
      * @return replacement text
      */
-    private static String transliterate(char c){
+    static String transliterate(char c){
         char lowerChar = Character.toLowerCase(c);
 
         if (transliterateMap.containsKey(lowerChar)) {
@@ -155,7 +155,7 @@ public class LanguageUtils {
      * @param string input text
      * @return converted text
      */
-    private static String flattenToAscii(String string) {
+    static String flattenToAscii(String string) {
         string = Normalizer.normalize(string, Normalizer.Form.NFD);
         return string.replaceAll("\\p{M}", "");
     }
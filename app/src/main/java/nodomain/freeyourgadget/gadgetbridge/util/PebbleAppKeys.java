@@ -0,0 +1,127 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import android.util.SparseArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+import androidx.annotation.Nullable;
+
+/**
+ * The AppKeys of a PebbleKit JS app, i.e. the names which the JavaScript uses for the keys
+ * of the AppMessage dictionary, and their indices. They are stored in the .json file in
+ * the pbw cache when the app is installed.
+ * <p/>
+ * The AppKeys of an app are only read once and kept in memory until the app is installed
+ * again or removed from the cache, see {@link #invalidate(UUID)}.
+ */
+public class PebbleAppKeys {
+    private static final Logger LOG = LoggerFactory.getLogger(PebbleAppKeys.class);
+
+    // null for apps without configuration file, e.g. installed by some other app
+    private static final Map<UUID, PebbleAppKeys> appKeysByUuid = new HashMap<>();
+
+    private final Map<String, Integer> indices = new HashMap<>();
+    private final SparseArray<String> names = new SparseArray<>();
+
+    public PebbleAppKeys(JSONObject appKeys) {
+        for (Iterator<String> key = appKeys.keys(); key.hasNext(); ) {
+            String name = key.next();
+            int index = appKeys.optInt(name, -1);
+            if (index != -1) {
+                indices.put(name, index);
+                names.put(index, name);
+            }
+        }
+    }
+
+    /**
+     * @return the AppKeys of the app, or null if there is no configuration for it
+     */
+    @Nullable
+    public static PebbleAppKeys get(UUID uuid) {
+        synchronized (appKeysByUuid) {
+            if (appKeysByUuid.containsKey(uuid)) {
+                return appKeysByUuid.get(uuid);
+            }
+            PebbleAppKeys appKeys = load(uuid);
+            appKeysByUuid.put(uuid, appKeys);
+            return appKeys;
+        }
+    }
+
+    /**
+     * Must be called when the configuration file of the app was written or deleted.
+     */
+    public static void invalidate(UUID uuid) {
+        synchronized (appKeysByUuid) {
+            appKeysByUuid.remove(uuid);
+        }
+    }
+
+    @Nullable
+    private static PebbleAppKeys load(UUID uuid) {
+        try {
+            File configurationFile = new File(PebbleUtils.getPbwCacheDir(), uuid.toString() + ".json");
+            if (configurationFile.exists()) {
+                JSONObject json = new JSONObject(FileUtils.getStringFromFile(configurationFile));
+                return new PebbleAppKeys(json.getJSONObject("appKeys"));
+            }
+        } catch (IOException | JSONException e) {
+            LOG.warn("Unable to parse configuration JSON file", e);
+        }
+        return null;
+    }
+
+    /**
+     * @return the index of the AppKey with the given name, or -1 if there is none
+     */
+    public int getIndex(String name) {
+        Integer index = indices.get(name);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * @return the name of the AppKey with the given index, or null if there is none
+     */
+    @Nullable
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    /**
+     * @return the AppKeys as in the configuration file, names mapped to indices
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, Integer> entry : indices.entrySet()) {
+            json.put(entry.getKey(), (int) entry.getValue());
+        }
+        return json;
+    }
+}
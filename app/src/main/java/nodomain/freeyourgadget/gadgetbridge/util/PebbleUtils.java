@@ -18,7 +18,8 @@
 package nodomain.freeyourgadget.gadgetbridge.util;
 
 import android.graphics.Color;
-import android.util.SparseArray;
+import android.util.Pair;
+import android.widget.Toast;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -28,9 +29,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
 
+import androidx.annotation.Nullable;
+
 public class PebbleUtils {
     private static final Logger LOG = LoggerFactory.getLogger(PebbleUtils.class);
 
@@ -115,39 +121,22 @@ public class PebbleUtils {
         return new File(FileUtils.getExternalFilesDir(), "pbw-cache");
     }
 
-    public static JSONObject getAppConfigurationKeys(UUID uuid) {
-        try {
-            File destDir = getPbwCacheDir();
-            File configurationFile = new File(destDir, uuid.toString() + ".json");
-            if (configurationFile.exists()) {
-                String jsonString = FileUtils.getStringFromFile(configurationFile);
-                JSONObject json = new JSONObject(jsonString);
-                return json.getJSONObject("appKeys");
-            }
-        } catch (IOException | JSONException e) {
-            LOG.warn("Unable to parse configuration JSON file", e);
-        }
-        return null;
+    /**
+     * Converts an AppMessage from the watch, as JSON array of "key"/"value" objects with the
+     * AppKey indices, to the message for PebbleKit JS, which uses the AppKey names.
+     */
+    public static String parseIncomingAppMessage(String msg, UUID uuid, int transactionId) {
+        return parseIncomingAppMessage(msg, PebbleAppKeys.get(uuid), transactionId);
     }
 
-    public static String parseIncomingAppMessage(String msg, UUID uuid, int transactionId) {
+    public static String parseIncomingAppMessage(String msg, @Nullable PebbleAppKeys appKeys, int transactionId) {
         JSONObject jsAppMessage = new JSONObject();
 
-        JSONObject knownKeys = PebbleUtils.getAppConfigurationKeys(uuid);
-        SparseArray<String> appKeysMap = new SparseArray<>();
-        String inKey, outKey;
-
-//      TODO: The fact that knownKeys is null for the passed UUID means that the
+//      TODO: The fact that appKeys is null for the passed UUID means that the
 //      watchapp was installed by some other app, hence we cannot communicate with it.
 //      The user could be warned somehow.
-        if (knownKeys == null || msg == null) {
+        if (appKeys == null || msg == null) {
             msg = "[]";
-        } else {
-            //knownKeys contains "name"->"index", we need to reverse that
-            for (Iterator<String> key = knownKeys.keys(); key.hasNext(); ) {
-                inKey = key.next();
-                appKeysMap.put(knownKeys.optInt(inKey), inKey);
-            }
         }
 
         try {
@@ -155,18 +144,8 @@ public class PebbleUtils {
             JSONObject outgoing = new JSONObject();
             for (int i = 0; i < incoming.length(); i++) {
                 JSONObject in = incoming.getJSONObject(i);
-                outKey = null;
-                Object outValue = null;
-                for (Iterator<String> key = in.keys(); key.hasNext(); ) {
-                    inKey = key.next();
-                    switch (inKey) {
-                        case "key":
-                            outKey = appKeysMap.get(in.optInt(inKey));
-                            break;
-                        case "value":
-                            outValue = in.get(inKey);
-                    }
-                }
+                String outKey = in.has("key") ? appKeys.getName(in.optInt("key")) : null;
+                Object outValue = in.opt("value");
                 if (outKey != null && outValue != null) {
                     outgoing.put(outKey, outValue);
                 }
@@ -181,4 +160,63 @@ public class PebbleUtils {
         }
         return jsAppMessage.toString();
     }
+
+    /**
+     * Converts an AppMessage from PebbleKit JS, a JSON object with AppKey names or integer
+     * keys, directly to the dictionary to be sent to the watch. Booleans are sent as short,
+     * floating point numbers as int and arrays as bytes. Other keys are discarded.
+     */
+    public static ArrayList<Pair<Integer, Object>> parseOutgoingAppMessage(String msg, @Nullable PebbleAppKeys appKeys) throws JSONException {
+        JSONObject in = new JSONObject(msg);
+        // a key may be given both by name and index, the latter one wins
+        Map<Integer, Object> dict = new LinkedHashMap<>();
+        for (Iterator<String> keys = in.keys(); keys.hasNext(); ) {
+            String inKey = keys.next();
+            int index = appKeys != null ? appKeys.getIndex(inKey) : -1;
+            if (index == -1) {
+                //do not discard integer keys (see https://developer.pebble.com/guides/communication/using-pebblekit-js/ )
+                Integer integerKey = parseIntegerKey(inKey);
+                if (integerKey == null) {
+                    GB.toast("Discarded key " + inKey + ", not found in the local configuration and is not an integer key.", Toast.LENGTH_SHORT, GB.WARN);
+                    continue;
+                }
+                index = integerKey;
+            }
+
+            Object value = in.get(inKey);
+            if (value instanceof JSONArray) {
+                JSONArray jsonArray = (JSONArray) value;
+                byte[] byteArray = new byte[jsonArray.length()];
+                for (int i = 0; i < jsonArray.length(); i++) {
+                    byteArray[i] = ((Integer) jsonArray.get(i)).byteValue();
+                }
+                value = byteArray;
+            } else if (value instanceof Boolean) {
+                value = (short) (((Boolean) value) ? 1 : 0);
+            } else if (value instanceof Double) {
+                value = ((Double) value).intValue();
+            }
+            dict.put(index, value);
+        }
+
+        ArrayList<Pair<Integer, Object>> pairs = new ArrayList<>(dict.size());
+        for (Map.Entry<Integer, Object> entry : dict.entrySet()) {
+            pairs.add(new Pair<>(entry.getKey(), entry.getValue()));
+        }
+        return pairs;
+    }
+
+    @Nullable
+    private static Integer parseIntegerKey(String key) {
+        try {
+            int integerKey = Integer.parseInt(key);
+            // no leading zeros or plus sign
+            if (key.equals(String.valueOf(integerKey))) {
+                return integerKey;
+            }
+        } catch (NumberFormatException e) {
+            // not an integer key
+        }
+        return null;
+    }
 }
@@ -16,11 +16,7 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.util;
 
-import android.text.TextUtils;
-
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
@@ -46,6 +42,10 @@ public class RtlUtils {
     }
 
     public static characterType getCharacterType(Character c){
+        return typeOf(c);
+    }
+
+    private static characterType typeOf(char c){
         characterType type;
         switch (Character.getDirectionality(c)) {
             case Character.DIRECTIONALITY_RIGHT_TO_LEFT:
@@ -495,56 +495,89 @@ public class RtlUtils {
      * @return a fix string.
      */
     public static String fixRtl(String oldString) {
+        if (oldString == null || oldString.isEmpty()){
+            return oldString;
+        }
+        return fixRtl(oldString, contextualSupport(), getMaxLineLength());
+    }
+
+    /**
+     * Same as {@link #fixRtl(String)}, with the given settings instead of the preferences
+     */
+    public static String fixRtl(String oldString, boolean contextual, int lineMaxSize) {
         if (oldString == null || oldString.isEmpty()){
             return oldString;
         }
         debug("before: |" + org.apache.commons.lang3.StringEscapeUtils.escapeJava(oldString) + "|");
 
         int length = oldString.length();
-        String newString = "";
-        List<String> lines = new ArrayList<>();
-        char[] newWord = new char[length];
-        int line_max_size = GBApplication.getPrefs().getInt("rtl_max_line_length", 18);
-
-        int startPos = 0;
-        int endPos = 0;
-        characterType CurRtlType = isRtl(oldString.charAt(0))? characterType.rtl : characterType.ltr;
-        characterType PhraseRtlType = CurRtlType;
-
-        Character c;
-//        String word = "", phrase = "", line = "";
-        StringBuilder word = new StringBuilder();
-        StringBuilder phrase = new StringBuilder();
-        StringBuilder line = new StringBuilder();
-        String phraseString = "";
-        boolean addCharToWord = false;
+        RtlFixer fixer = new RtlFixer(contextual, lineMaxSize, length);
         for (int i = 0; i < length; i++) {
-            c = oldString.charAt(i);
-            addCharToWord = false;
-            debug("char: " + c + " :" + Character.getDirectionality(c));
-//            debug( "hex : " + (int)c);
-
-            if (isLtr(c)){
-                CurRtlType = characterType.ltr;
-            } else if (isRtl(c)) {
-                CurRtlType = characterType.rtl;
+            fixer.append(oldString.charAt(i), i == length - 1);
+        }
+        String newString = fixer.finish();
+
+        debug("after : |" + org.apache.commons.lang3.StringEscapeUtils.escapeJava(newString) + "|");
+
+        return newString;
+    }
+
+    public static int getMaxLineLength() {
+        return GBApplication.getPrefs().getInt("rtl_max_line_length", 18);
+    }
+
+    /**
+     * Does the work of {@link #fixRtl(String)}, but gets the characters one by one, so that
+     * it can be part of a single pass over the text (see {@link TextSanitizer}).
+     */
+    public static class RtlFixer {
+        private final boolean contextual;
+        private final int lineMaxSize;
+        private final StringBuilder result;
+        private final StringBuilder word = new StringBuilder();
+        private final StringBuilder phrase = new StringBuilder();
+        private final StringBuilder line = new StringBuilder();
+        private characterType curRtlType;
+        private characterType phraseRtlType;
+
+        public RtlFixer(boolean contextual, int lineMaxSize, int capacity) {
+            this.contextual = contextual;
+            this.lineMaxSize = lineMaxSize;
+            result = new StringBuilder(capacity + capacity / 8);
+        }
+
+        /**
+         * @param c the next character
+         * @param isLast true if this is the last character of the text
+         */
+        public void append(char c, boolean isLast) {
+            characterType type = typeOf(c);
+            if (phraseRtlType == null) {
+                curRtlType = (type == characterType.rtl || type == characterType.rtl_arabic) ? characterType.rtl : characterType.ltr;
+                phraseRtlType = curRtlType;
+            }
+            boolean isSpace = type == characterType.space;
+            boolean isEndLine = type == characterType.lineEnd;
+            boolean addCharToWord = false;
+
+            if (type == characterType.ltr){
+                curRtlType = characterType.ltr;
+            } else if (type == characterType.rtl || type == characterType.rtl_arabic) {
+                curRtlType = characterType.rtl;
             }
 
-            if ((CurRtlType == PhraseRtlType) && !(isSpaceSign(c) || isEndLineSign(c))){
-                debug("add: " + c + " to: " + word);
+            if ((curRtlType == phraseRtlType) && !(isSpace || isEndLine)){
                 word.append(c);
                 addCharToWord = true;
-                if (i < length - 1) {
-                    continue;
+                if (!isLast) {
+                    return;
                 }
             }
 
-
-
             do {
-                if ((line.length() + phrase.length() + word.length() < line_max_size) ||
-                        (line.length() == 0 && word.length() >= line_max_size)) {
-                    if (isSpaceSign(c)) {
+                if ((line.length() + phrase.length() + word.length() < lineMaxSize) ||
+                        (line.length() == 0 && word.length() >= lineMaxSize)) {
+                    if (isSpace) {
                         word.append(c);
                         addCharToWord = true;
                     }
@@ -552,41 +585,37 @@ public class RtlUtils {
                     phrase.append(word);
                     word.setLength(0);
 
-                    if (isSpaceSign(c)) {
+                    if (isSpace) {
                         break;
                     }
                 }
 
-
-                phraseString = phrase.toString();
-                debug("phrase:   |" + phraseString + "|");
-                if (PhraseRtlType == characterType.rtl) {
-                    if (contextualSupport()) {
+                String phraseString = phrase.toString();
+                if (phraseRtlType == characterType.rtl) {
+                    if (contextual) {
                         phraseString = convertToContextual(phraseString);
                     }
                     phraseString = reverse(phraseString);
                 }
 
                 line.insert(0, fixWhitespace(phraseString));
-                debug("line now: |" + line + "|");
                 phrase.setLength(0);
 
                 if (word.length() > 0){
                     line.append('\n');
-                } else if (isEndLineSign(c)) {
+                } else if (isEndLine) {
                     line.append(c);
                 } else if (!addCharToWord) {
                     word.append(c);
-                    if (i == length - 1){
+                    if (isLast){
                         addCharToWord = true;
                         continue;
                     }
-                    PhraseRtlType = PhraseRtlType == characterType.rtl ? characterType.ltr : characterType.rtl;
+                    phraseRtlType = phraseRtlType == characterType.rtl ? characterType.ltr : characterType.rtl;
                     break;
                 }
 
-                lines.add(line.toString());
-                debug("line: |" + line + "|");
+                result.append(line);
                 line.setLength(0);
 
                 if (word.length() == 0){
@@ -594,16 +623,16 @@ public class RtlUtils {
                 }
 
             } while (true);
-
         }
 
-        lines.add(line.toString());
-
-        newString = TextUtils.join("", lines);
-
-        debug("after : |" + org.apache.commons.lang3.StringEscapeUtils.escapeJava(newString) + "|");
-
-        return newString;
+        /**
+         * Returns the fixed text, after the last character was appended.
+         */
+        public String finish() {
+            result.append(line);
+            line.setLength(0);
+            return result.toString();
+        }
     }
 
     private static void debug(String s) {
@@ -0,0 +1,331 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import android.content.Context;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Prepares the texts sent to a device (notifications, calls, music, ...): transliterates and
+ * removes diacritics, and fixes right-to-left text, see {@link LanguageUtils} and {@link RtlUtils}.
+ * <p/>
+ * There is one sanitizer per combination of the preferences, which does both steps in a single
+ * pass over the text, using tables that are computed once. Texts that need the context dependent
+ * Bengali transliteration fall back to doing the steps one after another.
+ * The results for recent short texts (e.g. chat titles) are cached.
+ * <p/>
+ * The emoji a device cannot display are converted separately by {@link #convertEmojiToAscii(String, Context)},
+ * after the device's own filter, see DeviceSupport#customStringFilter(String).
+ */
+public class TextSanitizer {
+    private static final int CACHE_SIZE = 64;
+    private static final int MAX_CACHED_LENGTH = 256;
+
+    private static final char BENGALI_START = 'ঀ';
+    private static final char BENGALI_END = '৿';
+
+    private static final Map<String, TextSanitizer> sanitizers = new HashMap<>();
+
+    /**
+     * {@link EmojiConverter#simpleEmojiMapping} by code point
+     */
+    private static final Map<Integer, String> simpleEmoji = new HashMap<>();
+
+    /**
+     * The transliterated and flattened chars in pages of 256 chars, which are computed when
+     * first needed. null for chars that are not changed.
+     */
+    private static final AtomicReferenceArray<String[]> transliterationPages = new AtomicReferenceArray<>(256);
+
+    static {
+        for (String[] emojiMap : EmojiConverter.simpleEmojiMapping) {
+            String emoji = emojiMap[0];
+            if (emoji.codePointCount(0, emoji.length()) == 1) {
+                simpleEmoji.put(emoji.codePointAt(0), emojiMap[1]);
+            }
+        }
+    }
+
+    private final boolean transliterate;
+    private final boolean fixRtl;
+    private final boolean contextualArabic;
+    private final int rtlMaxLineLength;
+
+    private final Map<String, String> cache = new LinkedHashMap<String, String>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    TextSanitizer(boolean transliterate, boolean fixRtl, boolean contextualArabic, int rtlMaxLineLength) {
+        this.transliterate = transliterate;
+        this.fixRtl = fixRtl;
+        this.contextualArabic = contextualArabic;
+        this.rtlMaxLineLength = rtlMaxLineLength;
+    }
+
+    /**
+     * Returns the sanitizer for the current preferences.
+     */
+    public static TextSanitizer getInstance() {
+        boolean transliterate = LanguageUtils.transliterate();
+        boolean fixRtl = RtlUtils.rtlSupport();
+        boolean contextualArabic = fixRtl && RtlUtils.contextualSupport();
+        int rtlMaxLineLength = fixRtl ? RtlUtils.getMaxLineLength() : 0;
+
+        String key = transliterate + ":" + fixRtl + ":" + contextualArabic + ":" + rtlMaxLineLength;
+        synchronized (sanitizers) {
+            TextSanitizer sanitizer = sanitizers.get(key);
+            if (sanitizer == null) {
+                sanitizer = new TextSanitizer(transliterate, fixRtl, contextualArabic, rtlMaxLineLength);
+                sanitizers.put(key, sanitizer);
+            }
+            return sanitizer;
+        }
+    }
+
+    /**
+     * @param text original text
+     * @return 'text' or the text prepared for the device
+     */
+    public String sanitize(String text) {
+        if (text == null || text.isEmpty() || !(transliterate || fixRtl)) {
+            return text;
+        }
+
+        boolean cacheable = text.length() <= MAX_CACHED_LENGTH;
+        if (cacheable) {
+            synchronized (cache) {
+                String result = cache.get(text);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+
+        String result = sanitizeSinglePass(text);
+        if (result == null) {
+            result = sanitizeStepByStep(text);
+        }
+
+        if (cacheable) {
+            synchronized (cache) {
+                cache.put(text, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the sanitized text, or null if the text needs to be sanitized step by step
+     */
+    @Nullable
+    String sanitizeSinglePass(String text) {
+        int length = text.length();
+        Output output = new Output(fixRtl ? new RtlUtils.RtlFixer(contextualArabic, rtlMaxLineLength, length) : null, length);
+
+        for (int i = 0; i < length; ) {
+            int codePoint = text.codePointAt(i);
+            int charCount = Character.charCount(codePoint);
+
+            if (transliterate && charCount == 1) {
+                char c = (char) codePoint;
+                if (c >= BENGALI_START && c <= BENGALI_END) {
+                    return null;
+                }
+                String replacement = getTransliteration(c);
+                if (replacement == null) {
+                    output.append(c);
+                } else {
+                    output.append(replacement);
+                }
+            } else if (transliterate && !(codePoint >= 0x1F000 && codePoint <= 0x1FAFF)) {
+                // there is nothing to transliterate outside of the BMP, but the emoji do not
+                // need to be normalized either
+                output.append(LanguageUtils.flattenToAscii(text.substring(i, i + charCount)));
+            } else {
+                output.append(text.charAt(i));
+                if (charCount == 2) {
+                    output.append(text.charAt(i + 1));
+                }
+            }
+
+            i += charCount;
+        }
+
+        return output.finish();
+    }
+
+    /**
+     * The steps as they are done by the individual utils
+     */
+    String sanitizeStepByStep(String text) {
+        if (transliterate) {
+            text = LanguageUtils.transliterate(text);
+        }
+        if (fixRtl) {
+            text = RtlUtils.fixRtl(text, contextualArabic, rtlMaxLineLength);
+        }
+        return text;
+    }
+
+    /**
+     * Converts the emoji of the text to ASCII, like {@link EmojiConverter#convertUnicodeEmojiToAscii(String, Context)}.
+     * Texts without emoji are returned as they are, and the simple emoji are looked up by code
+     * point, only the other emoji need the emoji library.
+     */
+    public static String convertEmojiToAscii(String text, Context context) {
+        if (text == null || text.isEmpty()) {
+            return text;
+        }
+        StringBuilder builder = null;
+        int length = text.length();
+        for (int i = 0; i < length; ) {
+            int codePoint = text.codePointAt(i);
+            int charCount = Character.charCount(codePoint);
+            if (isEmojiCandidate(codePoint, text, i)) {
+                String ascii = simpleEmoji.get(codePoint);
+                if (ascii == null) {
+                    return EmojiConverter.convertUnicodeEmojiToAscii(text, context);
+                }
+                if (builder == null) {
+                    builder = new StringBuilder(length);
+                    builder.append(text, 0, i);
+                }
+                builder.append(ascii);
+            } else if (builder != null) {
+                builder.append(text, i, i + charCount);
+            }
+            i += charCount;
+        }
+        return builder == null ? text : builder.toString();
+    }
+
+    /**
+     * @return true for the code points that could be (part of) an emoji, and for the HTML entities
+     * which the emoji library converts as well
+     */
+    private static boolean isEmojiCandidate(int codePoint, String text, int index) {
+        if (codePoint > 0xFFFF || Character.isSurrogate((char) codePoint)) {
+            return true;
+        }
+        switch (codePoint) {
+            case '&':
+                return index + 1 < text.length() && text.charAt(index + 1) == '#';
+            case 0x00A9:
+            case 0x00AE:
+            case 0x200D:
+            case 0x203C:
+            case 0x2049:
+            case 0x20E3:
+            case 0x2122:
+            case 0x2139:
+            case 0x24C2:
+            case 0x2934:
+            case 0x2935:
+            case 0x3030:
+            case 0x303D:
+            case 0x3297:
+            case 0x3299:
+            case 0xFE0F:
+                return true;
+        }
+        return (codePoint >= 0x2194 && codePoint <= 0x21AA)
+                || (codePoint >= 0x231A && codePoint <= 0x23FA)
+                || (codePoint >= 0x25AA && codePoint <= 0x25FE)
+                || (codePoint >= 0x2600 && codePoint <= 0x27BF)
+                || (codePoint >= 0x2B05 && codePoint <= 0x2B55);
+    }
+
+    @Nullable
+    private static String getTransliteration(char c) {
+        int pageIndex = c >>> 8;
+        String[] page = transliterationPages.get(pageIndex);
+        if (page == null) {
+            // threads racing here compute the same page
+            page = computeTransliterationPage(pageIndex);
+            transliterationPages.set(pageIndex, page);
+        }
+        return page[c & 0xFF];
+    }
+
+    private static String[] computeTransliterationPage(int pageIndex) {
+        String[] page = new String[256];
+        for (int i = 0; i < 256; i++) {
+            char c = (char) (pageIndex << 8 | i);
+            if (Character.isSurrogate(c)) {
+                continue;
+            }
+            String replacement = LanguageUtils.flattenToAscii(LanguageUtils.transliterate(c));
+            if (replacement.length() != 1 || replacement.charAt(0) != c) {
+                page[i] = replacement;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Collects the sanitized text, passing it through the {@link RtlUtils.RtlFixer} if needed.
+     * Every char is held back until the next one arrives, since the fixer needs to know the last one.
+     */
+    private static class Output {
+        private final RtlUtils.RtlFixer rtlFixer;
+        private final StringBuilder builder;
+        private boolean hasPending;
+        private char pending;
+
+        Output(@Nullable RtlUtils.RtlFixer rtlFixer, int capacity) {
+            this.rtlFixer = rtlFixer;
+            builder = rtlFixer == null ? new StringBuilder(capacity) : null;
+        }
+
+        void append(char c) {
+            if (rtlFixer == null) {
+                builder.append(c);
+                return;
+            }
+            if (hasPending) {
+                rtlFixer.append(pending, false);
+            }
+            pending = c;
+            hasPending = true;
+        }
+
+        void append(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                append(s.charAt(i));
+            }
+        }
+
+        String finish() {
+            if (rtlFixer == null) {
+                return builder.toString();
+            }
+            if (hasPending) {
+                rtlFixer.append(pending, true);
+            }
+            return rtlFixer.finish();
+        }
+    }
+}
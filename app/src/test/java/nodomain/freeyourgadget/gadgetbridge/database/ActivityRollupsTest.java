@@ -0,0 +1,189 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.activities.charts.ActivityAnalysis;
+import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiConst;
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBand2SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.HourlyActivityRollup;
+import nodomain.freeyourgadget.gadgetbridge.entities.HourlyActivityRollupDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmount;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+
+public class ActivityRollupsTest extends TestBase {
+    // some day in 2019 at 00:00 UTC
+    private static final int START = 1560000000 - (1560000000 % 86400);
+    private static final int[] RAW_KINDS = {
+            MiBandSampleProvider.TYPE_ACTIVITY,
+            MiBandSampleProvider.TYPE_LIGHT_SLEEP,
+            MiBandSampleProvider.TYPE_DEEP_SLEEP,
+            MiBandSampleProvider.TYPE_NONWEAR,
+            MiBandSampleProvider.TYPE_CHARGING
+    };
+
+    private GBDevice dummyGBDevice;
+    private MiBandSampleProvider sampleProvider;
+    private User user;
+    private Device device;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        dummyGBDevice = createDummyGDevice("00:00:00:00:20");
+        sampleProvider = new MiBandSampleProvider(dummyGBDevice, daoSession);
+        user = DBHelper.getUser(daoSession);
+        device = DBHelper.getDevice(dummyGBDevice, daoSession);
+    }
+
+    private MiBandActivitySample[] createSamples(int from, int count, int interval, int seed) {
+        MiBandActivitySample[] samples = new MiBandActivitySample[count];
+        for (int i = 0; i < count; i++) {
+            int value = (i * 31 + seed) % 97;
+            MiBandActivitySample sample = sampleProvider.createActivitySample();
+            sample.setTimestamp(from + i * interval);
+            sample.setRawKind(RAW_KINDS[(i / 45 + seed) % RAW_KINDS.length]);
+            sample.setRawIntensity(value);
+            sample.setSteps(value > 60 ? value : 0);
+            sample.setHeartRate(value > 20 ? 40 + value : 255);
+            sample.setUserId(user.getId());
+            sample.setDeviceId(device.getId());
+            samples[i] = sample;
+        }
+        return samples;
+    }
+
+    private void assertSameAsAnalysis(int tsFrom, int tsTo) {
+        List<MiBandActivitySample> samples = sampleProvider.getAllActivitySamples(tsFrom, tsTo);
+        ActivityAmounts expected = new ActivityAnalysis().calculateActivityAmounts(samples);
+        ActivityAmounts actual = ActivityRollups.getActivityAmounts(sampleProvider, tsFrom, tsTo);
+
+        assertEquals(expected.getTotalSeconds(), actual.getTotalSeconds());
+        assertEquals(expected.getAmounts().size(), actual.getAmounts().size());
+        for (int i = 0; i < expected.getAmounts().size(); i++) {
+            ActivityAmount expectedAmount = expected.getAmounts().get(i);
+            ActivityAmount actualAmount = actual.getAmounts().get(i);
+            assertEquals(expectedAmount.getActivityKind(), actualAmount.getActivityKind());
+            assertEquals(expectedAmount.getTotalSeconds(), actualAmount.getTotalSeconds());
+            assertEquals(expectedAmount.getTotalSteps(), actualAmount.getTotalSteps());
+            assertEquals(expectedAmount.getPercent(), actualAmount.getPercent());
+        }
+    }
+
+    @Test
+    public void testRollupsMatchAnalysis() {
+        sampleProvider.addGBActivitySamples(createSamples(START, 3 * 24 * 60, 60, 0));
+
+        assertSameAsAnalysis(START, START + 86400 - 1);
+        assertSameAsAnalysis(START + 86400 - 12 * 3600, START + 2 * 86400 - 12 * 3600 - 1);
+        // not aligned to hours, e.g. time zones with 30 minutes offset
+        assertSameAsAnalysis(START + 1800, START + 86400 + 1799);
+        assertSameAsAnalysis(START + 125, START + 3000);
+        assertSameAsAnalysis(START - 86400, START + 4 * 86400);
+
+        List<HourlyActivityRollup> rollups = daoSession.getHourlyActivityRollupDao().loadAll();
+        assertEquals(5 * 24, rollups.size());
+    }
+
+    @Test
+    public void testIncrementalUpdates() {
+        // fill the first hour partially, so that it has a stored rollup
+        sampleProvider.addGBActivitySamples(createSamples(START, 30, 60, 1));
+        assertSameAsAnalysis(START, START + 86400 - 1);
+
+        // append to the stored rollup
+        sampleProvider.addGBActivitySamples(createSamples(START + 30 * 60, 15, 60, 2));
+        assertSameAsAnalysis(START, START + 86400 - 1);
+
+        // replace samples in the middle of an hour
+        sampleProvider.addGBActivitySamples(createSamples(START + 10 * 60, 10, 60, 3));
+        assertSameAsAnalysis(START, START + 86400 - 1);
+
+        // single samples spanning several hours
+        sampleProvider.addGBActivitySample(createSamples(START + 5 * 3600 + 17, 1, 60, 4)[0]);
+        sampleProvider.addGBActivitySamples(createSamples(START + 3600, 10 * 60, 45, 5));
+        assertSameAsAnalysis(START, START + 86400 - 1);
+        assertSameAsAnalysis(START + 3599, START + 7 * 3600);
+    }
+
+    /**
+     * Rollups that were updated with appended samples must be the same as the ones built
+     * from scratch, also for providers that post-process the samples.
+     */
+    @Test
+    public void testPostprocessedSamples() {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:21");
+        MiBand2SampleProvider provider = new MiBand2SampleProvider(gbDevice, daoSession);
+        long deviceId = DBHelper.getDevice(gbDevice, daoSession).getId();
+        // the activity kind is only sent on changes, the upper bits are flags
+        int[] rawKinds = {
+                HuamiConst.TYPE_ACTIVITY, HuamiConst.TYPE_NO_CHANGE, HuamiConst.TYPE_IGNORE,
+                HuamiConst.TYPE_LIGHT_SLEEP | 0x70, HuamiConst.TYPE_NO_CHANGE, HuamiConst.TYPE_NO_CHANGE,
+                HuamiConst.TYPE_DEEP_SLEEP, HuamiConst.TYPE_IGNORE, HuamiConst.TYPE_NO_CHANGE
+        };
+        MiBandActivitySample[] samples = new MiBandActivitySample[3 * 60];
+        for (int i = 0; i < samples.length; i++) {
+            MiBandActivitySample sample = provider.createActivitySample();
+            sample.setTimestamp(START + i * 60);
+            sample.setRawKind(rawKinds[(i / 7) % rawKinds.length]);
+            sample.setRawIntensity(i % 50);
+            sample.setSteps(i % 3 == 0 ? i % 40 : 0);
+            sample.setHeartRate(255);
+            sample.setUserId(user.getId());
+            sample.setDeviceId(deviceId);
+            samples[i] = sample;
+        }
+
+        // store the first half hour and read it, so that the first hour has a rollup
+        provider.addGBActivitySamples(Arrays.copyOfRange(samples, 0, 30));
+        ActivityRollups.getActivityAmounts(provider, START, START + 3 * 3600 - 1);
+        // the remaining samples are appended to the stored rollup
+        provider.addGBActivitySamples(Arrays.copyOfRange(samples, 30, samples.length));
+        List<HourlyActivityRollup> updated = queryRollups(deviceId);
+        assertEquals(3, updated.size());
+
+        ActivityRollups.deleteRollups(deviceId, daoSession);
+        ActivityRollups.getActivityAmounts(provider, START, START + 3 * 3600 - 1);
+        List<HourlyActivityRollup> built = queryRollups(deviceId);
+        assertEquals(3, built.size());
+        for (int i = 0; i < built.size(); i++) {
+            assertSameRollup(built.get(i), updated.get(i));
+        }
+    }
+
+    private List<HourlyActivityRollup> queryRollups(long deviceId) {
+        List<HourlyActivityRollup> rollups = daoSession.getHourlyActivityRollupDao().queryBuilder()
+                .where(HourlyActivityRollupDao.Properties.DeviceId.eq(deviceId))
+                .orderAsc(HourlyActivityRollupDao.Properties.Timestamp)
+                .list();
+        daoSession.getHourlyActivityRollupDao().detachAll();
+        return rollups;
+    }
+
+    private void assertSameRollup(HourlyActivityRollup expected, HourlyActivityRollup actual) {
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getSampleCount(), actual.getSampleCount());
+        assertEquals(expected.getActivitySeconds(), actual.getActivitySeconds());
+        assertEquals(expected.getLightSleepSeconds(), actual.getLightSleepSeconds());
+        assertEquals(expected.getDeepSleepSeconds(), actual.getDeepSleepSeconds());
+        assertEquals(expected.getNotWornSeconds(), actual.getNotWornSeconds());
+        assertEquals(expected.getActivitySteps(), actual.getActivitySteps());
+        assertEquals(expected.getLightSleepSteps(), actual.getLightSleepSteps());
+        assertEquals(expected.getDeepSleepSteps(), actual.getDeepSleepSteps());
+        assertEquals(expected.getFirstKind(), actual.getFirstKind());
+        assertEquals(expected.getFirstRawKind(), actual.getFirstRawKind());
+        assertEquals(expected.getLastTimestamp(), actual.getLastTimestamp());
+        assertEquals(expected.getLastKind(), actual.getLastKind());
+        assertEquals(expected.getLastRawKind(), actual.getLastRawKind());
+    }
+}
@@ -0,0 +1,198 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PebbleHealthSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
+import nodomain.freeyourgadget.gadgetbridge.entities.HourlyActivityRollup;
+import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DBBackupTest extends TestBase {
+    private static final int DAY = 24 * 60 * 60;
+    private static final int START = 1560000000 / DAY * DAY;
+    private static final int SAMPLES_PER_DAY = 24 * 60;
+
+    @Test
+    public void testFullAndIncrementalExport() throws Exception {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:40");
+        gbDevice.setState(GBDevice.State.INITIALIZED);
+        PebbleHealthSampleProvider provider = new PebbleHealthSampleProvider(gbDevice, daoSession);
+        addSamples(provider, START, 3 * SAMPLES_PER_DAY, 10);
+
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        DBBackup.State state = DBBackup.export(full, null, "test");
+        assertEquals("test", state.getLocation());
+
+        // the state survives a restart
+        File stateFile = new File(app.getCacheDir(), "backup.state");
+        state.setLength(full.size());
+        state.save(stateFile);
+        state = DBBackup.State.load(stateFile);
+        assertNotNull(state);
+        assertEquals(full.size(), state.getLength());
+
+        // nothing changed
+        ByteArrayOutputStream unchanged = new ByteArrayOutputStream();
+        state = DBBackup.export(unchanged, state, "test");
+        assertEquals(0, countSamples(merge(unchanged)));
+
+        // a changed sample on the second day and a new day
+        addSamples(provider, START + DAY + 60, 1, 99);
+        addSamples(provider, START + 3 * DAY, SAMPLES_PER_DAY, 10);
+        ByteArrayOutputStream incremental = new ByteArrayOutputStream();
+        DBBackup.export(incremental, state, "test");
+        assertEquals(2 * SAMPLES_PER_DAY, countSamples(merge(incremental)));
+        assertTrue(incremental.size() < full.size());
+
+        // the full export with the incremental one appended restores everything
+        ByteArrayOutputStream appended = new ByteArrayOutputStream();
+        full.writeTo(appended);
+        incremental.writeTo(appended);
+        SQLiteDatabase restored = merge(appended);
+        assertEquals(4 * SAMPLES_PER_DAY, countSamples(restored));
+        try (Cursor cursor = restored.rawQuery("SELECT STEPS FROM PEBBLE_HEALTH_ACTIVITY_SAMPLE WHERE TIMESTAMP = ?", new String[]{String.valueOf(START + DAY + 60)})) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(99, cursor.getInt(0));
+        }
+    }
+
+    @Test
+    public void testIncrementalExportDetectsSwappedValues() throws Exception {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:44");
+        gbDevice.setState(GBDevice.State.INITIALIZED);
+        PebbleHealthSampleProvider provider = new PebbleHealthSampleProvider(gbDevice, daoSession);
+        addSamples(provider, START, 1, 10);
+        addSamples(provider, START + 60, 1, 20);
+        DBBackup.State state = DBBackup.export(new ByteArrayOutputStream(), null, "test");
+
+        // same number of samples and same totals
+        addSamples(provider, START, 1, 20);
+        addSamples(provider, START + 60, 1, 10);
+        ByteArrayOutputStream incremental = new ByteArrayOutputStream();
+        DBBackup.export(incremental, state, "test");
+        assertEquals(2, countSamples(merge(incremental)));
+    }
+
+    @Test
+    public void testMergeRemapsDevices() throws Exception {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:41");
+        gbDevice.setState(GBDevice.State.INITIALIZED);
+        PebbleHealthSampleProvider provider = new PebbleHealthSampleProvider(gbDevice, daoSession);
+        addSamples(provider, START, 60, 10);
+        ByteArrayOutputStream backup = new ByteArrayOutputStream();
+        DBBackup.export(backup, null, null);
+
+        SQLiteDatabase target = new DaoMaster.DevOpenHelper(app, null, null).getWritableDatabase();
+        target.execSQL("INSERT INTO DEVICE (NAME, MANUFACTURER, IDENTIFIER, TYPE) VALUES ('other', 'other', '00:00:00:00:99', 0)");
+        DBBackup.merge(new ByteArrayInputStream(backup.toByteArray()), target);
+        // merging twice does not duplicate anything
+        DBBackup.merge(new ByteArrayInputStream(backup.toByteArray()), target);
+
+        try (Cursor cursor = target.rawQuery("SELECT COUNT(*) FROM PEBBLE_HEALTH_ACTIVITY_SAMPLE s JOIN DEVICE d ON s.DEVICE_ID = d._id WHERE d.IDENTIFIER = ?", new String[]{gbDevice.getAddress()})) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(60, cursor.getInt(0));
+        }
+        try (Cursor cursor = target.rawQuery("SELECT COUNT(*) FROM DEVICE WHERE IDENTIFIER = ?", new String[]{gbDevice.getAddress()})) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1, cursor.getInt(0));
+        }
+        target.close();
+    }
+
+    @Test
+    public void testMergeMatchesRowsByNaturalKey() throws Exception {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:42");
+        gbDevice.setState(GBDevice.State.INITIALIZED);
+        PebbleHealthSampleProvider provider = new PebbleHealthSampleProvider(gbDevice, daoSession);
+        addSamples(provider, START, 60, 10);
+        Long deviceId = DBHelper.getDevice(gbDevice, daoSession).getId();
+        Long userId = DBHelper.getUser(daoSession).getId();
+        daoSession.getDatabase().execSQL("INSERT INTO BASE_ACTIVITY_SUMMARY (_id, NAME, START_TIME, END_TIME, ACTIVITY_KIND, DEVICE_ID, USER_ID) VALUES (1, 'walk', ?, ?, 0, ?, ?)",
+                new Object[]{START * 1000L, (START + 3600) * 1000L, deviceId, userId});
+        ByteArrayOutputStream backup = new ByteArrayOutputStream();
+        DBBackup.export(backup, null, null);
+
+        // a summary of another device with the same _id
+        SQLiteDatabase target = new DaoMaster.DevOpenHelper(app, null, null).getWritableDatabase();
+        target.execSQL("INSERT INTO DEVICE (NAME, MANUFACTURER, IDENTIFIER, TYPE) VALUES ('other', 'other', '00:00:00:00:99', 0)");
+        target.execSQL("INSERT INTO BASE_ACTIVITY_SUMMARY (_id, NAME, START_TIME, END_TIME, ACTIVITY_KIND, DEVICE_ID, USER_ID) VALUES (1, 'run', 0, 0, 0, 1, 1)");
+        DBBackup.merge(new ByteArrayInputStream(backup.toByteArray()), target);
+        DBBackup.merge(new ByteArrayInputStream(backup.toByteArray()), target);
+
+        assertEquals(2, count(target, "SELECT COUNT(*) FROM BASE_ACTIVITY_SUMMARY"));
+        assertEquals(1, count(target, "SELECT COUNT(*) FROM BASE_ACTIVITY_SUMMARY s JOIN DEVICE d ON s.DEVICE_ID = d._id WHERE d.IDENTIFIER = '" + gbDevice.getAddress() + "'"));
+        assertEquals(1, count(target, "SELECT COUNT(*) FROM DEVICE_ATTRIBUTES a JOIN DEVICE d ON a.DEVICE_ID = d._id WHERE d.IDENTIFIER = '" + gbDevice.getAddress() + "'"));
+        target.close();
+    }
+
+    @Test
+    public void testMergeSkipsUnknownDevicesAndDeletesRollups() throws Exception {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:43");
+        gbDevice.setState(GBDevice.State.INITIALIZED);
+        PebbleHealthSampleProvider provider = new PebbleHealthSampleProvider(gbDevice, daoSession);
+        addSamples(provider, START, 60, 10);
+        Long userId = DBHelper.getUser(daoSession).getId();
+        daoSession.getPebbleHealthActivitySampleDao().insert(new PebbleHealthActivitySample(START, 9999L, userId, null, 20, 10, 70));
+        ByteArrayOutputStream backup = new ByteArrayOutputStream();
+        DBBackup.export(backup, null, null);
+
+        SQLiteDatabase target = new DaoMaster.DevOpenHelper(app, null, null).getWritableDatabase();
+        DBBackup.merge(new ByteArrayInputStream(backup.toByteArray()), target);
+        assertEquals(60, countSamples(target));
+        assertEquals(0, count(target, "SELECT COUNT(*) FROM HOURLY_ACTIVITY_ROLLUP"));
+
+        // a rollup created before the samples of its hour are merged again
+        long targetDeviceId = count(target, "SELECT _id FROM DEVICE WHERE IDENTIFIER = '" + gbDevice.getAddress() + "'");
+        HourlyActivityRollup rollup = new HourlyActivityRollup();
+        rollup.setTimestamp(START);
+        rollup.setDeviceId(targetDeviceId);
+        new DaoMaster(target).newSession().getHourlyActivityRollupDao().insert(rollup);
+        DBBackup.merge(new ByteArrayInputStream(backup.toByteArray()), target);
+        assertEquals(0, count(target, "SELECT COUNT(*) FROM HOURLY_ACTIVITY_ROLLUP"));
+        target.close();
+    }
+
+    private void addSamples(PebbleHealthSampleProvider provider, int timestamp, int count, int steps) {
+        Long userId = DBHelper.getUser(daoSession).getId();
+        Long deviceId = DBHelper.getDevice(provider.getDevice(), daoSession).getId();
+        PebbleHealthActivitySample[] samples = new PebbleHealthActivitySample[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = new PebbleHealthActivitySample(timestamp + i * 60, deviceId, userId, null, 20, steps, 70);
+            samples[i].setProvider(provider);
+        }
+        provider.addGBActivitySamples(samples);
+    }
+
+    private SQLiteDatabase merge(ByteArrayOutputStream backup) throws Exception {
+        SQLiteDatabase db = new DaoMaster.DevOpenHelper(app, null, null).getWritableDatabase();
+        DBBackup.merge(new ByteArrayInputStream(backup.toByteArray()), db);
+        return db;
+    }
+
+    private long count(SQLiteDatabase db, String query) {
+        try (Cursor cursor = db.rawQuery(query, null)) {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        }
+    }
+
+    private int countSamples(SQLiteDatabase db) {
+        try (Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM PEBBLE_HEALTH_ACTIVITY_SAMPLE", null)) {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        }
+    }
+}
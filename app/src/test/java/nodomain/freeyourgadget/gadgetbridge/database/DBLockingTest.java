@@ -0,0 +1,59 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertTrue;
+
+public class DBLockingTest extends TestBase {
+
+    @Test
+    public void testReadersDoNotWaitForWriters() throws Exception {
+        // the test itself holds write access, see TestBase#setUp()
+        final CountDownLatch read = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (DBHandler handler = GBApplication.acquireReadOnlyDB()) {
+                    read.countDown();
+                } catch (Exception ignore) {
+                }
+            }
+        });
+        reader.start();
+        assertTrue(read.await(5, TimeUnit.SECONDS));
+        reader.join();
+    }
+
+    @Test
+    public void testWritersDoNotWaitForReaders() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (DBHandler handler = GBApplication.acquireReadOnlyDB()) {
+                    reading.countDown();
+                    done.await();
+                } catch (Exception ignore) {
+                }
+            }
+        });
+        GBApplication.releaseDB();
+        try {
+            reader.start();
+            assertTrue(reading.await(5, TimeUnit.SECONDS));
+            long start = System.nanoTime();
+            GBApplication.acquireDB();
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        } finally {
+            done.countDown();
+        }
+        reader.join();
+    }
+}
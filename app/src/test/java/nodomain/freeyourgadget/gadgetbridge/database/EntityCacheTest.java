@@ -0,0 +1,146 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PebbleHealthSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.DeviceAttributes;
+import nodomain.freeyourgadget.gadgetbridge.entities.DeviceAttributesDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.UserAttributes;
+import nodomain.freeyourgadget.gadgetbridge.entities.UserAttributesDao;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class EntityCacheTest extends TestBase {
+    private static final Logger LOG = LoggerFactory.getLogger(EntityCacheTest.class);
+
+    // Pebble Health sends one datalog packet per 15 minutes
+    private static final int RECORDS_PER_PACKET = 15;
+    private static final int PACKETS = 7 * 24 * 4;
+
+    private int queryCount;
+
+    private class CountingCursorFactory implements SQLiteDatabase.CursorFactory {
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+            queryCount++;
+            return new SQLiteCursor(masterQuery, editTable, query);
+        }
+    }
+
+    @Test
+    public void testCachedEntities() {
+        GBDevice gbDevice = createDummyGDevice("00:00:00:00:30");
+        gbDevice.setState(GBDevice.State.INITIALIZED);
+
+        assertSame(DBHelper.getUser(daoSession), DBHelper.getUser(daoSession));
+        assertSame(DBHelper.getDevice(gbDevice, daoSession), DBHelper.getDevice(gbDevice, daoSession));
+        assertSame(DBHelper.getDevice(gbDevice, daoSession), DBHelper.findDevice(gbDevice, daoSession));
+
+        // changes are still detected and written to the database
+        gbDevice.setFirmwareVersion("2.0");
+        DBHelper.getDevice(gbDevice, daoSession);
+        daoSession.clear();
+        List<DeviceAttributes> attributes = daoSession.getDeviceAttributesDao().queryBuilder()
+                .where(DeviceAttributesDao.Properties.ValidToUTC.isNull()).list();
+        assertEquals(1, attributes.size());
+        assertEquals("2.0", attributes.get(0).getFirmwareVersion1());
+    }
+
+    @Test
+    public void testCachedChecks() {
+        DaoMaster.DevOpenHelper helper = new DaoMaster.DevOpenHelper(app, null, new CountingCursorFactory());
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            DaoSession session = new DaoMaster(db).newSession();
+            GBDevice gbDevice = createDummyGDevice("00:00:00:00:32");
+            gbDevice.setState(GBDevice.State.INITIALIZED);
+            DBHelper.getUser(session);
+            DBHelper.getDevice(gbDevice, session);
+
+            queryCount = 0;
+            for (int i = 0; i < 10; i++) {
+                DBHelper.getUser(session);
+                DBHelper.getDevice(gbDevice, session);
+            }
+            assertEquals(0, queryCount);
+
+            // a changed preference is checked again
+            GBApplication.getPrefs().getPreferences().edit().putString(ActivityUser.PREF_USER_HEIGHT_CM, "190").commit();
+            DBHelper.getUser(session);
+            List<UserAttributes> attributes = session.getUserAttributesDao().queryBuilder()
+                    .where(UserAttributesDao.Properties.ValidToUTC.isNull()).list();
+            assertEquals(1, attributes.size());
+            assertEquals(190, attributes.get(0).getHeightCM());
+        } finally {
+            GBApplication.getPrefs().getPreferences().edit().remove(ActivityUser.PREF_USER_HEIGHT_CM).commit();
+            DBHelper.clearEntityCache();
+            db.close();
+        }
+    }
+
+    /**
+     * Simulates the synchronization of a week of Pebble Health data and compares the number
+     * of queries needed with and without the entity cache.
+     */
+    @Test
+    public void testHealthSyncQueries() {
+        int uncached = syncHealthData(false);
+        int cached = syncHealthData(true);
+        LOG.info("Queries for syncing " + PACKETS + " Pebble Health packets: " + uncached + " without cache, " + cached + " with cache");
+        // without the cache, every packet queries the user, the device and their attributes again
+        assertEquals(4 * (PACKETS - 1), uncached - cached);
+    }
+
+    private int syncHealthData(boolean useCache) {
+        DaoMaster.DevOpenHelper helper = new DaoMaster.DevOpenHelper(app, null, new CountingCursorFactory());
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            DaoSession session = new DaoMaster(db).newSession();
+            GBDevice gbDevice = createDummyGDevice("00:00:00:00:31");
+            gbDevice.setState(GBDevice.State.INITIALIZED);
+            queryCount = 0;
+
+            int timestamp = 1560000000;
+            for (int i = 0; i < PACKETS; i++) {
+                if (!useCache) {
+                    DBHelper.clearEntityCache();
+                    session.clear();
+                }
+                // same as DatalogSessionHealthSteps#store()
+                PebbleHealthSampleProvider sampleProvider = new PebbleHealthSampleProvider(gbDevice, session);
+                Long userId = DBHelper.getUser(session).getId();
+                Long deviceId = DBHelper.getDevice(gbDevice, session).getId();
+                PebbleHealthActivitySample[] samples = new PebbleHealthActivitySample[RECORDS_PER_PACKET];
+                for (int j = 0; j < RECORDS_PER_PACKET; j++) {
+                    samples[j] = new PebbleHealthActivitySample(timestamp, deviceId, userId, null, 10, 20, 70);
+                    samples[j].setProvider(sampleProvider);
+                    timestamp += 60;
+                }
+                sampleProvider.addGBActivitySamples(samples);
+            }
+            assertEquals(PACKETS * RECORDS_PER_PACKET, session.getPebbleHealthActivitySampleDao().count());
+            return queryCount;
+        } finally {
+            DBHelper.clearEntityCache();
+            db.close();
+        }
+    }
+}
@@ -2,16 +2,25 @@ package nodomain.freeyourgadget.gadgetbridge.database;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Random;
 
 import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiConst;
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBand2SampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PebbleHealthSampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivityOverlay;
+import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySampleSeries;
 import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
 
 import static org.junit.Assert.assertEquals;
@@ -170,4 +179,165 @@ public class SampleProviderTest extends TestBase {
         sleepSamples = sampleProvider.getSleepSamples(1500, 2500);
         assertEquals(1, sleepSamples.size());
     }
+
+    @Test
+    public void testSampleSeries() {
+        MiBandSampleProvider sampleProvider = new MiBandSampleProvider(dummyGBDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(dummyGBDevice, daoSession);
+
+        MiBandActivitySample[] samples = new MiBandActivitySample[] {
+                createSample(sampleProvider, MiBandSampleProvider.TYPE_ACTIVITY, 100, 10, 70, 1000, user, device),
+                createSample(sampleProvider, MiBandSampleProvider.TYPE_ACTIVITY, 200, 20, 80, 1030, user, device),
+                createSample(sampleProvider, MiBandSampleProvider.TYPE_DEEP_SLEEP, 1200, 10, 62, 0, user, device),
+                createSample(sampleProvider, MiBandSampleProvider.TYPE_LIGHT_SLEEP, 2000, 10, 60, 0, user, device),
+        };
+        sampleProvider.addGBActivitySamples(samples);
+
+        assertEquals(0, sampleProvider.getAllActivitySampleSeries(1, -1).size());
+        assertEquals(3, sampleProvider.getAllActivitySampleSeries(0, 1300).size());
+
+        // the series must contain exactly what the entities contain
+        List<MiBandActivitySample> expected = sampleProvider.getAllActivitySamples(0, 10000);
+        ActivitySampleSeries series = sampleProvider.getAllActivitySampleSeries(0, 10000);
+        assertEquals(expected.size(), series.size());
+        for (int i = 0; i < series.size(); i++) {
+            MiBandActivitySample sample = expected.get(i);
+            assertEquals(sample.getTimestamp(), series.getTimestamp(i));
+            assertEquals(sample.getKind(), series.getKind(i));
+            assertEquals(sample.getRawKind(), series.getRawKind(i));
+            assertEquals(sample.getIntensity(), series.getIntensity(i), 0);
+            assertEquals(sample.getSteps(), series.getSteps(i));
+            assertEquals(sample.getHeartRate(), series.getHeartRate(i));
+        }
+    }
+
+    @Test
+    public void testMiBand2SampleSeries() {
+        MiBand2SampleProvider sampleProvider = new MiBand2SampleProvider(dummyGBDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(dummyGBDevice, daoSession);
+        User otherUser = new User();
+        otherUser.setName("other");
+        otherUser.setBirthday(new Date(0));
+        daoSession.getUserDao().insert(otherUser);
+
+        MiBandActivitySample[] samples = new MiBandActivitySample[] {
+                createSample(sampleProvider, HuamiConst.TYPE_LIGHT_SLEEP, 10, 10, 60, 0, user, device),
+                // the last valid kind before the range, but of another user
+                createSample(sampleProvider, HuamiConst.TYPE_DEEP_SLEEP, 50, 10, 60, 0, otherUser, device),
+                createSample(sampleProvider, HuamiConst.TYPE_NO_CHANGE, 100, 10, 60, 0, user, device),
+                createSample(sampleProvider, HuamiConst.TYPE_IGNORE, 160, 10, 60, 0, user, device),
+                createSample(sampleProvider, HuamiConst.TYPE_ACTIVITY, 220, 20, 80, 30, user, device),
+                createSample(sampleProvider, HuamiConst.TYPE_NO_CHANGE | 0x70, 280, 20, 80, 30, user, device),
+        };
+        sampleProvider.addGBActivitySamples(samples);
+
+        // the series must be post processed exactly like the entities
+        List<MiBandActivitySample> expected = sampleProvider.getAllActivitySamples(100, 1000);
+        ActivitySampleSeries series = sampleProvider.getAllActivitySampleSeries(100, 1000);
+        assertEquals(4, expected.size());
+        assertEquals(expected.size(), series.size());
+        for (int i = 0; i < series.size(); i++) {
+            MiBandActivitySample sample = expected.get(i);
+            assertEquals(sample.getTimestamp(), series.getTimestamp(i));
+            assertEquals(sample.getKind(), series.getKind(i));
+            assertEquals(sample.getRawKind(), series.getRawKind(i));
+        }
+        assertEquals(HuamiConst.TYPE_LIGHT_SLEEP, series.getRawKind(0));
+        assertEquals(HuamiConst.TYPE_LIGHT_SLEEP, series.getRawKind(1));
+        assertEquals(HuamiConst.TYPE_ACTIVITY, series.getRawKind(3));
+    }
+
+    @Test
+    public void testPebbleHealthOverlays() {
+        PebbleHealthSampleProvider sampleProvider = new PebbleHealthSampleProvider(dummyGBDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(dummyGBDevice, daoSession);
+
+        PebbleHealthActivitySample[] samples = new PebbleHealthActivitySample[10];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = createSample(sampleProvider, PebbleHealthSampleProvider.TYPE_ACTIVITY, 1000 + i * 60, 10, 70, 10, user, device);
+        }
+        sampleProvider.addGBActivitySamples(samples);
+        daoSession.getPebbleHealthActivityOverlayDao().insert(createOverlay(1060, 1300, PebbleHealthSampleProvider.TYPE_LIGHT_SLEEP, user, device));
+        daoSession.getPebbleHealthActivityOverlayDao().insert(createOverlay(1120, 1180, PebbleHealthSampleProvider.TYPE_DEEP_SLEEP, user, device));
+        daoSession.getPebbleHealthActivityOverlayDao().insert(createOverlay(1500, 2000, PebbleHealthSampleProvider.TYPE_WALK, user, device));
+
+        List<PebbleHealthActivitySample> result = sampleProvider.getAllActivitySamples(0, 10000);
+        int[] expectedKinds = {
+                PebbleHealthSampleProvider.TYPE_ACTIVITY,
+                PebbleHealthSampleProvider.TYPE_LIGHT_SLEEP,
+                PebbleHealthSampleProvider.TYPE_DEEP_SLEEP,
+                PebbleHealthSampleProvider.TYPE_LIGHT_SLEEP,
+                PebbleHealthSampleProvider.TYPE_LIGHT_SLEEP,
+                PebbleHealthSampleProvider.TYPE_ACTIVITY,
+                PebbleHealthSampleProvider.TYPE_ACTIVITY,
+                PebbleHealthSampleProvider.TYPE_ACTIVITY,
+                PebbleHealthSampleProvider.TYPE_ACTIVITY,
+                PebbleHealthSampleProvider.TYPE_WALK,
+        };
+        assertEquals(expectedKinds.length, result.size());
+        for (int i = 0; i < expectedKinds.length; i++) {
+            assertEquals(expectedKinds[i], result.get(i).getRawKind());
+        }
+    }
+
+    /**
+     * Compares applying 10k overlays to 500k samples with painting the overlays one after
+     * the other onto an array of raw kinds, which is what the former nested loops did.
+     * The timing is measured by PebbleHealthOverlaysBenchmark in the benchmarks module.
+     */
+    @Test
+    public void testPebbleHealthOverlaysLarge() {
+        final int sampleCount = 500000;
+        final int overlayCount = 10000;
+        final int start = 1500000000;
+        Random random = new Random(42);
+
+        List<PebbleHealthActivitySample> samples = new ArrayList<>(sampleCount);
+        int[] expectedKinds = new int[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            PebbleHealthActivitySample sample = new PebbleHealthActivitySample();
+            sample.setTimestamp(start + i * 60);
+            sample.setRawKind(PebbleHealthSampleProvider.TYPE_ACTIVITY);
+            samples.add(sample);
+            expectedKinds[i] = PebbleHealthSampleProvider.TYPE_ACTIVITY;
+        }
+
+        List<PebbleHealthActivityOverlay> overlays = new ArrayList<>(overlayCount);
+        for (int i = 0; i < overlayCount; i++) {
+            int from = start - 3600 + random.nextInt(sampleCount * 60);
+            int to = from + random.nextInt(12 * 3600);
+            int rawKind = 1 + random.nextInt(PebbleHealthSampleProvider.TYPE_RUN);
+            PebbleHealthActivityOverlay overlay = new PebbleHealthActivityOverlay();
+            overlay.setTimestampFrom(from);
+            overlay.setTimestampTo(to);
+            overlay.setRawKind(rawKind);
+            overlays.add(overlay);
+
+            // samples from (inclusive) to to (exclusive), the last overlay wins
+            int first = Math.max(0, (from - start + 59) / 60);
+            int end = Math.min(sampleCount, (to - start + 59) / 60);
+            for (int j = first; j < end; j++) {
+                expectedKinds[j] = rawKind;
+            }
+        }
+
+        PebbleHealthSampleProvider.applyOverlays(samples, overlays);
+
+        for (int i = 0; i < sampleCount; i++) {
+            assertEquals(expectedKinds[i], samples.get(i).getRawKind());
+        }
+    }
+
+    private PebbleHealthActivityOverlay createOverlay(int from, int to, int rawKind, User user, Device device) {
+        PebbleHealthActivityOverlay overlay = new PebbleHealthActivityOverlay();
+        overlay.setTimestampFrom(from);
+        overlay.setTimestampTo(to);
+        overlay.setRawKind(rawKind);
+        overlay.setUserId(user.getId());
+        overlay.setDeviceId(device.getId());
+        return overlay;
+    }
 }
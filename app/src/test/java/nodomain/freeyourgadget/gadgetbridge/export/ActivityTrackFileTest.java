@@ -0,0 +1,113 @@
+package nodomain.freeyourgadget.gadgetbridge.export;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrackSeries;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ActivityTrackFileTest extends TestBase {
+    private static final int POINTS = 3600;
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ActivityTrackSeries track = createTrack();
+        byte[] rawData = new byte[] { 1, 2, 3, (byte) 0xff };
+        File file = File.createTempFile("gadgetbridge-track", ActivityTrackFile.EXTENSION);
+        file.deleteOnExit();
+
+        ActivityTrackFile.write(file, track, ActivityTrackFile.RAW_FORMAT_HUAMI_SPORTS_DETAILS, rawData);
+        ActivityTrackFile trackFile = ActivityTrackFile.open(file);
+        assertEquals("testtrack", trackFile.getName());
+        assertEquals(ActivityTrackFile.RAW_FORMAT_HUAMI_SPORTS_DETAILS, trackFile.getRawFormat());
+        assertArrayEquals(rawData, trackFile.readRawData());
+
+        ActivityTrackSeries decoded = trackFile.readTrack();
+        assertEquals(track.size(), decoded.size());
+        for (int i = 0; i < track.size(); i++) {
+            assertEquals(track.getTime(i), decoded.getTime(i));
+            assertEquals(track.hasLocation(i), decoded.hasLocation(i));
+            if (track.hasLocation(i)) {
+                assertEquals(track.getLongitude(i), decoded.getLongitude(i));
+                assertEquals(track.getLatitude(i), decoded.getLatitude(i));
+                assertEquals(track.getAltitude(i), decoded.getAltitude(i));
+            }
+            assertEquals(track.getHeartRate(i), decoded.getHeartRate(i));
+            assertEquals(track.getDescription(i), decoded.getDescription(i));
+        }
+        // one point per second with small movements takes only a few bytes
+        assertTrue(file.length() < POINTS * 8);
+    }
+
+    @Test
+    public void testRenderGpx() throws Exception {
+        ActivityTrackSeries track = createTrack();
+        File file = File.createTempFile("gadgetbridge-track", ActivityTrackFile.EXTENSION);
+        file.deleteOnExit();
+        ActivityTrackFile.write(file, track, ActivityTrackFile.RAW_FORMAT_NONE, null);
+
+        GPXExporter exporter = new GPXExporter();
+        exporter.setCreator(getClass().getName());
+        File gpxFile = ActivityTrackFile.open(file).render(exporter, ".gpx", null, null);
+        gpxFile.deleteOnExit();
+        assertEquals(file.getPath().replace(ActivityTrackFile.EXTENSION, ".gpx"), gpxFile.getPath());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        exporter.performExport(track, expected);
+        try (InputStream in = new FileInputStream(gpxFile)) {
+            String rendered = new String(FileUtils.readAll(in, Integer.MAX_VALUE), "UTF-8");
+            // the metadata contains the time of the export
+            assertEquals(trackOf(expected.toString("UTF-8")), trackOf(rendered));
+        }
+
+        // written again within the same second as the rendered file
+        track.setName("changed");
+        ActivityTrackFile.write(file, track, ActivityTrackFile.RAW_FORMAT_NONE, null);
+        long time = gpxFile.lastModified() / 1000 * 1000;
+        assertTrue(file.setLastModified(time));
+        assertTrue(gpxFile.setLastModified(time));
+        gpxFile = ActivityTrackFile.open(file).render(exporter, ".gpx", null, null);
+        try (InputStream in = new FileInputStream(gpxFile)) {
+            String rendered = new String(FileUtils.readAll(in, Integer.MAX_VALUE), "UTF-8");
+            assertTrue(rendered.contains("<name>changed</name>"));
+        }
+    }
+
+    private String trackOf(String gpx) {
+        return gpx.substring(gpx.indexOf("<trk>"));
+    }
+
+    private ActivityTrackSeries createTrack() {
+        ActivityTrackSeries track = new ActivityTrackSeries();
+        track.setName("testtrack");
+        long time = 1500000000000L;
+        int longitude = -3703790;
+        int latitude = 40416775;
+        int altitude = 657000;
+        for (int i = 0; i < POINTS; i++) {
+            if (i % 10 == 5) {
+                // heart rate only, with a time that is not a whole second
+                track.add(time + 500, ActivityTrackSeries.NO_LOCATION, ActivityTrackSeries.NO_LOCATION, ActivityTrackSeries.NO_LOCATION, 120 + i % 7);
+            } else {
+                longitude += (i % 5) - 2;
+                latitude += (i % 3) * 3;
+                altitude += (i % 4) * 100 - 150;
+                int index = track.add(time, longitude, latitude, altitude, i % 3 == 0 ? 0 : 110 + i % 11);
+                if (i % 600 == 0) {
+                    track.setDescription(index, "Lap " + i / 600);
+                }
+            }
+            time += 1000;
+        }
+        return track;
+    }
+}
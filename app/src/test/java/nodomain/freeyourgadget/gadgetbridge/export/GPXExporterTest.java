@@ -6,6 +6,7 @@ import org.junit.Test;
 import org.xml.sax.SAXException;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,9 +30,12 @@ import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.export.ActivityTrackExporter.GPXTrackEmptyException;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityPoint;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrackSeries;
 import nodomain.freeyourgadget.gadgetbridge.model.GPSCoordinate;
 import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
 
+import static org.junit.Assert.assertTrue;
+
 public class GPXExporterTest extends TestBase {
     @Test
     public void shouldCreateValidGpxFromSimulatedData() throws IOException, ParseException, GPXTrackEmptyException, SAXException {
@@ -63,6 +67,45 @@ public class GPXExporterTest extends TestBase {
         validateGpxFile(tempFile);
     }
 
+    @Test
+    public void shouldUseHeartRateOfNearestEarlierSample() throws IOException, GPXTrackEmptyException, SAXException {
+        final ActivityTrackSeries track = new ActivityTrackSeries();
+        track.setName("Test <Track>");
+        final long start = 1500000000000L;
+        // heart rate only, without location
+        track.add(start, ActivityTrackSeries.NO_LOCATION, ActivityTrackSeries.NO_LOCATION, ActivityTrackSeries.NO_LOCATION, 95);
+        track.add(start + 60000, 13404954, 52520008, 34000, 0);
+        track.add(start + 120000, -13404954, -52520008, -500, 0);
+        track.add(start + 121000, 500, 5, 0, 0);
+        track.add(start + 180000, 1, 2, 3, 110);
+
+        final GPXExporter gpxExporter = new GPXExporter();
+        gpxExporter.setCreator("Gadgetbridge Test");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        gpxExporter.performExport(track, out);
+        final String gpx = out.toString("UTF-8");
+
+        assertTrue(gpx.contains("<name>Test &lt;Track&gt;</name>"));
+        assertTrue(gpx.contains("<trkpt lon=\"13.404954\" lat=\"52.520008\"><ele>34.000000</ele><time>2017-07-14T02:41:00Z</time>"
+                + "<extensions><gpxtpx:TrackPointExtension><gpxtpx:hr>95</gpxtpx:hr></gpxtpx:TrackPointExtension></extensions></trkpt>"));
+        // the heart rate sample is exactly two minutes old
+        assertTrue(gpx.contains("<trkpt lon=\"-13.404954\" lat=\"-52.520008\"><ele>-0.500000</ele><time>2017-07-14T02:42:00Z</time></trkpt>"));
+        assertTrue(gpx.contains("<trkpt lon=\"0.000500\" lat=\"0.000005\"><ele>0.000000</ele><time>2017-07-14T02:42:01Z</time></trkpt>"));
+        assertTrue(gpx.contains("<gpxtpx:hr>110</gpxtpx:hr>"));
+
+        final File tempFile = File.createTempFile("gpx-exporter-test-track", ".gpx");
+        tempFile.deleteOnExit();
+        gpxExporter.performExport(track, tempFile);
+        validateGpxFile(tempFile);
+    }
+
+    @Test(expected = GPXTrackEmptyException.class)
+    public void shouldRejectTrackWithoutLocations() throws IOException, GPXTrackEmptyException {
+        final ActivityTrackSeries track = new ActivityTrackSeries();
+        track.add(1500000000000L, ActivityTrackSeries.NO_LOCATION, ActivityTrackSeries.NO_LOCATION, ActivityTrackSeries.NO_LOCATION, 95);
+        new GPXExporter().performExport(track, new ByteArrayOutputStream());
+    }
+
     private ActivityTrack createTestTrack(List<ActivityPoint> points) {
         final User user = new User();
         user.setName("Test User");
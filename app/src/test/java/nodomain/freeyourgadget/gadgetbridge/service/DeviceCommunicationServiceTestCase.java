@@ -5,26 +5,34 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.GBException;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
+import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
 import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
 
+import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.ACTION_FIND_DEVICE;
+import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_DEVICE_ADDRESS;
+import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_FIND_START;
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_NOTIFICATION_BODY;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class DeviceCommunicationServiceTestCase extends TestBase {
     private static final java.lang.String TEST_DEVICE_ADDRESS = TestDeviceSupport.class.getName();
+    private static final java.lang.String OTHER_DEVICE_ADDRESS = "00:00:00:00:00:02";
 
     /**
-     * Factory that always returns the mockSupport instance
+     * Factory that returns the mockSupport instance, or otherSupport for the other device
      */
     private class TestDeviceSupportFactory extends DeviceSupportFactory {
         TestDeviceSupportFactory(Context context) {
@@ -33,6 +41,9 @@ public class DeviceCommunicationServiceTestCase extends TestBase {
 
         @Override
         public synchronized DeviceSupport createDeviceSupport(GBDevice device) throws GBException {
+            if (OTHER_DEVICE_ADDRESS.equals(device.getAddress())) {
+                return otherSupport;
+            }
             return mockSupport;
         }
     }
@@ -41,6 +52,7 @@ public class DeviceCommunicationServiceTestCase extends TestBase {
     @Mock
     private TestDeviceSupport realSupport;
     private TestDeviceSupport mockSupport;
+    private TestDeviceSupport otherSupport;
 
     public DeviceCommunicationServiceTestCase() {
         super();
@@ -53,6 +65,9 @@ public class DeviceCommunicationServiceTestCase extends TestBase {
         realSupport = new TestDeviceSupport();
         realSupport.setContext(new GBDevice(TEST_DEVICE_ADDRESS, "Test Device", DeviceType.TEST), null, getContext());
         mockSupport = Mockito.spy(realSupport);
+        TestDeviceSupport otherRealSupport = new TestDeviceSupport();
+        otherRealSupport.setContext(new GBDevice(OTHER_DEVICE_ADDRESS, "Other Device", DeviceType.TEST), null, getContext());
+        otherSupport = Mockito.spy(otherRealSupport);
         DeviceCommunicationService.setDeviceSupportFactory(new TestDeviceSupportFactory(getContext()));
 
         mDeviceService = new TestDeviceService(getContext());
@@ -102,6 +117,57 @@ public class DeviceCommunicationServiceTestCase extends TestBase {
         inOrder.verifyNoMoreInteractions();
     }
 
+    @Test
+    public void testDeviceAddressRouting() {
+        ensureConnected();
+
+        InOrder inOrder = Mockito.inOrder(mockSupport);
+        Intent otherDevice = mDeviceService.createIntent().setAction(ACTION_FIND_DEVICE)
+                .putExtra(EXTRA_FIND_START, true)
+                .putExtra(EXTRA_DEVICE_ADDRESS, "00:00:00:00:00:01");
+        mDeviceService.invokeService(otherDevice);
+        Intent testDevice = mDeviceService.createIntent().setAction(ACTION_FIND_DEVICE)
+                .putExtra(EXTRA_FIND_START, false)
+                .putExtra(EXTRA_DEVICE_ADDRESS, TEST_DEVICE_ADDRESS);
+        mDeviceService.invokeService(testDevice);
+        inOrder.verify(mockSupport, Mockito.times(0)).onFindDevice(true);
+        inOrder.verify(mockSupport, Mockito.times(1)).onFindDevice(false);
+        inOrder.verifyNoMoreInteractions();
+
+        mDeviceService.disconnect(getDevice());
+        Mockito.verify(mockSupport, Mockito.times(1)).dispose();
+        assertEquals(GBDevice.State.NOT_CONNECTED, getDevice().getState());
+    }
+
+    @Test
+    public void testCommandsWithoutAddress() {
+        ensureConnected();
+        GBDevice otherDevice = otherSupport.getDevice();
+        mDeviceService.connect(otherDevice);
+        assertTrue(otherDevice.isInitialized());
+
+        // a device specific command must not reach every device
+        mDeviceService.onFindDevice(true);
+        Mockito.verify(mockSupport, Mockito.times(0)).onFindDevice(true);
+        Mockito.verify(otherSupport, Mockito.times(0)).onFindDevice(true);
+
+        Intent intent = mDeviceService.createIntent().setAction(ACTION_FIND_DEVICE)
+                .putExtra(EXTRA_FIND_START, true)
+                .putExtra(EXTRA_DEVICE_ADDRESS, OTHER_DEVICE_ADDRESS);
+        mDeviceService.invokeService(intent);
+        Mockito.verify(mockSupport, Mockito.times(0)).onFindDevice(true);
+        Mockito.verify(otherSupport, Mockito.times(1)).onFindDevice(true);
+
+        // notifications are for all devices
+        NotificationSpec notificationSpec = new NotificationSpec();
+        notificationSpec.body = "body";
+        mDeviceService.onNotification(notificationSpec);
+        Mockito.verify(mockSupport, Mockito.times(1)).onNotification(Mockito.any(NotificationSpec.class));
+        Mockito.verify(otherSupport, Mockito.times(1)).onNotification(Mockito.any(NotificationSpec.class));
+
+        mDeviceService.disconnect(otherDevice);
+    }
+
     @Test
     public void testTransliterationSupport() {
         SharedPreferences settings = GBApplication.getPrefs().getPreferences();
@@ -130,4 +196,41 @@ public class DeviceCommunicationServiceTestCase extends TestBase {
 
         assertEquals("Rtl support fail!", "תירבע English and", result);
     }
+
+    @Test
+    public void testTransliterationBeforeCustomStringFilter() {
+        ensureConnected();
+        SharedPreferences settings = GBApplication.getPrefs().getPreferences();
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putBoolean("transliteration", true);
+        editor.putBoolean(GBPrefs.RTL_SUPPORT, false);
+        editor.commit();
+
+        // maps the emoji to the Hangul syllables of the custom font, like HuamiSupport
+        Mockito.doAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                String text = (String) invocation.getArguments()[0];
+                StringBuilder builder = new StringBuilder();
+                for (int i = 0; i < text.length(); ) {
+                    int codePoint = text.codePointAt(i);
+                    if (codePoint >= 0x1F300 && codePoint <= 0x1F9E6) {
+                        builder.append((char) (codePoint - 0x14700));
+                    } else {
+                        builder.appendCodePoint(codePoint);
+                    }
+                    i += Character.charCount(codePoint);
+                }
+                return builder.toString();
+            }
+        }).when(mockSupport).customStringFilter(Mockito.anyString());
+
+        NotificationSpec notificationSpec = new NotificationSpec();
+        notificationSpec.body = "Żółty \uD83D\uDE00";
+        mDeviceService.onNotification(notificationSpec);
+
+        ArgumentCaptor<NotificationSpec> captor = ArgumentCaptor.forClass(NotificationSpec.class);
+        Mockito.verify(mockSupport).onNotification(captor.capture());
+        assertEquals("Zolty \uAF00", captor.getValue().body);
+    }
 }
@@ -0,0 +1,55 @@
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Test;
+import org.robolectric.shadows.ShadowLooper;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceLaneTest extends TestBase {
+    private int runs;
+
+    private final Runnable counter = new Runnable() {
+        @Override
+        public void run() {
+            runs++;
+        }
+    };
+
+    @Test
+    public void testMaxPendingCommands() {
+        // the device thread is blocked until the looper runs again
+        ShadowLooper.pauseMainLooper();
+        try {
+            GBDevice device = new GBDevice("00:00:00:00:00:03", "Test Device", DeviceType.TEST);
+            DeviceLane lane = new DeviceLane(device, new Handler(Looper.getMainLooper()));
+
+            for (int i = 0; i < DeviceLane.MAX_PENDING_COMMANDS; i++) {
+                assertTrue(lane.post(counter, false));
+            }
+            assertFalse(lane.post(counter, false));
+            // e.g. an incoming call is still queued
+            assertTrue(lane.post(counter, true));
+            assertEquals(DeviceLane.MAX_PENDING_COMMANDS + 1, lane.getPendingCommands());
+
+            ShadowLooper.runUiThreadTasks();
+            assertEquals(DeviceLane.MAX_PENDING_COMMANDS + 1, runs);
+            assertEquals(0, lane.getPendingCommands());
+
+            // accepted again once the device thread caught up
+            assertTrue(lane.post(counter, false));
+            ShadowLooper.runUiThreadTasks();
+            assertEquals(DeviceLane.MAX_PENDING_COMMANDS + 2, runs);
+        } finally {
+            ShadowLooper.unPauseMainLooper();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceTaskSchedulerTest extends TestBase {
+    private long now;
+    private int runs;
+
+    private final DeviceTaskScheduler scheduler = new DeviceTaskScheduler(0) {
+        @Override
+        long now() {
+            return now;
+        }
+    };
+
+    private final Runnable counter = new Runnable() {
+        @Override
+        public void run() {
+            runs++;
+        }
+    };
+
+    private int advanceTo(long millis) {
+        now = millis;
+        return scheduler.advanceTo(millis);
+    }
+
+    @Test
+    public void testOneShot() {
+        DeviceTaskScheduler.Task task = scheduler.createTask("00:00:00:00:00:01", "one shot", counter);
+        task.schedule(1000);
+        assertTrue(task.isScheduled());
+
+        assertEquals(0, advanceTo(999));
+        assertEquals(1, advanceTo(1000));
+        assertFalse(task.isScheduled());
+        assertEquals(0, advanceTo(10000));
+
+        // rescheduling replaces the previous schedule
+        task.schedule(1000);
+        task.schedule(5000);
+        assertEquals(0, advanceTo(14999));
+        assertEquals(1, advanceTo(15000));
+        assertEquals(2, runs);
+    }
+
+    @Test
+    public void testPeriodic() {
+        DeviceTaskScheduler.Task task = scheduler.createTask("00:00:00:00:00:01", "periodic", counter);
+        task.schedule(1000, 1000);
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(1, advanceTo(i * 1000));
+        }
+        // missed runs are not repeated
+        assertEquals(1, advanceTo(60000));
+        assertEquals(0, advanceTo(60999));
+        assertEquals(1, advanceTo(61000));
+
+        task.cancel();
+        assertFalse(task.isScheduled());
+        assertEquals(0, advanceTo(120000));
+        assertEquals(12, runs);
+    }
+
+    @Test
+    public void testLongDelays() {
+        long[] delays = {
+                TimeUnit.SECONDS.toMillis(30),
+                TimeUnit.MINUTES.toMillis(40),
+                TimeUnit.HOURS.toMillis(12),
+                TimeUnit.DAYS.toMillis(3),
+                TimeUnit.DAYS.toMillis(365),
+        };
+        for (long delay : delays) {
+            scheduler.createTask("00:00:00:00:00:01", "after " + delay, counter).schedule(delay);
+        }
+        assertEquals(5, scheduler.getScheduledTasks().size());
+        assertEquals("after " + delays[0], scheduler.getScheduledTasks().get(0).getName());
+
+        // wake up every few minutes, like a phone in doze mode
+        long step = TimeUnit.MINUTES.toMillis(7);
+        for (int i = 0; i < delays.length; i++) {
+            long delay = delays[i];
+            while (now + step < delay) {
+                assertEquals(0, advanceTo(now + step));
+            }
+            assertEquals(0, advanceTo(delay - 1));
+            assertEquals(1, advanceTo(delay));
+            assertEquals(i + 1, runs);
+        }
+        assertTrue(scheduler.getScheduledTasks().isEmpty());
+    }
+
+    @Test
+    public void testCoalescing() {
+        now = 1000;
+        DeviceTaskScheduler.Task exact = scheduler.createTask("00:00:00:00:00:01", "exact", counter);
+        exact.schedule(60000);
+        DeviceTaskScheduler.Task slack1 = scheduler.createTask("00:00:00:00:00:01", "slack 1", counter).setSlackMillis(5000);
+        slack1.schedule(60000);
+        DeviceTaskScheduler.Task slack2 = scheduler.createTask("00:00:00:00:00:02", "slack 2", counter).setSlackMillis(5000);
+        slack2.schedule(63000);
+
+        List<DeviceTaskScheduler.Task> tasks = scheduler.getScheduledTasks();
+        assertEquals(3, tasks.size());
+        assertEquals("exact", tasks.get(0).getName());
+
+        assertEquals(1, advanceTo(61000));
+        assertEquals(0, advanceTo(64999));
+        assertEquals(2, advanceTo(65000));
+    }
+}
@@ -0,0 +1,99 @@
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.EnumSet;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.CallSpec;
+import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
+import nodomain.freeyourgadget.gadgetbridge.model.MusicSpec;
+import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+
+public class ServiceDeviceSupportTest extends TestBase {
+
+    @Test
+    public void testQueueWhileBusy() {
+        TestDeviceSupport realSupport = new TestDeviceSupport();
+        GBDevice device = new GBDevice("00:00:00:00:00:02", "Test Device", DeviceType.TEST);
+        device.setState(GBDevice.State.INITIALIZED);
+        realSupport.setContext(device, null, getContext());
+        TestDeviceSupport mockSupport = Mockito.spy(realSupport);
+        ServiceDeviceSupport support = new ServiceDeviceSupport(mockSupport, EnumSet.of(ServiceDeviceSupport.Flags.BUSY_CHECKING));
+
+        device.setBusyTask("fetching activity data");
+
+        NotificationSpec notificationSpec = new NotificationSpec();
+        CallSpec callSpec = new CallSpec();
+        MusicSpec oldMusicSpec = new MusicSpec();
+        MusicSpec newMusicSpec = new MusicSpec();
+        support.onSetMusicInfo(oldMusicSpec);
+        support.onNotification(notificationSpec);
+        support.onSetMusicInfo(newMusicSpec);
+        support.onSetCallState(callSpec);
+
+        Mockito.verify(mockSupport, Mockito.never()).onSetMusicInfo(Mockito.any(MusicSpec.class));
+        Mockito.verify(mockSupport, Mockito.never()).onNotification(Mockito.any(NotificationSpec.class));
+        Mockito.verify(mockSupport, Mockito.never()).onSetCallState(Mockito.any(CallSpec.class));
+        assertEquals(3, support.getPendingCommandCount());
+        assertEquals(1, support.getCoalescedCommandCount());
+
+        // still busy
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(3, support.getPendingCommandCount());
+
+        device.unsetBusyTask();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(0, support.getPendingCommandCount());
+        assertEquals(3, support.getMaxPendingCommandCount());
+
+        InOrder inOrder = Mockito.inOrder(mockSupport);
+        inOrder.verify(mockSupport).onSetCallState(callSpec);
+        inOrder.verify(mockSupport).onNotification(notificationSpec);
+        inOrder.verify(mockSupport).onSetMusicInfo(newMusicSpec);
+
+        // not busy anymore, delivered directly
+        support.onNotification(notificationSpec);
+        Mockito.verify(mockSupport, Mockito.times(2)).onNotification(notificationSpec);
+        Mockito.verify(mockSupport, Mockito.never()).onSetMusicInfo(oldMusicSpec);
+    }
+
+    @Test
+    public void testDiscardOnDisconnect() {
+        TestDeviceSupport realSupport = new TestDeviceSupport();
+        GBDevice device = new GBDevice("00:00:00:00:00:03", "Test Device", DeviceType.TEST);
+        device.setState(GBDevice.State.INITIALIZED);
+        realSupport.setContext(device, null, getContext());
+        TestDeviceSupport mockSupport = Mockito.spy(realSupport);
+        ServiceDeviceSupport support = new ServiceDeviceSupport(mockSupport, EnumSet.of(ServiceDeviceSupport.Flags.BUSY_CHECKING));
+
+        device.setBusyTask("fetching activity data");
+        support.onNotification(new NotificationSpec());
+        support.onSetCallState(new CallSpec());
+        assertEquals(2, support.getPendingCommandCount());
+
+        // the events were meant for the lost connection (this also ends the busy task)
+        device.setState(GBDevice.State.NOT_CONNECTED);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(0, support.getPendingCommandCount());
+
+        // nor are they delivered after reconnecting
+        device.setState(GBDevice.State.INITIALIZED);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        Mockito.verify(mockSupport, Mockito.never()).onNotification(Mockito.any(NotificationSpec.class));
+        Mockito.verify(mockSupport, Mockito.never()).onSetCallState(Mockito.any(CallSpec.class));
+
+        // queued again while busy, a reconnect discards them as well
+        device.setBusyTask("fetching activity data");
+        support.onNotification(new NotificationSpec());
+        assertEquals(1, support.getPendingCommandCount());
+        support.connect();
+        assertEquals(0, support.getPendingCommandCount());
+    }
+}
@@ -26,10 +26,11 @@ class TestDeviceService extends GBDeviceService {
 
     @Override
     protected void invokeService(Intent intent) {
+        // prepares the extras of the intent
+        super.invokeService(intent);
         // calling though to the service natively does not work with robolectric,
         // we have to use the ServiceController to do that
         service.onStartCommand(intent, Service.START_FLAG_REDELIVERY, (int) (Math.random() * 10000));
-        super.invokeService(intent);
     }
 
     @Override
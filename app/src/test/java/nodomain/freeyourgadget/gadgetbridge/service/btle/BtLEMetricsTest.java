@@ -0,0 +1,47 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BtLEMetricsTest {
+
+    @Test
+    public void testHistogramPercentiles() {
+        BtLEMetrics.Histogram histogram = new BtLEMetrics.Histogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.add(TimeUnit.MICROSECONDS.toNanos(500));
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.add(TimeUnit.MILLISECONDS.toNanos(30));
+        }
+        histogram.add(TimeUnit.MINUTES.toNanos(2));
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getPercentileMillis(50));
+        assertEquals(1, histogram.getPercentileMillis(90));
+        assertEquals(32, histogram.getPercentileMillis(99));
+        assertEquals(-1, histogram.getPercentileMillis(100));
+    }
+
+    @Test
+    public void testDump() {
+        BtLEMetrics metrics = new BtLEMetrics();
+        UUID characteristic = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+        metrics.record("AA:BB", BtLEMetrics.TRANSACTION, null, TimeUnit.MILLISECONDS.toNanos(10));
+        metrics.record("AA:BB", BtLEMetrics.NOTIFICATION_HANDLING, characteristic, TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.record("CC:DD", BtLEMetrics.QUEUE_DELAY, null, TimeUnit.MILLISECONDS.toNanos(1));
+
+        String dump = metrics.dump();
+        assertTrue(dump.contains("AA:BB\n"));
+        assertTrue(dump.contains(BtLEMetrics.NOTIFICATION_HANDLING + " " + characteristic + ": n=1"));
+        assertTrue(dump.contains("CC:DD\n  " + BtLEMetrics.QUEUE_DELAY + ": n=1"));
+
+        metrics.reset();
+        assertEquals("", metrics.dump());
+    }
+}
@@ -0,0 +1,164 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import android.bluetooth.BluetoothGatt;
+import android.content.Context;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import de.greenrobot.dao.AbstractDao;
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.database.DBLockStatistics;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.service.capture.CaptureReader;
+import nodomain.freeyourgadget.gadgetbridge.service.capture.TrafficRecorder;
+import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceProtocol;
+
+/**
+ * Feeds the data received in a capture of the {@link TrafficRecorder} into a device support
+ * or protocol as fast as possible, without a device, and measures the throughput.
+ * <p/>
+ * BLE device supports get an offline {@link BtLEQueue}, which only collects the transactions
+ * the support sends in response.
+ */
+public class CaptureReplayHarness {
+    private static final Logger LOG = LoggerFactory.getLogger(CaptureReplayHarness.class);
+
+    private final AbstractDao<?, ?> sampleDao;
+
+    /**
+     * @param sampleDao the dao of the samples stored by the device support, to count them
+     */
+    public CaptureReplayHarness(AbstractDao<?, ?> sampleDao) {
+        this.sampleDao = sampleDao;
+    }
+
+    /**
+     * Prepares the given support like the DeviceCommunicationService does, but with an
+     * offline queue and the device already initialized.
+     */
+    public static void attach(AbstractBTLEDeviceSupport support, GBDevice device, Context context) {
+        support.setContext(device, null, context);
+        support.setQueue(BtLEQueue.createOffline(device, context));
+        device.setState(GBDevice.State.INITIALIZED);
+    }
+
+    /**
+     * Replays the changed characteristics and read responses of the capture.
+     */
+    public Result replay(File capture, final AbstractBTLEDeviceSupport support) throws IOException {
+        Result result = replayPackets(capture, new PacketHandler() {
+            @Override
+            public void handle(CaptureReader.Packet packet) {
+                if (packet.characteristic == null || packet.direction == TrafficRecorder.DIRECTION_OUT) {
+                    return;
+                }
+                if (packet.direction == TrafficRecorder.DIRECTION_READ) {
+                    support.onCharacteristicRead(null, packet.toCharacteristic(), BluetoothGatt.GATT_SUCCESS);
+                } else {
+                    support.onCharacteristicChanged(null, packet.toCharacteristic());
+                }
+            }
+        });
+        if (support.getQueue() != null) {
+            result.transactions = support.getQueue().getPendingTransactionCount();
+        }
+        return result;
+    }
+
+    /**
+     * Replays the data received from a serial device, e.g. a Pebble.
+     */
+    public Result replay(File capture, final GBDeviceProtocol protocol) throws IOException {
+        return replayPackets(capture, new PacketHandler() {
+            @Override
+            public void handle(CaptureReader.Packet packet) {
+                if (packet.characteristic == null && packet.direction == TrafficRecorder.DIRECTION_IN) {
+                    protocol.decodeResponse(packet.value);
+                }
+            }
+        });
+    }
+
+    private Result replayPackets(File capture, PacketHandler handler) throws IOException {
+        Result result = new Result(capture.getName());
+        long samplesBefore = sampleDao.count();
+        DBLockStatistics lockStatistics = GBApplication.getDBLockStatistics();
+        lockStatistics.reset();
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+
+        try (CaptureReader reader = new CaptureReader(new FileInputStream(capture))) {
+            CaptureReader.Packet packet;
+            while ((packet = reader.next()) != null) {
+                handler.handle(packet);
+                result.packets++;
+            }
+        }
+
+        result.elapsedNanos = System.nanoTime() - start;
+        long allocatedAfter = getAllocatedBytes();
+        result.allocatedBytes = allocatedBefore >= 0 && allocatedAfter >= 0 ? allocatedAfter - allocatedBefore : -1;
+        result.samples = sampleDao.count() - samplesBefore;
+        result.lockStatistics = lockStatistics.toString();
+        LOG.info(result.toString());
+        return result;
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread so far, or -1 if the JVM
+     * does not support measuring that.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private interface PacketHandler {
+        void handle(CaptureReader.Packet packet);
+    }
+
+    public static class Result {
+        public final String capture;
+        public int packets;
+        public long samples;
+        public int transactions;
+        public long elapsedNanos;
+        public long allocatedBytes;
+        public String lockStatistics;
+
+        Result(String capture) {
+            this.capture = capture;
+        }
+
+        public double getPacketsPerSecond() {
+            return packets * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        public double getSamplesPerSecond() {
+            return samples * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Replayed %s: %d packets in %dms (%.0f packets/s), %d samples stored (%.0f samples/s), %d transactions queued, %s allocated; DB lock %s",
+                    capture, packets, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), getPacketsPerSecond(),
+                    samples, getSamplesPerSecond(), transactions,
+                    allocatedBytes >= 0 ? (allocatedBytes / 1024) + "kB" : "unknown", lockStatistics);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.service.capture.SyntheticCaptures;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.pebble.PebbleProtocol;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.zetime.ZeTimeDeviceSupport;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays the captures written by {@link SyntheticCaptures}. The throughput is logged, so that
+ * it can be compared between builds.
+ */
+public class CaptureReplayTest extends TestBase {
+    /**
+     * Far below what even a slow CI machine reaches, so this only catches pathological
+     * regressions like a database transaction or a sleep per sample.
+     */
+    private static final double MIN_SAMPLES_PER_SECOND = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testZeTimeSteps() throws Exception {
+        File capture = SyntheticCaptures.writeZeTimeSteps(folder.newFolder("zetime"), 480);
+        GBDevice device = createDummyGDevice(SyntheticCaptures.ZETIME_ADDRESS);
+        ZeTimeDeviceSupport support = new ZeTimeDeviceSupport();
+        CaptureReplayHarness.attach(support, device, getContext());
+
+        CaptureReplayHarness harness = new CaptureReplayHarness(daoSession.getZeTimeActivitySampleDao());
+        // measure the database locking of the replay itself, not of the test
+        GBApplication.releaseDB();
+        CaptureReplayHarness.Result result;
+        try {
+            result = harness.replay(capture, support);
+        } finally {
+            GBApplication.acquireDB();
+        }
+        assertEquals(961, result.packets);
+        assertEquals(480, result.samples);
+        assertTrue(result.toString(), result.getSamplesPerSecond() > MIN_SAMPLES_PER_SECOND);
+        support.dispose();
+    }
+
+    @Test
+    public void testPebbleHealthSteps() throws Exception {
+        File capture = SyntheticCaptures.writePebbleHealthSteps(folder.newFolder("pebble"), 2);
+        GBDevice device = createDummyGDevice(SyntheticCaptures.PEBBLE_ADDRESS);
+        PebbleProtocol protocol = new PebbleProtocol(device);
+
+        CaptureReplayHarness harness = new CaptureReplayHarness(daoSession.getPebbleHealthActivitySampleDao());
+        GBApplication.releaseDB();
+        CaptureReplayHarness.Result result;
+        try {
+            result = harness.replay(capture, protocol);
+        } finally {
+            GBApplication.acquireDB();
+        }
+        assertEquals(98, result.packets);
+        assertEquals(2 * 24 * 60, result.samples);
+        assertTrue(result.toString(), result.getSamplesPerSecond() > MIN_SAMPLES_PER_SECOND);
+    }
+}
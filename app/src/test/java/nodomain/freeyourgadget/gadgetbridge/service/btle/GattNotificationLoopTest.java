@@ -0,0 +1,174 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class GattNotificationLoopTest extends TestBase {
+    private static final UUID UUID_CHARACTERISTIC = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+
+    private final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(UUID_CHARACTERISTIC,
+            BluetoothGattCharacteristic.PROPERTY_NOTIFY, BluetoothGattCharacteristic.PERMISSION_READ);
+    private final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+    /** Counted down when the first notification is being handled */
+    private final CountDownLatch handling = new CountDownLatch(1);
+    /** Blocks the handler until counted down */
+    private final CountDownLatch proceed = new CountDownLatch(1);
+
+    private final GattCallback callback = new AbstractGattCallback() {
+        @Override
+        public boolean onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic changed) {
+            assertNotSame(characteristic, changed);
+            assertEquals(UUID_CHARACTERISTIC, changed.getUuid());
+            received.add(changed.getValue());
+            handling.countDown();
+            try {
+                // a slow handler, e.g. writing to the database
+                proceed.await();
+            } catch (InterruptedException ignored) {
+            }
+            return true;
+        }
+    };
+
+    private boolean enqueue(GattNotificationLoop loop, int i) {
+        // the value is overwritten by the next notification, like in BluetoothGatt
+        characteristic.setValue(new byte[]{(byte) i, (byte) (i >> 8)});
+        return loop.enqueue(null, characteristic, callback);
+    }
+
+    /**
+     * Blocks the loop in the handler of the first notification.
+     */
+    private GattNotificationLoop startBlocked(int capacity) throws InterruptedException {
+        GattNotificationLoop loop = new GattNotificationLoop("00:00:00:00:40", capacity);
+        loop.start();
+        assertTrue(enqueue(loop, 0));
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+        return loop;
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        GattNotificationLoop loop = startBlocked(GattNotificationLoop.DEFAULT_CAPACITY);
+        int count = 2 * GattNotificationLoop.INITIAL_SLOTS;
+        for (int i = 1; i <= count; i++) {
+            assertTrue(enqueue(loop, i));
+        }
+        // an oversized value gets a buffer of its own
+        byte[] large = new byte[GattNotificationLoop.SLOT_SIZE + 1];
+        large[GattNotificationLoop.SLOT_SIZE] = 42;
+        characteristic.setValue(large);
+        assertTrue(loop.enqueue(null, characteristic, callback));
+        proceed.countDown();
+        loop.dispose();
+
+        // the pool grew instead of dropping anything
+        assertTrue(loop.getSlotCount() > GattNotificationLoop.INITIAL_SLOTS);
+        assertEquals(0, loop.getBlockedCount());
+        assertEquals(count + 2, received.size());
+        for (int i = 0; i <= count; i++) {
+            assertArrayEquals(new byte[]{(byte) i, (byte) (i >> 8)}, received.get(i));
+        }
+        assertArrayEquals(large, received.get(count + 1));
+        assertEquals(0, loop.getPendingCount());
+        assertEquals(count + 1, loop.getMaxPendingCount());
+        assertFalse(loop.enqueue(null, characteristic, callback));
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final int capacity = 4;
+        final GattNotificationLoop loop = startBlocked(capacity);
+        for (int i = 1; i <= capacity; i++) {
+            assertTrue(enqueue(loop, i));
+        }
+        final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        Thread binder = new Thread() {
+            @Override
+            public void run() {
+                enqueue(loop, capacity + 1);
+                loop.enqueueResult(new Runnable() {
+                    @Override
+                    public void run() {
+                        results.add(received.size());
+                    }
+                });
+            }
+        };
+        binder.start();
+
+        // the binder thread waits for a free slot instead of dropping the notification
+        binder.join(200);
+        assertTrue(binder.isAlive());
+        assertEquals(capacity, loop.getSlotCount());
+        assertEquals(1, loop.getBlockedCount());
+
+        proceed.countDown();
+        binder.join(5000);
+        assertFalse(binder.isAlive());
+        loop.dispose();
+
+        assertEquals(capacity + 2, received.size());
+        for (int i = 0; i <= capacity + 1; i++) {
+            assertArrayEquals(new byte[]{(byte) i, (byte) (i >> 8)}, received.get(i));
+        }
+        // the result was handled after all notifications
+        assertEquals(Collections.singletonList(capacity + 2), results);
+    }
+
+    @Test
+    public void testResultsInOrder() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        GattNotificationLoop loop = startBlocked(GattNotificationLoop.DEFAULT_CAPACITY);
+        int count = 2 * GattNotificationLoop.INITIAL_SLOTS;
+        for (int i = 1; i <= count; i++) {
+            if (i % 10 == 0) {
+                loop.enqueueResult(new Runnable() {
+                    @Override
+                    public void run() {
+                        // the number of notifications handled before
+                        order.add(received.size());
+                    }
+                });
+            } else {
+                assertTrue(enqueue(loop, i));
+            }
+        }
+        proceed.countDown();
+        loop.dispose();
+
+        // all results were handled right after the notifications received before them
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 10; i <= count; i += 10) {
+            expected.add(i - i / 10 + 1);
+        }
+        assertEquals(expected, order);
+        assertEquals(count - expected.size() + 1, received.size());
+
+        // after disposing, results are handled directly
+        loop.enqueueResult(new Runnable() {
+            @Override
+            public void run() {
+                order.add(-1);
+            }
+        });
+        assertEquals(Integer.valueOf(-1), order.get(order.size() - 1));
+    }
+}
@@ -0,0 +1,90 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WritePipelineTest extends TestBase {
+    private static final UUID UUID_WRITE = UUID.fromString("00000001-0000-3512-2118-0009af100700");
+    private static final UUID UUID_OTHER = UUID.fromString("00000002-0000-3512-2118-0009af100700");
+
+    private final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(UUID_WRITE,
+            BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+
+    @Test
+    public void testRejectedWithoutWritesInFlight() throws Exception {
+        WritePipeline pipeline = new WritePipeline(4);
+        assertTrue(pipeline.acquire(characteristic));
+        // nothing will ever be confirmed, so retrying makes no sense
+        assertFalse(pipeline.cancelAndAwaitRetry());
+        assertTrue(pipeline.drain());
+    }
+
+    @Test
+    public void testRejectedAfterLastConfirmation() throws Exception {
+        WritePipeline pipeline = new WritePipeline(4);
+        assertTrue(pipeline.acquire(characteristic));
+        assertTrue(pipeline.acquire(characteristic));
+        // the first write is confirmed after the second one was rejected, but before the
+        // credit is returned: no write is in flight anymore, but the write can be retried
+        assertTrue(pipeline.written(characteristic) >= 0);
+        assertTrue(pipeline.cancelAndAwaitRetry());
+        assertFalse(pipeline.isWritingTo(characteristic));
+    }
+
+    @Test
+    public void testRejectedWaitsForConfirmation() throws Exception {
+        final WritePipeline pipeline = new WritePipeline(4);
+        assertTrue(pipeline.acquire(characteristic));
+        assertTrue(pipeline.acquire(characteristic));
+        Thread confirmation = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+                pipeline.written(characteristic);
+            }
+        };
+        confirmation.start();
+        assertTrue(pipeline.cancelAndAwaitRetry());
+        confirmation.join();
+        assertTrue(pipeline.drain());
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        WritePipeline pipeline = new WritePipeline(4);
+        assertTrue(pipeline.acquire(characteristic));
+        assertTrue(pipeline.acquire(characteristic));
+        pipeline.abort();
+        assertFalse(pipeline.cancelAndAwaitRetry());
+        assertFalse(pipeline.acquire(characteristic));
+        assertFalse(pipeline.drain());
+    }
+
+    @Test
+    public void testWritten() throws Exception {
+        BluetoothGattCharacteristic other = new BluetoothGattCharacteristic(UUID_OTHER,
+                BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+        WritePipeline pipeline = new WritePipeline(2);
+        assertEquals(-1, pipeline.written(characteristic));
+        assertTrue(pipeline.acquire(characteristic));
+        assertTrue(pipeline.acquire(characteristic));
+        assertEquals(-1, pipeline.written(other));
+        assertTrue(pipeline.isWritingTo(characteristic));
+        assertTrue(pipeline.written(characteristic) >= 0);
+        assertTrue(pipeline.written(characteristic) >= 0);
+        assertEquals(-1, pipeline.written(characteristic));
+        assertFalse(pipeline.isWritingTo(characteristic));
+    }
+}
@@ -0,0 +1,175 @@
+package nodomain.freeyourgadget.gadgetbridge.service.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.zetime.ZeTimeConstants;
+
+/**
+ * Writes captures of activity transfers as the {@link TrafficRecorder} would have recorded
+ * them, for replaying them in tests. The activity values are random, but seeded, so that
+ * every run replays the same data.
+ */
+public class SyntheticCaptures {
+    public static final String ZETIME_ADDRESS = "E0:00:00:00:00:02";
+    public static final String PEBBLE_ADDRESS = "00:17:E9:00:00:01";
+
+    /** 2020-06-01 00:00:00 UTC */
+    private static final long START_MILLIS = 1590969600000L;
+    private static final int START_SECONDS = (int) (START_MILLIS / 1000);
+
+    private static final int ZETIME_RECORD_INTERVAL_SECONDS = 5 * 60;
+    private static final int ZETIME_NOTIFICATION_SIZE = 20;
+
+    private static final short PEBBLE_ENDPOINT_DATALOG = 6778;
+    private static final byte PEBBLE_DATALOG_OPENSESSION = 0x01;
+    private static final byte PEBBLE_DATALOG_SENDDATA = 0x02;
+    private static final byte PEBBLE_DATALOG_CLOSE = 0x03;
+    private static final int PEBBLE_TAG_HEALTH_STEPS = 81;
+    private static final byte PEBBLE_SESSION_ID = 1;
+    private static final int PEBBLE_RECORDS_PER_ITEM = 15;
+    private static final int PEBBLE_RECORD_SIZE = 15;
+    private static final int PEBBLE_ITEM_SIZE = 9 + PEBBLE_RECORDS_PER_ITEM * PEBBLE_RECORD_SIZE;
+    private static final int PEBBLE_ITEMS_PER_PACKET = 2;
+
+    private SyntheticCaptures() {
+    }
+
+    /**
+     * Writes the transfer of the given number of 5 minute step records from a ZeTime,
+     * each record split into two notifications of the ack characteristic.
+     */
+    public static File writeZeTimeSteps(File directory, int records) throws IOException {
+        Random random = new Random(records);
+        TrafficRecorder.CaptureWriter writer = new TrafficRecorder.CaptureWriter(directory);
+        try {
+            writer.rotate();
+            long timestamp = START_MILLIS;
+
+            ByteBuffer available = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            available.put(ZeTimeConstants.CMD_PREAMBLE);
+            available.put(ZeTimeConstants.CMD_AVAIABLE_DATA);
+            available.put(ZeTimeConstants.CMD_REQUEST_RESPOND);
+            available.putShort((short) 6);
+            available.putShort((short) records); // steps
+            available.putShort((short) 0); // sleep
+            available.putShort((short) 0); // heart rate
+            available.put(ZeTimeConstants.CMD_END);
+            writeIn(writer, timestamp, ZETIME_ADDRESS, ZeTimeConstants.UUID_ACK_CHARACTERISTIC, available.array());
+
+            for (int i = 1; i <= records; i++) {
+                ByteBuffer record = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+                record.put(ZeTimeConstants.CMD_PREAMBLE);
+                record.put(ZeTimeConstants.CMD_GET_STEP_COUNT);
+                record.put(ZeTimeConstants.CMD_REQUEST_RESPOND);
+                record.putShort((short) 22);
+                record.putShort((short) i);
+                record.putInt(START_SECONDS + (i - 1) * ZETIME_RECORD_INTERVAL_SECONDS);
+                record.putInt(random.nextInt(200)); // steps
+                record.putInt(random.nextInt(10)); // calories
+                record.putInt(random.nextInt(150)); // distance
+                record.putInt(random.nextInt(6)); // active minutes
+                record.put(ZeTimeConstants.CMD_END);
+
+                byte[] data = record.array();
+                timestamp += 15;
+                writeIn(writer, timestamp, ZETIME_ADDRESS, ZeTimeConstants.UUID_ACK_CHARACTERISTIC,
+                        Arrays.copyOfRange(data, 0, ZETIME_NOTIFICATION_SIZE));
+                timestamp += 5;
+                writeIn(writer, timestamp, ZETIME_ADDRESS, ZeTimeConstants.UUID_ACK_CHARACTERISTIC,
+                        Arrays.copyOfRange(data, ZETIME_NOTIFICATION_SIZE, data.length));
+            }
+        } finally {
+            writer.close();
+        }
+        return getCaptureFile(directory);
+    }
+
+    /**
+     * Writes a datalog session of a Pebble sending the per minute health steps of the
+     * given number of days, two items of 15 minutes per packet.
+     */
+    public static File writePebbleHealthSteps(File directory, int days) throws IOException {
+        Random random = new Random(days);
+        int items = days * 24 * 60 / PEBBLE_RECORDS_PER_ITEM;
+        TrafficRecorder.CaptureWriter writer = new TrafficRecorder.CaptureWriter(directory);
+        try {
+            writer.rotate();
+            long timestamp = START_MILLIS;
+
+            ByteBuffer open = pebblePacket(1 + 16 + 4 + 4 + 1 + 2, PEBBLE_DATALOG_OPENSESSION);
+            open.putLong(0).putLong(0); // UUID_ZERO, the system health sessions
+            open.putInt(START_SECONDS);
+            open.putInt(PEBBLE_TAG_HEALTH_STEPS);
+            open.put((byte) 2); // item type
+            open.putShort((short) PEBBLE_ITEM_SIZE);
+            writeIn(writer, timestamp, PEBBLE_ADDRESS, null, open.array());
+
+            int itemTimestamp = START_SECONDS;
+            for (int sent = 0; sent < items; sent += PEBBLE_ITEMS_PER_PACKET) {
+                ByteBuffer send = pebblePacket(1 + 4 + 4 + PEBBLE_ITEMS_PER_PACKET * PEBBLE_ITEM_SIZE, PEBBLE_DATALOG_SENDDATA);
+                send.putInt(items - sent - PEBBLE_ITEMS_PER_PACKET); // items left
+                send.putInt(0); // crc
+                for (int item = 0; item < PEBBLE_ITEMS_PER_PACKET; item++) {
+                    send.putShort((short) 13); // version
+                    send.putInt(itemTimestamp);
+                    send.put((byte) 0);
+                    send.put((byte) PEBBLE_RECORD_SIZE);
+                    send.put((byte) PEBBLE_RECORDS_PER_ITEM);
+                    for (int record = 0; record < PEBBLE_RECORDS_PER_ITEM; record++) {
+                        send.put((byte) random.nextInt(120)); // steps
+                        send.put((byte) random.nextInt(256)); // orientation
+                        send.putShort((short) random.nextInt(1024)); // intensity
+                        send.put((byte) random.nextInt(128)); // light
+                        send.put(new byte[7]);
+                        send.put((byte) (60 + random.nextInt(60))); // heart rate
+                        send.put(new byte[2]);
+                    }
+                    itemTimestamp += PEBBLE_RECORDS_PER_ITEM * 60;
+                }
+                timestamp += 40;
+                writeIn(writer, timestamp, PEBBLE_ADDRESS, null, send.array());
+            }
+
+            timestamp += 40;
+            writeIn(writer, timestamp, PEBBLE_ADDRESS, null, pebblePacket(1, PEBBLE_DATALOG_CLOSE).array());
+        } finally {
+            writer.close();
+        }
+        return getCaptureFile(directory);
+    }
+
+    /**
+     * Returns a Pebble packet for the datalog endpoint with the header, command and
+     * session id already written, positioned at the little endian payload.
+     *
+     * @param length the length of the message after the command, including the session id
+     */
+    private static ByteBuffer pebblePacket(int length, byte command) {
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + length);
+        buf.order(ByteOrder.BIG_ENDIAN);
+        buf.putShort((short) (1 + length));
+        buf.putShort(PEBBLE_ENDPOINT_DATALOG);
+        buf.put(command);
+        buf.put(PEBBLE_SESSION_ID);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    private static void writeIn(TrafficRecorder.CaptureWriter writer, long timestamp, String device, UUID characteristic, byte[] data) throws IOException {
+        writer.writePacket(timestamp, device, characteristic, TrafficRecorder.DIRECTION_IN, data, data.length);
+    }
+
+    private static File getCaptureFile(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null || files.length != 1) {
+            throw new IOException("Expected exactly one capture in " + directory);
+        }
+        return files[0];
+    }
+}
@@ -0,0 +1,106 @@
+package nodomain.freeyourgadget.gadgetbridge.service.capture;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractGattCallback;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrafficRecorderTest extends TestBase {
+    private static final String DEVICE_1 = "00:00:00:00:50";
+    private static final String DEVICE_2 = "00:00:00:00:51";
+    private static final UUID UUID_NOTIFY = UUID.fromString("00000005-0000-3512-2118-0009af100700");
+    private static final UUID UUID_WRITE = UUID.fromString("00000004-0000-3512-2118-0009af100700");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordAndRead() throws Exception {
+        File directory = folder.newFolder("captures");
+        TrafficRecorder recorder = TrafficRecorder.getInstance();
+        recorder.start(directory);
+        try {
+            recorder.record(DEVICE_1, UUID_WRITE, TrafficRecorder.DIRECTION_OUT, new byte[]{0x01, 0x02});
+            for (int i = 0; i < 3 * TrafficRecorder.CAPACITY; i++) {
+                recorder.record(DEVICE_1, UUID_NOTIFY, TrafficRecorder.DIRECTION_IN, new byte[]{(byte) i, (byte) (i >> 8)});
+                if (i % 100 == 0) {
+                    // give the drain thread a chance
+                    Thread.sleep(1);
+                }
+            }
+            byte[] frame = new byte[]{0x00, 0x00, 0x00, 0x04, 0x00, 0x01, 0x02, 0x03};
+            recorder.record(DEVICE_2, null, TrafficRecorder.DIRECTION_IN, frame, 4, 4);
+        } finally {
+            recorder.stop();
+        }
+
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        List<CaptureReader.Packet> packets = new ArrayList<>();
+        try (CaptureReader reader = new CaptureReader(new FileInputStream(files[0]))) {
+            CaptureReader.Packet packet;
+            while ((packet = reader.next()) != null) {
+                packets.add(packet);
+            }
+        }
+        assertEquals(3 * TrafficRecorder.CAPACITY + 2 - recorder.getDroppedCount(), packets.size());
+
+        CaptureReader.Packet first = packets.get(0);
+        assertEquals(DEVICE_1, first.deviceAddress);
+        assertEquals(UUID_WRITE, first.characteristic);
+        assertEquals(TrafficRecorder.DIRECTION_OUT, first.direction);
+        assertArrayEquals(new byte[]{0x01, 0x02}, first.value);
+
+        CaptureReader.Packet last = packets.get(packets.size() - 1);
+        assertEquals(DEVICE_2, last.deviceAddress);
+        assertNull(last.characteristic);
+        assertArrayEquals(new byte[]{0x00, 0x01, 0x02, 0x03}, last.value);
+
+        // the notifications are in order
+        int previous = -1;
+        for (CaptureReader.Packet packet : packets.subList(1, packets.size() - 1)) {
+            int value = (packet.value[0] & 0xff) | (packet.value[1] & 0xff) << 8;
+            assertTrue(value > previous);
+            previous = value;
+        }
+
+        StringWriter text = new StringWriter();
+        CaptureReader.toText(open(files[0]), text);
+        assertTrue(text.toString().contains(DEVICE_1 + " > " + UUID_WRITE + " 0102\n"));
+
+        final List<byte[]> replayed = new ArrayList<>();
+        int count = CaptureReader.replay(open(files[0]), DEVICE_1, new AbstractGattCallback() {
+            @Override
+            public boolean onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+                assertEquals(UUID_NOTIFY, characteristic.getUuid());
+                replayed.add(characteristic.getValue());
+                return true;
+            }
+        });
+        assertEquals(packets.size() - 2, count);
+        assertEquals(count, replayed.size());
+    }
+
+    private InputStream open(File file) throws IOException {
+        return new FileInputStream(file);
+    }
+}
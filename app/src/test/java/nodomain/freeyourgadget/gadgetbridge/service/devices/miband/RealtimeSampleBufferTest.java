@@ -0,0 +1,60 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.miband;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RealtimeSampleBufferTest extends TestBase {
+
+    private RealtimeSampleBuffer<MiBandActivitySample> createBuffer(GBDevice device, int capacity) {
+        return new RealtimeSampleBuffer<MiBandActivitySample>(device, getContext(), capacity, Integer.MAX_VALUE / 1000) {
+            @Override
+            protected SampleProvider<MiBandActivitySample> createSampleProvider(GBDevice device, DaoSession session) {
+                return new MiBandSampleProvider(device, session);
+            }
+        };
+    }
+
+    @Test
+    public void testWriteBehind() {
+        GBDevice device = createDummyGDevice("00:00:00:00:40");
+        MiBandSampleProvider provider = new MiBandSampleProvider(device, daoSession);
+        RealtimeSampleBuffer<MiBandActivitySample> buffer = createBuffer(device, 4);
+
+        buffer.add(1000, 60, 0, MiBandSampleProvider.TYPE_ACTIVITY, ActivitySample.NOT_MEASURED);
+        buffer.add(1001, 61, 0, MiBandSampleProvider.TYPE_ACTIVITY, ActivitySample.NOT_MEASURED);
+        buffer.add(1002, 62, 0, MiBandSampleProvider.TYPE_ACTIVITY, ActivitySample.NOT_MEASURED);
+        assertEquals(3, buffer.size());
+        assertEquals(0, provider.getAllActivitySamples(0, 2000).size());
+
+        // full buffer
+        buffer.add(1003, 63, 0, MiBandSampleProvider.TYPE_ACTIVITY, ActivitySample.NOT_MEASURED);
+        assertEquals(0, buffer.size());
+        assertEquals(4, provider.getAllActivitySamples(0, 2000).size());
+
+        buffer.add(1004, 64, 0, MiBandSampleProvider.TYPE_ACTIVITY, ActivitySample.NOT_MEASURED);
+        assertTrue(buffer.flush());
+        assertEquals(0, buffer.size());
+        // nothing to do
+        assertTrue(buffer.flush());
+
+        List<MiBandActivitySample> samples = provider.getAllActivitySamples(0, 2000);
+        assertEquals(5, samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            assertEquals(1000 + i, samples.get(i).getTimestamp());
+            assertEquals(60 + i, samples.get(i).getHeartRate());
+        }
+        buffer.close();
+    }
+}
@@ -0,0 +1,169 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.pebble;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nodomain.freeyourgadget.gadgetbridge.service.capture.CaptureReader;
+import nodomain.freeyourgadget.gadgetbridge.service.capture.TrafficRecorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PebbleFrameReaderTest {
+    private static final String DEVICE_ADDRESS = "00:17:E9:00:00:02";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns at most maxChunk bytes per read, like a Bluetooth socket, and pretends
+     * that the rest has not been received yet.
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int maxChunk;
+
+        ChunkedInputStream(byte[] buf, int maxChunk) {
+            super(buf);
+            this.maxChunk = maxChunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, maxChunk));
+        }
+
+        @Override
+        public synchronized int available() {
+            return 0;
+        }
+    }
+
+    private static byte[] createFrame(int endpoint, int length, int seed) {
+        byte[] frame = new byte[length + 4];
+        frame[0] = (byte) (length >> 8);
+        frame[1] = (byte) length;
+        frame[2] = (byte) (endpoint >> 8);
+        frame[3] = (byte) endpoint;
+        for (int i = 4; i < frame.length; i++) {
+            frame[i] = (byte) (i * 31 + seed);
+        }
+        return frame;
+    }
+
+    private static void assertFrame(byte[] expected, ByteBuffer frame) {
+        assertTrue(frame.isReadOnly());
+        assertEquals(expected.length, frame.remaining());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], frame.get());
+        }
+    }
+
+    @Test
+    public void testFragmentedFrames() throws IOException {
+        Random random = new Random(42);
+        List<byte[]> frames = new ArrayList<>();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 200; i++) {
+            int length = i % 10 == 0 ? PebbleFrameReader.MAX_PAYLOAD_LENGTH : random.nextInt(600);
+            byte[] frame = createFrame(6778, length, i);
+            frames.add(frame);
+            stream.write(frame);
+        }
+
+        for (int chunk : new int[]{1, 19, 507, 100000}) {
+            PebbleFrameReader reader = new PebbleFrameReader(new ChunkedInputStream(stream.toByteArray(), chunk), false);
+            for (byte[] frame : frames) {
+                assertFrame(frame, reader.readFrame());
+            }
+            assertBrokenPipe(reader);
+        }
+    }
+
+    @Test
+    public void testTCPFraming() throws IOException {
+        byte[] frame1 = createFrame(2001, 5, 1);
+        byte[] frame2 = createFrame(48, 300, 2);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] frame : new byte[][]{frame1, frame2}) {
+            stream.write(new byte[]{(byte) 0xfe, (byte) 0xed, 0, 1, (byte) (frame.length >> 8), (byte) frame.length});
+            stream.write(frame);
+            stream.write(new byte[]{(byte) 0xbe, (byte) 0xef});
+        }
+
+        PebbleFrameReader reader = new PebbleFrameReader(new ChunkedInputStream(stream.toByteArray(), 7), true);
+        assertFrame(frame1, reader.readFrame());
+        assertFrame(frame2, reader.readFrame());
+        assertBrokenPipe(reader);
+    }
+
+    @Test
+    public void testInvalidLength() throws IOException {
+        byte[] frame = createFrame(32, 1, 3);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(new byte[]{(byte) 0xff, (byte) 0xff, 0, 0, 1, 2, 3});
+        int garbageLength = stream.size();
+        stream.write(frame);
+
+        PebbleFrameReader reader = new PebbleFrameReader(new ChunkedInputStream(stream.toByteArray(), garbageLength), false);
+        assertFrame(frame, reader.readFrame());
+    }
+
+    @Test
+    public void testRecordFrame() throws IOException {
+        byte[] frame1 = createFrame(2001, 5, 1);
+        byte[] frame2 = createFrame(48, 300, 2);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(frame1);
+        stream.write(frame2);
+        PebbleFrameReader reader = new PebbleFrameReader(new ChunkedInputStream(stream.toByteArray(), 100), false);
+        TrafficRecorder recorder = TrafficRecorder.getInstance();
+
+        // not recording
+        ByteBuffer frame = reader.readFrame();
+        recorder.record(DEVICE_ADDRESS, null, TrafficRecorder.DIRECTION_IN, frame);
+        assertFrame(frame1, frame);
+
+        File directory = folder.newFolder("captures");
+        recorder.start(directory);
+        try {
+            frame = reader.readFrame();
+            recorder.record(DEVICE_ADDRESS, null, TrafficRecorder.DIRECTION_IN, frame);
+            assertFrame(frame2, frame);
+        } finally {
+            recorder.stop();
+        }
+
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        try (CaptureReader captureReader = new CaptureReader(new FileInputStream(files[0]))) {
+            CaptureReader.Packet packet = captureReader.next();
+            assertEquals(DEVICE_ADDRESS, packet.deviceAddress);
+            assertEquals(TrafficRecorder.DIRECTION_IN, packet.direction);
+            assertArrayEquals(frame2, packet.value);
+            assertNull(captureReader.next());
+        }
+    }
+
+    private static void assertBrokenPipe(PebbleFrameReader reader) {
+        try {
+            reader.readFrame();
+            fail("expected end of stream");
+        } catch (IOException ex) {
+            assertEquals("broken pipe", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package nodomain.freeyourgadget.gadgetbridge.test;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import nodomain.freeyourgadget.gadgetbridge.util.AhoCorasick;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AhoCorasickTest {
+
+    @Test
+    public void testOverlappingWords() {
+        AhoCorasick matcher = new AhoCorasick(Arrays.asList("he", "she", "his", "hers"));
+        assertEquals(4, matcher.getWordCount());
+        assertEquals(3, matcher.countMatches("ushers", 4));
+        assertTrue(matcher.containsAny("ushers"));
+        assertFalse(matcher.containsAll("ushers"));
+        assertTrue(matcher.containsAll("ushers this"));
+        assertFalse(matcher.containsAny("SHE"));
+        assertEquals(1, matcher.countMatches("ushers", 1));
+    }
+
+    @Test
+    public void testFailureLinks() {
+        AhoCorasick matcher = new AhoCorasick(Arrays.asList("abcd", "bce", "c"));
+        assertEquals(2, matcher.countMatches("abce", 3));
+        assertTrue(matcher.containsAll("abcdbce"));
+    }
+
+    @Test
+    public void testDuplicateAndNoWords() {
+        AhoCorasick matcher = new AhoCorasick(Arrays.asList("test", "test"));
+        assertEquals(1, matcher.getWordCount());
+        assertTrue(matcher.containsAll("a test"));
+
+        AhoCorasick empty = new AhoCorasick(Collections.<String>emptyList());
+        assertFalse(empty.containsAny("anything"));
+        assertTrue(empty.containsAll("anything"));
+    }
+
+    @Test
+    public void testNonAscii() {
+        AhoCorasick matcher = new AhoCorasick(Arrays.asList("Grüße", "привет", "😀"));
+        assertTrue(matcher.containsAll("Viele Grüße, привет 😀"));
+        assertFalse(matcher.containsAny("Gruesse"));
+    }
+}
@@ -5,6 +5,7 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.List;
 
+import nodomain.freeyourgadget.gadgetbridge.entities.CalendarSyncState;
 import nodomain.freeyourgadget.gadgetbridge.entities.CalendarSyncStateDao;
 import nodomain.freeyourgadget.gadgetbridge.externalevents.CalendarReceiver;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
@@ -51,4 +52,30 @@ public class CalendarEventTest extends TestBase {
         assertEquals(2, calendarSyncStateDao.count());
     }
 
+    @Test
+    public void testSyncUpdateAndDelete() {
+        GBDevice dummyGBDevice = createDummyGDevice("00:00:01:00:04");
+        dummyGBDevice.setState(GBDevice.State.INITIALIZED);
+        CalendarReceiver testCR = new CalendarReceiver(dummyGBDevice);
+        CalendarSyncStateDao calendarSyncStateDao = daoSession.getCalendarSyncStateDao();
+
+        List<CalendarEvents.CalendarEvent> eventList = new ArrayList<>();
+        eventList.add(new CalendarEvents.CalendarEvent(BEGIN, END, ID_1, null, "something", null, CALNAME_1, false));
+        eventList.add(new CalendarEvents.CalendarEvent(BEGIN, END, ID_2, null, "something", null, CALNAME_1, false));
+        testCR.syncCalendar(eventList, daoSession);
+        assertEquals(2, calendarSyncStateDao.count());
+
+        // the first event was changed, the second one removed
+        CalendarEvents.CalendarEvent changed = new CalendarEvents.CalendarEvent(BEGIN, END, ID_1, "title", "something", null, CALNAME_1, false);
+        eventList.clear();
+        eventList.add(changed);
+        testCR.syncCalendar(eventList, daoSession);
+
+        daoSession.clear();
+        List<CalendarSyncState> states = calendarSyncStateDao.loadAll();
+        assertEquals(1, states.size());
+        assertEquals(ID_1, states.get(0).getCalendarEntryId());
+        assertEquals(changed.hashCode(), states.get(0).getHash());
+    }
+
 }
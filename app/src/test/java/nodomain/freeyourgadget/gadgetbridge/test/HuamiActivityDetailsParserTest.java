@@ -3,10 +3,15 @@ package nodomain.freeyourgadget.gadgetbridge.test;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -16,16 +21,34 @@ import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.export.GPXExporter;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityPoint;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrackSeries;
+import nodomain.freeyourgadget.gadgetbridge.model.GPSCoordinate;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiActivityDetailsParser;
 import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class HuamiActivityDetailsParserTest extends TestBase {
     private static final URL DETAILS_1 = HuamiActivityDetailsParserTest.class.getClassLoader().getResource("ActivityDetailsDump1.txt");
+    /**
+     * The points of DETAILS_1 as parsed by the implementation before the parser became
+     * incremental, with the base location of {@link #testGPXExport()}: time, longitude,
+     * latitude, altitude and heart rate, separated by tabs. Points without a location
+     * have empty location columns.
+     */
+    private static final URL EXPECTED_1 = HuamiActivityDetailsParserTest.class.getClassLoader().getResource("HuamiActivityDetailsParserTest-Dump1.csv");
+    /**
+     * The same with a negative base location, to cover rounding negative coordinates.
+     */
+    private static final URL EXPECTED_1_NEGATIVE = HuamiActivityDetailsParserTest.class.getClassLoader().getResource("HuamiActivityDetailsParserTest-Dump1Negative.csv");
+    private static final int BASE_LONGITUDE = BLETypeConversions.toUint32((byte) 0xd6, (byte) 0xc4, (byte) 0x62, (byte) 0x02);
+    private static final int BASE_LATITUDE = BLETypeConversions.toUint32((byte) 0xff, (byte) 0xa9, (byte) 0x61, (byte) 0x9);
+    private static final int BASE_ALTITUDE = BLETypeConversions.toUint32((byte) 0x30, (byte) 0x0, (byte) 0x0, (byte) 0x0);
     private static final long MAX_DETAILS = 1024 * 1024;
     private static Date baseTime;
 
@@ -50,6 +73,93 @@ public class HuamiActivityDetailsParserTest extends TestBase {
         }
     }
 
+    @Test
+    public void testActivityDetailsMatchExpected() throws Exception {
+        HuamiActivityDetailsParser parser = new HuamiActivityDetailsParser(createSummary(BASE_LONGITUDE, BASE_LATITUDE, BASE_ALTITUDE));
+        parser.setSkipCounterByte(true);
+        assertTrackEquals(EXPECTED_1, parser.parse(readDetails()).getTrackPoints());
+
+        parser = new HuamiActivityDetailsParser(createSummary(-40000000, -123456789, -5));
+        parser.setSkipCounterByte(true);
+        assertTrackEquals(EXPECTED_1_NEGATIVE, parser.parse(readDetails()).getTrackPoints());
+    }
+
+    @Test
+    public void testIncrementalActivityDetails() throws Exception {
+        byte[] details = readDetails();
+
+        // like FetchSportsDetailsOperation: notifications of a counter and up to 19 bytes
+        HuamiActivityDetailsParser parser = new HuamiActivityDetailsParser(createSummary(BASE_LONGITUDE, BASE_LATITUDE, BASE_ALTITUDE));
+        parser.setSkipCounterByte(false);
+        byte[] chunk = new byte[19];
+        int chunkLength = 0;
+        for (int i = 0; i < details.length; i++) {
+            if (i % 17 == 0) {
+                continue;
+            }
+            chunk[chunkLength++] = details[i];
+            if (chunkLength == chunk.length || i == details.length - 1) {
+                parser.consume(chunk, 0, chunkLength);
+                chunkLength = 0;
+            }
+        }
+        assertTrackEquals(EXPECTED_1, parser.finish().toTrack().getTrackPoints());
+    }
+
+    @Test
+    public void testConvertHuamiValueToFixedDegrees() {
+        BigDecimal divisor = new BigDecimal(3000000);
+        long[] values = {0, 1, 2, 3, 4, 5, -1, -2, -3, -4, -5, 40092886, -123456789, 539999999, -539999999, 540000000, -540000000};
+        for (long value : values) {
+            assertEquals("value " + value, toFixedDegrees(value, divisor), HuamiActivityDetailsParser.convertHuamiValueToFixedDegrees(value));
+        }
+        for (long value = -100000; value <= 100000; value += 7) {
+            assertEquals("value " + value, toFixedDegrees(value, divisor), HuamiActivityDetailsParser.convertHuamiValueToFixedDegrees(value));
+        }
+    }
+
+    /**
+     * The conversion of the previous implementation: degrees with 6 decimals, rounded half up.
+     */
+    private static int toFixedDegrees(long huamiValue, BigDecimal divisor) {
+        return new BigDecimal(huamiValue).divide(divisor, GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE, RoundingMode.HALF_UP)
+                .movePointRight(GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE).intValueExact();
+    }
+
+    private void assertTrackEquals(URL expectedFile, List<ActivityPoint> points) throws IOException {
+        List<String[]> expected = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(expectedFile.openStream(), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                expected.add(line.split("\t", -1));
+            }
+        }
+        assertEquals(expected.size(), points.size());
+        for (int i = 0; i < points.size(); i++) {
+            String[] values = expected.get(i);
+            ActivityPoint point = points.get(i);
+            String message = "point " + i;
+            assertEquals(message, Long.parseLong(values[0]), point.getTime().getTime());
+            if (values[1].isEmpty()) {
+                assertNull(message, point.getLocation());
+            } else {
+                assertNotNull(message, point.getLocation());
+                assertEquals(message, Double.parseDouble(values[1]), point.getLocation().getLongitude(), 0);
+                assertEquals(message, Double.parseDouble(values[2]), point.getLocation().getLatitude(), 0);
+                assertEquals(message, Double.parseDouble(values[3]), point.getLocation().getAltitude(), 0);
+            }
+            assertEquals(message, Integer.parseInt(values[4]), point.getHeartRate());
+        }
+    }
+
+    private BipActivitySummary createSummary(int baseLongitude, int baseLatitude, int baseAltitude) {
+        BipActivitySummary summary = createSummary();
+        summary.setBaseLongitude(baseLongitude);
+        summary.setBaseLatitude(baseLatitude);
+        summary.setBaseAltitude(baseAltitude);
+        return summary;
+    }
+
     private BipActivitySummary createSummary() {
         BipActivitySummary summary = new BipActivitySummary();
         summary.setBaseLongitude(1);
@@ -69,15 +179,7 @@ public class HuamiActivityDetailsParserTest extends TestBase {
 
     @Test
     public void testGPXExport() throws Exception {
-        BipActivitySummary summary = createSummary();
-
-        int baseLongi = BLETypeConversions.toUint32((byte) 0xd6, (byte) 0xc4,(byte) 0x62,(byte) 0x02);
-        int baseLati = BLETypeConversions.toUint32((byte) 0xff, (byte) 0xa9, (byte) 0x61, (byte) 0x9);
-        int baseAlti = BLETypeConversions.toUint32((byte) 0x30, (byte) 0x0, (byte) 0x0, (byte) 0x0);
-
-        summary.setBaseLongitude(baseLongi);
-        summary.setBaseLatitude(baseLati);
-        summary.setBaseAltitude(baseAlti);
+        BipActivitySummary summary = createSummary(BASE_LONGITUDE, BASE_LATITUDE, BASE_ALTITUDE);
 
         HuamiActivityDetailsParser parser = new HuamiActivityDetailsParser(summary);
         parser.setSkipCounterByte(true);
@@ -100,6 +202,12 @@ public class HuamiActivityDetailsParserTest extends TestBase {
 
     }
 
+    private byte[] readDetails() throws IOException {
+        try (InputStream in = getContents(DETAILS_1)) {
+            return FileUtils.readAll(in, MAX_DETAILS);
+        }
+    }
+
     private InputStream getContents(URL hexFile) throws IOException {
         return new HexToBinaryInputStream(hexFile.openStream());
     }
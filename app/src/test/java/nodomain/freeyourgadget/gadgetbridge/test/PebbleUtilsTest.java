@@ -1,13 +1,20 @@
 package nodomain.freeyourgadget.gadgetbridge.test;
 
+import android.util.Pair;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
 import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PebbleColor;
+import nodomain.freeyourgadget.gadgetbridge.util.PebbleAppKeys;
 import nodomain.freeyourgadget.gadgetbridge.util.PebbleUtils;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class PebbleUtilsTest extends TestBase {
@@ -51,4 +58,46 @@ public class PebbleUtilsTest extends TestBase {
                     testCases.get(colorKey).byteValue(), evaluatedColor);
         }
     }
+
+    @Test
+    public void testOutgoingAppMessage() throws JSONException {
+        PebbleAppKeys appKeys = new PebbleAppKeys(new JSONObject("{\"TEMPERATURE\": 0, \"CONDITIONS\": 1, \"ICON\": 2}"));
+
+        ArrayList<Pair<Integer, Object>> pairs = PebbleUtils.parseOutgoingAppMessage(
+                "{\"TEMPERATURE\": 21.5, \"CONDITIONS\": \"Sunny\", \"5\": true, \"ICON\": [1, 2], \"unknown\": 3, \"05\": 4}", appKeys);
+        assertEquals(4, pairs.size());
+        assertEquals(Integer.valueOf(0), pairs.get(0).first);
+        assertEquals(21, pairs.get(0).second);
+        assertEquals(Integer.valueOf(1), pairs.get(1).first);
+        assertEquals("Sunny", pairs.get(1).second);
+        assertEquals(Integer.valueOf(5), pairs.get(2).first);
+        assertEquals((short) 1, pairs.get(2).second);
+        assertEquals(Integer.valueOf(2), pairs.get(3).first);
+        assertArrayEquals(new byte[]{1, 2}, (byte[]) pairs.get(3).second);
+    }
+
+    @Test
+    public void testIncomingAppMessage() throws JSONException {
+        PebbleAppKeys appKeys = new PebbleAppKeys(new JSONObject("{\"TEMPERATURE\": 0, \"CONDITIONS\": 1}"));
+
+        String message = PebbleUtils.parseIncomingAppMessage(
+                "[{\"key\": 1, \"type\": \"string\", \"value\": \"Sunny\"}, {\"key\": 9, \"type\": \"int\", \"value\": 1}]", appKeys, 7);
+        JSONObject json = new JSONObject(message);
+        assertEquals(1, json.getJSONObject("payload").length());
+        assertEquals("Sunny", json.getJSONObject("payload").getString("CONDITIONS"));
+        assertEquals(7, json.getJSONObject("data").getInt("transactionId"));
+
+        json = new JSONObject(PebbleUtils.parseIncomingAppMessage("[{\"key\": 1, \"value\": \"Sunny\"}]", (PebbleAppKeys) null, 8));
+        assertEquals(0, json.getJSONObject("payload").length());
+    }
+
+    @Test
+    public void testAppKeysToJSON() throws JSONException {
+        PebbleAppKeys appKeys = new PebbleAppKeys(new JSONObject("{\"TEMPERATURE\": 0, \"CONDITIONS\": 1}"));
+
+        JSONObject json = appKeys.toJSON();
+        assertEquals(2, json.length());
+        assertEquals(0, json.getInt("TEMPERATURE"));
+        assertEquals(1, json.getInt("CONDITIONS"));
+    }
 }
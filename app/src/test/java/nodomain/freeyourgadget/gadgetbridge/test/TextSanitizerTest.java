@@ -0,0 +1,97 @@
+package nodomain.freeyourgadget.gadgetbridge.test;
+
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Test;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.util.EmojiConverter;
+import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
+import nodomain.freeyourgadget.gadgetbridge.util.LanguageUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.RtlUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.TextSanitizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests TextSanitizer
+ */
+public class TextSanitizerTest extends TestBase {
+    private static final String[] TEXTS = {
+            "Only english",
+            "Прокажённый Щукин ёжится: «Съешь же ещё этих мягких французских булок!»",
+            "Café déjà vu: Ñandú, Œuvre, Straße, Ærø, Ålesund, Łódź",
+            "Įlinkdama fechtuotojo špaga sublykčiojusi pragręžė apvalų arbūzą",
+            "English and עברית",
+            "משפט ארוך עם עברית and English וגם קצת סימנים כמו ?!$ (וגם ^.)",
+            "نص حكيم له سر قاطع وذو شأن عظيم مكتوب على ثوب أخضر ومغلف بجلد أزرق",
+            "অনুবাদ করা হয়েছে",
+            "áë 𝐀 🚀",
+    };
+
+    @After
+    public void tearDown() {
+        SharedPreferences.Editor editor = GBApplication.getPrefs().getPreferences().edit();
+        editor.remove("transliteration");
+        editor.remove(GBPrefs.RTL_SUPPORT);
+        editor.remove(GBPrefs.RTL_CONTEXTUAL_ARABIC);
+        editor.apply();
+    }
+
+    @Test
+    public void testSameAsUtils() {
+        setPreferences(true, true);
+        TextSanitizer sanitizer = TextSanitizer.getInstance();
+        for (String text : TEXTS) {
+            String expected = RtlUtils.fixRtl(LanguageUtils.transliterate(text));
+            assertEquals(expected, sanitizer.sanitize(text));
+            // again from the cache
+            assertEquals(expected, sanitizer.sanitize(text));
+        }
+
+        setPreferences(true, false);
+        sanitizer = TextSanitizer.getInstance();
+        for (String text : TEXTS) {
+            assertEquals(LanguageUtils.transliterate(text), sanitizer.sanitize(text));
+        }
+
+        setPreferences(false, true);
+        sanitizer = TextSanitizer.getInstance();
+        for (String text : TEXTS) {
+            assertEquals(RtlUtils.fixRtl(text), sanitizer.sanitize(text));
+        }
+    }
+
+    @Test
+    public void testEmoji() {
+        setPreferences(true, false);
+        assertEquals("Hello 😀 Zolty", TextSanitizer.getInstance().sanitize("Hello 😀 Żółty"));
+
+        assertEquals("Hello :-D Żółty", TextSanitizer.convertEmojiToAscii("Hello 😀 Żółty", app));
+        assertEquals("Żółty", TextSanitizer.convertEmojiToAscii("Żółty", app));
+        for (String text : TEXTS) {
+            assertEquals(EmojiConverter.convertUnicodeEmojiToAscii(text, app), TextSanitizer.convertEmojiToAscii(text, app));
+        }
+    }
+
+    @Test
+    public void testInstances() {
+        setPreferences(true, false);
+        TextSanitizer sanitizer = TextSanitizer.getInstance();
+        assertSame(sanitizer, TextSanitizer.getInstance());
+
+        setPreferences(false, false);
+        assertNotSame(sanitizer, TextSanitizer.getInstance());
+        assertEquals("Żółty", TextSanitizer.getInstance().sanitize("Żółty"));
+    }
+
+    private void setPreferences(boolean transliterate, boolean rtl) {
+        SharedPreferences.Editor editor = GBApplication.getPrefs().getPreferences().edit();
+        editor.putBoolean("transliteration", transliterate);
+        editor.putBoolean(GBPrefs.RTL_SUPPORT, rtl);
+        editor.apply();
+    }
+}
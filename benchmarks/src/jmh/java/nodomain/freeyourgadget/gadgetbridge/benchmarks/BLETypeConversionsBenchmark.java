@@ -0,0 +1,86 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BLETypeConversionsBenchmark {
+    /**
+     * The timestamp of a Huami activity fetch reply: 2017-01-20 14:00:00 +01:00
+     */
+    private static final byte[] FETCH_TIMESTAMP = new byte[] {
+            (byte) 0xe1, 0x07, 0x01, 0x14, 0x0e, 0x00, 0x00, 0x04
+    };
+
+    private byte[] data;
+    private Calendar calendar;
+
+    @Setup
+    public void setUp() throws IOException {
+        data = Captures.readBytes("ActivityDetailsDump1.txt");
+        calendar = new GregorianCalendar(TimeZone.getTimeZone("Europe/Berlin"));
+        calendar.setTimeInMillis(1484917200000L);
+    }
+
+    @Benchmark
+    public GregorianCalendar rawBytesToCalendar() {
+        return BLETypeConversions.rawBytesToCalendar(FETCH_TIMESTAMP);
+    }
+
+    @Benchmark
+    public byte[] calendarToRawBytes() {
+        return BLETypeConversions.calendarToRawBytes(calendar);
+    }
+
+    @Benchmark
+    public byte[] fromUint32() {
+        return BLETypeConversions.join(BLETypeConversions.fromUint32(0x4c2a), BLETypeConversions.fromUint16(0x1234));
+    }
+
+    /**
+     * Reads the whole capture the way the activity parsers do: every value is
+     * converted from a little endian byte sequence.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void toUintSequence(Blackhole blackhole) {
+        byte[] bytes = data;
+        for (int i = 0; i + 4 <= bytes.length; i += 4) {
+            blackhole.consume(BLETypeConversions.toUint16(bytes[i], bytes[i + 1]));
+            blackhole.consume(BLETypeConversions.toInt16(bytes[i + 2], bytes[i + 3]));
+            blackhole.consume(BLETypeConversions.toUint32(bytes[i], bytes[i + 1], bytes[i + 2], bytes[i + 3]));
+        }
+    }
+}
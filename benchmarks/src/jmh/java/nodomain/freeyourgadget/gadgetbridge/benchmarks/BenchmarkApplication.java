@@ -0,0 +1,153 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.benchmarks;
+
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.GBEnvironment;
+import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
+import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+
+/**
+ * A minimal application for running protocol code outside of Android: it provides
+ * a files directory and preferences with their default values, but no database,
+ * no services and no resources.
+ * <p/>
+ * GBApplication#onCreate() cannot be used for this, since it sets up everything else
+ * as well, so the preferences are injected directly.
+ */
+class BenchmarkApplication extends GBApplication {
+    private static BenchmarkApplication instance;
+
+    private final File filesDir;
+
+    private BenchmarkApplication(File filesDir) {
+        this.filesDir = filesDir;
+    }
+
+    static synchronized void setUp() throws IOException {
+        if (instance != null) {
+            return;
+        }
+        GBEnvironment.setupEnvironment(GBEnvironment.createLocalTestEnvironment());
+        // the constructor registers the instance as the application context
+        instance = new BenchmarkApplication(Files.createTempDirectory("gb-benchmark").toFile());
+
+        SharedPreferences sharedPrefs = new DefaultPreferences();
+        Prefs prefs = new Prefs(sharedPrefs);
+        setStaticField("sharedPrefs", sharedPrefs);
+        setStaticField("prefs", prefs);
+        setStaticField("gbPrefs", new GBPrefs(prefs));
+    }
+
+    private static void setStaticField(String name, Object value) throws IOException {
+        try {
+            Field field = GBApplication.class.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(null, value);
+        } catch (NoSuchFieldException | IllegalAccessException ex) {
+            throw new IOException("Unable to set up GBApplication." + name, ex);
+        }
+    }
+
+    @Override
+    public File getExternalFilesDir(String type) {
+        return filesDir;
+    }
+
+    @Override
+    public File[] getExternalFilesDirs(String type) {
+        return new File[] { filesDir };
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    @Override
+    public File getCacheDir() {
+        return filesDir;
+    }
+
+    /**
+     * Read-only preferences that always return the given default values.
+     */
+    private static class DefaultPreferences implements SharedPreferences {
+        @Override
+        public Map<String, ?> getAll() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return defValue;
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return false;
+        }
+
+        @Override
+        public Editor edit() {
+            throw new UnsupportedOperationException("Benchmark preferences are read-only");
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads recorded captures from the classpath. The captures use the same hex format
+ * as the fixtures of the unit tests: bytes written as hex literals separated by
+ * whitespace, e.g. "0x0 0x1 0x7 0x47". Lines starting with '#' are comments.
+ */
+final class Captures {
+    private Captures() {
+    }
+
+    /**
+     * Returns all bytes of the capture as one continuous stream, e.g. a complete
+     * transfer of activity details.
+     */
+    static byte[] readBytes(String resourceName) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] line : readFrames(resourceName)) {
+            out.write(line);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns every line of the capture as a separate frame, e.g. a single
+     * message received from the device.
+     */
+    static byte[][] readFramesArray(String resourceName) throws IOException {
+        List<byte[]> frames = readFrames(resourceName);
+        return frames.toArray(new byte[frames.size()][]);
+    }
+
+    static List<byte[]> readFrames(String resourceName) throws IOException {
+        InputStream in = Captures.class.getClassLoader().getResourceAsStream(resourceName);
+        if (in == null) {
+            throw new IOException("Capture not found: " + resourceName);
+        }
+        List<byte[]> frames = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] tokens = line.split("\\s+");
+                byte[] frame = new byte[tokens.length];
+                for (int i = 0; i < tokens.length; i++) {
+                    frame[i] = (byte) (int) Integer.decode(tokens[i]);
+                }
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,80 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.STM32CRC;
+import nodomain.freeyourgadget.gadgetbridge.util.CRC32C;
+import nodomain.freeyourgadget.gadgetbridge.util.CheckSums;
+
+/**
+ * Checksums over a recorded transfer of activity details (about 15KB), which is in
+ * the range of the files and chunks they are used for.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ChecksumBenchmark {
+    // same chunk size as PBWReader
+    private static final int STM32_CHUNK_SIZE = 2000;
+
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws IOException {
+        data = Captures.readBytes("ActivityDetailsDump1.txt");
+    }
+
+    @Benchmark
+    public long crc32c() {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public int stm32Crc() {
+        STM32CRC crc = new STM32CRC();
+        byte[] chunk = new byte[STM32_CHUNK_SIZE];
+        for (int offset = 0; offset < data.length; offset += STM32_CHUNK_SIZE) {
+            int length = Math.min(STM32_CHUNK_SIZE, data.length - offset);
+            System.arraycopy(data, offset, chunk, 0, length);
+            crc.addData(chunk, length);
+        }
+        return crc.getResult();
+    }
+
+    @Benchmark
+    public int crc16() {
+        return CheckSums.getCRC16(data);
+    }
+
+    @Benchmark
+    public int crc8() {
+        return CheckSums.getCRC8(data);
+    }
+}
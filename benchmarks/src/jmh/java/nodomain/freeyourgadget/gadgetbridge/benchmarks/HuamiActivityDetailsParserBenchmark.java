@@ -0,0 +1,91 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.GBException;
+import nodomain.freeyourgadget.gadgetbridge.devices.amazfitbip.BipActivitySummary;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrackSeries;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiActivityDetailsParser;
+
+/**
+ * Parses the recorded activity details that are also used by HuamiActivityDetailsParserTest
+ * (972 track points).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HuamiActivityDetailsParserBenchmark {
+    private static final int NOTIFICATION_LENGTH = 19;
+
+    private byte[] details;
+    private BipActivitySummary summary;
+
+    @Setup
+    public void setUp() throws IOException {
+        details = Captures.readBytes("ActivityDetailsDump1.txt");
+
+        summary = new BipActivitySummary();
+        summary.setBaseLongitude(BLETypeConversions.toUint32((byte) 0xd6, (byte) 0xc4, (byte) 0x62, (byte) 0x02));
+        summary.setBaseLatitude(BLETypeConversions.toUint32((byte) 0xff, (byte) 0xa9, (byte) 0x61, (byte) 0x9));
+        summary.setBaseAltitude(BLETypeConversions.toUint32((byte) 0x30, (byte) 0x0, (byte) 0x0, (byte) 0x0));
+        summary.setStartTime(new Date(1484920800000L)); // 2017-01-20T14:00:00Z
+        summary.setName("benchmark");
+        User user = new User(0L);
+        user.setName("Elvis");
+        summary.setUser(user);
+        Device device = new Device(0L);
+        device.setName("SuperBand 2000");
+        summary.setDevice(device);
+    }
+
+    @Benchmark
+    public ActivityTrack parse() throws GBException {
+        HuamiActivityDetailsParser parser = new HuamiActivityDetailsParser(summary);
+        parser.setSkipCounterByte(true);
+        return parser.parse(details);
+    }
+
+    /**
+     * Like FetchSportsDetailsOperation, in chunks of the size of a notification
+     * and without creating ActivityPoints.
+     */
+    @Benchmark
+    public ActivityTrackSeries consume() throws GBException {
+        HuamiActivityDetailsParser parser = new HuamiActivityDetailsParser(summary);
+        parser.setSkipCounterByte(true);
+        for (int i = 0; i < details.length; i += NOTIFICATION_LENGTH) {
+            parser.consume(details, i, Math.min(NOTIFICATION_LENGTH, details.length - i));
+        }
+        return parser.finish();
+    }
+}
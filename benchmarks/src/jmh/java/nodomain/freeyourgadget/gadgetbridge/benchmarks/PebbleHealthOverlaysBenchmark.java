@@ -0,0 +1,78 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PebbleHealthSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivityOverlay;
+import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivitySample;
+
+/**
+ * Applies the activity overlays of a month view (one sample per minute) to the samples,
+ * without the database query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PebbleHealthOverlaysBenchmark {
+    private static final int SAMPLE_COUNT = 31 * 24 * 60;
+    private static final int OVERLAY_COUNT = 2000;
+    private static final int START = 1500000000;
+
+    private List<PebbleHealthActivitySample> samples;
+    private List<PebbleHealthActivityOverlay> overlays;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        samples = new ArrayList<>(SAMPLE_COUNT);
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            PebbleHealthActivitySample sample = new PebbleHealthActivitySample();
+            sample.setTimestamp(START + i * 60);
+            sample.setRawKind(PebbleHealthSampleProvider.TYPE_ACTIVITY);
+            samples.add(sample);
+        }
+        overlays = new ArrayList<>(OVERLAY_COUNT);
+        for (int i = 0; i < OVERLAY_COUNT; i++) {
+            int from = START - 3600 + random.nextInt(SAMPLE_COUNT * 60);
+            PebbleHealthActivityOverlay overlay = new PebbleHealthActivityOverlay();
+            overlay.setTimestampFrom(from);
+            overlay.setTimestampTo(from + random.nextInt(12 * 3600));
+            overlay.setRawKind(1 + random.nextInt(PebbleHealthSampleProvider.TYPE_RUN));
+            overlays.add(overlay);
+        }
+    }
+
+    @Benchmark
+    public List<PebbleHealthActivitySample> applyOverlays() {
+        // the overlays overwrite the same samples in every invocation, so the work stays the same
+        PebbleHealthSampleProvider.applyOverlays(samples, overlays);
+        return samples;
+    }
+}
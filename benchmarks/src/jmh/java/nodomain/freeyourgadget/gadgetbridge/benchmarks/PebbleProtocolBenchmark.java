@@ -0,0 +1,92 @@
+/*  Copyright (C) 2020 Gadgetbridge contributors
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
+import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
+import nodomain.freeyourgadget.gadgetbridge.model.NotificationType;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.pebble.PebbleProtocol;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PebbleProtocolBenchmark {
+    private PebbleProtocol protocol;
+    private byte[][] inboundFrames;
+    private NotificationSpec notificationSpec;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkApplication.setUp();
+        protocol = new PebbleProtocol(new GBDevice("00:11:22:33:44:55", "Pebble Time 4455", DeviceType.PEBBLE));
+        inboundFrames = Captures.readFramesArray("PebbleInboundFrames.txt");
+
+        notificationSpec = new NotificationSpec(42);
+        notificationSpec.type = NotificationType.CONVERSATIONS;
+        notificationSpec.sourceName = "Conversations";
+        notificationSpec.title = "Elvis";
+        notificationSpec.body = "Are we still meeting at the caf\u00e9 at 8? I'll bring the tickets for the concert, don't forget your umbrella \u2602";
+        notificationSpec.pebbleColor = notificationSpec.type.color;
+        notificationSpec.cannedReplies = new String[] {"Yes", "No", "On my way", "I'll be late"};
+        notificationSpec.attachedActions = new ArrayList<>();
+        NotificationSpec.Action reply = new NotificationSpec.Action();
+        reply.type = NotificationSpec.Action.TYPE_WEARABLE_REPLY;
+        reply.title = "Reply";
+        notificationSpec.attachedActions.add(reply);
+        NotificationSpec.Action dismiss = new NotificationSpec.Action();
+        dismiss.type = NotificationSpec.Action.TYPE_SYNTECTIC_DISMISS;
+        dismiss.title = "Dismiss";
+        notificationSpec.attachedActions.add(dismiss);
+    }
+
+    @Benchmark
+    public byte[] encodeNotification() {
+        return protocol.encodeNotification(notificationSpec);
+    }
+
+    /**
+     * encodeBlobdb() itself is private, this is its simplest caller.
+     */
+    @Benchmark
+    public byte[] encodeBlobdb() {
+        return protocol.encodeDeleteNotification(42);
+    }
+
+    /**
+     * Decodes all recorded frames of the session, so the result is per session, not per frame.
+     */
+    @Benchmark
+    public void decodeResponse(Blackhole blackhole) {
+        for (byte[] frame : inboundFrames) {
+            blackhole.consume(protocol.decodeResponse(frame));
+        }
+    }
+}